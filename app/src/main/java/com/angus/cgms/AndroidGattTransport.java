@@ -0,0 +1,176 @@
+package com.angus.cgms;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.*;
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link GattTransport} over BluetoothGatt. Each connect opens a new BluetoothGatt; callbacks
+ * from one that has since been closed are dropped, so a late event from an old link never
+ * reaches the session. Bond changes come from BleManager's broadcast receiver, not from here.
+ */
+@SuppressLint("MissingPermission")
+public final class AndroidGattTransport implements GattTransport {
+    private final Context ctx;
+    private final BluetoothDevice device;
+    private volatile Callback cb;
+    private volatile BluetoothGatt gatt;
+
+    public AndroidGattTransport(Context ctx, BluetoothDevice device) {
+        this.ctx = ctx;
+        this.device = device;
+    }
+
+    public BluetoothDevice getDevice() { return device; }
+
+    @Override public String getAddress() { return device.getAddress(); }
+    @Override public String getName() { return device.getName(); }
+    @Override public void setCallback(Callback cb) { this.cb = cb; }
+    @Override public int getBondState() { return device.getBondState(); }
+    @Override public boolean createBond() { return device.createBond(); }
+
+    @Override public boolean connect(boolean autoConnect) {
+        BluetoothGatt g = device.connectGatt(ctx, autoConnect, gattCb, BluetoothDevice.TRANSPORT_LE);
+        gatt = g;
+        return g != null;
+    }
+
+    @Override public void disconnect() {
+        BluetoothGatt g = gatt;
+        if (g != null) g.disconnect();
+    }
+
+    @Override public void close() {
+        BluetoothGatt g = gatt;
+        gatt = null;
+        if (g != null) g.close();
+    }
+
+    @Override public boolean discoverServices() {
+        BluetoothGatt g = gatt;
+        return g != null && g.discoverServices();
+    }
+
+    @Override public boolean requestMtu(int mtu) {
+        BluetoothGatt g = gatt;
+        return g != null && g.requestMtu(mtu);
+    }
+
+    @Override public boolean requestConnectionPriority(int priority) {
+        BluetoothGatt g = gatt;
+        return g != null && g.requestConnectionPriority(priority);
+    }
+
+    private BluetoothGattCharacteristic characteristic(UUID uuid) {
+        BluetoothGatt g = gatt;
+        BluetoothGattService svc = g != null ? g.getService(CgmsUuids.CGMS_SERVICE) : null;
+        return svc != null ? svc.getCharacteristic(uuid) : null;
+    }
+
+    @Override public Map<UUID, Integer> getCharacteristics() {
+        BluetoothGatt g = gatt;
+        BluetoothGattService svc = g != null ? g.getService(CgmsUuids.CGMS_SERVICE) : null;
+        if (svc == null) return null;
+        Map<UUID, Integer> m = new LinkedHashMap<>();
+        for (BluetoothGattCharacteristic c : svc.getCharacteristics()) m.put(c.getUuid(), c.getProperties());
+        return m;
+    }
+
+    @Override public List<UUID> getDescriptors(UUID characteristic) {
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        if (c == null || c.getDescriptors() == null) return Collections.emptyList();
+        List<UUID> out = new ArrayList<>();
+        for (BluetoothGattDescriptor d : c.getDescriptors()) out.add(d.getUuid());
+        return out;
+    }
+
+    @Override public boolean setNotification(UUID characteristic, boolean enable) {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        return g != null && c != null && g.setCharacteristicNotification(c, enable);
+    }
+
+    @Override public boolean read(UUID characteristic) {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        return g != null && c != null && g.readCharacteristic(c);
+    }
+
+    @Override public boolean write(UUID characteristic, byte[] value) {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        if (g == null || c == null) return false;
+        c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        c.setValue(value);
+        return g.writeCharacteristic(c);
+    }
+
+    @Override public boolean writeCccd(UUID characteristic, byte[] value) {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        BluetoothGattDescriptor d = c != null ? c.getDescriptor(CgmsUuids.CCCD) : null;
+        if (g == null || d == null) return false;
+        d.setValue(value);
+        return g.writeDescriptor(d);
+    }
+
+    @Override public boolean readCccd(UUID characteristic) {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic c = characteristic(characteristic);
+        BluetoothGattDescriptor d = c != null ? c.getDescriptor(CgmsUuids.CCCD) : null;
+        return g != null && d != null && g.readDescriptor(d);
+    }
+
+    private static UUID owner(BluetoothGattDescriptor d) {
+        return d.getCharacteristic() != null ? d.getCharacteristic().getUuid() : null;
+    }
+
+    private final BluetoothGattCallback gattCb = new BluetoothGattCallback() {
+        private boolean current(BluetoothGatt g) {
+            return cb != null && gatt == g;
+        }
+
+        @Override public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
+            if (current(g)) {
+                cb.onConnectionStateChange(status, newState);
+            } else {
+                g.close();
+            }
+        }
+
+        @Override public void onMtuChanged(BluetoothGatt g, int mtu, int status) {
+            if (current(g)) cb.onMtuChanged(mtu, status);
+        }
+
+        @Override public void onServicesDiscovered(BluetoothGatt g, int status) {
+            if (current(g)) cb.onServicesDiscovered(status);
+        }
+
+        @Override public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+            if (current(g)) cb.onCharacteristicRead(c.getUuid(), status, c.getValue());
+        }
+
+        @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
+            if (current(g)) cb.onCharacteristicWrite(c.getUuid(), status, c.getValue());
+        }
+
+        @Override public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {
+            if (current(g)) cb.onCharacteristicChanged(c.getUuid(), c.getValue());
+        }
+
+        @Override public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+            if (d != null && CgmsUuids.CCCD.equals(d.getUuid()) && current(g)) cb.onDescriptorWrite(owner(d), status, d.getValue());
+        }
+
+        @Override public void onDescriptorRead(BluetoothGatt g, BluetoothGattDescriptor d, int status) {
+            if (d != null && CgmsUuids.CCCD.equals(d.getUuid()) && current(g)) cb.onDescriptorRead(owner(d), status, d.getValue());
+        }
+    };
+}
@@ -8,19 +8,32 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class BleManager {
     private static final String TAG = "BleManager";
-    
+
     public interface Logger { void log(String s); }
     public interface ConnectionStateCallback { void onConnectionStateChanged(boolean isConnected); }
     public interface ScanningStateCallback { void onScanningStateChanged(boolean isScanning); }
     public interface DeviceFoundCallback { void onDeviceFound(BluetoothDevice device, int rssi); }
+    // The callbacks above arrive on the control thread
+    /** Every accepted record from every sensor, on that sensor's dispatcher thread. */
+    public interface MeasurementListener { void onMeasurement(String address, long timestampMillis, CgmsParser.MeasurementRecord r); }
 
     private final Context ctx;
     private final BluetoothAdapter adapter;
@@ -28,117 +41,471 @@ public class BleManager {
     private final ConnectionStateCallback connectionCallback;
     private final ScanningStateCallback scanningCallback;
     private final DeviceFoundCallback deviceFoundCallback;
+    private volatile MeasurementListener measurementListener;
 
-    public static final UUID CGMS_SERVICE =
-            UUID.fromString("0000181F-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_MEASUREMENT =
-            UUID.fromString("00002AA7-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_FEATURE =
-            UUID.fromString("00002AA8-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_STATUS =
-            UUID.fromString("00002AA9-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_SESSION_START_TIME =
-            UUID.fromString("00002AAA-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_SESSION_RUN_TIME =
-            UUID.fromString("00002AAB-0000-1000-8000-00805F9B34FB");
-    public static final UUID CGM_SPECIFIC_OPS_CP =
-            UUID.fromString("00002AAC-0000-1000-8000-00805F9B34FB");
-    public static final UUID CCCD =
-            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGMS_SERVICE = CgmsUuids.CGMS_SERVICE;
+    public static final UUID CGM_MEASUREMENT = CgmsUuids.CGM_MEASUREMENT;
+    public static final UUID CGM_FEATURE = CgmsUuids.CGM_FEATURE;
+    public static final UUID CGM_STATUS = CgmsUuids.CGM_STATUS;
+    public static final UUID CGM_SESSION_START_TIME = CgmsUuids.CGM_SESSION_START_TIME;
+    public static final UUID CGM_SESSION_RUN_TIME = CgmsUuids.CGM_SESSION_RUN_TIME;
+    public static final UUID CGM_SPECIFIC_OPS_CP = CgmsUuids.CGM_SPECIFIC_OPS_CP;
+    public static final UUID RECORD_ACCESS_CP = CgmsUuids.RECORD_ACCESS_CP;
+    public static final UUID CCCD = CgmsUuids.CCCD;
 
     private BluetoothLeScanner scanner;
-    private BluetoothGatt gatt;
-    private boolean isConnected = false;
-    private boolean isScanning = false;
-    private boolean servicesDiscovered = false;
-    private final Set<UUID> cccdEnabledChars = new HashSet<>();
-    private final Set<UUID> cccdInProgressChars = new HashSet<>();
-    private final Deque<UUID> cccdQueue = new ArrayDeque<>();
-    private boolean cccdOpInFlight = false;
-    private static final long CCCD_TIMEOUT_MS = 5000;
-    private final Runnable cccdTimeoutRunnable = new Runnable() {
-        @Override public void run() {
-            if (cccdOpInFlight) {
-                logBoth("[CCCD] timeout, resetting and processing next");
-                cccdOpInFlight = false;
-                cccdInProgressChars.clear();
-                processNextCccdInQueue();
-            }
-        }
-    };
-    private boolean bondingInProgress = false;
-    private BluetoothDevice currentDevice;
-    private int reconnectAttempts = 0;
-    private static final int MAX_RECONNECT_ATTEMPTS = 3;
-    private static final long RECONNECT_DELAY_MS = 2000;
+    private volatile boolean isScanning = false;
+    // 每個感測器一個 Session：各自的連線狀態、GATT 佇列、補抓與通知佇列，互不阻塞
+    private final SessionRegistry<Session> sessions = new SessionRegistry<>();
+    // Scan metrics here; connection and data path metrics are per session (Session.getMetrics)
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final LatencyHistogram scanFirstResultHist = metrics.histogram("scan.first_result");
+
+    // 已配對裝置重連時沿用上次的 discovery/CCCD 狀態（warm path）
+    private volatile DeviceCache deviceCache = new DeviceCache(null);
+    private final ConnectStats connectStats = new ConnectStats();
+    private static final int CCCD_MAX_RETRIES = 2;
     private static final long KEEPALIVE_INTERVAL_MS = 3000;
-    
-    private Handler scanHandler;
+
+    // Control plane: connection state machines, GATT requests, timers, scan and bond events all run
+    // as messages on this one thread, so they never wait behind UI work and need no locks. Only
+    // notifications stay on the transport thread, straight into each session's ring.
+    private final HandlerThread controlThread = new HandlerThread("cgms-control", Process.THREAD_PRIORITY_FOREGROUND);
+    private final Handler control;
     private static final long SCAN_TIMEOUT_MS = 60000; // 60秒超時
     private static final long COUNTDOWN_INTERVAL_MS = 5000; // 每5秒顯示一次倒計時
     private int remainingSeconds;
-    
-    // 儲存已發現的裝置，避免重複顯示
-    private Set<String> foundDeviceAddresses = new HashSet<>();
-    private boolean measurementReceived = false;
-    private final Runnable keepAliveRunnable = new Runnable() {
-        @Override public void run() {
-            if (gatt == null || !isConnected || measurementReceived) return;
-            try {
-                BluetoothGattService svc = gatt.getService(CGMS_SERVICE);
-                if (svc != null) {
-                    BluetoothGattCharacteristic st = getChar(svc, CGM_STATUS);
-                    if (st != null) gatt.readCharacteristic(st);
-                }
-            } catch (Exception ignored) {}
-            scanHandler.postDelayed(this, KEEPALIVE_INTERVAL_MS);
-        }
-    };
+    // 掃描模式隨時間降級（low latency → balanced → low power），擁擠時改用批次回報
+    private ScanEngine scanEngine;
+    private static final long SCAN_TICK_MS = 1000;
+    private ScanFilter scanFilter;
+    private static final long DIRECT_CONNECT_TIMEOUT_MS = 8000;
+    // Raw GATT event capture for off-device replay; primary session only, written from its transport and control threads
+    private volatile GattCapture.Writer capture;
+    // Rotation settings of the capture in progress; guarded by captureLock
+    private final Object captureLock = new Object();
+    private File captureDir;
+    private volatile long captureFileBytes;
+    private int captureFiles;
+
+    // Notifications are copied into the session's ring on the GATT callback thread and
+    // decoded/logged on the session's dispatcher thread, so a slow consumer never delays the
+    // next callback and a flood from one sensor never queues behind another
+    private static final int TAG_MEASUREMENT = 1;
+    private static final int TAG_SOCP = 2;
+    private static final int TAG_RACP = 3;
+    private static final int NOTIFICATION_RING_CAPACITY = 256;
+    private static final int NOTIFICATION_SLOT_SIZE = 512; // max ATT attribute value
+    private static final long INDICATION_OFFER_WAIT_NANOS = 200_000_000L;
+    private static final int DISPATCHER_JOIN_MS = 2000;
+    // Structured log: callers pass codes and raw args, text is rendered on the log thread
+    private static final int EVENT_LOG_CAPACITY = 1024;
+    private final EventLog events = new EventLog(EVENT_LOG_CAPACITY);
+
+    // Persistent readings of the primary session; appended on its dispatcher thread
+    private volatile GlucoseStore store;
+    // Session index of the store (SessionTimeline), next to its segments
+    private volatile File sessionIndexFile;
+
+    // Rolling 1h/24h/14d statistics, fed from the primary session's dispatcher thread
+    private final GlycemicStats stats = new GlycemicStats();
+    private final GlycemicStats.Summary statsSummary = new GlycemicStats.Summary();
+    // Rate of change and 20-minute projection from live readings, same thread
+    private final TrendPredictor trend = new TrendPredictor();
+    // Chart history with a min/max pyramid; written on the same thread, read by the UI
+    private final ChartSeries chart = new ChartSeries();
+
+    // 斷線期間感測器暫存的資料，重連後經 RACP 補抓
+    private static final long RACP_TIMEOUT_MS = 10000;
+    private static final long RACP_CHECK_INTERVAL_MS = 1000;
+    private static final long SOCP_TIMEOUT_MS = 5000;
+    private static final long SOCP_CHECK_INTERVAL_MS = 1000;
+    private static final String SESSION_INDEX_FILE = "sessions.idx";
 
     public BleManager(Context ctx, BluetoothAdapter adapter, Logger logger, ConnectionStateCallback connectionCallback, ScanningStateCallback scanningCallback, DeviceFoundCallback deviceFoundCallback) {
-        this.ctx = ctx; 
-        this.adapter = adapter; 
+        this.ctx = ctx;
+        this.adapter = adapter;
         this.logger = logger;
         this.connectionCallback = connectionCallback;
         this.scanningCallback = scanningCallback;
         this.deviceFoundCallback = deviceFoundCallback;
-        this.scanHandler = new Handler(Looper.getMainLooper());
+        controlThread.start();
+        this.control = new Handler(controlThread.getLooper());
+        this.scanEngine = new ScanEngine(metrics, adapter != null && adapter.isOffloadedScanBatchingSupported());
 
         // Listen for bond state changes to defer CCCD enabling until after bonding
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        ctx.registerReceiver(bondReceiver, filter);
+        ctx.registerReceiver(bondReceiver, filter, null, control);
+
+        events.setRenderer(this::renderEvent);
+        events.addSink((level, tag, e, text) -> Log.println(logcatPriority(level), TAG, text), LogEvents.DEBUG, LogEvents.TAG_ALL);
+        if (logger != null) events.addSink((level, tag, e, text) -> logger.log(text), LogEvents.INFO, LogEvents.TAG_ALL);
+        events.start();
+        trend.setListener(this::onTrendAlert);
     }
 
-    private void logBoth(String message) {
-        Log.i(TAG, message);
-        if (logger != null) logger.log(message);
+    public EventLog getEventLog() {
+        return events;
+    }
+
+    /** Also writes every event, unformatted, to rotating files in {@code dir} (see {@link EventLogFile}). */
+    public void startEventLogFile(File dir, long maxBytesPerFile, int maxFiles) {
+        try {
+            events.setFile(new EventLogFile.Writer(dir, maxBytesPerFile, maxFiles));
+        } catch (IOException e) {
+            events.log(LogEvents.LOG_FILE_FAILED, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /** The primary session's notification ring, or null with no session open. */
+    public NotificationRing getNotificationRing() {
+        Session s = sessions.primary();
+        return s != null ? s.notificationRing : null;
+    }
+
+    public void setMeasurementListener(MeasurementListener l) {
+        measurementListener = l;
+    }
+
+    private void onTrendAlert(int alert, boolean active, long timestampMillis, float projected, float rate) {
+        int code = alert == TrendPredictor.ALERT_PREDICTED_LOW
+                ? (active ? LogEvents.PREDICTED_LOW : LogEvents.PREDICTED_LOW_CLEARED)
+                : (active ? LogEvents.PREDICTED_HIGH : LogEvents.PREDICTED_HIGH_CLEARED);
+        events.log(code, String.format(Locale.US, "%+.1f", rate), Math.round(projected),
+                (int) (trend.horizonMillis() / 60_000L));
+    }
+
+    /**
+     * Opens (or creates) the reading store in {@code dir}; the primary session's measurements are appended to it.
+     * Returns at once: mapping the segments and replaying 14 days of history run on the control thread,
+     * ahead of anything posted later, such as a connect.
+     */
+    public void openStore(File dir) {
+        control.post(() -> {
+            GlucoseStore s;
+            try {
+                s = new GlucoseStore(dir);
+            } catch (IOException e) {
+                events.log(LogEvents.STORE_FAILED, String.valueOf(e.getMessage()));
+                return;
+            }
+            GlucoseStore.Reading last = new GlucoseStore.Reading();
+            if (s.newest(last)) {
+                // Seed the statistics windows and the chart from history, before any reading can be appended
+                s.query(last.timestampMillis - 14 * GlycemicStats.DAY, last.timestampMillis + 1, r -> {
+                    if (!r.has(CgmsParser.HAS_GLUCOSE)) return;
+                    stats.add(r.timestampMillis, r.glucose);
+                    chart.add(r.timestampMillis, r.glucose);
+                });
+            }
+            events.log(LogEvents.STORE_OPEN, (int) s.size(), (int) s.recoveredOnOpen());
+            sessionIndexFile = new File(dir, SESSION_INDEX_FILE);
+            store = s;
+            Session p = sessions.primary();
+            if (p != null) p.seedFromStore(s);
+        });
+    }
+
+    public GlucoseStore getStore() {
+        return store;
+    }
+
+    /**
+     * Writes every stored reading to {@code file} in the compact export format ({@link GlucoseExport});
+     * returns how many. Runs on the caller's thread and holds the store meanwhile, a few ms per 10k readings.
+     */
+    public long exportHistory(File file) throws IOException {
+        GlucoseStore s = store;
+        if (s == null) throw new IOException("no store open");
+        return GlucoseExport.export(s, Long.MIN_VALUE, Long.MAX_VALUE, new FileOutputStream(file));
+    }
+
+    public TrendPredictor getTrend() {
+        return trend;
+    }
+
+    public GlycemicStats getStats() {
+        return stats;
+    }
+
+    public ChartSeries getChart() {
+        return chart;
+    }
+
+    /** The primary session's backfill, or null with no session open. */
+    public RacpBackfill getBackfill() {
+        Session s = sessions.primary();
+        return s != null ? s.backfill : null;
+    }
+
+    /** Open sessions, oldest first. */
+    public List<Session> getSessions() {
+        return sessions.all();
+    }
+
+    public Session getSession(String address) {
+        return sessions.get(address);
+    }
+
+    /** Loads (or creates) the per-device cache used to shorten reconnects to bonded sensors. */
+    public void openDeviceCache(File file) {
+        deviceCache = new DeviceCache(file);
+    }
+
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /** Writes a metrics snapshot to {@code file}, e.g. next to the event logs: scan metrics, then one block per session. */
+    public void dumpMetrics(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                metrics.snapshot().writeTo(w);
+                for (Session s : sessions.all()) {
+                    w.append("# session ").append(s.getAddress()).append('\n');
+                    s.metrics.snapshot().writeTo(w);
+                }
+            }
+            if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+        } catch (IOException e) {
+            Log.w(TAG, "metrics dump failed", e);
+        }
+    }
+
+    // Local time of the phone, with its UTC offset, for log lines
+    private static String formatLocal(long epochMillis) {
+        return SessionTimeline.StartTime.of(epochMillis, TimeZone.getDefault()).toString();
+    }
+
+    private static int logcatPriority(int level) {
+        switch (level) {
+            case LogEvents.DEBUG: return Log.DEBUG;
+            case LogEvents.WARN: return Log.WARN;
+            case LogEvents.ERROR: return Log.ERROR;
+            default: return Log.INFO;
+        }
+    }
+
+    // Runs on the event log thread; localized strings where the app has them, English otherwise
+    private String renderEvent(EventLog.Event e) {
+        switch (e.code) {
+            case LogEvents.SUBSCRIBE_RESULT:
+                return ctx.getString(R.string.subscribe_cgm_measurement, ctx.getString(e.ints[0] != 0 ? R.string.ok : R.string.fail));
+            case LogEvents.CONNECTION_PEER_TERMINATED:
+                return ctx.getString(R.string.connection_state_error, e.ints[0]) + " (peer terminated: security/multi-connection/idle policy)";
+            case LogEvents.CCCD_WRITE_SUCCESS:
+                return ctx.getString(R.string.cccd_write_success) + (e.hasUuid ? " [" + e.uuid() + "]" : "");
+            case LogEvents.CCCD_WRITE_FAILED:
+                return ctx.getString(R.string.cccd_write_failed, e.ints[0]) + (e.hasUuid ? " [" + e.uuid() + "]" : "");
+        }
+        int res = stringRes(e.code);
+        return res != 0 ? ctx.getString(res, LogEvents.formatArgs(e)) : LogEvents.render(e);
+    }
+
+    private static int stringRes(int code) {
+        switch (code) {
+            case LogEvents.BT_NOT_ENABLED: return R.string.bluetooth_not_enabled;
+            case LogEvents.SCANNER_FAILED: return R.string.scanner_failed;
+            case LogEvents.SCAN_START: return R.string.scan_start;
+            case LogEvents.SCAN_COUNTDOWN: return R.string.scanning_countdown;
+            case LogEvents.SCAN_TIMEOUT: return R.string.scan_timeout;
+            case LogEvents.SCAN_TIMEOUT_MESSAGE: return R.string.scan_timeout_message;
+            case LogEvents.STOP_SCAN: return R.string.stop_scan;
+            case LogEvents.SCAN_FAILED: return R.string.scan_failed;
+            case LogEvents.DEVICE_FOUND: return R.string.device_found;
+            case LogEvents.ACTIVE_DISCONNECT: return R.string.active_disconnect;
+            case LogEvents.USER_SELECTED_CONNECT: return R.string.user_selected_connect;
+            case LogEvents.CONNECTION_STATE_ERROR: return R.string.connection_state_error;
+            case LogEvents.CONNECTED_DISCOVERING: return R.string.connected_discovering;
+            case LogEvents.DISCONNECTED: return R.string.disconnected;
+            case LogEvents.TRY_RECONNECT: return R.string.try_reconnect;
+            case LogEvents.SERVICE_DISCOVERY_FAILED: return R.string.service_discovery_failed;
+            case LogEvents.CGM_SERVICE_NOT_FOUND: return R.string.cgm_service_not_found;
+            case LogEvents.CGM_SERVICE_FOUND: return R.string.cgm_service_found;
+            case LogEvents.CGM_MEASUREMENT_NOT_FOUND: return R.string.cgm_measurement_not_found;
+            case LogEvents.FEATURE_READ: return R.string.feature_log;
+            case LogEvents.STATUS_READ: return R.string.status_log;
+            case LogEvents.SESSION_START_READ: return R.string.session_start_log;
+            case LogEvents.SESSION_RUN_READ: return R.string.session_run_log;
+            case LogEvents.REQUEST_BONDING: return R.string.request_bonding;
+            case LogEvents.BONDED_CONTINUE: return R.string.bonded_continue;
+            case LogEvents.BOND_FAILED: return R.string.bond_failed;
+            case LogEvents.CCCD_NOT_FOUND: return R.string.cccd_not_found;
+            case LogEvents.MEASUREMENT: return R.string.measurement_log;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Starts recording the primary session's GATT events into {@code dir} (see {@link GattCapture}).
+     * A new file starts once the current one reaches {@code maxBytes}; the oldest are deleted
+     * beyond {@code maxFiles}.
+     */
+    public void startCapture(File dir, long maxBytes, int maxFiles) {
+        if (maxBytes <= 0 || maxFiles <= 0) throw new IllegalArgumentException("maxBytes and maxFiles must be > 0");
+        synchronized (captureLock) {
+            closeCapture();
+            captureDir = dir;
+            captureFileBytes = maxBytes;
+            captureFiles = maxFiles;
+            openCaptureFile();
+        }
+    }
+
+    public void stopCapture() {
+        synchronized (captureLock) {
+            closeCapture();
+            captureDir = null;
+        }
+    }
+
+    // Holding captureLock
+    private void openCaptureFile() {
+        if (!captureDir.isDirectory() && !captureDir.mkdirs()) {
+            events.log(LogEvents.CAPTURE_START_FAILED, "cannot create " + captureDir);
+            return;
+        }
+        // Room for the new file within the limit
+        File[] files = GattCapture.list(captureDir);
+        for (int i = 0; i <= files.length - captureFiles; i++) files[i].delete();
+        String name = GattCapture.PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.US).format(new Date())
+                + GattCapture.SUFFIX;
+        File file = new File(captureDir, name);
+        try {
+            capture = new GattCapture.Writer(file, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+            events.log(LogEvents.CAPTURE_START, file.getAbsolutePath());
+        } catch (IOException e) {
+            events.log(LogEvents.CAPTURE_START_FAILED, String.valueOf(e.getMessage()));
+        }
+    }
+
+    // Holding captureLock
+    private void closeCapture() {
+        GattCapture.Writer w = capture;
+        capture = null;
+        if (w == null) return;
+        try {
+            w.close();
+            events.log(LogEvents.CAPTURE_STOPPED, (int) w.events());
+        } catch (IOException e) {
+            events.log(LogEvents.CAPTURE_CLOSE_FAILED, String.valueOf(e.getMessage()));
+        }
+    }
+
+    // Called after writing to w; only the first caller past the limit rotates
+    private void rotateCapture(GattCapture.Writer w) {
+        synchronized (captureLock) {
+            if (capture != w || captureDir == null) return;
+            closeCapture();
+            openCaptureFile();
+        }
     }
 
-    @SuppressLint("MissingPermission")
     public void startScanForCgmsService() {
-    if (adapter == null || !adapter.isEnabled()) { logBoth(ctx.getString(R.string.bluetooth_not_enabled)); return; }
+        startScanForCgmsService(true);
+    }
+
+    /**
+     * Finds a CGM sensor. With {@code directIfKnown}, the last connected sensor is connected to
+     * straight away if it is still bonded and not already open, skipping the scan; otherwise (or
+     * if that connect fails) scans and reports devices through the DeviceFoundCallback.
+     */
+    public void startScanForCgmsService(boolean directIfKnown) {
+        control.post(() -> findSensor(directIfKnown));
+    }
+
+    @SuppressLint("MissingPermission")
+    private void findSensor(boolean directIfKnown) {
+    if (adapter == null || !adapter.isEnabled()) { events.log(LogEvents.BT_NOT_ENABLED); return; }
+        if (directIfKnown) {
+            String address = deviceCache.lastConnectedAddress();
+            BluetoothDevice dev = address != null && BluetoothAdapter.checkBluetoothAddress(address) ? adapter.getRemoteDevice(address) : null;
+            if (dev != null && sessions.get(address) == null && dev.getBondState() == BluetoothDevice.BOND_BONDED) {
+                events.log(LogEvents.SCAN_DIRECT_CONNECT, address);
+                Session s = openSession(new AndroidGattTransport(ctx, dev));
+                if (s != null) {
+                    s.directConnect = true;
+                    control.postDelayed(s.directConnectTimeoutRunnable, DIRECT_CONNECT_TIMEOUT_MS);
+                    return;
+                }
+            }
+        }
+        startScanner();
+    }
+
+    @SuppressLint("MissingPermission")
+    private void startScanner() {
         scanner = adapter.getBluetoothLeScanner();
-    if (scanner == null) { logBoth(ctx.getString(R.string.scanner_failed)); return; }
+    if (scanner == null) { events.log(LogEvents.SCANNER_FAILED); return; }
 
         remainingSeconds = (int)(SCAN_TIMEOUT_MS / 1000); // Calculate remaining seconds from timeout
-        foundDeviceAddresses.clear(); // Clear previously found device records
-    logBoth(ctx.getString(R.string.scan_start, remainingSeconds));
-        ScanFilter filter = new ScanFilter.Builder()
-                .setServiceUuid(new ParcelUuid(CGMS_SERVICE))
-                .build();
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build();
-        
+    events.log(LogEvents.SCAN_START, remainingSeconds);
+        if (scanFilter == null) {
+            scanFilter = new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(CGMS_SERVICE))
+                    .build();
+        }
+        scanEngine.start(SystemClock.elapsedRealtimeNanos());
+
         isScanning = true;
         if (scanningCallback != null) scanningCallback.onScanningStateChanged(true);
-        
-        scanner.startScan(Collections.singletonList(filter), settings, scanCb);
-        
+
+        scanner.startScan(Collections.singletonList(scanFilter), scanSettings(), scanCb);
+
         // 設置60秒超時
-        scanHandler.postDelayed(scanTimeoutRunnable, SCAN_TIMEOUT_MS);
+        control.postDelayed(scanTimeoutRunnable, SCAN_TIMEOUT_MS);
         // 開始倒計時顯示
-        scanHandler.postDelayed(countdownRunnable, COUNTDOWN_INTERVAL_MS);
+        control.postDelayed(countdownRunnable, COUNTDOWN_INTERVAL_MS);
+        control.postDelayed(scanTickRunnable, SCAN_TICK_MS);
+    }
+
+    private ScanSettings scanSettings() {
+        ScanSettings.Builder b = new ScanSettings.Builder().setScanMode(scanEngine.mode());
+        if (scanEngine.reportDelayMillis() > 0) b.setReportDelay(scanEngine.reportDelayMillis());
+        return b.build();
+    }
+
+    // Steps the scan mode down and turns on batching; both need a scanner restart
+    private final Runnable scanTickRunnable = new Runnable() {
+        @SuppressLint("MissingPermission")
+        @Override public void run() {
+            if (!isScanning || scanner == null) return;
+            if (scanEngine.tick(SystemClock.elapsedRealtimeNanos())) {
+                events.log(LogEvents.SCAN_MODE, ScanEngine.modeName(scanEngine.mode()), (int) scanEngine.reportDelayMillis(), scanEngine.resultsPerSecond());
+                scanner.stopScan(scanCb);
+                scanner.startScan(Collections.singletonList(scanFilter), scanSettings(), scanCb);
+            }
+            control.postDelayed(this, SCAN_TICK_MS);
+        }
+    };
+
+    // The remembered sensor may be gone or replaced; drop its session and let the user pick from a scan
+    private void fallBackToScan(Session s) {
+        events.log(LogEvents.SCAN_DIRECT_FAILED, s.getAddress());
+        closeSession(s);
+        startScanner();
+    }
+
+    // Ends the current scan, if any, and logs its summary
+    @SuppressLint("MissingPermission")
+    private void endScan() {
+        control.removeCallbacks(scanTimeoutRunnable);
+        control.removeCallbacks(countdownRunnable);
+        control.removeCallbacks(scanTickRunnable);
+        if (scanner != null && isScanning) {
+            scanner.stopScan(scanCb);
+            isScanning = false;
+            if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
+        }
+        if (scanEngine.isScanning()) {
+            scanEngine.stop(SystemClock.elapsedRealtimeNanos());
+            events.log(LogEvents.SCAN_STATS, scanEngine.toString());
+        }
     }
 
     // Countdown display
@@ -147,9 +514,8 @@ public class BleManager {
         public void run() {
             remainingSeconds -= (int)(COUNTDOWN_INTERVAL_MS / 1000); // Use interval time to calculate seconds to subtract
             if (remainingSeconds > 0) {
-                Log.i(TAG, ctx.getString(R.string.scanning_countdown, remainingSeconds));
-                logger.log(ctx.getString(R.string.scanning_countdown, remainingSeconds));
-                scanHandler.postDelayed(this, COUNTDOWN_INTERVAL_MS);
+                events.log(LogEvents.SCAN_COUNTDOWN, remainingSeconds);
+                control.postDelayed(this, COUNTDOWN_INTERVAL_MS);
             }
         }
     };
@@ -158,90 +524,131 @@ public class BleManager {
     private Runnable scanTimeoutRunnable = new Runnable() {
         @Override
         public void run() {
-            Log.i(TAG, ctx.getString(R.string.scan_timeout));
-            scanHandler.removeCallbacks(countdownRunnable); // Stop countdown
+            events.log(LogEvents.SCAN_TIMEOUT);
+            control.removeCallbacks(countdownRunnable); // Stop countdown
             stopScan();
-            logBoth(ctx.getString(R.string.scan_timeout_message));
+            events.log(LogEvents.SCAN_TIMEOUT_MESSAGE);
         }
-    };    @SuppressLint("MissingPermission")
+    };
+
     public void stopScan() {
-        if (scanner != null && isScanning) {
-            Log.i(TAG, ctx.getString(R.string.stop_scan));
-            logBoth(ctx.getString(R.string.stop_scan));
-            scanner.stopScan(scanCb);
-            isScanning = false;
-            if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
-        }
-        // Cancel timeout and countdown handling
-        scanHandler.removeCallbacks(scanTimeoutRunnable);
-        scanHandler.removeCallbacks(countdownRunnable);
+        control.post(() -> {
+            if (scanner != null && isScanning) events.log(LogEvents.STOP_SCAN);
+            endScan();
+        });
     }
 
-    @SuppressLint("MissingPermission")
+    /**
+     * Closes every session and stops the control thread once the teardown has run. Linked sensors
+     * are first set back to their own communication interval.
+     */
     public void close() {
-        // Cancel timeout and countdown handling
-        scanHandler.removeCallbacks(scanTimeoutRunnable);
-        scanHandler.removeCallbacks(countdownRunnable);
-        scanHandler.removeCallbacks(keepAliveRunnable);
-        scanHandler.removeCallbacks(cccdTimeoutRunnable);
-        
-        if (scanner != null && isScanning) {
-            scanner.stopScan(scanCb);
-            isScanning = false;
-            if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
-        }
-        if (gatt != null) {
-            gatt.disconnect();
-            gatt.close();
-            gatt = null;
-        }
-    isConnected = false;
-    servicesDiscovered = false;
-    cccdEnabledChars.clear();
-    cccdInProgressChars.clear();
-    bondingInProgress = false;
-        currentDevice = null;
-        if (connectionCallback != null) connectionCallback.onConnectionStateChanged(false);
-
         try { ctx.unregisterReceiver(bondReceiver); } catch (Exception ignore) {}
+        control.post(() -> {
+            endScan();
+            // Linked sensors go back to their own interval first; each Set is answered or times out
+            List<CompletableFuture<?>> restores = new ArrayList<>();
+            for (Session s : sessions.all()) restores.add(s.restoreCommInterval());
+            CompletableFuture.allOf(restores.toArray(new CompletableFuture<?>[0]))
+                    .thenRun(() -> control.post(this::closeAll));
+        });
     }
 
-    @SuppressLint("MissingPermission")
+    private void closeAll() {
+        for (Session s : sessions.all()) closeSession(s);
+        stopCapture();
+        GlucoseStore st = store;
+        store = null;
+        if (st != null) st.close();
+        events.stop();
+        if (connectionCallback != null) connectionCallback.onConnectionStateChanged(false);
+        controlThread.quitSafely();
+    }
+
+    /** Disconnects every sensor; each session closes once its link is down. */
     public void disconnect() {
-        if (gatt != null) {
-            logBoth(ctx.getString(R.string.active_disconnect));
-            gatt.disconnect();
-        }
+        control.post(() -> {
+            for (Session s : sessions.all()) s.disconnect();
+        });
     }
 
+    public void disconnect(String address) {
+        control.post(() -> {
+            Session s = sessions.get(address);
+            if (s != null) s.disconnect();
+        });
+    }
+
+    /** True if any sensor is connected. */
     public boolean isConnected() {
-        return isConnected;
+        for (Session s : sessions.all()) {
+            if (s.isConnected) return true;
+        }
+        return false;
     }
 
     public boolean isScanning() {
         return isScanning;
     }
-    
-    // Manually connect to selected device
-    @SuppressLint("MissingPermission")
+
+    // Manually connect to selected device; other open sessions stay connected
     public void connectToDevice(BluetoothDevice device) {
-    logBoth(ctx.getString(R.string.user_selected_connect, device.getAddress()));
-        stopScanAndConnect(device);
+    events.log(LogEvents.USER_SELECTED_CONNECT, device.getAddress());
+        control.post(() -> {
+            Session s = sessions.get(device.getAddress());
+            if (s != null) {
+                endScan();
+                s.start(); // no-op while connected or connecting
+                return;
+            }
+            openSession(new AndroidGattTransport(ctx, device));
+        });
+    }
+
+    /**
+     * Opens a session over any transport, e.g. a {@link SimulatedCgmPeripheral} for load and
+     * fault testing; it then behaves like a scanned sensor. Ignored (and logged) if one is
+     * already open for its address or all session slots are taken.
+     */
+    public void connectTransport(GattTransport transport) {
+        events.log(LogEvents.USER_SELECTED_CONNECT, transport.getAddress());
+        control.post(() -> {
+            if (sessions.get(transport.getAddress()) != null) {
+                events.log(LogEvents.SESSION_LIMIT, transport.getAddress(), sessions.size());
+                return;
+            }
+            openSession(transport);
+        });
     }
 
+    // Results arrive on a binder thread; the time is taken there, the work runs on the control thread
     private final ScanCallback scanCb = new ScanCallback() {
         @Override public void onScanResult(int callbackType, ScanResult result) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            control.post(() -> onScanResult(result, now));
+        }
+
+        @Override public void onBatchScanResults(List<ScanResult> results) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            control.post(() -> {
+                scanEngine.onBatch();
+                for (int i = 0; i < results.size(); i++) onScanResult(results.get(i), now);
+            });
+        }
+
+        @SuppressLint("MissingPermission")
+        private void onScanResult(ScanResult result, long now) {
             if (result == null || result.getDevice() == null) return;
             BluetoothDevice dev = result.getDevice();
-            
-            // Avoid displaying the same device repeatedly
-            if (foundDeviceAddresses.contains(dev.getAddress())) return;
-            foundDeviceAddresses.add(dev.getAddress());
-            
+
+            // Avoid displaying the same device repeatedly; repeats stop here, before the name lookup
+            if (!scanEngine.onResult(dev.getAddress(), now)) return;
+            if (scanEngine.devices() == 1) scanFirstResultHist.record(scanEngine.elapsedNanos(now));
+
             String deviceName = dev.getName() != null ? dev.getName() : ctx.getString(R.string.unknown_device);
             int rssi = result.getRssi();
-            logBoth(ctx.getString(R.string.device_found, deviceName, dev.getAddress(), rssi));
-            
+            events.log(LogEvents.DEVICE_FOUND, deviceName, dev.getAddress(), rssi);
+
             // Notify UI about new device found, let user choose
             if (deviceFoundCallback != null) {
                 deviceFoundCallback.onDeviceFound(dev, rssi);
@@ -249,339 +656,1147 @@ public class BleManager {
         }
 
         @Override public void onScanFailed(int errorCode) {
-            logBoth(ctx.getString(R.string.scan_failed, errorCode));
-            isScanning = false;
-            if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
-            // Cancel timeout and countdown handling
-            scanHandler.removeCallbacks(scanTimeoutRunnable);
-            scanHandler.removeCallbacks(countdownRunnable);
+            control.post(() -> {
+                events.log(LogEvents.SCAN_FAILED, errorCode);
+                isScanning = false;
+                if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
+                endScan();
+            });
         }
     };
 
-    @SuppressLint("MissingPermission")
-    private void stopScanAndConnect(BluetoothDevice dev) {
-        // Cancel timeout and countdown handling since device is found
-        scanHandler.removeCallbacks(scanTimeoutRunnable);
-        scanHandler.removeCallbacks(countdownRunnable);
-        
-        if (scanner != null && isScanning) {
-            scanner.stopScan(scanCb);
-            isScanning = false;
-            if (scanningCallback != null) scanningCallback.onScanningStateChanged(false);
+    // Stops the scan and opens a session over t; null if all session slots are taken
+    private Session openSession(GattTransport t) {
+        endScan();
+        Session s = new Session(t);
+        if (!sessions.add(t.getAddress(), s)) {
+            events.log(LogEvents.SESSION_LIMIT, t.getAddress(), sessions.size());
+            return null;
         }
-        currentDevice = dev;
-        reconnectAttempts = 0;
-        // 若尚未配對，先進行配對，待配對完成再連線，確保初次連線即為加密連線
-        if (dev.getBondState() != BluetoothDevice.BOND_BONDED) {
-            bondingInProgress = dev.createBond();
-            logBoth(ctx.getString(R.string.request_bonding));
-            return;
+        events.log(LogEvents.SESSION_OPENED, t.getAddress(), sessions.size());
+        GlucoseStore st = store;
+        if (st != null && sessions.primary() == s) s.seedFromStore(st);
+        s.notificationDispatcher.start();
+        s.start();
+        return s;
+    }
+
+    private void closeSession(Session s) {
+        if (sessions.primary() == s) s.saveTimeline();
+        if (sessions.remove(s.getAddress()) == null) return;
+        s.close();
+        events.log(LogEvents.SESSION_CLOSED, s.getAddress(), sessions.size());
+        Session p = sessions.primary();
+        GlucoseStore st = store;
+        if (p != null && st != null && s.timeline.currentId() >= 0) p.takeOverStore(st);
+    }
+
+    private void notifyConnectionState() {
+        if (connectionCallback != null) connectionCallback.onConnectionStateChanged(isConnected());
+    }
+
+    private void saveDeviceCache() {
+        try {
+            deviceCache.save();
+        } catch (IOException e) {
+            Log.w(TAG, "device cache save failed", e);
         }
-        gatt = dev.connectGatt(ctx, false, gattCb, BluetoothDevice.TRANSPORT_LE);
     }
 
-    private final BluetoothGattCallback gattCb = new BluetoothGattCallback() {
-        @Override public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                if (status == 19) {
-                    logBoth(ctx.getString(R.string.connection_state_error, status) + " (peer terminated: security/multi-connection/idle policy)");
+    // Registered with the control handler, so it runs on the control thread
+    private final BroadcastReceiver bondReceiver = new BroadcastReceiver() {
+        @Override public void onReceive(Context context, Intent intent) {
+            if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) return;
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) return;
+            Session s = sessions.get(device.getAddress());
+            if (s == null) return;
+            s.onBondStateChanged(intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR));
+        }
+    };
+
+    /**
+     * One sensor: its link, GATT queue, reconnect policy, notification ring and dispatcher
+     * thread, RACP backfill and metrics. Transport callbacks are posted to the control thread,
+     * where all of its state changes and timers run; notifications go straight from the transport
+     * thread into the ring. Nothing here waits on another session, so a slow or misbehaving
+     * sensor only delays its own operations and drops only its own notifications.
+     */
+    public final class Session {
+        private final GattTransport transport;
+        private volatile boolean linkOpen; // connecting or connected
+        private volatile int linkId;       // bumps on every connect, so results from an earlier link are ignored
+        private volatile boolean closed;   // callbacks still queued for the control thread are dropped
+        private int backfillSession = -1;  // timeline session the last backfill was anchored on; control thread
+        private volatile boolean backfillRestart; // rerun from 0 once the aborted run finishes
+        private volatile boolean isConnected = false;
+        private boolean servicesDiscovered = false;
+        private final Set<UUID> cccdEnabledChars = new HashSet<>();
+        // Queued or on the air
+        private final Set<UUID> cccdInProgressChars = new HashSet<>();
+        private final Map<UUID, Integer> cccdFailures = new HashMap<>();
+
+        // Phase latencies and link-health counters; handles are kept so recording skips the registry
+        private final MetricsRegistry metrics = new MetricsRegistry();
+        private final LatencyHistogram connectHist = metrics.histogram("conn.connect");
+        private final LatencyHistogram bondHist = metrics.histogram("conn.bond");
+        private final LatencyHistogram[] readyHist = {metrics.histogram("conn.ready.cold"), metrics.histogram("conn.ready.warm")};
+        private final LatencyHistogram[] firstMeasurementHist = {
+                metrics.histogram("conn.first_measurement.cold"), metrics.histogram("conn.first_measurement.warm")};
+        private final LatencyHistogram[] gattOpHist = new LatencyHistogram[GattScheduler.OP_TYPES];
+        private final LatencyHistogram gattWaitHist = metrics.histogram("gatt.queue_wait");
+        private final LatencyHistogram notifyIntervalHist = metrics.histogram("notify.interarrival");
+        private final LatencyHistogram notifyDispatchHist = metrics.histogram("notify.dispatch_delay");
+        private final MetricsRegistry.Counter disconnectCounter = metrics.counter("conn.disconnects");
+        private final MetricsRegistry.Counter gattTimeoutCounter = metrics.counter("gatt.timeouts");
+        private final MetricsRegistry.Counter gattNotStartedCounter = metrics.counter("gatt.not_started");
+        private final MetricsRegistry.Counter gattCancelledCounter = metrics.counter("gatt.cancelled");
+        private final MetricsRegistry.Counter notifyDroppedCounter = metrics.counter("notify.dropped");
+        private final MetricsRegistry.Counter recordCounter = metrics.counter("notify.records");
+        private final MetricsRegistry.Counter recordCrcFailedCounter = metrics.counter("e2e_crc.failed.records");
+        private final MetricsRegistry.Counter valueCrcFailedCounter = metrics.counter("e2e_crc.failed.values");
+        private long bondStartNanos;
+        private long lastNotifyNanos; // transport thread
+
+        // 所有 GATT 操作都經由排程器，一次只送出一個，完成後立即送下一個
+        private final GattScheduler gattOps = new GattScheduler(this::executeGattOp, new GattScheduler.Listener() {
+            @Override public void onStarted(GattScheduler.Operation op) {
+                control.removeCallbacks(gattTimeoutRunnable);
+                control.postDelayed(gattTimeoutRunnable, op.timeoutNanos / 1_000_000L);
+            }
+
+            @Override public void onFinished(GattScheduler.Operation op) {
+                if (op.isSuccess()) {
+                    gattOpHist[op.type].record(op.latencyNanos());
+                    gattWaitHist.record(op.waitNanos());
+                } else if (op.status == GattScheduler.STATUS_TIMEOUT) {
+                    gattTimeoutCounter.increment();
+                } else if (op.status == GattScheduler.STATUS_NOT_STARTED) {
+                    gattNotStartedCounter.increment();
+                } else if (op.status == GattScheduler.STATUS_CANCELLED) {
+                    gattCancelledCounter.increment();
                 } else {
-                    logBoth(ctx.getString(R.string.connection_state_error, status));
+                    metrics.counter("gatt.status." + op.status).increment();
+                }
+                if (op.type == GattScheduler.OP_WRITE_DESCRIPTOR && !op.isSuccess() && op.status < 0) {
+                    // No callback will come for it
+                    cccdInProgressChars.remove(op.uuid);
+                }
+                if (op.status == GattScheduler.STATUS_TIMEOUT) {
+                    if (op.type == GattScheduler.OP_WRITE_DESCRIPTOR) events.log(LogEvents.CCCD_TIMEOUT);
+                    else events.log(LogEvents.GATT_OP_TIMEOUT, op.toString(), (int) (op.latencyNanos() / 1_000_000L));
+                } else if (op.status == GattScheduler.STATUS_NOT_STARTED) {
+                    events.log(LogEvents.GATT_OP_NOT_STARTED, op.toString());
                 }
-                isConnected = false;
-                if (connectionCallback != null) connectionCallback.onConnectionStateChanged(false);
-                scheduleReconnectIfNeeded();
-                return;
             }
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                logBoth(ctx.getString(R.string.connected_discovering));
-                isConnected = true;
-                if (connectionCallback != null) connectionCallback.onConnectionStateChanged(true);
-                servicesDiscovered = false;
-                cccdEnabledChars.clear();
-                cccdInProgressChars.clear();
-                bondingInProgress = false;
-                measurementReceived = false;
-                try { g.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH); } catch (Exception ignore) {}
-                // Prefer larger MTU for CGM notifications; discovery after MTU change
-                boolean mtuReq = g.requestMtu(185);
-                if (!mtuReq) {
-                    g.discoverServices();
+        });
+        private final Runnable gattTimeoutRunnable = () -> gattOps.checkTimeout(SystemClock.elapsedRealtimeNanos());
+        // Connection to all CCCDs enabled, for the setup time log
+        private long setupStartNanos;
+        private long connectStartNanos;
+        private boolean connectAuto; // autoConnect request: time spent waiting for the sensor is not connect latency
+        private int connectKind = ConnectStats.COLD;
+        private boolean connectReady;
+        private DeviceCache.Entry warmEntry; // cached state this connect is using, null on the cold path
+        private boolean bondingInProgress = false;
+        // 斷線後：快速重試 → 指數退避（含 jitter）→ autoConnect 背景等待
+        private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy(metrics, new Random());
+        private boolean userDisconnect = false;
+        private boolean reconnectAuto;
+        private final Runnable reconnectRunnable = new Runnable() {
+            @Override public void run() {
+                if (linkOpen) return; // already connected or connecting
+                if (reconnectAuto) {
+                    // Controller-side low duty scan; completes whenever the sensor is back in range
+                    events.log(LogEvents.RECONNECT_BACKGROUND, reconnectPolicy.attempts());
+                } else {
+                    events.log(LogEvents.TRY_RECONNECT, reconnectPolicy.attempts());
+                }
+                connectGatt(reconnectAuto);
+            }
+        };
+        // Connecting straight to the remembered bonded sensor; a failure falls back to a scan
+        private boolean directConnect;
+        // A bonded sensor that is out of range would otherwise hold a direct connect for ~30 s
+        private final Runnable directConnectTimeoutRunnable = () -> {
+            if (directConnect && !isConnected) fallBackToScan(this);
+        };
+
+        // Set on the transport thread; the bookkeeping for it runs on the control thread
+        private volatile boolean measurementReceived = false;
+        // Reused for every notification; only touched by this session's dispatcher thread
+        private final CgmsParser.MeasurementRecord measurementRecord = new CgmsParser.MeasurementRecord();
+        private final CgmsParser.MeasurementSink measurementSink = new CgmsParser.MeasurementSink() {
+            @Override public void onMeasurement(CgmsParser.MeasurementRecord r) {
+                Session.this.onMeasurement(r);
+            }
+
+            // Rejected before the backfill filter and the store; the sensor still holds it for a later backfill
+            @Override public void onCrcError(byte[] v, int off, int len) {
+                measurementPos += len;
+                recordCrcFailedCounter.increment();
+                events.log(LogEvents.MEASUREMENT_CRC_FAILED, v, off, len);
+            }
+        };
+        // From CGM Feature, read or cached; values from the sensor end in a CRC that must check
+        private volatile boolean e2eCrc;
+        private boolean measurementCrc; // e2eCrc for the notification being decoded
+        private final NotificationRing notificationRing = new NotificationRing(
+                NOTIFICATION_RING_CAPACITY, NOTIFICATION_SLOT_SIZE, NotificationRing.OVERFLOW_DROP_NEWEST, 0);
+        private final NotificationDispatcher notificationDispatcher;
+        // Byte range of the notification being decoded, for logging each record's raw bytes
+        private byte[] measurementValue;
+        private int measurementPos;
+        private int measurementEnd;
+        private long measurementReceivedMillis;
+        // Session numbering and offset-to-wall-clock mapping; records on the dispatcher thread, Start Time reads on control
+        private final SessionTimeline timeline = new SessionTimeline(new SessionTimeline.Listener() {
+            @Override public void onSessionStarted(SessionTimeline t, SessionTimeline.Session s) {
+                backfill.resetSeen();
+                events.log(LogEvents.SESSION_STARTED, formatLocal(s.startMillis),
+                        SessionTimeline.sourceName(s.source), s.id);
+                saveTimeline();
+                int id = s.id;
+                control.post(() -> onSessionChanged(id));
+            }
+
+            @Override public void onOffsetsRecycled(SessionTimeline t, SessionTimeline.Session s, int fromOffset, int count) {
+                backfill.forgetSeen(fromOffset, count);
+                if (fromOffset == 0) {
+                    events.log(LogEvents.TIME_OFFSET_WRAPPED, s.id, s.wraps());
+                    saveTimeline();
+                }
+            }
+        });
+
+        private final RacpBackfill backfill = new RacpBackfill(this::writeRacp, new RacpBackfill.Listener() {
+            @Override public void onBackfillStarted(RacpBackfill b) {
+                events.log(LogEvents.RACP_START, b.fromOffset());
+                control.removeCallbacks(racpTimeoutRunnable);
+                control.postDelayed(racpTimeoutRunnable, RACP_CHECK_INTERVAL_MS);
+            }
+
+            @Override public void onBackfillFinished(RacpBackfill b, int result) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                events.log(LogEvents.RACP_DONE, RacpBackfill.resultName(result), b.received(), b.accepted(), b.duplicates());
+                events.log(LogEvents.RACP_RATE, (int) (b.elapsedNanos(now) / 1_000_000L),
+                        (int) b.recordsPerSecond(now), (int) b.bytesPerSecond(now));
+                if (backfillRestart) {
+                    backfillRestart = false;
+                    int link = linkId;
+                    control.post(() -> {
+                        if (!closed && link == linkId && linkOpen) runBackfill(0);
+                    });
+                }
+                if (b.accepted() > 0 && isPrimary()) {
+                    stats.summary(GlycemicStats.WINDOW_24H, statsSummary);
+                    events.log(LogEvents.STATS_SUMMARY, statsSummary.toString());
+                }
+            }
+        }, RACP_TIMEOUT_MS * 1_000_000L);
+        private final Runnable racpTimeoutRunnable = new Runnable() {
+            @Override public void run() {
+                if (!backfill.checkTimeout(SystemClock.elapsedRealtimeNanos()) && backfill.isActive()) {
+                    control.postDelayed(this, RACP_CHECK_INTERVAL_MS);
                 }
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                logBoth(ctx.getString(R.string.disconnected));
-                isConnected = false;
-                if (connectionCallback != null) connectionCallback.onConnectionStateChanged(false);
-                if (gatt != null) {
-                    gatt.close();
-                    gatt = null;
+            }
+        };
+        // One SOCP procedure at a time; the interval policy adjusts the primary sensor from its live readings
+        private final SocpClient socp = new SocpClient(this::writeSocp, SOCP_TIMEOUT_MS * 1_000_000L);
+        private final CommIntervalPolicy commIntervalPolicy = new CommIntervalPolicy(metrics);
+        private final Runnable socpTimeoutRunnable = new Runnable() {
+            @Override public void run() {
+                socp.checkTimeout(SystemClock.elapsedRealtimeNanos());
+                if (socp.isBusy()) control.postDelayed(this, SOCP_CHECK_INTERVAL_MS);
+            }
+        };
+        private final Runnable keepAliveRunnable = new Runnable() {
+            @Override public void run() {
+                if (!linkOpen || !isConnected || measurementReceived) return;
+                // Lowest lane, and only when nothing else is waiting
+                if (hasCharacteristic(CGM_STATUS) && gattOps.pending() == 0) {
+                    gattOps.read(CGM_STATUS, GattScheduler.PRIORITY_BACKGROUND, SystemClock.elapsedRealtimeNanos());
                 }
-                scanHandler.removeCallbacks(keepAliveRunnable);
-                scheduleReconnectIfNeeded();
+                control.postDelayed(this, KEEPALIVE_INTERVAL_MS);
             }
+        };
+
+        Session(GattTransport transport) {
+            this.transport = transport;
+            for (int t = 0; t < gattOpHist.length; t++) gattOpHist[t] = metrics.histogram("gatt." + GattScheduler.typeName(t));
+            notificationDispatcher = new NotificationDispatcher("cgms-notify-" + transport.getAddress(), notificationRing,
+                    this::onNotificationSlot, t -> Log.e(TAG, "notification handler failed", t));
+            transport.setCallback(transportCb);
+            timeline.device = transport.getAddress();
+        }
+
+        public String getAddress() { return transport.getAddress(); }
+        public GattTransport getTransport() { return transport; }
+        public boolean isConnected() { return isConnected; }
+        public MetricsRegistry getMetrics() { return metrics; }
+        public RacpBackfill getBackfill() { return backfill; }
+        public SocpClient getSocp() { return socp; }
+        public CommIntervalPolicy getCommIntervalPolicy() { return commIntervalPolicy; }
+        public NotificationRing getNotificationRing() { return notificationRing; }
+        public GattScheduler getGattScheduler() { return gattOps; }
+        public boolean isE2eCrc() { return e2eCrc; }
+        /** Records and values dropped because their E2E-CRC did not match. */
+        public long crcFailures() { return recordCrcFailedCounter.get() + valueCrcFailedCounter.get(); }
+
+        private boolean isPrimary() {
+            return sessions.primary() == this;
         }
 
-        @Override public void onMtuChanged(BluetoothGatt g, int mtu, int status) {
-            // Proceed with discovery regardless of MTU success
-            g.discoverServices();
+        private boolean hasCharacteristic(UUID uuid) {
+            Map<UUID, Integer> chars = transport.getCharacteristics();
+            return chars != null && chars.containsKey(uuid);
         }
 
-        @Override public void onServicesDiscovered(BluetoothGatt g, int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS) { logBoth(ctx.getString(R.string.service_discovery_failed, status)); return; }
-            servicesDiscovered = true;
+        // 若尚未配對，先進行配對，待配對完成再連線，確保初次連線即為加密連線
+        private void start() {
+            if (linkOpen) return;
+            control.removeCallbacks(reconnectRunnable);
+            reconnectPolicy.reset();
+            userDisconnect = false;
+            if (transport.getBondState() != GattTransport.BOND_BONDED) {
+                bondingInProgress = transport.createBond();
+                bondStartNanos = SystemClock.elapsedRealtimeNanos();
+                events.log(LogEvents.REQUEST_BONDING);
+                return;
+            }
+            connectGatt(false);
+        }
+
+        private void disconnect() {
+            control.removeCallbacks(reconnectRunnable);
+            control.removeCallbacks(directConnectTimeoutRunnable);
+            directConnect = false;
+            reconnectPolicy.reset();
+            userDisconnect = true;
+            if (linkOpen) {
+                events.log(LogEvents.ACTIVE_DISCONNECT);
+                // After the sensor is back on its own interval, or the Set failed
+                int link = linkId;
+                restoreCommInterval().thenRun(() -> control.post(() -> {
+                    if (linkOpen && link == linkId) transport.disconnect();
+                }));
+            } else {
+                // Bonding or waiting to reconnect; no link to take down
+                closeSession(this);
+            }
+        }
 
-            BluetoothGattService svc = g.getService(CGMS_SERVICE);
-            if (svc == null) { logBoth(ctx.getString(R.string.cgm_service_not_found)); return; }
-            logBoth(ctx.getString(R.string.cgm_service_found));
+        // After the session has left the registry
+        private void close() {
+            closed = true;
+            control.removeCallbacks(directConnectTimeoutRunnable);
+            control.removeCallbacks(keepAliveRunnable);
+            control.removeCallbacks(gattTimeoutRunnable);
+            control.removeCallbacks(racpTimeoutRunnable);
+            control.removeCallbacks(socpTimeoutRunnable);
+            control.removeCallbacks(reconnectRunnable);
+            directConnect = false;
+            userDisconnect = true;
+            backfill.cancel(SystemClock.elapsedRealtimeNanos());
+            socp.cancelAll(SystemClock.elapsedRealtimeNanos());
+            commIntervalPolicy.onLinkLost(SystemClock.elapsedRealtimeNanos());
+            events.log(LogEvents.COMM_INTERVAL_STATS, commIntervalPolicy.toString());
+            gattOps.cancelAll(SystemClock.elapsedRealtimeNanos());
+            events.log(LogEvents.GATT_OP_STATS, gattOps.toString());
+            if (linkOpen) transport.disconnect();
+            transport.close();
+            // Queued records still reach the store; wait for them so nothing is appended after it closes
+            notificationDispatcher.stop();
+            try {
+                if (!notificationDispatcher.join(DISPATCHER_JOIN_MS)) events.log(LogEvents.NOTIFY_DISPATCHER_STUCK, DISPATCHER_JOIN_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.log(LogEvents.NOTIFY_RING_STATS, notificationRing.toString());
+            linkOpen = false;
+            isConnected = false;
+            servicesDiscovered = false;
+            cccdEnabledChars.clear();
+            cccdInProgressChars.clear();
+            cccdFailures.clear();
+            bondingInProgress = false;
+            notifyConnectionState();
+        }
 
-            // If not bonded, request bond first to avoid security-required writes causing disconnects
-            BluetoothDevice device = g.getDevice();
-            if (device != null) {
-                logBoth("[BondState] at discovery: " + device.getBondState());
+        // The store continues this sensor's newest session, so backfill resumes after it
+        private void seedFromStore(GlucoseStore s) {
+            GlucoseStore.Reading last = new GlucoseStore.Reading();
+            if (!s.newest(last)) return;
+            File f = sessionIndexFile;
+            boolean ours = true;
+            try {
+                if (f != null && f.exists()) ours = timeline.load(f);
+            } catch (IOException e) {
+                events.log(LogEvents.STORE_FAILED, String.valueOf(e.getMessage()));
             }
-            if (device != null && device.getBondState() != BluetoothDevice.BOND_BONDED && !bondingInProgress) {
-                bondingInProgress = device.createBond();
-                logBoth(ctx.getString(R.string.request_bonding));
-                return; // Wait for bond completion to continue
+            // Another sensor wrote the store: its offsets say nothing about ours
+            if (!ours) {
+                takeOverStore(s);
+                return;
             }
+            // The index is saved at session starts and wraps, so the store may be ahead of it
+            timeline.restore(last.sessionId, last.timestampMillis, last.timeOffset);
+            // Raw offsets older than half the u16 range are a wrap behind; newer records reuse them
+            s.querySession(last.sessionId, r -> {
+                if (last.timestampMillis - r.timestampMillis < SessionTimeline.WRAP / 2 * 60_000L) backfill.markSeen(r.timeOffset);
+            });
+        }
 
-            readIfExists(g, svc, CGM_FEATURE);
-            readIfExists(g, svc, CGM_STATUS);
-            readIfExists(g, svc, CGM_SESSION_START_TIME);
-            readIfExists(g, svc, CGM_SESSION_RUN_TIME);
+        // Primary after another sensor's session closed: keep our own offsets, new store session number
+        private void takeOverStore(GlucoseStore s) {
+            GlucoseStore.Reading last = new GlucoseStore.Reading();
+            if (s.newest(last)) timeline.renumber(last.sessionId + 1);
+            saveTimeline();
+        }
 
-            BluetoothGattCharacteristic meas = getChar(svc, CGM_MEASUREMENT);
-            if (meas != null) {
-                // 延遲啟用通知，避免剛完成服務/加密時立即寫入 CCCD 造成斷線
-                scheduleEnableNotifyWithDelay(g, meas, 500);
+        // The primary's timeline is the store's session index
+        private void saveTimeline() {
+            File f = sessionIndexFile;
+            if (f == null || !isPrimary()) return;
+            try {
+                timeline.save(f);
+            } catch (IOException e) {
+                events.log(LogEvents.STORE_FAILED, String.valueOf(e.getMessage()));
             }
-            else logBoth(ctx.getString(R.string.cgm_measurement_not_found));
+        }
 
-            // 啟用 Specific Ops Control Point 的 Indication（若裝置支援）以便接收會話控制回應
-            BluetoothGattCharacteristic socp = getChar(svc, CGM_SPECIFIC_OPS_CP);
-            if (socp != null) {
-                scheduleEnableNotifyWithDelay(g, socp, 700);
+        // Runs on the dispatcher thread
+        private void onNotificationSlot(int tag, long timestampNanos, byte[] v, int len) {
+            notifyDispatchHist.record(SystemClock.elapsedRealtimeNanos() - timestampNanos);
+            if (tag == TAG_MEASUREMENT) {
+                // One notification may carry several size-prefixed records at a large MTU
+                measurementValue = v;
+                measurementPos = 0;
+                measurementEnd = len;
+                measurementCrc = e2eCrc;
+                measurementReceivedMillis = System.currentTimeMillis()
+                        - (SystemClock.elapsedRealtimeNanos() - timestampNanos) / 1_000_000L;
+                int used = CgmsParser.decodeMeasurements(v, 0, len, measurementRecord, measurementSink, measurementCrc);
+                measurementValue = null;
+                if (used < len) {
+                    events.log(LogEvents.MEASUREMENT_MALFORMED, len - used);
+                }
+            } else if (tag == TAG_SOCP) {
+                if (e2eCrc && !E2eCrc.check(v, 0, len)) {
+                    valueCrcFailedCounter.increment();
+                    events.log(LogEvents.E2E_CRC_FAILED, CGM_SPECIFIC_OPS_CP);
+                    return;
+                }
+                events.log(LogEvents.SOCP_RESPONSE, v, 0, len);
+                socp.onIndication(v, 0, e2eCrc ? len - E2eCrc.SIZE : len, timestampNanos);
+            } else if (tag == TAG_RACP) {
+                events.log(LogEvents.RACP_RESPONSE, v, 0, len);
+                backfill.onIndication(v, 0, len, timestampNanos);
+            }
+        }
+
+        private void onMeasurement(CgmsParser.MeasurementRecord r) {
+            int off = measurementPos;
+            int n = CgmsParser.checkedRecordSize(measurementValue, off, measurementEnd, measurementCrc);
+            if (n < 0) n = measurementEnd - off; // whole value decoded as one record
+            measurementPos += n;
+            // Backfilled records are older, so only a live one can start a session (補抓期間 offset 變小不算新 session)
+            long ts = r.has(CgmsParser.HAS_TIME_OFFSET)
+                    ? timeline.onRecord(r.timeOffset, measurementReceivedMillis, !backfill.isActive())
+                    : SessionTimeline.UNKNOWN;
+            // Live and backfilled records overlap; keep the first copy of each time offset
+            if (!backfill.accept(r, n, SystemClock.elapsedRealtimeNanos())) return;
+            recordCounter.increment();
+            // Raw bytes only; decoded again just if some sink renders the event
+            events.log(LogEvents.MEASUREMENT, measurementValue, off, n);
+            if (ts != SessionTimeline.UNKNOWN) {
+                MeasurementListener l = measurementListener;
+                if (l != null) l.onMeasurement(getAddress(), ts, r);
+                // One sensor's readings drive the store, statistics and alerts
+                if (!isPrimary()) return;
+                if (r.has(CgmsParser.HAS_GLUCOSE)) {
+                    stats.add(ts, r.glucose);
+                    chart.add(ts, r.glucose);
+                    // Backfilled history would raise stale alerts; only recent readings drive the trend
+                    if (measurementReceivedMillis - ts <= TrendPredictor.DEFAULT_MAX_GAP_MILLIS) {
+                        trend.add(ts, r.glucose);
+                        if (!backfill.isActive()) onLiveReading(ts, r.glucose);
+                    }
+                }
+                storeMeasurement(ts, r);
+            }
+        }
+
+        // Dispatcher thread. The anchor is the first record's receipt, so the latency is what batching adds on top of it
+        private void onLiveReading(long timestampMillis, float glucose) {
+            commIntervalPolicy.onRecordLatency((measurementReceivedMillis - timestampMillis) * 1_000_000L);
+            int minutes = commIntervalPolicy.onReading(timestampMillis, glucose, trend);
+            if (minutes >= 0) setCommInterval(minutes);
+        }
+
+        private void storeMeasurement(long timestampMillis, CgmsParser.MeasurementRecord r) {
+            GlucoseStore s = store;
+            if (s == null) return;
+            try {
+                s.append(timestampMillis, timeline.currentId(), r);
+            } catch (IOException e) {
+                store = null;
+                s.close();
+                events.log(LogEvents.STORE_FAILED, String.valueOf(e.getMessage()));
+            }
+        }
+
+        // Asks for everything after the newest offset we hold; the first run of a fresh store gets all records
+        private void startBackfill() {
+            runBackfill(Math.max(timeline.newestOffset(), 0));
+        }
+
+        private void runBackfill(int from) {
+            backfillSession = timeline.currentId();
+            backfill.start(from, SystemClock.elapsedRealtimeNanos());
+        }
+
+        // A run anchored on an older session's offsets misses the new one's earlier records; ask again from 0
+        private void onSessionChanged(int id) {
+            if (closed || backfillSession < 0 || backfillSession == id || backfill.fromOffset() == 0) return;
+            backfillSession = id;
+            if (backfill.isActive()) {
+                backfillRestart = true;
+                backfill.abort(SystemClock.elapsedRealtimeNanos());
+            } else if (linkOpen && cccdEnabledChars.contains(RECORD_ACCESS_CP)) {
+                runBackfill(0);
             }
+        }
+
+        // Called with the backfill lock held, from the control or dispatcher thread; the write is
+        // queued on the control thread, in the control lane so it goes ahead of setup and polling
+        private boolean writeRacp(byte[] payload) {
+            if (!linkOpen || !hasCharacteristic(RECORD_ACCESS_CP)) return false;
+            int link = linkId;
+            control.post(() -> {
+                if (closed || link != linkId) return;
+                gattOps.write(RECORD_ACCESS_CP, payload, GattScheduler.PRIORITY_CONTROL, SystemClock.elapsedRealtimeNanos())
+                        .future.thenAccept(op -> {
+                            if (op.isSuccess() || op.status == GattScheduler.STATUS_CANCELLED) return;
+                            events.log(LogEvents.RACP_WRITE_FAILED, op.status, payload);
+                            backfill.cancel(SystemClock.elapsedRealtimeNanos());
+                        });
+            });
+            return true;
+        }
+
+        // Called by SocpClient from any thread; queued on the control thread in the control lane like writeRacp
+        private boolean writeSocp(byte[] command) {
+            if (!linkOpen || !hasCharacteristic(CGM_SPECIFIC_OPS_CP)) return false;
+            int link = linkId;
+            control.post(() -> {
+                if (closed || link != linkId) return;
+                long now = SystemClock.elapsedRealtimeNanos();
+                byte[] payload = e2eCrc ? E2eCrc.append(command) : command;
+                events.log(LogEvents.SOCP_SEND, payload);
+                control.removeCallbacks(socpTimeoutRunnable);
+                control.postDelayed(socpTimeoutRunnable, SOCP_CHECK_INTERVAL_MS);
+                gattOps.write(CGM_SPECIFIC_OPS_CP, payload, GattScheduler.PRIORITY_CONTROL, now).future.thenAccept(op -> {
+                    if (op.isSuccess() || op.status == GattScheduler.STATUS_CANCELLED) return;
+                    events.log(LogEvents.SOCP_WRITE_FAILED, "status=" + op.status);
+                    socp.onWriteFailed(SystemClock.elapsedRealtimeNanos());
+                });
+            });
+            return true;
+        }
+
+        private void logSocp(SocpClient.Response r) {
+            events.log(LogEvents.SOCP_DONE, SocpClient.opName(r.request), SocpClient.statusName(r.status),
+                    (int) (r.latencyNanos() / 1_000_000L));
+        }
+
+        // Read on every link, cold (SOCP CCCD written) or warm (CCCDs confirmed): the policy needs the
+        // sensor's own interval, and what it runs now after a reconnect
+        private void readCommInterval() {
+            socp.getCommInterval(SystemClock.elapsedRealtimeNanos()).thenAccept(r -> {
+                logSocp(r);
+                int minutes = r.commInterval();
+                if (minutes < 0) return;
+                commIntervalPolicy.onSensorInterval(minutes, r.doneNanos);
+                control.post(this::rememberCommInterval);
+            });
+        }
+
+        // Kept per device, so a sensor we left on a short interval does not teach it as its own next time
+        private void rememberCommInterval() {
+            int normal = commIntervalPolicy.normalMinutes();
+            if (normal < 0) return;
+            deviceCache.setCommInterval(getAddress(), normal, System.currentTimeMillis());
+            saveDeviceCache();
+        }
+
+        // Before we let the sensor go, while the link is up: a short interval must not outlive us
+        private CompletableFuture<?> restoreCommInterval() {
+            int minutes = commIntervalPolicy.release();
+            if (!linkOpen || minutes < 0) return CompletableFuture.completedFuture(null);
+            events.log(LogEvents.COMM_INTERVAL_CHANGE, CommIntervalPolicy.modeName(CommIntervalPolicy.MODE_NORMAL), minutes);
+            return socp.setCommInterval(minutes, SystemClock.elapsedRealtimeNanos()).thenAccept(r -> {
+                logSocp(r);
+                if (r.isSuccess()) commIntervalPolicy.onApplied(minutes, r.doneNanos);
+            });
+        }
 
-            // 啟動 keepalive，直到收到第一筆量測
-            scanHandler.removeCallbacks(keepAliveRunnable);
-            scanHandler.postDelayed(keepAliveRunnable, KEEPALIVE_INTERVAL_MS);
+        private void setCommInterval(int minutes) {
+            events.log(LogEvents.COMM_INTERVAL_CHANGE, CommIntervalPolicy.modeName(commIntervalPolicy.mode()), minutes);
+            socp.setCommInterval(minutes, SystemClock.elapsedRealtimeNanos()).thenAccept(r -> {
+                logSocp(r);
+                if (r.isSuccess()) commIntervalPolicy.onApplied(minutes, r.doneNanos);
+                else commIntervalPolicy.onFailed(r.status > 0);
+            });
+        }
+
+        // Runs on the control thread; the scheduler guarantees one at a time per link
+        private boolean executeGattOp(GattScheduler.Operation op) {
+            if (!linkOpen) return false;
+            switch (op.type) {
+                case GattScheduler.OP_DISCOVER_SERVICES: return transport.discoverServices();
+                case GattScheduler.OP_REQUEST_MTU: return transport.requestMtu(op.arg);
+                case GattScheduler.OP_CONNECTION_PRIORITY: return transport.requestConnectionPriority(op.arg);
+                case GattScheduler.OP_READ: return transport.read(op.uuid);
+                case GattScheduler.OP_WRITE: return transport.write(op.uuid, op.value);
+                case GattScheduler.OP_WRITE_DESCRIPTOR:
+                    events.log(LogEvents.CCCD_WRITE_START, op.uuid);
+                    return transport.writeCccd(op.uuid, op.value);
+                case GattScheduler.OP_READ_DESCRIPTOR: return transport.readCccd(op.uuid);
+                default: return false;
+            }
         }
 
-        @Override public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS) return;
-            if (CGM_FEATURE.equals(c.getUuid())) {
-                logBoth(ctx.getString(R.string.feature_log, bytesToHex(c.getValue())));
-            } else if (CGM_STATUS.equals(c.getUuid())) {
-                logBoth(ctx.getString(R.string.status_log, bytesToHex(c.getValue())));
-            } else if (CGM_SESSION_START_TIME.equals(c.getUuid())) {
-                logBoth(ctx.getString(R.string.session_start_log, bytesToHex(c.getValue())));
-            } else if (CGM_SESSION_RUN_TIME.equals(c.getUuid())) {
-                logBoth(ctx.getString(R.string.session_run_log, bytesToHex(c.getValue())));
+        // The capture format holds one device, so only the primary session is recorded
+        private void capture(int type, int status, UUID uuid, byte[] value) {
+            GattCapture.Writer w = capture;
+            if (w == null || !isPrimary()) return;
+            try {
+                w.write(SystemClock.elapsedRealtimeNanos(), type, status, uuid, value);
+                if (w.bytes() >= captureFileBytes) rotateCapture(w);
+            } catch (IOException e) {
+                events.log(LogEvents.CAPTURE_WRITE_FAILED, String.valueOf(e.getMessage()));
+                stopCapture();
             }
         }
 
-        @Override public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {
-            if (CGM_MEASUREMENT.equals(c.getUuid())) {
-                byte[] v = c.getValue();
-                CgmsParser.CgmMeasurement m = CgmsParser.parseMeasurement(v);
-                logBoth(ctx.getString(R.string.measurement_log, m.toString()));
-                measurementReceived = true;
-                scanHandler.removeCallbacks(keepAliveRunnable);
-            } else if (CGM_SPECIFIC_OPS_CP.equals(c.getUuid())) {
-                byte[] v = c.getValue();
-                logBoth("[SOCP] " + bytesToHex(v));
+        // Every connect goes through here, so cold and warm connects are timed the same way
+        private void connectGatt(boolean autoConnect) {
+            connectStartNanos = SystemClock.elapsedRealtimeNanos();
+            connectAuto = autoConnect;
+            connectReady = false;
+            DeviceCache.Entry e = deviceCache.get(getAddress());
+            if (e != null) commIntervalPolicy.restoreNormal(e.commInterval);
+            // Only a bonded peer keeps our CCCD values between connections
+            warmEntry = e != null && e.isWarm() && transport.getBondState() == GattTransport.BOND_BONDED ? e : null;
+            connectKind = warmEntry != null ? ConnectStats.WARM : ConnectStats.COLD;
+            linkId++;
+            linkOpen = transport.connect(autoConnect);
+        }
+
+        // Measurement notifications are in effect
+        private void markReady() {
+            if (connectReady || connectStartNanos == 0) return;
+            connectReady = true;
+            long ns = SystemClock.elapsedRealtimeNanos() - connectStartNanos;
+            connectStats.recordReady(connectKind, ns);
+            readyHist[connectKind].record(ns);
+            events.log(LogEvents.CONNECT_READY, ConnectStats.kindName(connectKind), (int) (ns / 1_000_000L));
+        }
+
+        // Transport thread: copy into the ring and return; decoding happens on the dispatcher thread
+        private void onNotification(UUID uuid, byte[] v) {
+            capture(GattCapture.TYPE_NOTIFY, 0, uuid, v);
+            if (v == null) return;
+            if (CGM_MEASUREMENT.equals(uuid)) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (lastNotifyNanos != 0) notifyIntervalHist.record(now - lastNotifyNanos);
+                lastNotifyNanos = now;
+                commIntervalPolicy.onNotification(v.length, now);
+                if (!notificationRing.offer(TAG_MEASUREMENT, now, v)) {
+                    notifyDroppedCounter.increment();
+                    events.log(LogEvents.NOTIFY_RING_FULL);
+                }
+                if (!measurementReceived) {
+                    measurementReceived = true;
+                    int link = linkId;
+                    control.post(() -> {
+                        if (!closed && link == linkId) onFirstMeasurement(now);
+                    });
+                }
+            } else if (CGM_SPECIFIC_OPS_CP.equals(uuid)) {
+                offerIndication(TAG_SOCP, uuid, v);
+            } else if (RECORD_ACCESS_CP.equals(uuid)) {
+                // Same ring as measurements, so the final response arrives after the records
+                offerIndication(TAG_RACP, uuid, v);
             }
         }
 
-        @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) {
-            if (CGM_SPECIFIC_OPS_CP.equals(c.getUuid())) {
-                logBoth("[SOCP->] write status=" + status + " value=" + bytesToHex(c.getValue()));
+        // A lost control point response stalls its command until the timeout, so wait for the
+        // dispatcher rather than drop; a backfill burst drains in well under the wait
+        private void offerIndication(int tag, UUID uuid, byte[] v) {
+            if (!notificationRing.offer(tag, SystemClock.elapsedRealtimeNanos(), v, INDICATION_OFFER_WAIT_NANOS)) {
+                notifyDroppedCounter.increment();
+                events.log(LogEvents.NOTIFY_INDICATION_DROPPED, uuid);
             }
         }
 
-        @Override public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor descriptor, int status) {
-            if (descriptor != null && CCCD.equals(descriptor.getUuid())) {
-                UUID cu = descriptor.getCharacteristic() != null ? descriptor.getCharacteristic().getUuid() : null;
-                if (status == BluetoothGatt.GATT_SUCCESS) {
+        private void onFirstMeasurement(long receivedNanos) {
+            long ns = receivedNanos - connectStartNanos;
+            connectStats.recordFirstMeasurement(connectKind, ns);
+            firstMeasurementHist[connectKind].record(ns);
+            events.log(LogEvents.CONNECT_FIRST_MEASUREMENT, ConnectStats.kindName(connectKind), (int) (ns / 1_000_000L));
+            control.removeCallbacks(keepAliveRunnable);
+        }
+
+        // Registered with the transport: notifications are handled in place, everything else is
+        // posted to the control thread (values copied, the transport may reuse them)
+        private final GattTransport.Callback transportCb = new GattTransport.Callback() {
+            private void post(Runnable r) {
+                control.post(() -> {
+                    if (!closed) r.run();
+                });
+            }
+
+            @Override public void onConnectionStateChange(int status, int newState) {
+                post(() -> controlCb.onConnectionStateChange(status, newState));
+            }
+
+            @Override public void onMtuChanged(int mtu, int status) {
+                post(() -> controlCb.onMtuChanged(mtu, status));
+            }
+
+            @Override public void onServicesDiscovered(int status) {
+                post(() -> controlCb.onServicesDiscovered(status));
+            }
+
+            @Override public void onCharacteristicRead(UUID uuid, int status, byte[] value) {
+                byte[] v = value != null ? value.clone() : null;
+                post(() -> controlCb.onCharacteristicRead(uuid, status, v));
+            }
+
+            @Override public void onCharacteristicWrite(UUID uuid, int status, byte[] value) {
+                byte[] v = value != null ? value.clone() : null;
+                post(() -> controlCb.onCharacteristicWrite(uuid, status, v));
+            }
+
+            @Override public void onCharacteristicChanged(UUID uuid, byte[] value) {
+                onNotification(uuid, value);
+            }
+
+            @Override public void onDescriptorWrite(UUID uuid, int status, byte[] value) {
+                byte[] v = value != null ? value.clone() : null;
+                post(() -> controlCb.onDescriptorWrite(uuid, status, v));
+            }
+
+            @Override public void onDescriptorRead(UUID uuid, int status, byte[] value) {
+                byte[] v = value != null ? value.clone() : null;
+                post(() -> controlCb.onDescriptorRead(uuid, status, v));
+            }
+
+            @Override public void onBondStateChanged(int bondState) {
+                post(() -> Session.this.onBondStateChanged(bondState));
+            }
+        };
+
+        // The session's state machine; control thread only
+        private final GattTransport.Callback controlCb = new GattTransport.Callback() {
+            @Override public void onConnectionStateChange(int status, int newState) {
+                capture(GattCapture.TYPE_CONNECTION_STATE, status, null, new byte[]{(byte) newState});
+                if (status != GattTransport.GATT_SUCCESS) {
+                    metrics.counter("conn.status." + status).increment();
+                    if (status == 19) {
+                        events.log(LogEvents.CONNECTION_PEER_TERMINATED, status);
+                    } else {
+                        events.log(LogEvents.CONNECTION_STATE_ERROR, status);
+                    }
+                    isConnected = false;
+                    notifyConnectionState();
+                    gattOps.cancelAll(SystemClock.elapsedRealtimeNanos());
+                    // Close so the stack frees the client and a reconnect can open a new one
+                    transport.close();
+                    linkOpen = false;
+                    control.removeCallbacks(keepAliveRunnable);
+                    control.removeCallbacks(racpTimeoutRunnable);
+                    control.removeCallbacks(socpTimeoutRunnable);
+                    backfill.cancel(SystemClock.elapsedRealtimeNanos());
+                    socp.cancelAll(SystemClock.elapsedRealtimeNanos());
+                    commIntervalPolicy.onLinkLost(SystemClock.elapsedRealtimeNanos());
+                    scheduleReconnectIfNeeded(status);
+                    return;
+                }
+                if (newState == GattTransport.STATE_CONNECTED) {
+                    events.log(LogEvents.CONNECTED_DISCOVERING);
+                    if (connectAuto) {
+                        connectStartNanos = SystemClock.elapsedRealtimeNanos();
+                    } else {
+                        connectHist.record(SystemClock.elapsedRealtimeNanos() - connectStartNanos);
+                    }
+                    if (directConnect) {
+                        directConnect = false;
+                        control.removeCallbacks(directConnectTimeoutRunnable);
+                    }
+                    if (reconnectPolicy.inOutage()) {
+                        long now = SystemClock.elapsedRealtimeNanos();
+                        events.log(LogEvents.RECONNECT_RECOVERED, (int) (reconnectPolicy.outageNanos(now) / 1_000_000L), reconnectPolicy.attempts());
+                    }
+                    reconnectPolicy.onConnected(SystemClock.elapsedRealtimeNanos());
+                    lastNotifyNanos = 0;
+                    isConnected = true;
+                    notifyConnectionState();
+                    servicesDiscovered = false;
+                    cccdEnabledChars.clear();
+                    cccdInProgressChars.clear();
+                    cccdFailures.clear();
+                    bondingInProgress = false;
+                    measurementReceived = false;
+                    long now = SystemClock.elapsedRealtimeNanos();
+                    setupStartNanos = now;
+                    gattOps.cancelAll(now); // leftovers from the previous link
+                    gattOps.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, now);
+                    // Prefer larger MTU for CGM notifications; discovery runs after the exchange, even if it fails
+                    gattOps.requestMtu(185, now);
+                    gattOps.discoverServices(now);
+                } else if (newState == GattTransport.STATE_DISCONNECTED) {
+                    events.log(LogEvents.DISCONNECTED);
+                    disconnectCounter.increment();
+                    isConnected = false;
+                    notifyConnectionState();
+                    if (linkOpen) {
+                        transport.close();
+                        linkOpen = false;
+                    }
+                    control.removeCallbacks(keepAliveRunnable);
+                    control.removeCallbacks(racpTimeoutRunnable);
+                    control.removeCallbacks(gattTimeoutRunnable);
+                    control.removeCallbacks(socpTimeoutRunnable);
+                    backfill.cancel(SystemClock.elapsedRealtimeNanos());
+                    socp.cancelAll(SystemClock.elapsedRealtimeNanos());
+                    commIntervalPolicy.onLinkLost(SystemClock.elapsedRealtimeNanos());
+                    gattOps.cancelAll(SystemClock.elapsedRealtimeNanos());
+                    events.log(LogEvents.GATT_OP_STATS, gattOps.toString());
+                    events.log(LogEvents.COMM_INTERVAL_STATS, commIntervalPolicy.toString());
+                    events.log(LogEvents.CONNECT_STATS, connectStats.toString());
+                    scheduleReconnectIfNeeded(status);
+                }
+            }
+
+            @Override public void onMtuChanged(int mtu, int status) {
+                byte[] v = new byte[]{(byte) mtu, (byte) (mtu >> 8)};
+                capture(GattCapture.TYPE_MTU, status, null, v);
+                if (status == GattTransport.GATT_SUCCESS) deviceCache.setMtu(getAddress(), mtu, System.currentTimeMillis());
+                // Discovery is already queued behind it
+                gattOps.complete(GattScheduler.OP_REQUEST_MTU, null, status, v, SystemClock.elapsedRealtimeNanos());
+            }
+
+            @Override public void onServicesDiscovered(int status) {
+                gattOps.complete(GattScheduler.OP_DISCOVER_SERVICES, null, status, null, SystemClock.elapsedRealtimeNanos());
+                if (status != GattTransport.GATT_SUCCESS) { events.log(LogEvents.SERVICE_DISCOVERY_FAILED, status); return; }
+                servicesDiscovered = true;
+
+                Map<UUID, Integer> found = transport.getCharacteristics();
+                if (found == null) { events.log(LogEvents.CGM_SERVICE_NOT_FOUND); return; }
+                events.log(LogEvents.CGM_SERVICE_FOUND);
+
+                // If not bonded, request bond first to avoid security-required writes causing disconnects
+                int bond = transport.getBondState();
+                events.log(LogEvents.BOND_STATE_AT_DISCOVERY, bond);
+                if (bond != GattTransport.BOND_BONDED && !bondingInProgress) {
+                    bondingInProgress = transport.createBond();
+                    bondStartNanos = SystemClock.elapsedRealtimeNanos();
+                    events.log(LogEvents.REQUEST_BONDING);
+                    return; // Wait for bond completion to continue
+                }
+
+                DeviceCache.Entry cached = warmEntry;
+                deviceCache.setCharacteristics(getAddress(), found, System.currentTimeMillis());
+                if (cached != null) {
+                    requestWarmState(cached, found);
+                } else {
+                    requestInitialState(found);
+                }
+
+                // 啟動 keepalive，直到收到第一筆量測
+                control.removeCallbacks(keepAliveRunnable);
+                control.postDelayed(keepAliveRunnable, KEEPALIVE_INTERVAL_MS);
+            }
+
+            @Override public void onCharacteristicRead(UUID uuid, int status, byte[] value) {
+                capture(GattCapture.TYPE_READ, status, uuid, value);
+                gattOps.complete(GattScheduler.OP_READ, uuid, status, value, SystemClock.elapsedRealtimeNanos());
+                if (status != GattTransport.GATT_SUCCESS) return;
+                if (CGM_FEATURE.equals(uuid)) {
+                    events.log(LogEvents.FEATURE_READ, value);
+                    if (applyFeature(value)) deviceCache.setFeature(getAddress(), value, System.currentTimeMillis());
+                } else if (!checkCrc(uuid, value)) {
+                    return;
+                } else if (CGM_STATUS.equals(uuid)) {
+                    events.log(LogEvents.STATUS_READ, value);
+                } else if (CGM_SESSION_START_TIME.equals(uuid)) {
+                    events.log(LogEvents.SESSION_START_READ, value);
+                    onStartTimeRead(value);
+                } else if (CGM_SESSION_RUN_TIME.equals(uuid)) {
+                    events.log(LogEvents.SESSION_RUN_READ, value);
+                    if (value.length >= 2) timeline.onRunTime(CgmsParser.u16At(value, 0));
+                }
+            }
+
+            @Override public void onCharacteristicChanged(UUID uuid, byte[] v) {
+                onNotification(uuid, v);
+            }
+
+            @Override public void onCharacteristicWrite(UUID uuid, int status, byte[] value) {
+                capture(GattCapture.TYPE_WRITE, status, uuid, value);
+                if (CGM_SPECIFIC_OPS_CP.equals(uuid)) {
+                    events.log(LogEvents.SOCP_WRITE_RESULT, status, value);
+                }
+                // RACP write failures are handled on the operation's future
+                gattOps.complete(GattScheduler.OP_WRITE, uuid, status, value, SystemClock.elapsedRealtimeNanos());
+            }
+
+            @Override public void onDescriptorWrite(UUID cu, int status, byte[] value) {
+                capture(GattCapture.TYPE_DESCRIPTOR_WRITE, status, cu, value);
+                if (status == GattTransport.GATT_SUCCESS) {
                     if (cu != null) {
                         cccdEnabledChars.add(cu);
                         cccdInProgressChars.remove(cu);
                     }
-                    logBoth(ctx.getString(R.string.cccd_write_success) + (cu != null ? (" [" + cu + "]") : ""));
+                    events.log(LogEvents.CCCD_WRITE_SUCCESS, cu);
+                    if (cu != null) deviceCache.setCccd(getAddress(), cu, true, System.currentTimeMillis());
+                    if (CGM_MEASUREMENT.equals(cu)) markReady();
                     if (cu != null && CGM_SPECIFIC_OPS_CP.equals(cu)) {
-                        scanHandler.postDelayed(() -> sendSocpGetCommInterval(), 500);
+                        readCommInterval();
+                    } else if (cu != null && RECORD_ACCESS_CP.equals(cu)) {
+                        // Queued like every other write, so it cannot overlap the SOCP probe
+                        startBackfill();
+                    }
+                    if (setupStartNanos != 0 && cccdInProgressChars.isEmpty()) {
+                        events.log(LogEvents.GATT_SETUP_DONE, (int) ((SystemClock.elapsedRealtimeNanos() - setupStartNanos) / 1_000_000L));
+                        setupStartNanos = 0;
+                        saveDeviceCache();
                     }
                 } else {
                     if (cu != null) cccdInProgressChars.remove(cu);
-                    logBoth(ctx.getString(R.string.cccd_write_failed, status) + (cu != null ? (" [" + cu + "]") : ""));
+                    events.log(LogEvents.CCCD_WRITE_FAILED, status, cu);
                     // If failed due to auth, try bonding then re-enable later
-                    BluetoothDevice device = g.getDevice();
-                    if (device != null && device.getBondState() != BluetoothDevice.BOND_BONDED && !bondingInProgress) {
-                        bondingInProgress = device.createBond();
-                        logBoth(ctx.getString(R.string.request_bonding));
-                    } else if (servicesDiscovered && cu != null && !cccdEnabledChars.contains(cu)) {
-                        BluetoothGattService svc = g.getService(CGMS_SERVICE);
-                        if (svc != null) {
-                            BluetoothGattCharacteristic ch = svc.getCharacteristic(cu);
-                            if (ch != null) scheduleEnableNotifyWithDelay(g, ch, 600);
-                        }
+                    if (transport.getBondState() != GattTransport.BOND_BONDED && !bondingInProgress) {
+                        bondingInProgress = transport.createBond();
+                        bondStartNanos = SystemClock.elapsedRealtimeNanos();
+                        events.log(LogEvents.REQUEST_BONDING);
+                    } else if (servicesDiscovered && cu != null && !cccdEnabledChars.contains(cu)
+                            && cccdFailures.merge(cu, 1, Integer::sum) <= CCCD_MAX_RETRIES) {
+                        enableNotify(cu);
                     }
                 }
-                // Reset timeout and process next CCCD in queue
-                scanHandler.removeCallbacks(cccdTimeoutRunnable);
-                cccdOpInFlight = false;
-                processNextCccdInQueue();
+                gattOps.complete(GattScheduler.OP_WRITE_DESCRIPTOR, cu, status, value, SystemClock.elapsedRealtimeNanos());
             }
-        }
-    };
 
-    private void processNextCccdInQueue() {
-        if (gatt == null) return;
-        while (!cccdQueue.isEmpty()) {
-            UUID next = cccdQueue.poll();
-            if (next == null) continue;
-            if (cccdEnabledChars.contains(next) || cccdInProgressChars.contains(next)) continue;
-            BluetoothGattService svc = gatt.getService(CGMS_SERVICE);
-            if (svc == null) break;
-            BluetoothGattCharacteristic ch = svc.getCharacteristic(next);
-            if (ch == null) continue;
-            enableNotify(gatt, ch);
-            break;
+            @Override public void onDescriptorRead(UUID cu, int status, byte[] value) {
+                gattOps.complete(GattScheduler.OP_READ_DESCRIPTOR, cu, status, value, SystemClock.elapsedRealtimeNanos());
+            }
+
+            @Override public void onBondStateChanged(int bondState) {
+                Session.this.onBondStateChanged(bondState);
+            }
+        };
+
+        // Decides E2E-CRC for this sensor. A set bit whose own CRC fails is a corrupted read, so
+        // it is neither trusted nor cached; false then
+        private boolean applyFeature(byte[] feature) {
+            int bits = CgmsParser.featureBits(feature);
+            if (bits >= 0 && (bits & CgmsParser.FEATURE_E2E_CRC) != 0 && !CgmsParser.e2eCrcSupported(feature)) {
+                valueCrcFailedCounter.increment();
+                events.log(LogEvents.E2E_CRC_FAILED, CGM_FEATURE);
+                return false;
+            }
+            boolean on = bits >= 0 && (bits & CgmsParser.FEATURE_E2E_CRC) != 0;
+            if (on && !e2eCrc) events.log(LogEvents.E2E_CRC_ON);
+            e2eCrc = on;
+            return true;
         }
-    }
 
-    @SuppressLint("MissingPermission")
-    private void readIfExists(BluetoothGatt g, BluetoothGattService svc, UUID uuid) {
-        BluetoothGattCharacteristic c = getChar(svc, uuid);
-        if (c != null) g.readCharacteristic(c);
-    }
+        // Status, Session Start Time and Session Run Time carry the CRC too
+        // Start Time places this and later offsets; a different one from the sensor is a new session
+        private void onStartTimeRead(byte[] value) {
+            SessionTimeline.StartTime st = new SessionTimeline.StartTime();
+            if (!st.decode(value, 0, e2eCrc ? value.length - E2eCrc.SIZE : value.length)) return;
+            events.log(LogEvents.SESSION_START_DECODED, st.toString());
+            timeline.onStartTime(st);
+        }
 
-    private BluetoothGattCharacteristic getChar(BluetoothGattService svc, UUID uuid) {
-        return svc.getCharacteristic(uuid);
-    }
+        private boolean checkCrc(UUID uuid, byte[] value) {
+            if (!e2eCrc || E2eCrc.check(value)) return true;
+            valueCrcFailedCounter.increment();
+            events.log(LogEvents.E2E_CRC_FAILED, uuid);
+            return false;
+        }
 
-    @SuppressLint("MissingPermission")
-    private void enableNotify(BluetoothGatt g, BluetoothGattCharacteristic c) {
-        if (c == null) return;
-        UUID cu = c.getUuid();
-        if (cccdEnabledChars.contains(cu) || cccdInProgressChars.contains(cu)) return;
-        boolean ok = g.setCharacteristicNotification(c, true);
-        BluetoothGattDescriptor d = c.getDescriptor(CCCD);
-        if (d != null) {
-            final int props = c.getProperties();
-            logBoth("[CGM] Properties notify=" + (((props & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) ? "1" : "0") +
-                    ", indicate=" + (((props & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) ? "1" : "0"));
-            if ((props & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 &&
-                (props & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
-                d.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-            } else {
-                d.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        // Warm path: a bonded sensor still has our CCCDs set, so turn on local delivery and confirm
+        // with one read of the measurement CCCD instead of writing every CCCD again
+        private void requestWarmState(DeviceCache.Entry cached, Map<UUID, Integer> found) {
+            if (!found.equals(cached.characteristics) || !cached.cccdEnabled.contains(CGM_MEASUREMENT)) {
+                readFeature(found);
+                fallBackToColdSetup(found, "services changed");
+                readSessionState(found);
+                return;
             }
-            if (cccdOpInFlight) {
-                cccdQueue.offer(cu);
-                logBoth("[CCCD] queued [" + cu + "]");
+            // Feature is static per sensor; use the cached value instead of reading it
+            if (cached.feature != null) {
+                events.log(LogEvents.FEATURE_READ, cached.feature);
+                applyFeature(cached.feature);
             } else {
-                cccdInProgressChars.add(cu);
-                cccdOpInFlight = true;
-                logBoth("[CCCD] write start [" + cu + "]");
-                scanHandler.postDelayed(cccdTimeoutRunnable, CCCD_TIMEOUT_MS);
-                g.writeDescriptor(d);
-            }
-            String resultText = ok ? ctx.getString(R.string.ok) : ctx.getString(R.string.fail);
-            logBoth(ctx.getString(R.string.subscribe_cgm_measurement, resultText));
-        } else {
-            // 列出可用的 descriptors 以利除錯
-            List<BluetoothGattDescriptor> all = c.getDescriptors();
-            StringBuilder ids = new StringBuilder();
-            if (all != null) {
-                for (BluetoothGattDescriptor x : all) {
-                    ids.append(x.getUuid()).append(" ");
+                readFeature(found);
+            }
+            for (UUID u : cached.cccdEnabled) {
+                if (found.containsKey(u) && transport.setNotification(u, true)) cccdEnabledChars.add(u);
+            }
+            readStartTime(found);
+            int link = linkId;
+            gattOps.readDescriptor(CGM_MEASUREMENT, SystemClock.elapsedRealtimeNanos()).future.thenAccept(op -> {
+                if (link != linkId) return;
+                if (!op.isSuccess() || op.result == null || op.result.length == 0 || (op.result[0] & 0x03) == 0) {
+                    fallBackToColdSetup(found, op.isSuccess() ? "cccd off" : "cccd read status " + op.status);
+                    return;
                 }
+                markReady();
+                // The cold path does these when their CCCD writes succeed; the warm path writes none
+                if (cccdEnabledChars.contains(CGM_SPECIFIC_OPS_CP)) readCommInterval();
+                if (cccdEnabledChars.contains(RECORD_ACCESS_CP)) startBackfill();
+                saveDeviceCache();
+            });
+            readSessionState(found);
+        }
+
+        private void fallBackToColdSetup(Map<UUID, Integer> found, String reason) {
+            events.log(LogEvents.CONNECT_WARM_FALLBACK, reason);
+            connectStats.recordFallback();
+            deviceCache.remove(getAddress());
+            deviceCache.setCharacteristics(getAddress(), found, System.currentTimeMillis());
+            rememberCommInterval();
+            warmEntry = null;
+            connectKind = ConnectStats.COLD;
+            cccdEnabledChars.clear();
+            enableAllNotifications(found);
+        }
+
+        // CCCDs go in the setup lane so measurements start as soon as possible; the reads follow in the background lane
+        private void requestInitialState(Map<UUID, Integer> found) {
+            readFeature(found);
+            enableAllNotifications(found);
+            readSessionState(found);
+        }
+
+        // Setup lane, ahead of the CCCDs: whether measurements end in an E2E-CRC must be known before the first one
+        private void readFeature(Map<UUID, Integer> found) {
+            if (found.containsKey(CGM_FEATURE)) gattOps.read(CGM_FEATURE, GattScheduler.PRIORITY_SETUP, SystemClock.elapsedRealtimeNanos());
+        }
+
+        private void enableAllNotifications(Map<UUID, Integer> found) {
+            if (found.containsKey(CGM_MEASUREMENT)) enableNotify(CGM_MEASUREMENT);
+            else events.log(LogEvents.CGM_MEASUREMENT_NOT_FOUND);
+            // 啟用 Specific Ops Control Point 的 Indication（若裝置支援）以便接收會話控制回應
+            if (found.containsKey(CGM_SPECIFIC_OPS_CP)) enableNotify(CGM_SPECIFIC_OPS_CP);
+            // RACP indications; backfill starts once they are enabled, so after Start Time has placed the session
+            readStartTime(found);
+            if (found.containsKey(RECORD_ACCESS_CP)) enableNotify(RECORD_ACCESS_CP);
+        }
+
+        // Setup lane: a new sensor session must be known before the backfill picks its first offset
+        private void readStartTime(Map<UUID, Integer> found) {
+            if (found.containsKey(CGM_SESSION_START_TIME)) {
+                gattOps.read(CGM_SESSION_START_TIME, GattScheduler.PRIORITY_SETUP, SystemClock.elapsedRealtimeNanos());
             }
-            logBoth("[CGM] No CCCD. descriptors=" + ids.toString().trim());
-            logBoth(ctx.getString(R.string.cccd_not_found));
         }
-    }    private void scheduleEnableNotifyWithDelay(BluetoothGatt g, BluetoothGattCharacteristic c, long delayMs) {
-        if (c == null) return;
-        UUID cu = c.getUuid();
-        if (cccdEnabledChars.contains(cu) || cccdInProgressChars.contains(cu)) return;
-        scanHandler.postDelayed(() -> enableNotify(g, c), delayMs);
-    }
 
-    private void continueAfterBonding() {
-        if (gatt == null) return;
-        BluetoothGattService svc = gatt.getService(CGMS_SERVICE);
-        if (svc == null) return;
-        readIfExists(gatt, svc, CGM_FEATURE);
-        readIfExists(gatt, svc, CGM_STATUS);
-        readIfExists(gatt, svc, CGM_SESSION_START_TIME);
-        readIfExists(gatt, svc, CGM_SESSION_RUN_TIME);
-        BluetoothGattCharacteristic meas = getChar(svc, CGM_MEASUREMENT);
-        if (meas != null) enableNotify(gatt, meas);
-        BluetoothGattCharacteristic socp = getChar(svc, CGM_SPECIFIC_OPS_CP);
-        if (socp != null) enableNotify(gatt, socp);
-    }
+        private void readSessionState(Map<UUID, Integer> found) {
+            readIfExists(found, CGM_STATUS);
+            readIfExists(found, CGM_SESSION_RUN_TIME);
+        }
 
-    @SuppressLint("MissingPermission")
-    private void sendSocpGetCommInterval() {
-        if (gatt == null) return;
-        try {
-            BluetoothGattService svc = gatt.getService(CGMS_SERVICE);
-            if (svc == null) return;
-            BluetoothGattCharacteristic socp = svc.getCharacteristic(CGM_SPECIFIC_OPS_CP);
-            if (socp == null) return;
-            // Prefer write with response
-            socp.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            byte[] payload = new byte[]{0x02}; // Get CGM Communication Interval (safe probe)
-            socp.setValue(payload);
-            logBoth("[SOCP->] " + bytesToHex(payload));
-            gatt.writeCharacteristic(socp);
-        } catch (Exception e) {
-            logBoth("[SOCP->] write failed: " + e.getMessage());
+        private void readIfExists(Map<UUID, Integer> found, UUID uuid) {
+            if (found.containsKey(uuid)) gattOps.read(uuid, GattScheduler.PRIORITY_BACKGROUND, SystemClock.elapsedRealtimeNanos());
         }
-    }
 
-    private final BroadcastReceiver bondReceiver = new BroadcastReceiver() {
-        @Override public void onReceive(Context context, Intent intent) {
-            if (!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) return;
-            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            if (device == null || currentDevice == null) return;
-            if (!currentDevice.getAddress().equals(device.getAddress())) return;
-            int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
-            if (bondState == BluetoothDevice.BOND_BONDED) {
+        private void enableNotify(UUID cu) {
+            if (cccdEnabledChars.contains(cu) || cccdInProgressChars.contains(cu)) return;
+            Map<UUID, Integer> found = transport.getCharacteristics();
+            Integer p = found != null ? found.get(cu) : null;
+            if (p == null) return;
+            boolean ok = transport.setNotification(cu, true);
+            List<UUID> descriptors = transport.getDescriptors(cu);
+            if (descriptors.contains(CCCD)) {
+                final int props = p;
+                events.log(LogEvents.CHAR_PROPERTIES,
+                        (props & GattTransport.PROPERTY_NOTIFY) != 0 ? 1 : 0,
+                        (props & GattTransport.PROPERTY_INDICATE) != 0 ? 1 : 0);
+                byte[] value = (props & GattTransport.PROPERTY_INDICATE) != 0 &&
+                        (props & GattTransport.PROPERTY_NOTIFY) == 0
+                        ? GattTransport.ENABLE_INDICATION_VALUE
+                        : GattTransport.ENABLE_NOTIFICATION_VALUE;
+                cccdInProgressChars.add(cu);
+                if (gattOps.isBusy()) events.log(LogEvents.CCCD_QUEUED, cu);
+                gattOps.writeDescriptor(cu, value, SystemClock.elapsedRealtimeNanos());
+                events.log(LogEvents.SUBSCRIBE_RESULT, ok ? 1 : 0);
+            } else {
+                // 列出可用的 descriptors 以利除錯
+                StringBuilder ids = new StringBuilder();
+                for (UUID x : descriptors) {
+                    ids.append(x).append(" ");
+                }
+                events.log(LogEvents.NO_CCCD, ids.toString().trim());
+                events.log(LogEvents.CCCD_NOT_FOUND);
+            }
+        }
+
+        private void continueAfterBonding() {
+            if (!linkOpen) return;
+            Map<UUID, Integer> found = transport.getCharacteristics();
+            if (found == null) return;
+            requestInitialState(found);
+        }
+
+        private void onBondStateChanged(int bondState) {
+            if (bondState == GattTransport.BOND_BONDED) {
                 bondingInProgress = false;
-                logBoth(ctx.getString(R.string.bonded_continue));
+                events.log(LogEvents.BONDED_CONTINUE);
+                if (bondStartNanos != 0) {
+                    bondHist.record(SystemClock.elapsedRealtimeNanos() - bondStartNanos);
+                    bondStartNanos = 0;
+                }
                 // 若尚未連線（預先配對流程），此時開始連線；否則續行 CCCD 啟用
-                if (gatt == null) {
-                    gatt = currentDevice.connectGatt(ctx, false, gattCb, BluetoothDevice.TRANSPORT_LE);
+                if (!linkOpen) {
+                    connectGatt(false);
                 } else if (servicesDiscovered) {
                     continueAfterBonding();
                 } else {
-                    gatt.discoverServices();
+                    gattOps.discoverServices(SystemClock.elapsedRealtimeNanos());
                 }
-            } else if (bondState == BluetoothDevice.BOND_NONE) {
+            } else if (bondState == GattTransport.BOND_NONE) {
                 bondingInProgress = false;
-                logBoth(ctx.getString(R.string.bond_failed));
+                // Unbonded, the sensor no longer keeps our CCCDs; it does keep the interval we set
+                deviceCache.remove(getAddress());
+                rememberCommInterval();
+                events.log(LogEvents.BOND_FAILED);
             }
         }
-    };
 
-    private void scheduleReconnectIfNeeded() {
-        if (currentDevice == null) return;
-        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) return;
-        reconnectAttempts++;
-        scanHandler.postDelayed(() -> {
-            if (gatt != null) return; // already connected or connecting
-            logBoth(ctx.getString(R.string.try_reconnect, reconnectAttempts));
-            gatt = currentDevice.connectGatt(ctx, false, gattCb, BluetoothDevice.TRANSPORT_LE);
-        }, RECONNECT_DELAY_MS);
-    }
-
-    private static String bytesToHex(byte[] b) {
-        if (b == null) return "(null)";
-        StringBuilder sb = new StringBuilder();
-        for (byte x : b) sb.append(String.format("%02X ", x));
-        return sb.toString().trim();
+        private void scheduleReconnectIfNeeded(int reason) {
+            if (userDisconnect) {
+                closeSession(this);
+                return;
+            }
+            if (directConnect) {
+                fallBackToScan(this);
+                return;
+            }
+            int action = reconnectPolicy.onDisconnect(reason, SystemClock.elapsedRealtimeNanos());
+            if (action == ReconnectPolicy.ACTION_NONE) return;
+            reconnectAuto = action == ReconnectPolicy.ACTION_AUTO_CONNECT;
+            if (!reconnectAuto) {
+                events.log(LogEvents.RECONNECT_SCHEDULED, reconnectPolicy.attempts(), (int) reconnectPolicy.delayMillis(), reason);
+            }
+            control.removeCallbacks(reconnectRunnable);
+            control.postDelayed(reconnectRunnable, reconnectPolicy.delayMillis());
+        }
     }
 }
@@ -1,10 +1,35 @@
 package com.angus.cgms;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
 public class CgmsParser {
 
+    // Presence bits for MeasurementRecord.present / MeasurementBatch.present
+    public static final int HAS_GLUCOSE     = 0x01;
+    public static final int HAS_TIME_OFFSET = 0x02;
+    public static final int HAS_TREND       = 0x04;
+    public static final int HAS_QUALITY     = 0x08;
+    public static final int HAS_STATUS      = 0x10;
+
+    // CGM Measurement flags field
+    public static final int FLAG_TREND_PRESENT   = 0x01;
+    public static final int FLAG_QUALITY_PRESENT = 0x02;
+    public static final int FLAG_WARNING_OCTET   = 0x20;
+    public static final int FLAG_CAL_TEMP_OCTET  = 0x40;
+    public static final int FLAG_STATUS_OCTET    = 0x80;
+
+    // Size + Flags + Glucose + Time Offset
+    public static final int MIN_RECORD_SIZE = 6;
+
+    // CGM Feature: 24-bit features, type/sample location, E2E-CRC (always present, 0xFFFF if unsupported)
+    public static final int FEATURE_E2E_CRC = 1 << 12;
+    public static final int FEATURE_SIZE = 6;
+
+    /** Receives each record decoded by {@link #decodeMeasurements}; the record is reused between calls. */
+    public interface MeasurementSink {
+        void onMeasurement(MeasurementRecord r);
+        /** A record whose E2E-CRC did not match; it is not decoded. */
+        default void onCrcError(byte[] v, int off, int len) {}
+    }
+
     public static class CgmMeasurement {
         public int size;
         public int flags;
@@ -21,55 +46,329 @@ public class CgmsParser {
                     ", timeOffset=" + (timeOffset == null ? "?" : timeOffset) +
                     (trend != null ? (", trend=" + trend) : "") +
                     (quality != null ? (", quality=" + quality) : "") +
-                    (sensorStatusAnnunciation != null ? (", status=" + bytesToHex(sensorStatusAnnunciation)) : "");
+                    (sensorStatusAnnunciation != null ? (", status=" + Hex.toHex(sensorStatusAnnunciation)) : "");
+        }
+    }
+
+    /**
+     * Caller-owned, reusable measurement record. Optional fields are tracked with
+     * {@link #present} bits instead of nulls so decoding never boxes or allocates.
+     * The annunciation octets are packed into {@link #status} using the 24-bit
+     * Sensor Status Annunciation layout (Status bits 0-7, Cal/Temp 8-15, Warning 16-23).
+     */
+    public static final class MeasurementRecord {
+        public int size;
+        public int flags;
+        public int present;
+        public float glucose;
+        public int timeOffset;
+        public float trend;
+        public float quality;
+        public int status;
+
+        public void clear() {
+            size = 0; flags = 0; present = 0;
+            glucose = 0f; timeOffset = 0; trend = 0f; quality = 0f; status = 0;
+        }
+
+        public boolean has(int bit) {
+            return (present & bit) != 0;
         }
 
-        private String bytesToHex(byte[] b) {
-            StringBuilder sb = new StringBuilder();
-            for (byte x : b) sb.append(String.format("%02X ", x));
-            return sb.toString().trim();
+        @Override public String toString() {
+            return toMeasurement(this).toString();
+        }
+    }
+
+    /**
+     * Struct-of-arrays batch of decoded records, pre-allocated to a fixed capacity.
+     * Reset with {@link #clear()} and reuse across notifications.
+     */
+    public static final class MeasurementBatch {
+        public final int capacity;
+        public int count;
+        public final int[] size;
+        public final int[] flags;
+        public final int[] present;
+        public final float[] glucose;
+        public final int[] timeOffset;
+        public final float[] trend;
+        public final float[] quality;
+        public final int[] status;
+        // Records dropped for a bad E2E-CRC since the last clear
+        public int crcFailures;
+
+        public MeasurementBatch(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+            this.capacity = capacity;
+            size = new int[capacity];
+            flags = new int[capacity];
+            present = new int[capacity];
+            glucose = new float[capacity];
+            timeOffset = new int[capacity];
+            trend = new float[capacity];
+            quality = new float[capacity];
+            status = new int[capacity];
         }
+
+        public void clear() { count = 0; crcFailures = 0; }
+
+        public boolean isFull() { return count >= capacity; }
+
+        /** Copies row {@code i} into {@code out}. */
+        public void get(int i, MeasurementRecord out) {
+            if (i < 0 || i >= count) throw new IndexOutOfBoundsException("index " + i + ", count " + count);
+            out.size = size[i];
+            out.flags = flags[i];
+            out.present = present[i];
+            out.glucose = glucose[i];
+            out.timeOffset = timeOffset[i];
+            out.trend = trend[i];
+            out.quality = quality[i];
+            out.status = status[i];
+        }
+
+        void add(MeasurementRecord r) {
+            int i = count++;
+            size[i] = r.size;
+            flags[i] = r.flags;
+            present[i] = r.present;
+            glucose[i] = r.glucose;
+            timeOffset[i] = r.timeOffset;
+            trend[i] = r.trend;
+            quality[i] = r.quality;
+            status[i] = r.status;
+        }
+    }
+
+    /** The 24-bit feature bits of a CGM Feature value, or -1 if it is too short. */
+    public static int featureBits(byte[] v) {
+        if (v == null || v.length < FEATURE_SIZE) return -1;
+        return (v[0] & 0xFF) | ((v[1] & 0xFF) << 8) | ((v[2] & 0xFF) << 16);
+    }
+
+    /**
+     * True if the sensor appends an E2E-CRC to its CGMS values. The Feature value's own CRC
+     * must check when the bit is set, so a corrupted read is never taken as support.
+     */
+    public static boolean e2eCrcSupported(byte[] feature) {
+        int bits = featureBits(feature);
+        return bits >= 0 && (bits & FEATURE_E2E_CRC) != 0 && E2eCrc.check(feature, 0, FEATURE_SIZE);
     }
 
     public static CgmMeasurement parseMeasurement(byte[] v) {
-        CgmMeasurement m = new CgmMeasurement();
-        if (v == null || v.length < 4) return m;
+        MeasurementRecord r = new MeasurementRecord();
+        if (v != null) decodeMeasurement(v, 0, v.length, r);
+        return toMeasurement(r);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(v).order(ByteOrder.LITTLE_ENDIAN);
-        m.size  = (buf.get() & 0xFF);
-        m.flags = (buf.get() & 0xFF);
+    /**
+     * Decodes one CGM Measurement record starting at {@code off} into {@code out}
+     * without allocating. Reads are bounded by the record's size field when it is
+     * plausible, otherwise by {@code off + len}.
+     *
+     * @return the number of bytes the record occupies, or -1 if fewer than 4 bytes are available
+     */
+    public static int decodeMeasurement(byte[] v, int off, int len, MeasurementRecord out) {
+        return decodeMeasurement(v, off, len, out, false);
+    }
 
-        m.glucose = readSfloat(buf);
-        m.timeOffset = (buf.getShort() & 0xFFFF);
+    /**
+     * As above; with {@code e2eCrc} the record's last two bytes are its CRC and are not read as
+     * fields. The CRC is not checked here, see {@link E2eCrc#check}.
+     */
+    public static int decodeMeasurement(byte[] v, int off, int len, MeasurementRecord out, boolean e2eCrc) {
+        out.clear();
+        if (v == null || len < 4 || off < 0 || off + len > v.length) return -1;
 
-        boolean trendPresent = (m.flags & 0x01) != 0;
-        boolean qualityPresent = (m.flags & 0x02) != 0;
+        int size = v[off] & 0xFF;
+        int flags = v[off + 1] & 0xFF;
+        out.size = size;
+        out.flags = flags;
 
-        boolean warnOctet    = (m.flags & 0x20) != 0;
-        boolean calTempOctet = (m.flags & 0x40) != 0;
-        boolean statusOctet  = (m.flags & 0x80) != 0;
+        int end = (size >= 4 && size <= len) ? off + size : off + len;
+        int recordEnd = end;
+        if (e2eCrc && end - off >= 4 + E2eCrc.SIZE) end -= E2eCrc.SIZE;
+        int p = off + 2;
 
-        int statusLen = (warnOctet ? 1 : 0) + (calTempOctet ? 1 : 0) + (statusOctet ? 1 : 0);
-        if (statusLen > 0 && buf.remaining() >= statusLen) {
-            byte[] ss = new byte[statusLen];
-            buf.get(ss);
-            m.sensorStatusAnnunciation = ss;
+        out.glucose = sfloatAt(v, p);
+        out.present |= HAS_GLUCOSE;
+        p += 2;
+
+        if (end - p < 2) return recordEnd - off;
+        out.timeOffset = u16At(v, p);
+        out.present |= HAS_TIME_OFFSET;
+        p += 2;
+
+        // Annunciation octets appear on the wire as Status, Cal/Temp, Warning
+        int statusLen = ((flags & FLAG_STATUS_OCTET) != 0 ? 1 : 0)
+                + ((flags & FLAG_CAL_TEMP_OCTET) != 0 ? 1 : 0)
+                + ((flags & FLAG_WARNING_OCTET) != 0 ? 1 : 0);
+        if (statusLen > 0 && end - p >= statusLen) {
+            int s = 0;
+            if ((flags & FLAG_STATUS_OCTET) != 0) s |= (v[p++] & 0xFF);
+            if ((flags & FLAG_CAL_TEMP_OCTET) != 0) s |= (v[p++] & 0xFF) << 8;
+            if ((flags & FLAG_WARNING_OCTET) != 0) s |= (v[p++] & 0xFF) << 16;
+            out.status = s;
+            out.present |= HAS_STATUS;
+        }
+
+        if ((flags & FLAG_TREND_PRESENT) != 0 && end - p >= 2) {
+            out.trend = sfloatAt(v, p);
+            out.present |= HAS_TREND;
+            p += 2;
+        }
+        if ((flags & FLAG_QUALITY_PRESENT) != 0 && end - p >= 2) {
+            out.quality = sfloatAt(v, p);
+            out.present |= HAS_QUALITY;
+        }
+        return recordEnd - off;
+    }
+
+    /**
+     * Decodes one record into the next free row of {@code batch}.
+     *
+     * @return the number of bytes consumed, or -1 if nothing was decoded or the batch is full
+     */
+    public static int decodeMeasurement(byte[] v, int off, int len, MeasurementRecord scratch, MeasurementBatch batch) {
+        if (batch.isFull()) return -1;
+        int n = decodeMeasurement(v, off, len, scratch);
+        if (n > 0) batch.add(scratch);
+        return n;
+    }
+
+    /**
+     * Walks every size-prefixed record packed into one notification and hands each to {@code sink}.
+     * Stops at the first record whose size field is shorter than its flags require or runs past
+     * the buffer. If the very first size field is unusable the whole value is decoded as a single
+     * record, matching {@link #parseMeasurement}, so sensors that fill the field sloppily still work.
+     *
+     * @return the number of bytes consumed; less than {@code len} means the tail was malformed
+     */
+    public static int decodeMeasurements(byte[] v, int off, int len, MeasurementRecord scratch, MeasurementSink sink) {
+        return decodeMeasurements(v, off, len, scratch, sink, false);
+    }
+
+    /**
+     * With {@code e2eCrc}, every record ends in its E2E-CRC; a record that fails the check goes
+     * to {@link MeasurementSink#onCrcError} instead of being decoded, and the walk continues
+     * after it, since its size field was consistent with its flags.
+     */
+    public static int decodeMeasurements(byte[] v, int off, int len, MeasurementRecord scratch, MeasurementSink sink, boolean e2eCrc) {
+        if (v == null || off < 0 || len < 0 || off + len > v.length) return 0;
+        int p = off;
+        int end = off + len;
+        while (p < end) {
+            int size = checkedRecordSize(v, p, end, e2eCrc);
+            if (size < 0) {
+                if (p == off && len >= 4) {
+                    if (e2eCrc && !E2eCrc.check(v, off, len)) {
+                        sink.onCrcError(v, off, len);
+                        return len;
+                    }
+                    if (decodeMeasurement(v, off, len, scratch, e2eCrc) > 0) {
+                        sink.onMeasurement(scratch);
+                        return len;
+                    }
+                }
+                break;
+            }
+            if (e2eCrc && !E2eCrc.check(v, p, size)) {
+                sink.onCrcError(v, p, size);
+            } else {
+                decodeMeasurement(v, p, size, scratch, e2eCrc);
+                sink.onMeasurement(scratch);
+            }
+            p += size;
+        }
+        return p - off;
+    }
+
+    /**
+     * Same walk as {@link #decodeMeasurements(byte[], int, int, MeasurementRecord, MeasurementSink)}
+     * but appends rows to {@code batch}, stopping early when it fills up.
+     *
+     * @return the number of bytes consumed; call again from {@code off + consumed} after draining a full batch
+     */
+    public static int decodeMeasurements(byte[] v, int off, int len, MeasurementRecord scratch, MeasurementBatch batch) {
+        return decodeMeasurements(v, off, len, scratch, batch, false);
+    }
+
+    /** With {@code e2eCrc}, records failing the check are skipped and counted in {@link MeasurementBatch#crcFailures}. */
+    public static int decodeMeasurements(byte[] v, int off, int len, MeasurementRecord scratch, MeasurementBatch batch, boolean e2eCrc) {
+        if (v == null || off < 0 || len < 0 || off + len > v.length) return 0;
+        int p = off;
+        int end = off + len;
+        while (p < end && !batch.isFull()) {
+            int size = checkedRecordSize(v, p, end, e2eCrc);
+            if (size < 0) {
+                if (p == off && len >= 4) {
+                    if (e2eCrc && !E2eCrc.check(v, off, len)) {
+                        batch.crcFailures++;
+                        return len;
+                    }
+                    if (decodeMeasurement(v, off, len, scratch, e2eCrc) > 0) {
+                        batch.add(scratch);
+                        return len;
+                    }
+                }
+                break;
+            }
+            if (e2eCrc && !E2eCrc.check(v, p, size)) {
+                batch.crcFailures++;
+            } else {
+                decodeMeasurement(v, p, size, scratch, e2eCrc);
+                batch.add(scratch);
+            }
+            p += size;
         }
+        return p - off;
+    }
 
-        if (trendPresent && buf.remaining() >= 2) m.trend = readSfloat(buf);
-        if (qualityPresent && buf.remaining() >= 2) m.quality = readSfloat(buf);
+    /** Returns the record size at {@code p}, or -1 if it is smaller than its flags require or overruns {@code end}. */
+    static int checkedRecordSize(byte[] v, int p, int end) {
+        return checkedRecordSize(v, p, end, false);
+    }
 
+    static int checkedRecordSize(byte[] v, int p, int end, boolean e2eCrc) {
+        if (end - p < MIN_RECORD_SIZE) return -1;
+        int size = v[p] & 0xFF;
+        int flags = v[p + 1] & 0xFF;
+        int required = MIN_RECORD_SIZE
+                + Integer.bitCount(flags & (FLAG_STATUS_OCTET | FLAG_CAL_TEMP_OCTET | FLAG_WARNING_OCTET))
+                + ((flags & FLAG_TREND_PRESENT) != 0 ? 2 : 0)
+                + ((flags & FLAG_QUALITY_PRESENT) != 0 ? 2 : 0)
+                + (e2eCrc ? E2eCrc.SIZE : 0);
+        if (size < required || size > end - p) return -1;
+        return size;
+    }
+
+    /** Adapts a primitive record to the boxed {@link CgmMeasurement} view. */
+    public static CgmMeasurement toMeasurement(MeasurementRecord r) {
+        CgmMeasurement m = new CgmMeasurement();
+        m.size = r.size;
+        m.flags = r.flags;
+        if (r.has(HAS_GLUCOSE)) m.glucose = r.glucose;
+        if (r.has(HAS_TIME_OFFSET)) m.timeOffset = r.timeOffset;
+        if (r.has(HAS_TREND)) m.trend = r.trend;
+        if (r.has(HAS_QUALITY)) m.quality = r.quality;
+        if (r.has(HAS_STATUS)) {
+            int n = Integer.bitCount(r.flags & (FLAG_STATUS_OCTET | FLAG_CAL_TEMP_OCTET | FLAG_WARNING_OCTET));
+            byte[] ss = new byte[n];
+            int i = 0;
+            if ((r.flags & FLAG_STATUS_OCTET) != 0) ss[i++] = (byte) r.status;
+            if ((r.flags & FLAG_CAL_TEMP_OCTET) != 0) ss[i++] = (byte) (r.status >> 8);
+            if ((r.flags & FLAG_WARNING_OCTET) != 0) ss[i] = (byte) (r.status >> 16);
+            m.sensorStatusAnnunciation = ss;
+        }
         return m;
     }
 
-    private static Float readSfloat(ByteBuffer buf) {
-        if (buf.remaining() < 2) return null;
-        int raw = buf.getShort() & 0xFFFF;
-        int mantissa = raw & 0x0FFF;
-        int exponent = (raw >> 12) & 0x000F;
-        if ((mantissa & 0x0800) != 0) mantissa = mantissa | 0xFFFFF000;
-        if ((exponent & 0x0008) != 0) exponent = exponent | 0xFFFFFFF0;
-        double value = mantissa * Math.pow(10, exponent);
-        return (float) value;
+    static int u16At(byte[] v, int i) {
+        return (v[i] & 0xFF) | ((v[i + 1] & 0xFF) << 8);
+    }
+
+    static float sfloatAt(byte[] v, int i) {
+        return SfloatCodec.sfloatAt(v, i);
     }
 }
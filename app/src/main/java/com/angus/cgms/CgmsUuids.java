@@ -0,0 +1,27 @@
+package com.angus.cgms;
+
+import java.util.UUID;
+
+/** GATT UUIDs used by the CGM client, kept free of Android types so JVM-only code can share them. */
+public final class CgmsUuids {
+    public static final UUID CGMS_SERVICE =
+            UUID.fromString("0000181F-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_MEASUREMENT =
+            UUID.fromString("00002AA7-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_FEATURE =
+            UUID.fromString("00002AA8-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_STATUS =
+            UUID.fromString("00002AA9-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_SESSION_START_TIME =
+            UUID.fromString("00002AAA-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_SESSION_RUN_TIME =
+            UUID.fromString("00002AAB-0000-1000-8000-00805F9B34FB");
+    public static final UUID CGM_SPECIFIC_OPS_CP =
+            UUID.fromString("00002AAC-0000-1000-8000-00805F9B34FB");
+    public static final UUID RECORD_ACCESS_CP =
+            UUID.fromString("00002A52-0000-1000-8000-00805F9B34FB");
+    public static final UUID CCCD =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private CgmsUuids() {}
+}
@@ -0,0 +1,354 @@
+package com.angus.cgms;
+
+import java.util.Arrays;
+
+/**
+ * Glucose history for charts, with viewport-sized min/max and LTTB downsampling.
+ *
+ * Besides the raw points (kept sorted by time), a pyramid of time buckets is maintained:
+ * level 0 buckets are {@code baseBucketMillis} wide and each level is {@code fanout} times
+ * wider. Every bucket holds the min and max point that fell into it, so adding a point
+ * updates one bucket per level. A query picks the coarsest level whose buckets are still
+ * narrower than a pixel and folds those buckets into per-pixel min/max columns, so its cost
+ * follows the screen width, not the history length. LTTB runs on those columns (or on the
+ * raw points when few enough are visible).
+ *
+ * Out-of-order points (backfill) are inserted in place; bucket min/max do not depend on
+ * order. Output goes into caller arrays. Methods are synchronized.
+ *
+ * Only {@code retentionMillis} back from the newest point is kept (90 days by default). Older
+ * raw points are dropped as newer ones arrive, and each level is a ring of buckets keyed by
+ * bucket number, grown up to the window, so memory follows the window rather than the span of
+ * timestamps seen. A point older than the window is dropped and counted.
+ */
+public final class ChartSeries {
+    public static final long DEFAULT_BASE_BUCKET_MILLIS = 5 * 60_000L;
+    public static final int DEFAULT_LEVELS = 5;
+    public static final int DEFAULT_FANOUT = 4;
+    public static final long DEFAULT_RETENTION_MILLIS = 90 * 24 * 60 * 60_000L;
+
+    private final long[] widths;
+    private final Level[] levels;
+    private final long retentionMillis;
+    // Raw points in [head, head + size), sorted
+    private long[] ts = new long[1024];
+    private float[] values = new float[1024];
+    private int head;
+    private int size;
+    private long newest;
+    private long dropped;
+
+    // Scratch for LTTB input, grown on demand
+    private long[] candTs = new long[0];
+    private float[] candV = new float[0];
+
+    private static final class Level {
+        final long width;
+        int mask = 63;
+        long[] id = new long[64]; // bucket number held by each slot
+        float[] min = new float[64];
+        float[] max = new float[64];
+        long[] minTs = new long[64];
+        long[] maxTs = new long[64];
+        int[] n = new int[64];
+
+        Level(long width) {
+            this.width = width;
+            Arrays.fill(id, Long.MIN_VALUE);
+        }
+
+        // Buckets from oldest to newest are live; a slot holding an older one is reused
+        void add(long t, float v, long oldest, long newest) {
+            long lo = Math.floorDiv(oldest, width);
+            long hi = Math.floorDiv(newest, width);
+            if (hi - lo >= id.length) grow(hi - lo + 1, lo, hi);
+            long b = Math.floorDiv(t, width);
+            int i = (int) (b & mask);
+            if (id[i] != b) {
+                id[i] = b;
+                n[i] = 0;
+            }
+            if (n[i]++ == 0) {
+                min[i] = max[i] = v;
+                minTs[i] = maxTs[i] = t;
+            } else {
+                if (v < min[i]) { min[i] = v; minTs[i] = t; }
+                if (v > max[i]) { max[i] = v; maxTs[i] = t; }
+            }
+        }
+
+        private void grow(long span, long lo, long hi) {
+            int c = id.length * 2;
+            while (c < span) c *= 2;
+            long[] oid = id;
+            float[] omin = min, omax = max;
+            long[] ominTs = minTs, omaxTs = maxTs;
+            int[] on = n;
+            id = new long[c];
+            min = new float[c];
+            max = new float[c];
+            minTs = new long[c];
+            maxTs = new long[c];
+            n = new int[c];
+            mask = c - 1;
+            Arrays.fill(id, Long.MIN_VALUE);
+            for (int j = 0; j < oid.length; j++) {
+                if (oid[j] < lo || oid[j] > hi || on[j] == 0) continue;
+                int i = (int) (oid[j] & mask);
+                id[i] = oid[j];
+                min[i] = omin[j];
+                max[i] = omax[j];
+                minTs[i] = ominTs[j];
+                maxTs[i] = omaxTs[j];
+                n[i] = on[j];
+            }
+        }
+    }
+
+    public ChartSeries() {
+        this(DEFAULT_BASE_BUCKET_MILLIS, DEFAULT_LEVELS, DEFAULT_FANOUT);
+    }
+
+    public ChartSeries(long baseBucketMillis, int levelCount, int fanout) {
+        this(baseBucketMillis, levelCount, fanout, DEFAULT_RETENTION_MILLIS);
+    }
+
+    public ChartSeries(long baseBucketMillis, int levelCount, int fanout, long retentionMillis) {
+        if (baseBucketMillis <= 0 || levelCount <= 0 || fanout < 2) throw new IllegalArgumentException("bad pyramid shape");
+        if (retentionMillis <= 0) throw new IllegalArgumentException("retention must be positive");
+        this.retentionMillis = retentionMillis;
+        widths = new long[levelCount];
+        levels = new Level[levelCount];
+        long w = baseBucketMillis;
+        for (int l = 0; l < levelCount; l++, w *= fanout) {
+            widths[l] = w;
+            levels[l] = new Level(w);
+        }
+    }
+
+    public synchronized void add(long timestampMillis, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) return;
+        if (size > 0 && timestampMillis < newest - retentionMillis) {
+            dropped++;
+            return;
+        }
+        if (size == 0 || timestampMillis > newest) {
+            newest = timestampMillis;
+            // Points that fell out of the window
+            int a = lowerBound(newest - retentionMillis, head, head + size);
+            size -= a - head;
+            head = a;
+        }
+        ensureRoom();
+        int end = head + size;
+        int i = end;
+        if (size > 0 && timestampMillis < ts[end - 1]) {
+            i = upperBound(timestampMillis, head, end);
+            System.arraycopy(ts, i, ts, i + 1, end - i);
+            System.arraycopy(values, i, values, i + 1, end - i);
+        }
+        ts[i] = timestampMillis;
+        values[i] = value;
+        size++;
+        for (Level l : levels) l.add(timestampMillis, value, ts[head], newest);
+    }
+
+    // Room for one more at the end: moves the points to the front, doubling when over half full
+    private void ensureRoom() {
+        if (head + size < ts.length) return;
+        int cap = size >= ts.length / 2 ? ts.length * 2 : ts.length;
+        long[] t = cap == ts.length ? ts : new long[cap];
+        float[] v = cap == ts.length ? values : new float[cap];
+        System.arraycopy(ts, head, t, 0, size);
+        System.arraycopy(values, head, v, 0, size);
+        ts = t;
+        values = v;
+        head = 0;
+    }
+
+    public synchronized int size() { return size; }
+    public synchronized long firstTimestamp() { return size == 0 ? 0 : ts[head]; }
+    public synchronized long lastTimestamp() { return size == 0 ? 0 : ts[head + size - 1]; }
+    public long retentionMillis() { return retentionMillis; }
+    /** Points that arrived older than the window. */
+    public synchronized long dropped() { return dropped; }
+
+    /**
+     * Min/max envelope of {@code [from, to)} for a chart {@code pixels} wide: at most two
+     * points per pixel column, in time order. Returns the number of points written; the
+     * output arrays need room for {@code 2 * pixels}.
+     */
+    public synchronized int minMax(long from, long to, int pixels, long[] outTs, float[] outV) {
+        if (size == 0 || to <= from || pixels <= 0) return 0;
+        int a = lowerBound(from, head, head + size);
+        int b = lowerBound(to, a, head + size);
+        if (b - a <= 2 * pixels) {
+            System.arraycopy(ts, a, outTs, 0, b - a);
+            System.arraycopy(values, a, outV, 0, b - a);
+            return b - a;
+        }
+        double pixelMillis = (double) (to - from) / pixels;
+        int level = -1;
+        for (int l = 0; l < levels.length && widths[l] <= pixelMillis; l++) level = l;
+        if (level < 0) return minMaxRaw(a, b, from, pixelMillis, pixels, outTs, outV);
+
+        Level lv = levels[level];
+        // Buckets older than the oldest kept point may hold dropped ones
+        long lo = Math.max(from, ts[head]);
+        long first = Math.floorDiv(lo, lv.width);
+        long last = Math.min(Math.floorDiv(to - 1, lv.width), Math.floorDiv(newest, lv.width));
+        int out = 0;
+        int col = -1;
+        float cMin = 0, cMax = 0;
+        long cMinTs = 0, cMaxTs = 0;
+        for (long k = first; k <= last; k++) {
+            int i = (int) (k & lv.mask);
+            if (lv.id[i] != k || lv.n[i] == 0) continue;
+            // Edge buckets may reach outside the viewport; skip their out-of-range extremes
+            boolean minIn = lv.minTs[i] >= lo && lv.minTs[i] < to;
+            boolean maxIn = lv.maxTs[i] >= lo && lv.maxTs[i] < to;
+            if (!minIn && !maxIn) continue;
+            long bucketStart = Math.max(from, k * lv.width);
+            int c = (int) Math.min(pixels - 1, (bucketStart - from) / pixelMillis);
+            if (c != col) {
+                if (col >= 0) out = emit(cMinTs, cMin, cMaxTs, cMax, outTs, outV, out);
+                col = c;
+                cMin = Float.MAX_VALUE;
+                cMax = -Float.MAX_VALUE;
+            }
+            if (minIn && lv.min[i] < cMin) { cMin = lv.min[i]; cMinTs = lv.minTs[i]; }
+            if (maxIn && lv.max[i] > cMax) { cMax = lv.max[i]; cMaxTs = lv.maxTs[i]; }
+            if (!minIn && lv.max[i] < cMin) { cMin = lv.max[i]; cMinTs = lv.maxTs[i]; }
+            if (!maxIn && lv.min[i] > cMax) { cMax = lv.min[i]; cMaxTs = lv.minTs[i]; }
+        }
+        if (col >= 0) out = emit(cMinTs, cMin, cMaxTs, cMax, outTs, outV, out);
+        return out;
+    }
+
+    private int minMaxRaw(int a, int b, long from, double pixelMillis, int pixels, long[] outTs, float[] outV) {
+        int out = 0;
+        int col = -1;
+        float cMin = 0, cMax = 0;
+        long cMinTs = 0, cMaxTs = 0;
+        for (int i = a; i < b; i++) {
+            int c = (int) Math.min(pixels - 1, (ts[i] - from) / pixelMillis);
+            if (c != col) {
+                if (col >= 0) out = emit(cMinTs, cMin, cMaxTs, cMax, outTs, outV, out);
+                col = c;
+                cMin = Float.MAX_VALUE;
+                cMax = -Float.MAX_VALUE;
+            }
+            if (values[i] < cMin) { cMin = values[i]; cMinTs = ts[i]; }
+            if (values[i] > cMax) { cMax = values[i]; cMaxTs = ts[i]; }
+        }
+        if (col >= 0) out = emit(cMinTs, cMin, cMaxTs, cMax, outTs, outV, out);
+        return out;
+    }
+
+    // Writes a column's min and max in time order, once if they are the same point
+    private static int emit(long minTs, float min, long maxTs, float max, long[] outTs, float[] outV, int out) {
+        if (minTs == maxTs) {
+            outTs[out] = minTs;
+            outV[out++] = min;
+        } else if (minTs < maxTs) {
+            outTs[out] = minTs;
+            outV[out++] = min;
+            outTs[out] = maxTs;
+            outV[out++] = max;
+        } else {
+            outTs[out] = maxTs;
+            outV[out++] = max;
+            outTs[out] = minTs;
+            outV[out++] = min;
+        }
+        return out;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets down to at most {@code threshold} points of
+     * {@code [from, to)}. The input is the min/max envelope for {@code threshold} pixels, so
+     * the cost is proportional to {@code threshold}. Returns the number of points written.
+     */
+    public synchronized int lttb(long from, long to, int threshold, long[] outTs, float[] outV) {
+        if (threshold < 3) throw new IllegalArgumentException("threshold must be >= 3");
+        if (candTs.length < 2 * threshold) {
+            candTs = new long[2 * threshold];
+            candV = new float[2 * threshold];
+        }
+        int n = minMax(from, to, threshold, candTs, candV);
+        return lttb(candTs, candV, n, threshold, outTs, outV);
+    }
+
+    /** LTTB over {@code n} time-ordered points; returns the number written to the output arrays. */
+    public static int lttb(long[] inTs, float[] inV, int n, int threshold, long[] outTs, float[] outV) {
+        if (n <= threshold) {
+            System.arraycopy(inTs, 0, outTs, 0, n);
+            System.arraycopy(inV, 0, outV, 0, n);
+            return n;
+        }
+        long t0 = inTs[0];
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        int out = 0;
+        outTs[out] = inTs[0];
+        outV[out++] = inV[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            // Average of the next bucket
+            int avgStart = (int) ((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) ((i + 2) * every) + 1, n);
+            double avgX = 0, avgY = 0;
+            for (int k = avgStart; k < avgEnd; k++) {
+                avgX += inTs[k] - t0;
+                avgY += inV[k];
+            }
+            int len = avgEnd - avgStart;
+            avgX /= len;
+            avgY /= len;
+            // Point of this bucket forming the largest triangle with the last pick and that average
+            int start = (int) (i * every) + 1;
+            int end = (int) ((i + 1) * every) + 1;
+            double ax = inTs[a] - t0;
+            double ay = inV[a];
+            double maxArea = -1;
+            int pick = start;
+            for (int k = start; k < end; k++) {
+                double area = Math.abs((ax - avgX) * (inV[k] - ay) - (ax - (inTs[k] - t0)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    pick = k;
+                }
+            }
+            outTs[out] = inTs[pick];
+            outV[out++] = inV[pick];
+            a = pick;
+        }
+        outTs[out] = inTs[n - 1];
+        outV[out++] = inV[n - 1];
+        return out;
+    }
+
+    /** Raw points in {@code [from, to)}, for callers that want full resolution of a short span. */
+    public synchronized int raw(long from, long to, long[] outTs, float[] outV, int max) {
+        int a = lowerBound(from, head, head + size);
+        int b = Math.min(lowerBound(to, a, head + size), a + max);
+        System.arraycopy(ts, a, outTs, 0, b - a);
+        System.arraycopy(values, a, outV, 0, b - a);
+        return b - a;
+    }
+
+    private int lowerBound(long t, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ts[mid] < t) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private int upperBound(long t, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ts[mid] <= t) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
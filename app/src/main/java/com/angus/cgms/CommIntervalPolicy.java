@@ -0,0 +1,256 @@
+package com.angus.cgms;
+
+import java.util.Locale;
+
+/**
+ * Picks the sensor's communication interval (SOCP Set Communication Interval) from the live
+ * readings: short while an alert condition is developing, long while glucose is stable, and the
+ * sensor's own interval otherwise.
+ *
+ * FAST when a predicted alert is active, the reading or the projection is within
+ * {@link #marginMgdl} of a threshold or past it, or glucose moves at {@link #fastRate} or more.
+ * SLOW once the reading has stayed inside the thresholds (with margin) at {@link #stableRate}
+ * or less for {@link #stableMillis}. Moving to a shorter interval is immediate; moving to a
+ * longer one waits until the current mode has lasted {@link #dwellMillis}, so a borderline
+ * reading does not toggle the interval every minute. The rate is the trend's; until it has a fit
+ * (it wants a 9-minute span, i.e. more than its window at one reading a minute), the change
+ * from the previous reading. Decisions run on sample time, so a batch of readings delivered
+ * together at a long interval still spans its minutes.
+ *
+ * The sensor's own interval is learned from the first Get only when no earlier link saved it
+ * ({@link #restoreNormal}): a sensor we left on the short interval would report that as its own.
+ * {@link #release} stops the adjusting and says what to set back before we let the sensor go.
+ *
+ * Cost is measured against the interval the sensor has confirmed: per mode, the sample-to-receipt
+ * latency of live records, and notifications, bytes and time spent, for notifications and bytes
+ * per hour. No Android types and time is passed in; methods are synchronized (readings arrive on
+ * the dispatcher thread, SOCP results and notifications on others).
+ */
+public final class CommIntervalPolicy {
+    public static final int MODE_NORMAL = 0;
+    public static final int MODE_FAST = 1;
+    public static final int MODE_SLOW = 2;
+    private static final String[] MODE_NAMES = {"normal", "fast", "slow"};
+
+    public int fastMinutes = 1;
+    public int slowMinutes = 5;
+    public float marginMgdl = 20f;
+    public float fastRate = 2f;     // mg/dL/min
+    public float stableRate = 0.5f;
+    public long stableMillis = 30 * 60_000L;
+    public long dwellMillis = 15 * 60_000L;
+    // Consecutive refused or failed Set commands before giving up on this sensor
+    public int maxFailures = 3;
+
+    private float low = TrendPredictor.DEFAULT_LOW;
+    private float high = TrendPredictor.DEFAULT_HIGH;
+
+    private int normalMinutes = -1;   // the sensor's own interval, saved or from the first Get
+    private int appliedMinutes = -1;  // what the sensor runs now; -1 until read on this link
+    private int appliedMode = MODE_NORMAL;
+    private int pendingMinutes = -1;  // Set in flight
+    private int mode = MODE_NORMAL;
+    private long modeSinceMillis;
+    private long stableSinceMillis = Long.MIN_VALUE;
+    private int failures;
+    private float lastMgdl;
+    private long lastReadingMillis = Long.MIN_VALUE;
+    private boolean disabled;
+    private boolean released;
+
+    private long accountedNanos = -1;
+    private final long[] modeNanos = new long[3];
+    private final LatencyHistogram[] latencyHist = new LatencyHistogram[3];
+    private final MetricsRegistry.Counter[] notificationCounter = new MetricsRegistry.Counter[3];
+    private final MetricsRegistry.Counter[] byteCounter = new MetricsRegistry.Counter[3];
+    private final MetricsRegistry.Counter changeCounter;
+    private final MetricsRegistry.Counter failureCounter;
+
+    public CommIntervalPolicy(MetricsRegistry metrics) {
+        for (int m = 0; m < 3; m++) {
+            latencyHist[m] = metrics.histogram("comm_interval.latency." + MODE_NAMES[m]);
+            notificationCounter[m] = metrics.counter("comm_interval.notifications." + MODE_NAMES[m]);
+            byteCounter[m] = metrics.counter("comm_interval.bytes." + MODE_NAMES[m]);
+        }
+        changeCounter = metrics.counter("comm_interval.changes");
+        failureCounter = metrics.counter("comm_interval.failures");
+    }
+
+    public synchronized void setThresholds(float low, float high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    // ===== Sensor state =====
+
+    /** The sensor's own interval, saved from an earlier link; a Get no longer redefines it. */
+    public synchronized void restoreNormal(int minutes) {
+        if (minutes < 0) return;
+        normalMinutes = minutes;
+        if (minutes == SocpClient.INTERVAL_DISABLED) disabled = true;
+    }
+
+    /** The sensor reported its interval (Get response) on a new link. */
+    public synchronized void onSensorInterval(int minutes, long nowNanos) {
+        account(nowNanos);
+        // 0 = periodic notifications off; leave such a sensor alone
+        if (normalMinutes < 0) {
+            normalMinutes = minutes;
+            if (minutes == SocpClient.INTERVAL_DISABLED) disabled = true;
+        }
+        appliedMinutes = minutes;
+        appliedMode = modeOf(minutes);
+        pendingMinutes = -1;
+    }
+
+    /** A Set for {@code minutes} succeeded. */
+    public synchronized void onApplied(int minutes, long nowNanos) {
+        account(nowNanos);
+        appliedMinutes = minutes;
+        appliedMode = modeOf(minutes);
+        pendingMinutes = -1;
+        failures = 0;
+    }
+
+    /** A Set failed; {@code refused} if the sensor answered with an error rather than timing out. */
+    public synchronized void onFailed(boolean refused) {
+        pendingMinutes = -1;
+        failureCounter.increment();
+        if (refused && ++failures >= maxFailures) disabled = true;
+    }
+
+    /**
+     * We are about to let the sensor go: stops adjusting it and returns the interval to set back,
+     * or -1 if it already runs its own (or that is not known).
+     */
+    public synchronized int release() {
+        released = true;
+        if (normalMinutes < 0 || normalMinutes == SocpClient.INTERVAL_DISABLED) return -1;
+        return appliedMinutes == normalMinutes && pendingMinutes < 0 ? -1 : normalMinutes;
+    }
+
+    /** The link dropped; the interval is read again on the next one. */
+    public synchronized void onLinkLost(long nowNanos) {
+        account(nowNanos);
+        accountedNanos = -1;
+        appliedMinutes = -1;
+        pendingMinutes = -1;
+    }
+
+    // ===== Cost =====
+
+    public synchronized void onNotification(int bytes, long nowNanos) {
+        account(nowNanos);
+        notificationCounter[appliedMode].increment();
+        byteCounter[appliedMode].add(bytes);
+    }
+
+    /** A live record arrived {@code latencyNanos} after it was sampled. */
+    public synchronized void onRecordLatency(long latencyNanos) {
+        if (latencyNanos >= 0) latencyHist[appliedMode].record(latencyNanos);
+    }
+
+    private void account(long nowNanos) {
+        if (accountedNanos >= 0) modeNanos[appliedMode] += nowNanos - accountedNanos;
+        accountedNanos = nowNanos;
+    }
+
+    // ===== Decision =====
+
+    /**
+     * A live reading of the primary sensor sampled at {@code timestampMillis}, after {@code trend}
+     * has taken it. Returns the interval to set now, or -1 to leave it.
+     */
+    public synchronized int onReading(long timestampMillis, float mgdl, TrendPredictor trend) {
+        boolean valid = trend.isValid();
+        float rate = -1f; // unknown
+        if (valid) {
+            rate = Math.abs(trend.rate());
+        } else if (lastReadingMillis != Long.MIN_VALUE && timestampMillis > lastReadingMillis
+                && timestampMillis - lastReadingMillis <= TrendPredictor.DEFAULT_MAX_GAP_MILLIS) {
+            rate = Math.abs(mgdl - lastMgdl) * 60_000f / (timestampMillis - lastReadingMillis);
+        }
+        lastMgdl = mgdl;
+        lastReadingMillis = timestampMillis;
+        if (disabled || released || normalMinutes < 0 || appliedMinutes < 0) return -1;
+        boolean urgent = trend.isLowActive() || trend.isHighActive()
+                || mgdl < low + marginMgdl || mgdl > high - marginMgdl || rate >= fastRate
+                || (valid && (trend.projected() < low + marginMgdl || trend.projected() > high - marginMgdl));
+        if (urgent || rate > stableRate) stableSinceMillis = Long.MIN_VALUE;
+        else if (rate >= 0 && stableSinceMillis == Long.MIN_VALUE) stableSinceMillis = timestampMillis;
+
+        int want = urgent ? MODE_FAST
+                : stableSinceMillis != Long.MIN_VALUE && timestampMillis - stableSinceMillis >= stableMillis
+                ? MODE_SLOW : MODE_NORMAL;
+        if (want != mode && (rank(want) > rank(mode) || timestampMillis - modeSinceMillis >= dwellMillis)) {
+            mode = want;
+            modeSinceMillis = timestampMillis;
+            changeCounter.increment();
+        }
+        int minutes = minutesFor(mode);
+        // Also puts the mode back after a reconnect or a Set that timed out
+        if (minutes == appliedMinutes || minutes == pendingMinutes) return -1;
+        pendingMinutes = minutes;
+        return minutes;
+    }
+
+    public synchronized int minutesFor(int m) {
+        boolean fastest = normalMinutes == SocpClient.INTERVAL_FASTEST;
+        switch (m) {
+            case MODE_FAST: return fastest ? SocpClient.INTERVAL_FASTEST : Math.min(fastMinutes, normalMinutes);
+            case MODE_SLOW: return fastest ? slowMinutes : Math.max(slowMinutes, normalMinutes);
+            default: return normalMinutes;
+        }
+    }
+
+    private int modeOf(int minutes) {
+        if (minutes == normalMinutes) return MODE_NORMAL;
+        if (minutes == minutesFor(MODE_FAST)) return MODE_FAST;
+        if (minutes == minutesFor(MODE_SLOW)) return MODE_SLOW;
+        return MODE_NORMAL;
+    }
+
+    // Higher is shorter
+    private static int rank(int m) {
+        return m == MODE_FAST ? 2 : m == MODE_NORMAL ? 1 : 0;
+    }
+
+    public synchronized int mode() { return mode; }
+    public synchronized int appliedMode() { return appliedMode; }
+    public synchronized int appliedMinutes() { return appliedMinutes; }
+    public synchronized int normalMinutes() { return normalMinutes; }
+    public synchronized boolean isDisabled() { return disabled; }
+    public synchronized long nanosIn(int m) { return modeNanos[m]; }
+    public LatencyHistogram latency(int m) { return latencyHist[m]; }
+
+    public synchronized double notificationsPerHour(int m) {
+        return perHour(notificationCounter[m].get(), modeNanos[m]);
+    }
+
+    public synchronized double bytesPerHour(int m) {
+        return perHour(byteCounter[m].get(), modeNanos[m]);
+    }
+
+    private static double perHour(long n, long nanos) {
+        return nanos > 0 ? n * 3_600_000_000_000.0 / nanos : 0;
+    }
+
+    public static String modeName(int m) {
+        return m >= 0 && m < MODE_NAMES.length ? MODE_NAMES[m] : "mode " + m;
+    }
+
+    @Override public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(MODE_NAMES[mode]).append(" (applied ").append(appliedMinutes).append(" min");
+        if (disabled) sb.append(", disabled");
+        sb.append(')');
+        for (int m = 0; m < 3; m++) {
+            if (modeNanos[m] == 0) continue;
+            LatencyHistogram.Snapshot s = latencyHist[m].snapshot();
+            sb.append(String.format(Locale.US, "; %s %d min: %.1f notif/h, %.0f B/h, latency p50 %d s p95 %d s",
+                    MODE_NAMES[m], minutesFor(m), notificationsPerHour(m), bytesPerHour(m),
+                    s.percentile(50) / 1_000_000_000L, s.percentile(95) / 1_000_000_000L));
+        }
+        return sb.toString();
+    }
+}
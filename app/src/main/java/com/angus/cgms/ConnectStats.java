@@ -0,0 +1,71 @@
+package com.angus.cgms;
+
+import java.util.Locale;
+
+/**
+ * Connect timings, split by cold (full setup) and warm (cached state) connects: time from
+ * {@code connectGatt} until data can flow (CCCDs in effect) and until the first measurement
+ * arrives. Methods are synchronized.
+ */
+public final class ConnectStats {
+    public static final int COLD = 0;
+    public static final int WARM = 1;
+
+    private final long[] readyCount = new long[2];
+    private final long[] readyTotal = new long[2];
+    private final long[] readyMin = {Long.MAX_VALUE, Long.MAX_VALUE};
+    private final long[] firstCount = new long[2];
+    private final long[] firstTotal = new long[2];
+    private final long[] firstMin = {Long.MAX_VALUE, Long.MAX_VALUE};
+    private final long[] firstMax = new long[2];
+    private long fallbacks;
+
+    public static String kindName(int kind) {
+        return kind == WARM ? "warm" : "cold";
+    }
+
+    public synchronized void recordReady(int kind, long nanos) {
+        readyCount[kind]++;
+        readyTotal[kind] += nanos;
+        readyMin[kind] = Math.min(readyMin[kind], nanos);
+    }
+
+    public synchronized void recordFirstMeasurement(int kind, long nanos) {
+        firstCount[kind]++;
+        firstTotal[kind] += nanos;
+        firstMin[kind] = Math.min(firstMin[kind], nanos);
+        firstMax[kind] = Math.max(firstMax[kind], nanos);
+    }
+
+    /** A warm attempt whose cached state did not hold and fell back to a full setup. */
+    public synchronized void recordFallback() {
+        fallbacks++;
+    }
+
+    public synchronized long readyCount(int kind) { return readyCount[kind]; }
+    public synchronized long firstMeasurementCount(int kind) { return firstCount[kind]; }
+    public synchronized long fallbacks() { return fallbacks; }
+
+    public synchronized long meanReadyNanos(int kind) {
+        return readyCount[kind] == 0 ? 0 : readyTotal[kind] / readyCount[kind];
+    }
+
+    public synchronized long meanFirstMeasurementNanos(int kind) {
+        return firstCount[kind] == 0 ? 0 : firstTotal[kind] / firstCount[kind];
+    }
+
+    @Override public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int k = COLD; k <= WARM; k++) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(kindName(k)).append(String.format(Locale.US, " n=%d ready=%.0fms (min %.0f)",
+                    readyCount[k], meanReadyNanos(k) / 1e6, readyCount[k] == 0 ? 0 : readyMin[k] / 1e6));
+            if (firstCount[k] > 0) {
+                sb.append(String.format(Locale.US, " first=%.0fms (min %.0f, max %.0f)",
+                        meanFirstMeasurementNanos(k) / 1e6, firstMin[k] / 1e6, firstMax[k] / 1e6));
+            }
+        }
+        if (fallbacks > 0) sb.append(", fallbacks=").append(fallbacks);
+        return sb.toString();
+    }
+}
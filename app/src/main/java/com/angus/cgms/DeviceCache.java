@@ -0,0 +1,220 @@
+package com.angus.cgms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * What we learned about each sensor on its last connection: the CGM service's
+ * characteristics, which CCCDs we enabled, the static CGM Feature value, and the sensor's own
+ * communication interval (so a sensor we left on a short one is not taken to run it by default).
+ *
+ * A bonded peripheral keeps its CCCD values across connections and Android keeps its GATT
+ * database, so a reconnect to a known, bonded sensor can skip the CCCD writes and the
+ * Feature read (see the warm path in BleManager). The cache is only a hint: BleManager
+ * checks discovery against it and falls back to a full setup on any mismatch.
+ *
+ * <pre>
+ * file:  magic "CGMK" | u8 version | u16 entries | entry...
+ * entry: UTF address | i64 updated ms | u16 mtu | u16 feature length | feature
+ *        | u16 characteristics | (i64 msb | i64 lsb | i32 properties)... | u16 cccds | (i64 msb | i64 lsb)...
+ *        | i16 comm interval (-1 = not known; version 2)
+ * </pre>
+ * Saved atomically (temp file + rename). Least recently connected devices are dropped past
+ * {@link #MAX_DEVICES}. {@link #get} returns a copy; methods are synchronized.
+ */
+public final class DeviceCache {
+    public static final int MAGIC = 0x43474D4B; // "CGMK"
+    public static final int VERSION = 2;
+    public static final int MAX_DEVICES = 16;
+
+    public static final class Entry {
+        public final String address;
+        public long updatedMillis;
+        public int mtu;
+        public byte[] feature;
+        public int commInterval = -1; // minutes, SOCP operand; -1 = not known
+        /** CGM service characteristic UUID -> GATT properties. */
+        public final Map<UUID, Integer> characteristics = new LinkedHashMap<>();
+        public final Set<UUID> cccdEnabled = new LinkedHashSet<>();
+
+        public Entry(String address) {
+            this.address = address;
+        }
+
+        Entry(Entry e) {
+            this(e.address);
+            updatedMillis = e.updatedMillis;
+            mtu = e.mtu;
+            feature = e.feature != null ? e.feature.clone() : null;
+            commInterval = e.commInterval;
+            characteristics.putAll(e.characteristics);
+            cccdEnabled.addAll(e.cccdEnabled);
+        }
+
+        /** True if we have enough to take the warm path. */
+        public boolean isWarm() {
+            return !characteristics.isEmpty() && !cccdEnabled.isEmpty();
+        }
+
+        @Override public String toString() {
+            return address + " chars=" + characteristics.size() + " cccd=" + cccdEnabled.size()
+                    + " mtu=" + mtu + " feature=" + (feature != null ? Hex.toHex(feature) : "-")
+                    + " interval=" + commInterval;
+        }
+    }
+
+    private final File file;
+    // Access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(MAX_DEVICES, 0.75f, true);
+    private boolean dirty;
+
+    /** Loads {@code file} if it exists; a missing or unreadable file starts empty. Null keeps it in memory. */
+    public DeviceCache(File file) {
+        this.file = file;
+        if (file != null && file.isFile()) {
+            try {
+                load();
+            } catch (IOException e) {
+                entries.clear();
+            }
+        }
+    }
+
+    public synchronized Entry get(String address) {
+        Entry e = entries.get(address);
+        return e != null ? new Entry(e) : null;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    /** Address of the most recently connected device, or null if the cache is empty. */
+    public synchronized String lastConnectedAddress() {
+        Entry last = null;
+        for (Entry e : entries.values()) {
+            if (last == null || e.updatedMillis > last.updatedMillis) last = e;
+        }
+        return last != null ? last.address : null;
+    }
+
+    public synchronized void remove(String address) {
+        if (entries.remove(address) != null) dirty = true;
+    }
+
+    /** Replaces the characteristic map after a discovery; a changed database forgets the CCCDs. */
+    public synchronized void setCharacteristics(String address, Map<UUID, Integer> found, long nowMillis) {
+        Entry e = entry(address, nowMillis);
+        if (!e.characteristics.equals(found)) {
+            e.characteristics.clear();
+            e.characteristics.putAll(found);
+            e.cccdEnabled.clear();
+            e.feature = null;
+        }
+    }
+
+    public synchronized void setCccd(String address, UUID characteristic, boolean enabled, long nowMillis) {
+        Entry e = entry(address, nowMillis);
+        if (enabled) e.cccdEnabled.add(characteristic); else e.cccdEnabled.remove(characteristic);
+    }
+
+    public synchronized void setFeature(String address, byte[] feature, long nowMillis) {
+        entry(address, nowMillis).feature = feature != null ? feature.clone() : null;
+    }
+
+    public synchronized void setMtu(String address, int mtu, long nowMillis) {
+        entry(address, nowMillis).mtu = mtu;
+    }
+
+    public synchronized void setCommInterval(String address, int minutes, long nowMillis) {
+        Entry e = entries.get(address);
+        if (e != null && e.commInterval == minutes) return;
+        entry(address, nowMillis).commInterval = minutes;
+    }
+
+    private Entry entry(String address, long nowMillis) {
+        Entry e = entries.get(address);
+        if (e == null) {
+            e = new Entry(address);
+            entries.put(address, e);
+            Iterator<String> it = entries.keySet().iterator();
+            while (entries.size() > MAX_DEVICES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        e.updatedMillis = nowMillis;
+        dirty = true;
+        return e;
+    }
+
+    /** Writes the cache if anything changed since the last save. */
+    public synchronized void save() throws IOException {
+        if (file == null || !dirty) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeUTF(e.address);
+                out.writeLong(e.updatedMillis);
+                out.writeShort(e.mtu);
+                byte[] f = e.feature != null ? e.feature : new byte[0];
+                out.writeShort(f.length);
+                out.write(f);
+                out.writeShort(e.characteristics.size());
+                for (Map.Entry<UUID, Integer> c : e.characteristics.entrySet()) {
+                    out.writeLong(c.getKey().getMostSignificantBits());
+                    out.writeLong(c.getKey().getLeastSignificantBits());
+                    out.writeInt(c.getValue());
+                }
+                out.writeShort(e.cccdEnabled.size());
+                for (UUID u : e.cccdEnabled) {
+                    out.writeLong(u.getMostSignificantBits());
+                    out.writeLong(u.getLeastSignificantBits());
+                }
+                out.writeShort(e.commInterval);
+            }
+        }
+        if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+        dirty = false;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a device cache (bad magic)");
+            int version = in.readUnsignedByte();
+            if (version != 1 && version != VERSION) throw new IOException("unsupported device cache version " + version);
+            int n = in.readUnsignedShort();
+            for (int i = 0; i < n; i++) {
+                Entry e = new Entry(in.readUTF());
+                e.updatedMillis = in.readLong();
+                e.mtu = in.readUnsignedShort();
+                int fl = in.readUnsignedShort();
+                if (fl > 0) {
+                    e.feature = new byte[fl];
+                    in.readFully(e.feature);
+                }
+                int chars = in.readUnsignedShort();
+                for (int k = 0; k < chars; k++) {
+                    e.characteristics.put(new UUID(in.readLong(), in.readLong()), in.readInt());
+                }
+                int cccds = in.readUnsignedShort();
+                for (int k = 0; k < cccds; k++) e.cccdEnabled.add(new UUID(in.readLong(), in.readLong()));
+                if (version >= 2) e.commInterval = in.readShort();
+                entries.put(e.address, e);
+            }
+        }
+    }
+}
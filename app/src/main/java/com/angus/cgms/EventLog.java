@@ -0,0 +1,377 @@
+package com.angus.cgms;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Structured, asynchronous event log.
+ *
+ * Callers log an event code plus raw arguments (ints, string references, a byte range, a
+ * UUID); nothing is formatted on the calling thread. Events go into a fixed ring of
+ * pre-allocated slots and a daemon thread hands them to sinks: text sinks get a string
+ * rendered only if at least one of them accepts the event's level and tag, and the optional
+ * {@link EventLogFile.Writer} stores the raw arguments for offline decoding.
+ *
+ * Producers may be any thread. When the ring is full the newest event is dropped and counted.
+ */
+public final class EventLog {
+    public static final int MAX_INTS = 3;
+    public static final int MAX_STRINGS = 2;
+    public static final int MAX_BYTES = 512;
+
+    /** Receives rendered text for events that pass its level and tag filter. */
+    public interface TextSink { void onText(int level, int tag, Event e, String text); }
+
+    /** Turns an event into display text; the default is {@link LogEvents#render}. */
+    public interface Renderer { String render(Event e); }
+
+    /** One event as seen by sinks; reused by the consumer thread, valid only during the callback. */
+    public static final class Event {
+        public int code;
+        public int level;
+        public int tag;
+        public long epochMillis;
+        public final int[] ints = new int[MAX_INTS];
+        public int intCount;
+        final String[] strings = new String[MAX_STRINGS];
+        public int stringCount;
+        public byte[] bytes = new byte[MAX_BYTES];
+        public int byteCount;
+        public boolean hasBytes;
+        public long uuidMsb;
+        public long uuidLsb;
+        public boolean hasUuid;
+
+        public String string(int i) {
+            return strings[i];
+        }
+
+        public UUID uuid() {
+            return hasUuid ? new UUID(uuidMsb, uuidLsb) : null;
+        }
+
+        void clear() {
+            intCount = 0;
+            stringCount = 0;
+            strings[0] = null;
+            strings[1] = null;
+            byteCount = 0;
+            hasBytes = false;
+            hasUuid = false;
+        }
+    }
+
+    private static final class Sink {
+        final TextSink sink;
+        final int minLevel;
+        final int tagMask;
+
+        Sink(TextSink sink, int minLevel, int tagMask) {
+            this.sink = sink;
+            this.minLevel = minLevel;
+            this.tagMask = tagMask;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final int mask;
+    // Slot arrays, guarded by lock
+    private final int[] code;
+    private final long[] time;
+    private final int[][] ints;
+    private final byte[] intCount;
+    private final String[][] strings;
+    private final byte[] stringCount;
+    private final byte[][] bytes;
+    private final int[] byteCount; // -1 = no bytes argument
+    private final long[] uuidMsb;
+    private final long[] uuidLsb;
+    private final boolean[] hasUuid;
+    private long head;
+    private long tail;
+    private boolean waiting;
+    private boolean running;
+
+    private volatile int minLevel = LogEvents.DEBUG;
+    private volatile int tagMask = LogEvents.TAG_ALL;
+    private volatile Sink[] sinks = new Sink[0];
+    private volatile Renderer renderer = LogEvents::render;
+    private volatile EventLogFile.Writer file;
+
+    private volatile long logged;
+    private volatile long dropped;
+    private volatile long truncated;
+
+    private final Event event = new Event();
+    private Thread thread;
+
+    /** @param capacity number of slots, rounded up to a power of two */
+    public EventLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        int cap = Integer.highestOneBit(capacity);
+        if (cap < capacity) cap <<= 1;
+        mask = cap - 1;
+        code = new int[cap];
+        time = new long[cap];
+        ints = new int[cap][MAX_INTS];
+        intCount = new byte[cap];
+        strings = new String[cap][MAX_STRINGS];
+        stringCount = new byte[cap];
+        bytes = new byte[cap][MAX_BYTES];
+        byteCount = new int[cap];
+        uuidMsb = new long[cap];
+        uuidLsb = new long[cap];
+        hasUuid = new boolean[cap];
+    }
+
+    // ===== Configuration =====
+
+    /** Events below {@code level} or outside {@code tagMask} are discarded before queueing. */
+    public void setFilter(int level, int tagMask) {
+        this.minLevel = level;
+        this.tagMask = tagMask;
+    }
+
+    public synchronized void addSink(TextSink sink, int minLevel, int tagMask) {
+        Sink[] old = sinks;
+        Sink[] next = new Sink[old.length + 1];
+        System.arraycopy(old, 0, next, 0, old.length);
+        next[old.length] = new Sink(sink, minLevel, tagMask);
+        sinks = next;
+    }
+
+    public void setRenderer(Renderer r) {
+        renderer = r == null ? LogEvents::render : r;
+    }
+
+    /** Sets the binary file sink, or clears it with {@code null}; the previous one is closed. */
+    public void setFile(EventLogFile.Writer w) {
+        EventLogFile.Writer old = file;
+        file = w;
+        if (old != null && old != w) {
+            try {
+                old.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        synchronized (lock) {
+            running = true;
+        }
+        thread = new Thread(this::run, "cgms-eventlog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops after delivering what is already queued and closes the file sink. */
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t == null) return;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            t.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        setFile(null);
+    }
+
+    public boolean isLoggable(int code) {
+        return LogEvents.level(code) >= minLevel && (LogEvents.tag(code) & tagMask) != 0;
+    }
+
+    // ===== Producers =====
+
+    public void log(int code) {
+        append(code, 0, 0, 0, 0, 0, null, null, null, 0, -1, null);
+    }
+
+    public void log(int code, int a) {
+        append(code, 1, a, 0, 0, 0, null, null, null, 0, -1, null);
+    }
+
+    public void log(int code, int a, int b) {
+        append(code, 2, a, b, 0, 0, null, null, null, 0, -1, null);
+    }
+
+    public void log(int code, int a, int b, int c) {
+        append(code, 3, a, b, c, 0, null, null, null, 0, -1, null);
+    }
+
+    public void log(int code, String s, int a, int b) {
+        append(code, 2, a, b, 0, 1, s, null, null, 0, -1, null);
+    }
+
+    public void log(int code, String s, int a, int b, int c) {
+        append(code, 3, a, b, c, 1, s, null, null, 0, -1, null);
+    }
+
+    public void log(int code, String s) {
+        append(code, 0, 0, 0, 0, 1, s, null, null, 0, -1, null);
+    }
+
+    public void log(int code, String s, int a) {
+        append(code, 1, a, 0, 0, 1, s, null, null, 0, -1, null);
+    }
+
+    public void log(int code, String s0, String s1, int a) {
+        append(code, 1, a, 0, 0, 2, s0, s1, null, 0, -1, null);
+    }
+
+    public void log(int code, byte[] v) {
+        append(code, 0, 0, 0, 0, 0, null, null, v, 0, v == null ? 0 : v.length, null);
+    }
+
+    public void log(int code, byte[] v, int off, int len) {
+        append(code, 0, 0, 0, 0, 0, null, null, v, off, len, null);
+    }
+
+    public void log(int code, int a, byte[] v) {
+        append(code, 1, a, 0, 0, 0, null, null, v, 0, v == null ? 0 : v.length, null);
+    }
+
+    public void log(int code, UUID uuid) {
+        append(code, 0, 0, 0, 0, 0, null, null, null, 0, -1, uuid);
+    }
+
+    public void log(int code, int a, UUID uuid) {
+        append(code, 1, a, 0, 0, 0, null, null, null, 0, -1, uuid);
+    }
+
+    private void append(int c, int ni, int i0, int i1, int i2, int ns, String s0, String s1,
+                        byte[] v, int off, int len, UUID uuid) {
+        if (!isLoggable(c)) return;
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            long h = head;
+            if (h - tail > mask) {
+                dropped++;
+                return;
+            }
+            int i = (int) (h & mask);
+            code[i] = c;
+            time[i] = now;
+            int[] slotInts = ints[i];
+            slotInts[0] = i0;
+            slotInts[1] = i1;
+            slotInts[2] = i2;
+            intCount[i] = (byte) ni;
+            String[] slotStrings = strings[i];
+            slotStrings[0] = s0;
+            slotStrings[1] = s1;
+            stringCount[i] = (byte) ns;
+            if (len > MAX_BYTES) {
+                len = MAX_BYTES;
+                truncated++;
+            }
+            if (len > 0 && v != null) System.arraycopy(v, off, bytes[i], 0, len);
+            byteCount[i] = v == null && len <= 0 ? -1 : Math.max(len, 0);
+            if (uuid != null) {
+                uuidMsb[i] = uuid.getMostSignificantBits();
+                uuidLsb[i] = uuid.getLeastSignificantBits();
+            }
+            hasUuid[i] = uuid != null;
+            head = h + 1;
+            logged++;
+            if (waiting) lock.notify();
+        }
+    }
+
+    // ===== Consumer =====
+
+    private void run() {
+        while (true) {
+            synchronized (lock) {
+                while (head == tail && running) {
+                    waiting = true;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                    waiting = false;
+                }
+                if (head == tail) break;
+                copyOut((int) (tail & mask), event);
+                tail++;
+            }
+            deliver(event);
+        }
+        flushFile();
+    }
+
+    private void copyOut(int i, Event e) {
+        e.clear();
+        e.code = code[i];
+        e.level = LogEvents.level(e.code);
+        e.tag = LogEvents.tag(e.code);
+        e.epochMillis = time[i];
+        e.intCount = intCount[i];
+        System.arraycopy(ints[i], 0, e.ints, 0, MAX_INTS);
+        e.stringCount = stringCount[i];
+        e.strings[0] = strings[i][0];
+        e.strings[1] = strings[i][1];
+        strings[i][0] = null;
+        strings[i][1] = null;
+        int n = byteCount[i];
+        e.hasBytes = n >= 0;
+        if (n > 0) System.arraycopy(bytes[i], 0, e.bytes, 0, n);
+        e.byteCount = Math.max(n, 0);
+        e.hasUuid = hasUuid[i];
+        e.uuidMsb = uuidMsb[i];
+        e.uuidLsb = uuidLsb[i];
+    }
+
+    private void deliver(Event e) {
+        EventLogFile.Writer w = file;
+        if (w != null) {
+            try {
+                w.write(e);
+                if (e.level >= LogEvents.WARN) w.flush();
+            } catch (IOException ex) {
+                // A writer swapped out by setFile() fails quietly
+                if (file == w) {
+                    file = null;
+                    try {
+                        w.close();
+                    } catch (IOException ignored) { }
+                    log(LogEvents.LOG_FILE_FAILED, String.valueOf(ex.getMessage()));
+                }
+            }
+        }
+        String text = null;
+        for (Sink s : sinks) {
+            if (e.level < s.minLevel || (e.tag & s.tagMask) == 0) continue;
+            if (text == null) {
+                try {
+                    text = renderer.render(e);
+                } catch (RuntimeException ex) {
+                    text = LogEvents.name(e.code) + " (render failed: " + ex + ")";
+                }
+            }
+            s.sink.onText(e.level, e.tag, e, text);
+        }
+    }
+
+    private void flushFile() {
+        EventLogFile.Writer w = file;
+        if (w == null) return;
+        try {
+            w.flush();
+        } catch (IOException ignored) { }
+    }
+
+    public long logged() { return logged; }
+    public long dropped() { return dropped; }
+    public long truncated() { return truncated; }
+
+    @Override public String toString() {
+        return "logged=" + logged + ", dropped=" + dropped + ", truncated=" + truncated + ", capacity=" + (mask + 1);
+    }
+}
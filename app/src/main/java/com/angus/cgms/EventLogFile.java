@@ -0,0 +1,231 @@
+package com.angus.cgms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Rotating binary files of {@link EventLog} events. Arguments are stored raw, so text is
+ * only produced when a file is read back (on device or with {@link #main}).
+ *
+ * <pre>
+ * header: magic "CGME" | u8 version
+ * record: u16 length | i64 epoch ms | u16 code | u8 nInts | i32 x nInts | u8 nStrings | UTF x nStrings
+ *         | u8 flags (1 = bytes, 2 = uuid) | [u16 n | n bytes] | [i64 uuid msb | i64 uuid lsb]
+ * </pre>
+ * Files are named {@code events-00001.evl} and rotate once they reach the size limit; the
+ * oldest are deleted beyond the file limit. A truncated last record is treated as end of file.
+ */
+public final class EventLogFile {
+    public static final int MAGIC = 0x43474D45; // "CGME"
+    public static final int VERSION = 1;
+    public static final String PREFIX = "events-";
+    public static final String SUFFIX = ".evl";
+
+    private static final int FLAG_BYTES = 1;
+    private static final int FLAG_UUID = 2;
+    private static final int MAX_STRING_CHARS = 1024;
+
+    private EventLogFile() {}
+
+    /** Log files in {@code dir}, oldest first. */
+    public static File[] list(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> Integer.compare(index(a), index(b)));
+        return files;
+    }
+
+    private static int index(File f) {
+        String n = f.getName();
+        try {
+            return Integer.parseInt(n.substring(PREFIX.length(), n.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static final class Writer implements Closeable {
+        private final File dir;
+        private final long maxBytes;
+        private final int maxFiles;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private DataOutputStream out;
+        private long fileBytes;
+        private int fileIndex;
+        private long events;
+
+        /**
+         * @param maxBytes rotate once the current file reaches this size
+         * @param maxFiles keep at most this many files, deleting the oldest
+         */
+        public Writer(File dir, long maxBytes, int maxFiles) throws IOException {
+            if (maxBytes <= 0 || maxFiles <= 0) throw new IllegalArgumentException("maxBytes and maxFiles must be > 0");
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+            File[] existing = list(dir);
+            fileIndex = existing.length == 0 ? 0 : index(existing[existing.length - 1]);
+            open();
+        }
+
+        private void open() throws IOException {
+            fileIndex++;
+            File f = new File(dir, String.format(Locale.US, "%s%05d%s", PREFIX, fileIndex, SUFFIX));
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 16 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            fileBytes = 5;
+            File[] files = list(dir);
+            for (int i = 0; i < files.length - maxFiles; i++) {
+                // Best effort; a file we cannot delete is retried on the next rotation
+                files[i].delete();
+            }
+        }
+
+        public synchronized void write(EventLog.Event e) throws IOException {
+            record.reset();
+            DataOutputStream r = recordOut;
+            r.writeLong(e.epochMillis);
+            r.writeShort(e.code);
+            r.writeByte(e.intCount);
+            for (int i = 0; i < e.intCount; i++) r.writeInt(e.ints[i]);
+            r.writeByte(e.stringCount);
+            for (int i = 0; i < e.stringCount; i++) {
+                String s = e.string(i);
+                if (s == null) s = "null";
+                r.writeUTF(s.length() > MAX_STRING_CHARS ? s.substring(0, MAX_STRING_CHARS) : s);
+            }
+            r.writeByte((e.hasBytes ? FLAG_BYTES : 0) | (e.hasUuid ? FLAG_UUID : 0));
+            if (e.hasBytes) {
+                r.writeShort(e.byteCount);
+                r.write(e.bytes, 0, e.byteCount);
+            }
+            if (e.hasUuid) {
+                r.writeLong(e.uuidMsb);
+                r.writeLong(e.uuidLsb);
+            }
+            if (fileBytes >= maxBytes) {
+                out.close();
+                open();
+            }
+            out.writeShort(record.size());
+            record.writeTo(out);
+            fileBytes += 2 + record.size();
+            events++;
+        }
+
+        public synchronized long events() {
+            return events;
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private byte[] buf = new byte[256];
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream is) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(is, 16 * 1024));
+            try {
+                if (in.readInt() != MAGIC) throw new IOException("not an event log (bad magic)");
+                int version = in.readUnsignedByte();
+                if (version != VERSION) throw new IOException("unsupported event log version " + version);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** Reads the next event into {@code e}; returns false at end of file or on a truncated tail. */
+        public boolean next(EventLog.Event e) throws IOException {
+            int len;
+            try {
+                len = in.readUnsignedShort();
+                if (buf.length < len) buf = new byte[Math.max(len, buf.length * 2)];
+                in.readFully(buf, 0, len);
+            } catch (EOFException eof) {
+                return false;
+            }
+            DataInputStream r = new DataInputStream(new ByteArrayInputStream(buf, 0, len));
+            e.clear();
+            e.epochMillis = r.readLong();
+            e.code = r.readUnsignedShort();
+            e.level = LogEvents.level(e.code);
+            e.tag = LogEvents.tag(e.code);
+            e.intCount = Math.min(r.readUnsignedByte(), EventLog.MAX_INTS);
+            for (int i = 0; i < e.intCount; i++) e.ints[i] = r.readInt();
+            e.stringCount = Math.min(r.readUnsignedByte(), EventLog.MAX_STRINGS);
+            for (int i = 0; i < e.stringCount; i++) e.strings[i] = r.readUTF();
+            int flags = r.readUnsignedByte();
+            e.hasBytes = (flags & FLAG_BYTES) != 0;
+            if (e.hasBytes) {
+                int n = r.readUnsignedShort();
+                if (e.bytes.length < n) e.bytes = new byte[n];
+                r.readFully(e.bytes, 0, n);
+                e.byteCount = n;
+            }
+            e.hasUuid = (flags & FLAG_UUID) != 0;
+            if (e.hasUuid) {
+                e.uuidMsb = r.readLong();
+                e.uuidLsb = r.readLong();
+            }
+            return true;
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** Prints event log files (or every log file in a directory) as text. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: EventLogFile <file.evl | dir>...");
+            System.exit(2);
+        }
+        PrintStream out = System.out;
+        SimpleDateFormat ts = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        EventLog.Event e = new EventLog.Event();
+        for (String a : args) {
+            File f = new File(a);
+            File[] files = f.isDirectory() ? list(f) : new File[]{f};
+            for (File file : files) {
+                try (Reader r = new Reader(file)) {
+                    while (r.next(e)) {
+                        out.println(ts.format(new Date(e.epochMillis)) + " " + LogEvents.levelName(e.level) + " "
+                                + LogEvents.name(e.code) + ": " + LogEvents.render(e));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.angus.cgms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Binary capture of raw GATT events, replayable off-device with {@link ReplayEngine}.
+ *
+ * <pre>
+ * header: magic "CGMC" | u8 version | i64 start epoch ms | i64 start monotonic ns
+ * record: i64 monotonic ns | u8 type | u16 status | i64 uuid msb | i64 uuid lsb | u16 length | value
+ * </pre>
+ * All integers are big-endian (DataOutputStream). A record cut short by process death is
+ * treated as end of file, so captures stay readable after a crash. BleManager names files
+ * {@code cgms-<time>.cgmc} and rotates them like {@link EventLogFile}; each one has its own
+ * header, so any file replays on its own.
+ */
+public final class GattCapture {
+    public static final int MAGIC = 0x43474D43; // "CGMC"
+    public static final int VERSION = 1;
+    public static final String PREFIX = "cgms-";
+    public static final String SUFFIX = ".cgmc";
+    private static final int HEADER_SIZE = 21;
+    private static final int RECORD_SIZE = 29; // without the value
+
+    // Event types
+    public static final int TYPE_NOTIFY = 1;
+    public static final int TYPE_READ = 2;
+    public static final int TYPE_WRITE = 3;
+    // uuid is the owning characteristic, value is the descriptor value
+    public static final int TYPE_DESCRIPTOR_WRITE = 4;
+    // value = [newState]; uuid is zero
+    public static final int TYPE_CONNECTION_STATE = 5;
+    // value = u16 mtu little-endian; uuid is zero
+    public static final int TYPE_MTU = 6;
+
+    private static final UUID NO_UUID = new UUID(0, 0);
+
+    private GattCapture() {}
+
+    /** Capture files in {@code dir}, oldest first (the names sort by time). */
+    public static File[] list(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    /** One capture record; {@link Reader} reuses the instance and grows {@link #value} as needed. */
+    public static final class Event {
+        public long timestampNanos;
+        public int type;
+        public int status;
+        public long uuidMsb;
+        public long uuidLsb;
+        public byte[] value = new byte[256];
+        public int length;
+
+        public boolean is(UUID uuid) {
+            return uuid.getMostSignificantBits() == uuidMsb && uuid.getLeastSignificantBits() == uuidLsb;
+        }
+
+        public UUID uuid() {
+            return new UUID(uuidMsb, uuidLsb);
+        }
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long events;
+        private long bytes = HEADER_SIZE;
+        private boolean closed;
+
+        public Writer(File file, long startEpochMillis, long startNanos) throws IOException {
+            this(new FileOutputStream(file), startEpochMillis, startNanos);
+        }
+
+        public Writer(OutputStream os, long startEpochMillis, long startNanos) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(startEpochMillis);
+            out.writeLong(startNanos);
+        }
+
+        /** Does nothing once closed, so a writer rotated away under a concurrent caller is harmless. */
+        public synchronized void write(long timestampNanos, int type, int status, UUID uuid, byte[] value) throws IOException {
+            if (closed) return;
+            if (uuid == null) uuid = NO_UUID;
+            int len = value == null ? 0 : Math.min(value.length, 0xFFFF);
+            out.writeLong(timestampNanos);
+            out.writeByte(type);
+            out.writeShort(status);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeShort(len);
+            if (len > 0) out.write(value, 0, len);
+            events++;
+            bytes += RECORD_SIZE + len;
+        }
+
+        public synchronized long events() {
+            return events;
+        }
+
+        /** Bytes written so far, header included. */
+        public synchronized long bytes() {
+            return bytes;
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public synchronized void close() throws IOException {
+            closed = true;
+            out.close();
+        }
+    }
+
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        public final int version;
+        public final long startEpochMillis;
+        public final long startNanos;
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream is) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC) throw new IOException("not a CGM capture (bad magic)");
+                version = in.readUnsignedByte();
+                if (version != VERSION) throw new IOException("unsupported capture version " + version);
+                startEpochMillis = in.readLong();
+                startNanos = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** Reads the next record into {@code e}; returns false at end of file or on a truncated tail. */
+        public boolean next(Event e) throws IOException {
+            try {
+                e.timestampNanos = in.readLong();
+                e.type = in.readUnsignedByte();
+                e.status = in.readUnsignedShort();
+                e.uuidMsb = in.readLong();
+                e.uuidLsb = in.readLong();
+                int len = in.readUnsignedShort();
+                if (e.value.length < len) e.value = new byte[Math.max(len, e.value.length * 2)];
+                in.readFully(e.value, 0, len);
+                e.length = len;
+                return true;
+            } catch (EOFException eof) {
+                return false;
+            }
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.angus.cgms;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Serializes GATT operations: Android allows one outstanding request per connection and
+ * silently drops the rest, so reads, writes, CCCD writes, MTU/priority requests and service
+ * discovery all go through this queue and the next one starts only when the previous one
+ * completed, failed to start, or timed out.
+ *
+ * Queued operations wait in priority lanes; control point writes ({@link #PRIORITY_CONTROL})
+ * go ahead of connection setup, which goes ahead of status polling. An operation already on
+ * the air is never preempted. Each operation has its own timeout and a future that completes
+ * (never exceptionally) with the operation itself once {@link Operation#status} is set.
+ *
+ * No GATT types: requests go out through {@link Executor}, callbacks come back through
+ * {@link #complete}, and time is passed in, so the queue runs unchanged on a plain JVM.
+ * Methods are thread-safe; the executor, listener and futures run without the lock held.
+ */
+public final class GattScheduler {
+    // Operation types
+    public static final int OP_READ = 0;
+    public static final int OP_WRITE = 1;
+    public static final int OP_WRITE_DESCRIPTOR = 2; // CCCD of the characteristic in Operation.uuid
+    public static final int OP_REQUEST_MTU = 3;
+    public static final int OP_CONNECTION_PRIORITY = 4; // no callback, done once issued
+    public static final int OP_DISCOVER_SERVICES = 5;
+    public static final int OP_READ_DESCRIPTOR = 6; // CCCD of the characteristic in Operation.uuid
+    public static final int OP_TYPES = 7;
+
+    // Priority lanes, highest first
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_SETUP = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+    private static final int PRIORITIES = 3;
+
+    // Status: GATT status codes (0 = success) or one of these
+    public static final int STATUS_SUCCESS = 0;
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    public static final long DEFAULT_TIMEOUT_NANOS = 5_000_000_000L;
+    public static final long DISCOVERY_TIMEOUT_NANOS = 15_000_000_000L;
+
+    public interface Executor {
+        /** Issues the request; returns false if the stack refused it. */
+        boolean execute(Operation op);
+    }
+
+    public interface Listener {
+        void onStarted(Operation op);
+        void onFinished(Operation op);
+    }
+
+    public static final class Operation {
+        public final int type;
+        public final int priority;
+        public final UUID uuid;
+        public final byte[] value;
+        /** MTU or connection priority for those requests. */
+        public final int arg;
+        public final long timeoutNanos;
+        public final CompletableFuture<Operation> future = new CompletableFuture<>();
+
+        // Set by the scheduler
+        public long queuedNanos;
+        public long startedNanos;
+        public long finishedNanos;
+        public int status = Integer.MIN_VALUE;
+        /** Value from the callback (read result, written value, new MTU as 2 bytes). */
+        public byte[] result;
+
+        Operation(int type, int priority, UUID uuid, byte[] value, int arg, long timeoutNanos) {
+            this.type = type;
+            this.priority = priority;
+            this.uuid = uuid;
+            this.value = value;
+            this.arg = arg;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        public boolean isSuccess() { return status == STATUS_SUCCESS; }
+        public boolean isDone() { return status != Integer.MIN_VALUE; }
+        /** Time on the air, from issue to callback. */
+        public long latencyNanos() { return finishedNanos - startedNanos; }
+        /** Time spent queued behind other operations. */
+        public long waitNanos() { return startedNanos - queuedNanos; }
+
+        @Override public String toString() {
+            return uuid == null ? typeName(type)
+                    : String.format(Locale.US, "%s %04x", typeName(type), (int) (uuid.getMostSignificantBits() >>> 32) & 0xFFFF);
+        }
+    }
+
+    private final Executor executor;
+    private final Listener listener;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Operation>[] lanes = new ArrayDeque[PRIORITIES];
+    private final long[] timeouts = new long[OP_TYPES];
+    private Operation inFlight;
+
+    // Metrics per operation type
+    private final long[] completed = new long[OP_TYPES];
+    private final long[] failed = new long[OP_TYPES];
+    private final long[] timedOut = new long[OP_TYPES];
+    private final long[] latencyTotal = new long[OP_TYPES];
+    private final long[] latencyMax = new long[OP_TYPES];
+    private final long[] waitTotal = new long[OP_TYPES];
+
+    public GattScheduler(Executor executor, Listener listener) {
+        this.executor = executor;
+        this.listener = listener;
+        for (int p = 0; p < PRIORITIES; p++) lanes[p] = new ArrayDeque<>();
+        Arrays.fill(timeouts, DEFAULT_TIMEOUT_NANOS);
+        timeouts[OP_DISCOVER_SERVICES] = DISCOVERY_TIMEOUT_NANOS;
+    }
+
+    public synchronized void setTimeout(int type, long nanos) {
+        timeouts[type] = nanos;
+    }
+
+    // ===== Requests =====
+
+    public Operation read(UUID uuid, int priority, long nowNanos) {
+        return enqueue(OP_READ, priority, uuid, null, 0, nowNanos);
+    }
+
+    public Operation write(UUID uuid, byte[] value, int priority, long nowNanos) {
+        return enqueue(OP_WRITE, priority, uuid, value, 0, nowNanos);
+    }
+
+    public Operation writeDescriptor(UUID characteristic, byte[] value, long nowNanos) {
+        return enqueue(OP_WRITE_DESCRIPTOR, PRIORITY_SETUP, characteristic, value, 0, nowNanos);
+    }
+
+    public Operation readDescriptor(UUID characteristic, long nowNanos) {
+        return enqueue(OP_READ_DESCRIPTOR, PRIORITY_SETUP, characteristic, null, 0, nowNanos);
+    }
+
+    public Operation requestMtu(int mtu, long nowNanos) {
+        return enqueue(OP_REQUEST_MTU, PRIORITY_SETUP, null, null, mtu, nowNanos);
+    }
+
+    public Operation requestConnectionPriority(int connectionPriority, long nowNanos) {
+        return enqueue(OP_CONNECTION_PRIORITY, PRIORITY_SETUP, null, null, connectionPriority, nowNanos);
+    }
+
+    public Operation discoverServices(long nowNanos) {
+        return enqueue(OP_DISCOVER_SERVICES, PRIORITY_SETUP, null, null, 0, nowNanos);
+    }
+
+    public Operation enqueue(int type, int priority, UUID uuid, byte[] value, int arg, long nowNanos) {
+        long timeout;
+        synchronized (this) {
+            timeout = timeouts[type];
+        }
+        return enqueue(type, priority, uuid, value, arg, timeout, nowNanos);
+    }
+
+    public Operation enqueue(int type, int priority, UUID uuid, byte[] value, int arg, long timeoutNanos, long nowNanos) {
+        Operation op = new Operation(type, priority, uuid, value, arg, timeoutNanos);
+        op.queuedNanos = nowNanos;
+        synchronized (this) {
+            lanes[priority].addLast(op);
+        }
+        pump(nowNanos);
+        return op;
+    }
+
+    // ===== Callbacks =====
+
+    /**
+     * Completes the operation on the air if it matches {@code type} and {@code uuid} (null for
+     * MTU and discovery) and starts the next one. Returns false for a callback we did not ask
+     * for, e.g. one that arrives after its operation timed out.
+     */
+    public boolean complete(int type, UUID uuid, int status, byte[] value, long nowNanos) {
+        Operation op;
+        synchronized (this) {
+            op = inFlight;
+            if (op == null || op.type != type || (op.uuid != null && !op.uuid.equals(uuid))) return false;
+        }
+        if (!finish(op, status, value, nowNanos)) return false;
+        pump(nowNanos);
+        return true;
+    }
+
+    /** Times out the operation on the air if its deadline passed; returns true if it did. */
+    public boolean checkTimeout(long nowNanos) {
+        Operation op;
+        synchronized (this) {
+            op = inFlight;
+            if (op == null || nowNanos - op.startedNanos < op.timeoutNanos) return false;
+        }
+        if (!finish(op, STATUS_TIMEOUT, null, nowNanos)) return false;
+        pump(nowNanos);
+        return true;
+    }
+
+    /** Fails every queued and outstanding operation, e.g. on disconnect. */
+    public void cancelAll(long nowNanos) {
+        ArrayDeque<Operation> dropped = new ArrayDeque<>();
+        Operation op;
+        synchronized (this) {
+            op = inFlight;
+            for (ArrayDeque<Operation> lane : lanes) {
+                dropped.addAll(lane);
+                lane.clear();
+            }
+        }
+        if (op != null) finish(op, STATUS_CANCELLED, null, nowNanos);
+        for (Operation q : dropped) {
+            q.startedNanos = nowNanos;
+            settle(q, STATUS_CANCELLED, null, nowNanos);
+        }
+    }
+
+    private void pump(long nowNanos) {
+        while (true) {
+            Operation op = null;
+            synchronized (this) {
+                if (inFlight != null) return;
+                for (ArrayDeque<Operation> lane : lanes) {
+                    op = lane.pollFirst();
+                    if (op != null) break;
+                }
+                if (op == null) return;
+                op.startedNanos = nowNanos;
+                inFlight = op;
+            }
+            if (listener != null) listener.onStarted(op);
+            boolean issued;
+            try {
+                issued = executor.execute(op);
+            } catch (RuntimeException e) {
+                issued = false;
+            }
+            if (!issued) {
+                finish(op, STATUS_NOT_STARTED, null, nowNanos);
+            } else if (op.type == OP_CONNECTION_PRIORITY) {
+                finish(op, STATUS_SUCCESS, null, nowNanos);
+            }
+        }
+    }
+
+    // Clears the in-flight slot if op still holds it, then reports; false if someone else finished it
+    private boolean finish(Operation op, int status, byte[] value, long nowNanos) {
+        synchronized (this) {
+            if (inFlight != op) return false;
+            inFlight = null;
+        }
+        settle(op, status, value, nowNanos);
+        return true;
+    }
+
+    private void settle(Operation op, int status, byte[] value, long nowNanos) {
+        op.status = status;
+        op.result = value;
+        op.finishedNanos = nowNanos;
+        synchronized (this) {
+            int t = op.type;
+            if (status == STATUS_SUCCESS) {
+                completed[t]++;
+                long latency = op.latencyNanos();
+                latencyTotal[t] += latency;
+                if (latency > latencyMax[t]) latencyMax[t] = latency;
+                waitTotal[t] += op.waitNanos();
+            } else if (status == STATUS_TIMEOUT) {
+                timedOut[t]++;
+            } else if (status != STATUS_CANCELLED) {
+                failed[t]++;
+            }
+        }
+        if (listener != null) listener.onFinished(op);
+        op.future.complete(op);
+    }
+
+    // ===== State and metrics =====
+
+    public synchronized boolean isBusy() { return inFlight != null; }
+    public synchronized Operation inFlight() { return inFlight; }
+
+    public synchronized int pending() {
+        int n = 0;
+        for (ArrayDeque<Operation> lane : lanes) n += lane.size();
+        return n;
+    }
+
+    public synchronized long completed(int type) { return completed[type]; }
+    public synchronized long failed(int type) { return failed[type]; }
+    public synchronized long timedOut(int type) { return timedOut[type]; }
+    public synchronized long maxLatencyNanos(int type) { return latencyMax[type]; }
+
+    public synchronized long meanLatencyNanos(int type) {
+        return completed[type] == 0 ? 0 : latencyTotal[type] / completed[type];
+    }
+
+    public synchronized long meanWaitNanos(int type) {
+        return completed[type] == 0 ? 0 : waitTotal[type] / completed[type];
+    }
+
+    public synchronized void resetMetrics() {
+        Arrays.fill(completed, 0);
+        Arrays.fill(failed, 0);
+        Arrays.fill(timedOut, 0);
+        Arrays.fill(latencyTotal, 0);
+        Arrays.fill(latencyMax, 0);
+        Arrays.fill(waitTotal, 0);
+    }
+
+    public static String typeName(int type) {
+        switch (type) {
+            case OP_READ: return "read";
+            case OP_WRITE: return "write";
+            case OP_WRITE_DESCRIPTOR: return "cccd";
+            case OP_REQUEST_MTU: return "mtu";
+            case OP_CONNECTION_PRIORITY: return "priority";
+            case OP_DISCOVER_SERVICES: return "discovery";
+            case OP_READ_DESCRIPTOR: return "cccd-read";
+            default: return "op" + type;
+        }
+    }
+
+    /** Per-type count, mean/max latency and mean queue wait in ms, for types that ran. */
+    @Override public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < OP_TYPES; t++) {
+            if (completed[t] + failed[t] + timedOut[t] == 0) continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(String.format(Locale.US, "%s n=%d mean=%.1fms max=%.1fms wait=%.1fms",
+                    typeName(t), completed[t], meanLatencyNanos(t) / 1e6, latencyMax[t] / 1e6, meanWaitNanos(t) / 1e6));
+            if (failed[t] > 0) sb.append(" failed=").append(failed[t]);
+            if (timedOut[t] > 0) sb.append(" timeout=").append(timedOut[t]);
+        }
+        return sb.length() == 0 ? "no operations" : sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.angus.cgms;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * One GATT client link to a CGM sensor, below BleManager's per-sensor session.
+ *
+ * {@link AndroidGattTransport} wraps BluetoothDevice/BluetoothGatt; {@link SimulatedCgmPeripheral}
+ * is an in-process sensor for load and fault testing without a radio. Characteristics are
+ * addressed by UUID within the CGM service and the CCCD is the only descriptor used. Request
+ * methods return false if the request could not be issued; results come back through the
+ * {@link Callback}, one at a time, on a transport thread (the binder thread on Android). Status,
+ * state, bond and property values are the Android ones.
+ */
+public interface GattTransport {
+    int GATT_SUCCESS = 0;
+
+    // Connection states (BluetoothProfile)
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTED = 2;
+
+    // Bond states (BluetoothDevice)
+    int BOND_NONE = 10;
+    int BOND_BONDING = 11;
+    int BOND_BONDED = 12;
+
+    // Characteristic properties (BluetoothGattCharacteristic)
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+
+    // CCCD values
+    byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+
+    interface Callback {
+        void onConnectionStateChange(int status, int newState);
+        void onMtuChanged(int mtu, int status);
+        void onServicesDiscovered(int status);
+        void onCharacteristicRead(UUID uuid, int status, byte[] value);
+        void onCharacteristicWrite(UUID uuid, int status, byte[] value);
+        void onCharacteristicChanged(UUID uuid, byte[] value);
+        /** {@code uuid} is the characteristic the CCCD belongs to. */
+        void onDescriptorWrite(UUID uuid, int status, byte[] value);
+        void onDescriptorRead(UUID uuid, int status, byte[] value);
+        /** Only from transports that track bonding themselves; on Android it comes from the bond broadcast. */
+        void onBondStateChanged(int bondState);
+    }
+
+    String getAddress();
+    String getName();
+
+    /** Set once, before the first connect. */
+    void setCallback(Callback cb);
+
+    int getBondState();
+    boolean createBond();
+
+    /** Opens a new link; {@code autoConnect} waits in the background until the sensor is in range. */
+    boolean connect(boolean autoConnect);
+    void disconnect();
+    /** Releases the link; no callbacks for it after this returns. */
+    void close();
+
+    boolean discoverServices();
+    boolean requestMtu(int mtu);
+    boolean requestConnectionPriority(int priority);
+
+    /** CGM service characteristics and their properties after discovery; null if the service was not found. */
+    Map<UUID, Integer> getCharacteristics();
+    /** Descriptor UUIDs of a characteristic, empty if it has none or does not exist. */
+    List<UUID> getDescriptors(UUID characteristic);
+
+    /** Local delivery of notifications/indications; the CCCD write is separate. */
+    boolean setNotification(UUID characteristic, boolean enable);
+    boolean read(UUID characteristic);
+    /** Write with response. */
+    boolean write(UUID characteristic, byte[] value);
+    boolean writeCccd(UUID characteristic, byte[] value);
+    boolean readCccd(UUID characteristic);
+}
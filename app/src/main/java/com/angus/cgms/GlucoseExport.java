@@ -0,0 +1,554 @@
+package com.angus.cgms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Compact columnar export of glucose history, streamed in blocks so any length of history is
+ * written and read in bounded memory (one block of columns at a time).
+ *
+ * <pre>
+ * file:   magic "CGMX" | u8 version | blocks | varint 0
+ * block:  varint n (readings) | varint body length | i32 CRC32 of body | body
+ * body:   timestamp  zigzag varint first, delta, then delta-of-delta (0 for a steady interval)
+ *         session    RLE: (zigzag value, varint run) pairs
+ *         offset     RLE of u16 deltas (wrap-aware), so a run of +1 is one pair
+ *         present    RLE of CgmsParser.HAS_* bits
+ *         glucose    u8 decimals | zigzag varint deltas of value * 10^decimals     (rows with HAS_GLUCOSE)
+ *         trend      same                                                         (HAS_TREND)
+ *         quality    same                                                         (HAS_QUALITY)
+ *         status     RLE                                                          (HAS_STATUS)
+ * </pre>
+ * Each float column picks the fewest decimals (0-3) that give every value back bit for bit,
+ * which SFLOAT readings always do; anything else is stored as float bits ({@code decimals}
+ * 0xFF). Absent fields take no space. Blocks are independent, so a damaged one is reported
+ * by its check rather than garbling the rest.
+ *
+ * At one reading a minute that is about 3 bytes a reading (timestamp, glucose and trend one
+ * byte each) where CSV takes 34, and it encodes and decodes 4-8x faster than CSV writes and parses
+ * (GlucoseExportBenchmark).
+ */
+public final class GlucoseExport {
+    public static final int MAGIC = 0x43474D58; // "CGMX"
+    public static final int VERSION = 1;
+    public static final String SUFFIX = ".cgmx";
+    public static final int DEFAULT_BLOCK_READINGS = 4096;
+    public static final int MAX_BLOCK_READINGS = 65536;
+    public static final String CSV_HEADER = "timestamp_ms,session,time_offset,glucose,trend,quality,status\n";
+
+    private static final int RAW_BITS = 0xFF;
+    private static final int MAX_DECIMALS = 3;
+    private static final double[] POW10 = {1, 10, 100, 1000};
+    // Worst case per reading: 10 bytes per varint column plus RLE pairs
+    private static final int MAX_BYTES_PER_READING = 96;
+
+    private GlucoseExport() {}
+
+    // ===== Encoder =====
+
+    /** Streams readings out in blocks; also usable directly as a {@link GlucoseStore.ReadingSink}. */
+    public static final class Writer implements Closeable, GlucoseStore.ReadingSink {
+        private final OutputStream out;
+        private final int blockReadings;
+        private final long[] ts;
+        private final int[] session;
+        private final int[] offset;
+        private final int[] present;
+        private final float[] glucose;
+        private final float[] trend;
+        private final float[] quality;
+        private final int[] status;
+        private int n;
+        private int glucoseCount, trendCount, qualityCount, statusCount;
+        private final ByteBuf body = new ByteBuf(1024);
+        private final ByteBuf head = new ByteBuf(16);
+        private final CRC32 crc = new CRC32();
+        private long readings;
+        private long bytes;
+        private boolean closed;
+
+        public Writer(OutputStream out) throws IOException {
+            this(out, DEFAULT_BLOCK_READINGS);
+        }
+
+        public Writer(OutputStream out, int blockReadings) throws IOException {
+            if (blockReadings <= 0 || blockReadings > MAX_BLOCK_READINGS) {
+                throw new IllegalArgumentException("blockReadings must be 1.." + MAX_BLOCK_READINGS);
+            }
+            this.out = out;
+            this.blockReadings = blockReadings;
+            ts = new long[blockReadings];
+            session = new int[blockReadings];
+            offset = new int[blockReadings];
+            present = new int[blockReadings];
+            glucose = new float[blockReadings];
+            trend = new float[blockReadings];
+            quality = new float[blockReadings];
+            status = new int[blockReadings];
+            head.putInt(MAGIC);
+            head.put(VERSION);
+            writeOut(head);
+        }
+
+        @Override public void onReading(GlucoseStore.Reading r) {
+            try {
+                add(r.timestampMillis, r.sessionId, r.timeOffset, r.present, r.glucose, r.trend, r.quality, r.status);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void add(long timestampMillis, int sessionId, int timeOffset, int presentBits,
+                        float glucoseValue, float trendValue, float qualityValue, int statusBits) throws IOException {
+            if (closed) throw new IOException("closed");
+            int i = n++;
+            ts[i] = timestampMillis;
+            session[i] = sessionId;
+            offset[i] = timeOffset & 0xFFFF;
+            present[i] = presentBits;
+            if ((presentBits & CgmsParser.HAS_GLUCOSE) != 0) glucose[glucoseCount++] = glucoseValue;
+            if ((presentBits & CgmsParser.HAS_TREND) != 0) trend[trendCount++] = trendValue;
+            if ((presentBits & CgmsParser.HAS_QUALITY) != 0) quality[qualityCount++] = qualityValue;
+            if ((presentBits & CgmsParser.HAS_STATUS) != 0) status[statusCount++] = statusBits;
+            readings++;
+            if (n == blockReadings) writeBlock();
+        }
+
+        /** Writes the readings held so far as a (short) block. */
+        public void flush() throws IOException {
+            if (n > 0) writeBlock();
+            out.flush();
+        }
+
+        private void writeBlock() throws IOException {
+            ByteBuf b = body;
+            b.reset();
+            // Timestamps
+            b.putZigzag(ts[0]);
+            if (n > 1) b.putZigzag(ts[1] - ts[0]);
+            for (int i = 2; i < n; i++) b.putZigzag((ts[i] - ts[i - 1]) - (ts[i - 1] - ts[i - 2]));
+            // Session, offset deltas, present bits
+            putRle(b, session, n, false);
+            for (int i = n - 1; i > 0; i--) offset[i] = (short) (offset[i] - offset[i - 1]);
+            putRle(b, offset, n, false);
+            putRle(b, present, n, true);
+            putFloats(b, glucose, glucoseCount);
+            putFloats(b, trend, trendCount);
+            putFloats(b, quality, qualityCount);
+            putRle(b, status, statusCount, true);
+
+            crc.reset();
+            crc.update(b.buf, 0, b.len);
+            head.reset();
+            head.putVarint(n);
+            head.putVarint(b.len);
+            head.putInt((int) crc.getValue());
+            writeOut(head);
+            writeOut(b);
+            n = glucoseCount = trendCount = qualityCount = statusCount = 0;
+        }
+
+        private void writeOut(ByteBuf b) throws IOException {
+            out.write(b.buf, 0, b.len);
+            bytes += b.len;
+        }
+
+        public long readings() { return readings; }
+        /** Bytes written so far, excluding readings still held for the current block. */
+        public long bytes() { return bytes; }
+
+        /** Writes the last block and the end marker, and closes the stream. */
+        @Override public void close() throws IOException {
+            if (closed) return;
+            try {
+                if (n > 0) writeBlock();
+                head.reset();
+                head.putVarint(0);
+                writeOut(head);
+            } finally {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    private static void putRle(ByteBuf b, int[] v, int n, boolean unsigned) {
+        int i = 0;
+        while (i < n) {
+            int x = v[i];
+            int j = i + 1;
+            while (j < n && v[j] == x) j++;
+            if (unsigned) b.putVarint(x & 0xFFFFFFFFL);
+            else b.putZigzag(x);
+            b.putVarint(j - i);
+            i = j;
+        }
+    }
+
+    private static void putFloats(ByteBuf b, float[] v, int n) {
+        if (n == 0) return;
+        int d = decimalsFor(v, n);
+        b.put(d);
+        long prev = 0;
+        for (int i = 0; i < n; i++) {
+            long x = d == RAW_BITS ? Float.floatToRawIntBits(v[i]) : Math.round(v[i] * POW10[d]);
+            b.putZigzag(x - prev);
+            prev = x;
+        }
+    }
+
+    // Fewest decimals that return every value exactly, or RAW_BITS
+    private static int decimalsFor(float[] v, int n) {
+        int d = 0;
+        for (int i = 0; i < n; i++) {
+            float x = v[i];
+            while (d <= MAX_DECIMALS && !exact(x, d)) d++;
+            if (d > MAX_DECIMALS) return RAW_BITS;
+        }
+        return d;
+    }
+
+    private static boolean exact(float x, int d) {
+        double s = x * POW10[d];
+        if (!(Math.abs(s) < Integer.MAX_VALUE)) return false; // also NaN
+        long m = Math.round(s);
+        return Float.floatToRawIntBits((float) (m / POW10[d])) == Float.floatToRawIntBits(x);
+    }
+
+    // ===== Decoder =====
+
+    /** Reads readings back one block at a time. */
+    public static final class Reader implements Closeable {
+        private final InputStream in;
+        private byte[] body = new byte[1024];
+        private final CRC32 crc = new CRC32();
+        private long[] ts = new long[0];
+        private int[] session = new int[0];
+        private int[] offset = new int[0];
+        private int[] present = new int[0];
+        private float[] glucose = new float[0];
+        private float[] trend = new float[0];
+        private float[] quality = new float[0];
+        private int[] status = new int[0];
+        private int n;
+        private int row;
+        private int gi, ti, qi, si;
+        private int blocks;
+        private boolean end;
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream is) throws IOException {
+            in = new BufferedInputStream(is, 16 * 1024);
+            try {
+                int magic = 0;
+                for (int k = 0; k < 4; k++) magic = magic << 8 | readByte();
+                if (magic != MAGIC) throw new IOException("not a glucose export (bad magic)");
+                int version = readByte();
+                if (version != VERSION) throw new IOException("unsupported glucose export version " + version);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /** Reads the next reading into {@code out}; false after the end marker. */
+        public boolean next(GlucoseStore.Reading out) throws IOException {
+            if (row == n && !readBlock()) return false;
+            int i = row++;
+            int p = present[i];
+            out.timestampMillis = ts[i];
+            out.sessionId = session[i];
+            out.timeOffset = offset[i];
+            out.present = p;
+            out.glucose = (p & CgmsParser.HAS_GLUCOSE) != 0 ? glucose[gi++] : 0f;
+            out.trend = (p & CgmsParser.HAS_TREND) != 0 ? trend[ti++] : 0f;
+            out.quality = (p & CgmsParser.HAS_QUALITY) != 0 ? quality[qi++] : 0f;
+            out.status = (p & CgmsParser.HAS_STATUS) != 0 ? status[si++] : 0;
+            return true;
+        }
+
+        /** Visits every remaining reading; returns how many. */
+        public long forEach(GlucoseStore.ReadingSink sink) throws IOException {
+            GlucoseStore.Reading r = new GlucoseStore.Reading();
+            long count = 0;
+            while (next(r)) {
+                sink.onReading(r);
+                count++;
+            }
+            return count;
+        }
+
+        private boolean readBlock() throws IOException {
+            if (end) return false;
+            long count = readVarint();
+            if (count == 0) {
+                end = true;
+                n = row = 0;
+                return false;
+            }
+            if (count > MAX_BLOCK_READINGS) throw new IOException("block " + blocks + ": " + count + " readings");
+            n = (int) count;
+            long len = readVarint();
+            if (len > count * MAX_BYTES_PER_READING) throw new IOException("block " + blocks + ": body " + len + " bytes");
+            int check = 0;
+            for (int k = 0; k < 4; k++) check = check << 8 | readByte();
+            if (body.length < len) body = new byte[(int) Math.max(len, body.length * 2L)];
+            readFully(body, (int) len);
+            crc.reset();
+            crc.update(body, 0, (int) len);
+            if ((int) crc.getValue() != check) throw new IOException("block " + blocks + ": bad check");
+            decode((int) len);
+            blocks++;
+            return true;
+        }
+
+        private void decode(int len) throws IOException {
+            if (ts.length < n) {
+                ts = new long[n];
+                session = new int[n];
+                offset = new int[n];
+                present = new int[n];
+                glucose = new float[n];
+                trend = new float[n];
+                quality = new float[n];
+                status = new int[n];
+            }
+            Cursor c = new Cursor(body, len);
+            ts[0] = c.zigzag();
+            long delta = 0;
+            for (int i = 1; i < n; i++) {
+                delta = i == 1 ? c.zigzag() : delta + c.zigzag();
+                ts[i] = ts[i - 1] + delta;
+            }
+            getRle(c, session, n, false);
+            getRle(c, offset, n, false);
+            for (int i = 0, prev = 0; i < n; i++) prev = offset[i] = (prev + offset[i]) & 0xFFFF;
+            getRle(c, present, n, true);
+            int gn = 0, tn = 0, qn = 0, sn = 0;
+            for (int i = 0; i < n; i++) {
+                int p = present[i];
+                if ((p & CgmsParser.HAS_GLUCOSE) != 0) gn++;
+                if ((p & CgmsParser.HAS_TREND) != 0) tn++;
+                if ((p & CgmsParser.HAS_QUALITY) != 0) qn++;
+                if ((p & CgmsParser.HAS_STATUS) != 0) sn++;
+            }
+            getFloats(c, glucose, gn);
+            getFloats(c, trend, tn);
+            getFloats(c, quality, qn);
+            getRle(c, status, sn, true);
+            if (c.pos != len) throw new IOException("block " + blocks + ": " + (len - c.pos) + " bytes left over");
+            row = gi = ti = qi = si = 0;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) throw new EOFException("truncated glucose export");
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("bad varint");
+        }
+
+        private void readFully(byte[] b, int len) throws IOException {
+            for (int p = 0; p < len; ) {
+                int k = in.read(b, p, len - p);
+                if (k < 0) throw new EOFException("truncated glucose export");
+                p += k;
+            }
+        }
+
+        public int blocks() { return blocks; }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void getRle(Cursor c, int[] v, int n, boolean unsigned) throws IOException {
+        for (int i = 0; i < n; ) {
+            int x = unsigned ? (int) c.varint() : (int) c.zigzag();
+            long run = c.varint();
+            if (run <= 0 || run > n - i) throw new IOException("bad run length " + run);
+            for (int end = i + (int) run; i < end; i++) v[i] = x;
+        }
+    }
+
+    private static void getFloats(Cursor c, float[] v, int n) throws IOException {
+        if (n == 0) return;
+        int d = c.u8();
+        if (d > MAX_DECIMALS && d != RAW_BITS) throw new IOException("bad decimals " + d);
+        long x = 0;
+        for (int i = 0; i < n; i++) {
+            x += c.zigzag();
+            v[i] = d == RAW_BITS ? Float.intBitsToFloat((int) x) : (float) (x / POW10[d]);
+        }
+    }
+
+    // ===== CSV =====
+
+    /** Appends one CSV row matching {@link #CSV_HEADER}; absent fields are empty. */
+    public static void appendCsv(StringBuilder sb, GlucoseStore.Reading r) {
+        sb.append(r.timestampMillis).append(',').append(r.sessionId).append(',').append(r.timeOffset).append(',');
+        if (r.has(CgmsParser.HAS_GLUCOSE)) sb.append(r.glucose);
+        sb.append(',');
+        if (r.has(CgmsParser.HAS_TREND)) sb.append(r.trend);
+        sb.append(',');
+        if (r.has(CgmsParser.HAS_QUALITY)) sb.append(r.quality);
+        sb.append(',');
+        if (r.has(CgmsParser.HAS_STATUS)) sb.append(r.status);
+        sb.append('\n');
+    }
+
+    /** Streams an export to CSV; returns the number of rows. Does not close either stream. */
+    public static long toCsv(InputStream export, Appendable csv) throws IOException {
+        Reader reader = new Reader(export);
+        GlucoseStore.Reading r = new GlucoseStore.Reading();
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        sb.append(CSV_HEADER);
+        long rows = 0;
+        while (reader.next(r)) {
+            appendCsv(sb, r);
+            rows++;
+            if (sb.length() >= 15 * 1024) {
+                csv.append(sb);
+                sb.setLength(0);
+            }
+        }
+        csv.append(sb);
+        return rows;
+    }
+
+    /** Exports readings with {@code from <= ts < to} from {@code store}; returns how many. */
+    public static long export(GlucoseStore store, long fromMillis, long toMillis, OutputStream out) throws IOException {
+        try (Writer w = new Writer(new BufferedOutputStream(out, 16 * 1024))) {
+            try {
+                store.query(fromMillis, toMillis, w);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return w.readings();
+        }
+    }
+
+    // ===== Byte buffers =====
+
+    private static final class ByteBuf {
+        byte[] buf;
+        int len;
+
+        ByteBuf(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void reset() { len = 0; }
+
+        private void ensure(int k) {
+            if (len + k > buf.length) buf = Arrays.copyOf(buf, Math.max(len + k, buf.length * 2));
+        }
+
+        void put(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            buf[len++] = (byte) (v >>> 24);
+            buf[len++] = (byte) (v >>> 16);
+            buf[len++] = (byte) (v >>> 8);
+            buf[len++] = (byte) v;
+        }
+
+        void putVarint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void putZigzag(long v) {
+            putVarint((v << 1) ^ (v >> 63));
+        }
+    }
+
+    private static final class Cursor {
+        final byte[] b;
+        final int end;
+        int pos;
+
+        Cursor(byte[] b, int end) {
+            this.b = b;
+            this.end = end;
+        }
+
+        int u8() throws IOException {
+            if (pos >= end) throw new EOFException("block body too short");
+            return b[pos++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int x = u8();
+                v |= (long) (x & 0x7F) << shift;
+                if ((x & 0x80) == 0) return v;
+            }
+            throw new IOException("bad varint");
+        }
+
+        long zigzag() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    /**
+     * {@code GlucoseExport <store dir> <out.cgmx>} exports a copied store;
+     * {@code GlucoseExport --csv <in.cgmx>} prints an export as CSV.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--csv")) {
+            OutputStreamWriter w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            try (InputStream in = new FileInputStream(args[1])) {
+                toCsv(in, w);
+            }
+            w.flush();
+        } else if (args.length == 2) {
+            File out = new File(args[1]);
+            try (GlucoseStore store = new GlucoseStore(new File(args[0]))) {
+                long n = export(store, Long.MIN_VALUE, Long.MAX_VALUE, new FileOutputStream(out));
+                System.out.println(n + " readings, " + out.length() + " bytes ("
+                        + String.format(Locale.US, "%.2f", n > 0 ? out.length() / (double) n : 0) + " per reading)");
+            }
+        } else {
+            System.err.println("usage: GlucoseExport <store dir> <out" + SUFFIX + "> | GlucoseExport --csv <in" + SUFFIX + ">");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.angus.cgms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only store of glucose readings in memory-mapped segment files.
+ *
+ * <pre>
+ * segment: header (64 bytes) | block index | records (from DATA_ALIGN boundary)
+ * header:  magic "CGMD" | u8 version | u8 pad | u16 record size | i32 capacity | i32 count
+ * block:   i64 min ts | i64 max ts | i32 min session | i32 max session   (one per BLOCK_RECORDS records)
+ * record:  i64 ts ms | i32 session | f32 glucose | f32 trend | f32 quality
+ *          | i32 status (bits 0-23) + present bits (24-31) | u16 time offset | u16 check
+ * </pre>
+ * Queries use the per-block time/session ranges to skip whole blocks, so only blocks that
+ * can match are read; records need not arrive in time order (e.g. RACP backfill).
+ *
+ * A record is written before the block index and the header count. On open, the count is
+ * walked forward over records whose check matches and back over any that do not, so a
+ * process killed mid-append loses at most that record. Single writer; methods are synchronized.
+ */
+public final class GlucoseStore implements Closeable {
+    public static final int MAGIC = 0x43474D44; // "CGMD"
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 32;
+    public static final int BLOCK_RECORDS = 256;
+    public static final int DEFAULT_SEGMENT_RECORDS = 64 * 1024; // ~2 MB, about 7 months at 5 min
+    public static final String PREFIX = "glucose-";
+    public static final String SUFFIX = ".seg";
+
+    private static final int HEADER_SIZE = 64;
+    private static final int BLOCK_ENTRY_SIZE = 24;
+    private static final int DATA_ALIGN = 4096;
+    private static final int COUNT_POS = 12;
+
+    /** One stored reading; reused by queries, valid only during the callback. */
+    public static final class Reading {
+        public long timestampMillis;
+        public int sessionId;
+        public int timeOffset;
+        public int present; // CgmsParser.HAS_* bits
+        public float glucose;
+        public float trend;
+        public float quality;
+        public int status;
+
+        public boolean has(int bit) {
+            return (present & bit) != 0;
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder(96);
+            sb.append("ts=").append(timestampMillis).append(", session=").append(sessionId)
+                    .append(", timeOffset=").append(timeOffset);
+            if (has(CgmsParser.HAS_GLUCOSE)) sb.append(", glucose=").append(glucose);
+            if (has(CgmsParser.HAS_TREND)) sb.append(", trend=").append(trend);
+            if (has(CgmsParser.HAS_QUALITY)) sb.append(", quality=").append(quality);
+            if (has(CgmsParser.HAS_STATUS)) sb.append(", status=0x").append(Integer.toHexString(status));
+            return sb.toString();
+        }
+    }
+
+    public interface ReadingSink { void onReading(Reading r); }
+
+    private final File dir;
+    private final int segmentRecords;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Reading scratch = new Reading();
+    private long recovered;
+    private boolean closed;
+
+    public GlucoseStore(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /** @param segmentRecords records per segment file, a multiple of {@link #BLOCK_RECORDS} */
+    public GlucoseStore(File dir, int segmentRecords) throws IOException {
+        if (segmentRecords <= 0 || segmentRecords % BLOCK_RECORDS != 0) {
+            throw new IllegalArgumentException("segmentRecords must be a positive multiple of " + BLOCK_RECORDS);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            try {
+                for (File f : files) {
+                    Segment s = Segment.open(f, segmentRecords);
+                    recovered += s.recover();
+                    segments.add(s);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    // ===== Writes =====
+
+    public synchronized void append(long timestampMillis, int sessionId, CgmsParser.MeasurementRecord r) throws IOException {
+        append(timestampMillis, sessionId, r.timeOffset, r.present, r.glucose, r.trend, r.quality, r.status);
+    }
+
+    public synchronized void append(long timestampMillis, int sessionId, int timeOffset, int present,
+                                    float glucose, float trend, float quality, int status) throws IOException {
+        // Reopening a segment here would skip recovery and overwrite it from record 0
+        if (closed) throw new IOException("closed");
+        Segment s = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (s == null || s.count == s.capacity) {
+            int index = s == null ? 1 : s.index + 1;
+            s = Segment.open(new File(dir, String.format(Locale.US, "%s%05d%s", PREFIX, index, SUFFIX)), segmentRecords);
+            segments.add(s);
+        }
+        s.append(timestampMillis, sessionId, timeOffset, present, glucose, trend, quality, status);
+    }
+
+    /** Flushes mapped pages to storage. Not needed to survive process death, only power loss. */
+    public synchronized void force() {
+        if (!segments.isEmpty()) segments.get(segments.size() - 1).buf.force();
+    }
+
+    // ===== Queries =====
+
+    /** Visits readings with {@code from <= ts < to} in storage order; returns how many matched. */
+    public synchronized int query(long fromMillis, long toMillis, ReadingSink sink) {
+        int n = 0;
+        for (Segment s : segments) {
+            if (s.count == 0 || s.maxTs < fromMillis || s.minTs >= toMillis) continue;
+            for (int b = 0, blocks = s.blockCount(); b < blocks; b++) {
+                if (s.blockMaxTs(b) < fromMillis || s.blockMinTs(b) >= toMillis) continue;
+                for (int i = b * BLOCK_RECORDS, end = Math.min(s.count, i + BLOCK_RECORDS); i < end; i++) {
+                    long ts = s.timestamp(i);
+                    if (ts < fromMillis || ts >= toMillis) continue;
+                    s.read(i, scratch);
+                    sink.onReading(scratch);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Visits the readings of one sensor session in storage order; returns how many matched. */
+    public synchronized int querySession(int sessionId, ReadingSink sink) {
+        int n = 0;
+        for (Segment s : segments) {
+            if (s.count == 0 || s.maxSession < sessionId || s.minSession > sessionId) continue;
+            for (int b = 0, blocks = s.blockCount(); b < blocks; b++) {
+                if (s.blockMaxSession(b) < sessionId || s.blockMinSession(b) > sessionId) continue;
+                for (int i = b * BLOCK_RECORDS, end = Math.min(s.count, i + BLOCK_RECORDS); i < end; i++) {
+                    if (s.session(i) != sessionId) continue;
+                    s.read(i, scratch);
+                    sink.onReading(scratch);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Copies the most recently appended reading into {@code out}; false if the store is empty. See {@link #newest}. */
+    public synchronized boolean latest(Reading out) {
+        for (int k = segments.size() - 1; k >= 0; k--) {
+            Segment s = segments.get(k);
+            if (s.count > 0) {
+                s.read(s.count - 1, out);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the reading with the greatest timestamp into {@code out}; false if the store is empty.
+     * After a backfill this is not the last one appended. The segment and block maxima narrow it
+     * to one block, so it reads at most {@link #BLOCK_RECORDS} timestamps.
+     */
+    public synchronized boolean newest(Reading out) {
+        Segment best = null;
+        for (Segment s : segments) {
+            if (s.count > 0 && (best == null || s.maxTs >= best.maxTs)) best = s;
+        }
+        if (best == null) return false;
+        int b = best.blockCount() - 1;
+        while (b > 0 && best.blockMaxTs(b) != best.maxTs) b--;
+        int found = b * BLOCK_RECORDS;
+        for (int i = found, end = Math.min(best.count, found + BLOCK_RECORDS); i < end; i++) {
+            if (best.timestamp(i) >= best.timestamp(found)) found = i;
+        }
+        best.read(found, out);
+        return true;
+    }
+
+    public synchronized long size() {
+        long n = 0;
+        for (Segment s : segments) n += s.count;
+        return n;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** Records found past the stored count at open, i.e. appended just before a crash. */
+    public synchronized long recoveredOnOpen() {
+        return recovered;
+    }
+
+    @Override public synchronized void close() {
+        closed = true;
+        for (Segment s : segments) s.close();
+        segments.clear();
+    }
+
+    // ===== Segment file =====
+
+    private static final class Segment {
+        final int index;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buf;
+        final int capacity;
+        final int dataOffset;
+        int count;
+        long minTs = Long.MAX_VALUE;
+        long maxTs = Long.MIN_VALUE;
+        int minSession = Integer.MAX_VALUE;
+        int maxSession = Integer.MIN_VALUE;
+
+        private Segment(int index, RandomAccessFile raf, MappedByteBuffer buf, int capacity) {
+            this.index = index;
+            this.raf = raf;
+            this.buf = buf;
+            this.capacity = capacity;
+            this.dataOffset = dataOffset(capacity);
+        }
+
+        static int dataOffset(int capacity) {
+            int end = HEADER_SIZE + (capacity / BLOCK_RECORDS) * BLOCK_ENTRY_SIZE;
+            return (end + DATA_ALIGN - 1) / DATA_ALIGN * DATA_ALIGN;
+        }
+
+        /** Opens {@code f}; an existing file keeps its own capacity, a new one gets {@code capacity} records. */
+        static Segment open(File f, int capacity) throws IOException {
+            String name = f.getName();
+            int index = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            boolean create = !f.exists() || f.length() == 0;
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                if (!create) {
+                    if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC) throw new IOException(f + ": bad magic");
+                    int version = raf.readUnsignedByte();
+                    if (version != VERSION) throw new IOException(f + ": unsupported version " + version);
+                    raf.readUnsignedByte();
+                    if (raf.readUnsignedShort() != RECORD_SIZE) throw new IOException(f + ": record size mismatch");
+                    capacity = raf.readInt();
+                    if (capacity <= 0 || capacity % BLOCK_RECORDS != 0) throw new IOException(f + ": bad capacity " + capacity);
+                }
+                long length = dataOffset(capacity) + (long) capacity * RECORD_SIZE;
+                if (raf.length() < length) raf.setLength(length);
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                Segment s = new Segment(index, raf, buf, capacity);
+                if (create) s.init();
+                return s;
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private void init() {
+            buf.putInt(0, MAGIC);
+            buf.put(4, (byte) VERSION);
+            buf.putShort(6, (short) RECORD_SIZE);
+            buf.putInt(8, capacity);
+            for (int b = 0; b < capacity / BLOCK_RECORDS; b++) clearBlock(b);
+            buf.putInt(COUNT_POS, 0);
+        }
+
+        /** Reconciles the stored count with the records on disk; returns records gained. */
+        int recover() {
+            int stored = Math.max(0, Math.min(buf.getInt(COUNT_POS), capacity));
+            int n = stored;
+            while (n > 0 && !valid(n - 1)) n--;
+            while (n < capacity && valid(n)) n++;
+            int from = Math.min(n, stored) / BLOCK_RECORDS;
+            for (int b = from; b < capacity / BLOCK_RECORDS; b++) clearBlock(b);
+            for (int i = from * BLOCK_RECORDS; i < n; i++) indexRecord(i);
+            // Clear a torn slot so it cannot be mistaken for a record later
+            if (n < capacity) {
+                for (int k = 0; k < RECORD_SIZE; k += 8) buf.putLong(recordPos(n) + k, 0);
+            }
+            count = n;
+            buf.putInt(COUNT_POS, n);
+            for (int b = 0, blocks = blockCount(); b < from && b < blocks; b++) widen(b);
+            return Math.max(0, n - stored);
+        }
+
+        void append(long ts, int session, int timeOffset, int present, float glucose, float trend,
+                    float quality, int status) {
+            int p = recordPos(count);
+            buf.putLong(p, ts);
+            buf.putInt(p + 8, session);
+            buf.putFloat(p + 12, glucose);
+            buf.putFloat(p + 16, trend);
+            buf.putFloat(p + 20, quality);
+            buf.putInt(p + 24, (status & 0xFFFFFF) | (present << 24));
+            buf.putShort(p + 28, (short) timeOffset);
+            buf.putShort(p + 30, (short) check(p));
+            indexRecord(count);
+            count++;
+            buf.putInt(COUNT_POS, count);
+        }
+
+        void read(int i, Reading out) {
+            int p = recordPos(i);
+            out.timestampMillis = buf.getLong(p);
+            out.sessionId = buf.getInt(p + 8);
+            out.glucose = buf.getFloat(p + 12);
+            out.trend = buf.getFloat(p + 16);
+            out.quality = buf.getFloat(p + 20);
+            int st = buf.getInt(p + 24);
+            out.status = st & 0xFFFFFF;
+            out.present = st >>> 24;
+            out.timeOffset = buf.getShort(p + 28) & 0xFFFF;
+        }
+
+        long timestamp(int i) {
+            return buf.getLong(recordPos(i));
+        }
+
+        int session(int i) {
+            return buf.getInt(recordPos(i) + 8);
+        }
+
+        int blockCount() {
+            return (count + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+        }
+
+        long blockMinTs(int b) { return buf.getLong(blockPos(b)); }
+        long blockMaxTs(int b) { return buf.getLong(blockPos(b) + 8); }
+        int blockMinSession(int b) { return buf.getInt(blockPos(b) + 16); }
+        int blockMaxSession(int b) { return buf.getInt(blockPos(b) + 20); }
+
+        private void indexRecord(int i) {
+            long ts = timestamp(i);
+            int session = session(i);
+            int bp = blockPos(i / BLOCK_RECORDS);
+            if (ts < buf.getLong(bp)) buf.putLong(bp, ts);
+            if (ts > buf.getLong(bp + 8)) buf.putLong(bp + 8, ts);
+            if (session < buf.getInt(bp + 16)) buf.putInt(bp + 16, session);
+            if (session > buf.getInt(bp + 20)) buf.putInt(bp + 20, session);
+            widen(i / BLOCK_RECORDS);
+        }
+
+        private void widen(int b) {
+            minTs = Math.min(minTs, blockMinTs(b));
+            maxTs = Math.max(maxTs, blockMaxTs(b));
+            minSession = Math.min(minSession, blockMinSession(b));
+            maxSession = Math.max(maxSession, blockMaxSession(b));
+        }
+
+        private void clearBlock(int b) {
+            int bp = blockPos(b);
+            buf.putLong(bp, Long.MAX_VALUE);
+            buf.putLong(bp + 8, Long.MIN_VALUE);
+            buf.putInt(bp + 16, Integer.MAX_VALUE);
+            buf.putInt(bp + 20, Integer.MIN_VALUE);
+        }
+
+        private boolean valid(int i) {
+            int p = recordPos(i);
+            return (buf.getShort(p + 30) & 0xFFFF) == check(p);
+        }
+
+        // FNV-1a over the first 30 bytes folded to 16 bits; an all-zero slot never matches
+        private int check(int p) {
+            int h = 0x811C9DC5;
+            for (int k = 0; k < RECORD_SIZE - 2; k++) {
+                h ^= buf.get(p + k) & 0xFF;
+                h *= 0x01000193;
+            }
+            h = (h ^ (h >>> 16)) & 0xFFFF;
+            return h == 0 ? 1 : h;
+        }
+
+        private int recordPos(int i) {
+            return dataOffset + i * RECORD_SIZE;
+        }
+
+        private int blockPos(int b) {
+            return HEADER_SIZE + b * BLOCK_ENTRY_SIZE;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /** Prints readings from a store directory: {@code GlucoseStore <dir> [hours]}. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: GlucoseStore <dir> [hours]");
+            System.exit(2);
+        }
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        try (GlucoseStore store = new GlucoseStore(new File(args[0]))) {
+            long to = Long.MAX_VALUE;
+            long from = Long.MIN_VALUE;
+            if (args.length > 1) {
+                Reading last = new Reading();
+                if (store.newest(last)) {
+                    to = last.timestampMillis + 1;
+                    from = to - (long) (Double.parseDouble(args[1]) * 3_600_000L);
+                }
+            }
+            int n = store.query(from, to, r -> System.out.println(fmt.format(new Date(r.timestampMillis)) + " " + r));
+            System.out.println(n + " of " + store.size() + " readings, " + store.segmentCount() + " segment(s)"
+                    + (store.recoveredOnOpen() > 0 ? ", recovered " + store.recoveredOnOpen() : ""));
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.angus.cgms;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling glycemic statistics (mean, SD, CV, GMI, time in range) over several time windows,
+ * updated per reading in constant time without allocation.
+ *
+ * Time is cut into fixed slots (5 minutes by default). Each slot keeps a Welford
+ * accumulator (count, mean, M2) and time-in-range bucket counts in a ring sized for the
+ * longest window. A window holds the merge of its slots; when time advances, slots that fall
+ * out are subtracted with the inverse of the parallel merge formula, so no window is ever
+ * rescanned. Windows end at the slot of the newest reading and are quantized to slots.
+ *
+ * Timestamps are absolute, so windows run across gaps and sensor sessions. A reading older
+ * than the newest one (e.g. RACP backfill) is added to its slot and to every window that
+ * still covers it; readings older than the longest window are dropped and counted.
+ * Glucose is in mg/dL. Methods are synchronized.
+ */
+public final class GlycemicStats {
+    public static final long MINUTE = 60_000L;
+    public static final long HOUR = 60 * MINUTE;
+    public static final long DAY = 24 * HOUR;
+    public static final long DEFAULT_SLOT_MILLIS = 5 * MINUTE;
+
+    // Default windows
+    public static final int WINDOW_1H = 0;
+    public static final int WINDOW_24H = 1;
+    public static final int WINDOW_14D = 2;
+
+    // Time-in-range buckets (consensus CGM ranges, mg/dL)
+    public static final int BUCKET_VERY_LOW = 0;  // < 54
+    public static final int BUCKET_LOW = 1;       // 54-69
+    public static final int BUCKET_IN_RANGE = 2;  // 70-180
+    public static final int BUCKET_HIGH = 3;      // 181-250
+    public static final int BUCKET_VERY_HIGH = 4; // > 250
+    public static final int BUCKETS = 5;
+
+    /** Values for one window; filled by {@link #summary} so callers can reuse an instance. */
+    public static final class Summary {
+        public long windowMillis;
+        public int count;
+        public double mean;
+        public double sd;
+        public double cv;
+        public double gmi;
+        public final int[] buckets = new int[BUCKETS];
+
+        /** Share of readings in {@code bucket}, 0..1. */
+        public double fraction(int bucket) {
+            return count == 0 ? 0 : buckets[bucket] / (double) count;
+        }
+
+        @Override public String toString() {
+            if (count == 0) return (windowMillis / MINUTE) + "min: no data";
+            return String.format(Locale.US,
+                    "%dmin: n=%d mean=%.1f sd=%.1f cv=%.1f%% gmi=%.2f%% tir=%.0f%% (<54 %.0f%%, <70 %.0f%%, >180 %.0f%%, >250 %.0f%%)",
+                    windowMillis / MINUTE, count, mean, sd, cv, gmi, fraction(BUCKET_IN_RANGE) * 100,
+                    fraction(BUCKET_VERY_LOW) * 100, fraction(BUCKET_LOW) * 100,
+                    fraction(BUCKET_HIGH) * 100, fraction(BUCKET_VERY_HIGH) * 100);
+        }
+    }
+
+    private final long slotMillis;
+    private final int mask;
+    // Slot ring
+    private final long[] slotId;
+    private final int[] slotN;
+    private final double[] slotMean;
+    private final double[] slotM2;
+    private final int[][] slotBuckets;
+    // Windows
+    private final long[] windowMillis;
+    private final int[] windowSlots;
+    private final int[] winN;
+    private final double[] winMean;
+    private final double[] winM2;
+    private final int[][] winBuckets;
+
+    private long currentSlot = Long.MIN_VALUE;
+    private long added;
+    private long dropped;
+
+    public GlycemicStats() {
+        this(DEFAULT_SLOT_MILLIS, HOUR, DAY, 14 * DAY);
+    }
+
+    public GlycemicStats(long slotMillis, long... windows) {
+        if (slotMillis <= 0 || windows.length == 0) throw new IllegalArgumentException("need a slot size and at least one window");
+        this.slotMillis = slotMillis;
+        int w = windows.length;
+        windowMillis = windows.clone();
+        windowSlots = new int[w];
+        int longest = 1;
+        for (int i = 0; i < w; i++) {
+            if (windows[i] < slotMillis) throw new IllegalArgumentException("window shorter than a slot");
+            windowSlots[i] = (int) (windows[i] / slotMillis);
+            longest = Math.max(longest, windowSlots[i]);
+        }
+        int cap = Integer.highestOneBit(longest);
+        if (cap < longest) cap <<= 1;
+        mask = cap - 1;
+        slotId = new long[cap];
+        slotN = new int[cap];
+        slotMean = new double[cap];
+        slotM2 = new double[cap];
+        slotBuckets = new int[cap][BUCKETS];
+        Arrays.fill(slotId, Long.MIN_VALUE);
+        winN = new int[w];
+        winMean = new double[w];
+        winM2 = new double[w];
+        winBuckets = new int[w][BUCKETS];
+    }
+
+    public static int bucketOf(float mgdl) {
+        if (mgdl < 54) return BUCKET_VERY_LOW;
+        if (mgdl < 70) return BUCKET_LOW;
+        if (mgdl <= 180) return BUCKET_IN_RANGE;
+        if (mgdl <= 250) return BUCKET_HIGH;
+        return BUCKET_VERY_HIGH;
+    }
+
+    /** Glucose Management Indicator (%), from mean glucose in mg/dL. */
+    public static double gmi(double meanMgdl) {
+        return 3.31 + 0.02392 * meanMgdl;
+    }
+
+    /** Adds one reading; non-finite or non-positive values are ignored. */
+    public synchronized void add(long timestampMillis, float mgdl) {
+        if (!(mgdl > 0) || Float.isInfinite(mgdl)) return;
+        long slot = Math.floorDiv(timestampMillis, slotMillis);
+        if (currentSlot == Long.MIN_VALUE) currentSlot = slot;
+        if (slot > currentSlot) advance(slot);
+        if (slot <= currentSlot - (mask + 1)) {
+            dropped++;
+            return;
+        }
+        int i = (int) (slot & mask);
+        if (slotId[i] != slot) clearSlot(i, slot); // stale slot from one ring lap ago
+        int b = bucketOf(mgdl);
+        // Welford update of the slot
+        int n = ++slotN[i];
+        double d = mgdl - slotMean[i];
+        slotMean[i] += d / n;
+        slotM2[i] += d * (mgdl - slotMean[i]);
+        slotBuckets[i][b]++;
+        for (int w = 0; w < winN.length; w++) {
+            if (slot <= currentSlot - windowSlots[w]) continue;
+            int wn = ++winN[w];
+            double wd = mgdl - winMean[w];
+            winMean[w] += wd / wn;
+            winM2[w] += wd * (mgdl - winMean[w]);
+            winBuckets[w][b]++;
+        }
+        added++;
+    }
+
+    // Moves the window ends to newSlot, evicting slots that fall out of each window
+    private void advance(long newSlot) {
+        for (int w = 0; w < winN.length; w++) {
+            long from = currentSlot - windowSlots[w] + 1; // oldest slot currently in the window
+            long to = newSlot - windowSlots[w];           // newest slot to evict
+            if (to - from >= windowSlots[w]) {
+                clearWindow(w);
+                continue;
+            }
+            for (long s = from; s <= to; s++) {
+                int i = (int) (s & mask);
+                if (slotId[i] == s && slotN[i] > 0) evict(w, i);
+            }
+        }
+        currentSlot = newSlot;
+    }
+
+    // Inverse of the parallel (Chan) merge: removes slot i's accumulator from window w
+    private void evict(int w, int i) {
+        int nAB = winN[w];
+        int nB = slotN[i];
+        int nA = nAB - nB;
+        if (nA <= 0) {
+            clearWindow(w);
+            return;
+        }
+        double meanA = (nAB * winMean[w] - nB * slotMean[i]) / nA;
+        double d = slotMean[i] - meanA;
+        winM2[w] = Math.max(0, winM2[w] - slotM2[i] - d * d * nA * nB / nAB);
+        winMean[w] = meanA;
+        winN[w] = nA;
+        for (int b = 0; b < BUCKETS; b++) winBuckets[w][b] -= slotBuckets[i][b];
+    }
+
+    private void clearWindow(int w) {
+        winN[w] = 0;
+        winMean[w] = 0;
+        winM2[w] = 0;
+        Arrays.fill(winBuckets[w], 0);
+    }
+
+    private void clearSlot(int i, long id) {
+        slotId[i] = id;
+        slotN[i] = 0;
+        slotMean[i] = 0;
+        slotM2[i] = 0;
+        Arrays.fill(slotBuckets[i], 0);
+    }
+
+    /**
+     * Moves the window ends forward to {@code nowMillis} without a reading, so a sensor that
+     * went quiet ages out of the short windows.
+     */
+    public synchronized void advanceTo(long nowMillis) {
+        long slot = Math.floorDiv(nowMillis, slotMillis);
+        if (currentSlot != Long.MIN_VALUE && slot > currentSlot) advance(slot);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(slotId, Long.MIN_VALUE);
+        for (int w = 0; w < winN.length; w++) clearWindow(w);
+        currentSlot = Long.MIN_VALUE;
+        added = 0;
+        dropped = 0;
+    }
+
+    public int windowCount() { return winN.length; }
+    public long windowMillis(int w) { return windowMillis[w]; }
+
+    public synchronized int count(int w) { return winN[w]; }
+    public synchronized double mean(int w) { return winN[w] == 0 ? Double.NaN : winMean[w]; }
+
+    /** Sample standard deviation. */
+    public synchronized double sd(int w) {
+        return winN[w] < 2 ? Double.NaN : Math.sqrt(winM2[w] / (winN[w] - 1));
+    }
+
+    /** Coefficient of variation, in percent. */
+    public synchronized double cv(int w) {
+        return sd(w) / mean(w) * 100;
+    }
+
+    public synchronized double gmi(int w) {
+        return gmi(mean(w));
+    }
+
+    public synchronized int bucketCount(int w, int bucket) { return winBuckets[w][bucket]; }
+
+    public synchronized void summary(int w, Summary out) {
+        out.windowMillis = windowMillis[w];
+        out.count = winN[w];
+        out.mean = mean(w);
+        out.sd = sd(w);
+        out.cv = cv(w);
+        out.gmi = gmi(w);
+        System.arraycopy(winBuckets[w], 0, out.buckets, 0, BUCKETS);
+    }
+
+    public synchronized long added() { return added; }
+    /** Readings older than the longest window when they arrived. */
+    public synchronized long dropped() { return dropped; }
+}
@@ -0,0 +1,34 @@
+package com.angus.cgms;
+
+/** Space-separated upper-case hex rendering shared by the parser and BLE logging. */
+public final class Hex {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Hex() {}
+
+    /** Renders {@code b} as e.g. "0A FF 12"; {@code null} renders as "(null)". */
+    public static String toHex(byte[] b) {
+        if (b == null) return "(null)";
+        return toHex(b, 0, b.length);
+    }
+
+    public static String toHex(byte[] b, int off, int len) {
+        if (len <= 0) return "";
+        char[] out = new char[len * 3 - 1];
+        int p = 0;
+        for (int i = off; i < off + len; i++) {
+            if (p > 0) out[p++] = ' ';
+            out[p++] = DIGITS[(b[i] >> 4) & 0x0F];
+            out[p++] = DIGITS[b[i] & 0x0F];
+        }
+        return new String(out);
+    }
+
+    public static StringBuilder appendHex(StringBuilder sb, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (i > off) sb.append(' ');
+            sb.append(DIGITS[(b[i] >> 4) & 0x0F]).append(DIGITS[b[i] & 0x0F]);
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,131 @@
+package com.angus.cgms;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory log-linear histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram: values below {@code 2^subBucketBits} are counted exactly, and every power of
+ * two above that is split into {@code 2^subBucketBits} equal buckets, so the relative error
+ * stays under {@code 2^-subBucketBits} over the whole range. The defaults (16 sub-buckets,
+ * values up to 2^44 ns, about 4.9 hours) take 656 counters, about 5 KB; larger values are
+ * clamped to the top bucket.
+ *
+ * Recording is a bucket index computed from the leading zero count and one atomic
+ * increment, with no allocation or lock, so it may be called from any thread on the hot path.
+ * {@link #snapshot} copies the counts for percentiles; it is not atomic with respect to
+ * concurrent recording, which may land on either side.
+ */
+public final class LatencyHistogram {
+    public static final int DEFAULT_SUB_BUCKET_BITS = 4;
+    public static final int DEFAULT_MAX_MAGNITUDE = 43;
+
+    private final int subBits;
+    private final int subCount;
+    private final long maxValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS, DEFAULT_MAX_MAGNITUDE);
+    }
+
+    /** @param maxMagnitude highest power of two tracked; values from {@code 2^(maxMagnitude+1)} up are clamped */
+    public LatencyHistogram(int subBucketBits, int maxMagnitude) {
+        if (subBucketBits < 1 || subBucketBits > 10 || maxMagnitude < subBucketBits || maxMagnitude > 62) {
+            throw new IllegalArgumentException("bad histogram shape");
+        }
+        subBits = subBucketBits;
+        subCount = 1 << subBucketBits;
+        maxValue = (1L << (maxMagnitude + 1)) - 1;
+        counts = new AtomicLongArray((maxMagnitude - subBucketBits + 2) << subBucketBits);
+    }
+
+    public void record(long nanos) {
+        long v = nanos < 0 ? 0 : Math.min(nanos, maxValue);
+        counts.incrementAndGet(index(v));
+        sum.addAndGet(v);
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) m = max.get();
+    }
+
+    int index(long v) {
+        if (v < subCount) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - subBits;
+        return ((shift + 1) << subBits) + (int) ((v >>> shift) - subCount);
+    }
+
+    long lowestValue(int index) {
+        if (index < subCount) return index;
+        int shift = (index >> subBits) - 1;
+        return (long) ((index & (subCount - 1)) + subCount) << shift;
+    }
+
+    long highestValue(int index) {
+        return index + 1 < counts.length() ? lowestValue(index + 1) - 1 : maxValue;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] c = new long[counts.length()];
+        long n = 0;
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counts.get(i);
+            n += c[i];
+        }
+        return new Snapshot(this, c, n, sum.get(), max.get());
+    }
+
+    /** Copied counts; percentiles report the top of the bucket, capped at the exact maximum. */
+    public static final class Snapshot {
+        private final LatencyHistogram h;
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Snapshot(LatencyHistogram h, long[] counts, long count, long sum, long max) {
+            this.h = h;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long min() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) return h.lowestValue(i);
+            }
+            return 0;
+        }
+
+        /** Value at {@code percentile} (0..100). */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(h.highestValue(i), max);
+            }
+            return max;
+        }
+
+        @Override public String toString() {
+            if (count == 0) return "n=0";
+            return String.format(Locale.US, "n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    count, mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, max / 1e6);
+        }
+    }
+}
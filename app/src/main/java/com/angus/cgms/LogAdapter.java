@@ -0,0 +1,39 @@
+package com.angus.cgms;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+// RecyclerView adapter over the visible rows of a LogBuffer
+public class LogAdapter extends RecyclerView.Adapter<LogAdapter.Holder> {
+    private final LogBuffer buffer;
+
+    public LogAdapter(LogBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    static class Holder extends RecyclerView.ViewHolder {
+        final TextView text;
+        Holder(View v) {
+            super(v);
+            text = (TextView) v;
+        }
+    }
+
+    @NonNull @Override public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View v = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_log, parent, false);
+        return new Holder(v);
+    }
+
+    @Override public void onBindViewHolder(@NonNull Holder holder, int position) {
+        holder.text.setText(buffer.visibleText(position));
+    }
+
+    @Override public int getItemCount() {
+        return buffer.visibleCount();
+    }
+}
@@ -0,0 +1,132 @@
+package com.angus.cgms;
+
+/**
+ * Fixed-capacity ring of log lines with a filtered view, sized so memory stays flat over
+ * a whole sensor session. Lines are appended in batches; after each batch the caller reads
+ * how many visible rows were evicted from the front and inserted at the back, which maps
+ * directly onto RecyclerView range notifications. Not thread-safe: use from the UI thread.
+ */
+public final class LogBuffer {
+    // Categories (bit positions in a filter mask)
+    public static final int CATEGORY_OTHER = 1;
+    public static final int CATEGORY_MEASUREMENT = 1 << 1;
+    public static final int CATEGORY_CCCD = 1 << 2;
+    public static final int CATEGORY_SOCP = 1 << 3;
+    public static final int FILTER_ALL = 0xFF;
+
+    private static final int MAX_PREFIXES = 16;
+
+    private final int capacity;
+    private final String[] text;
+    private final byte[] category;
+    private long nextSeq;
+
+    // Visible rows, as sequence numbers, in a ring of the same capacity
+    private final long[] visible;
+    private int visibleHead;
+    private int visibleCount;
+    private int filter = FILTER_ALL;
+
+    private int pendingRemoved;
+    private int pendingInserted;
+
+    private final String[] prefixes = new String[MAX_PREFIXES];
+    private final int[] prefixCategory = new int[MAX_PREFIXES];
+    private int prefixCount;
+
+    public LogBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be > 0");
+        this.capacity = capacity;
+        this.text = new String[capacity];
+        this.category = new byte[capacity];
+        this.visible = new long[capacity];
+        addPrefix("[Measurement]", CATEGORY_MEASUREMENT);
+        addPrefix("[CCCD]", CATEGORY_CCCD);
+        addPrefix("CCCD", CATEGORY_CCCD);
+        addPrefix("[SOCP", CATEGORY_SOCP);
+    }
+
+    /** Lines starting with {@code prefix} are put in {@code category}; e.g. localized tags. */
+    public void addPrefix(String prefix, int category) {
+        if (prefix == null || prefix.isEmpty() || prefixCount == MAX_PREFIXES) return;
+        prefixes[prefixCount] = prefix;
+        prefixCategory[prefixCount] = category;
+        prefixCount++;
+    }
+
+    public int categorize(String line) {
+        for (int i = 0; i < prefixCount; i++) {
+            if (line.startsWith(prefixes[i])) return prefixCategory[i];
+        }
+        return CATEGORY_OTHER;
+    }
+
+    public void append(String line) {
+        long seq = nextSeq++;
+        int slot = (int) (seq % capacity);
+        int cat = categorize(line);
+        text[slot] = line;
+        category[slot] = (byte) cat;
+
+        // Drop visible rows whose backing entry was just overwritten
+        long oldest = nextSeq - capacity;
+        while (visibleCount > 0 && visible[visibleHead] < oldest) {
+            visibleHead = (visibleHead + 1) % capacity;
+            visibleCount--;
+            if (pendingInserted > 0 && visibleCount < pendingInserted) {
+                // Evicted a row the view has not seen yet
+                pendingInserted--;
+            } else {
+                pendingRemoved++;
+            }
+        }
+        if ((cat & filter) != 0) {
+            visible[(visibleHead + visibleCount) % capacity] = seq;
+            visibleCount++;
+            pendingInserted++;
+        }
+    }
+
+    /** Rows removed from the front since the last call; resets the counter. */
+    public int takeRemoved() {
+        int n = pendingRemoved;
+        pendingRemoved = 0;
+        return n;
+    }
+
+    /** Rows appended at the back since the last call; resets the counter. */
+    public int takeInserted() {
+        int n = pendingInserted;
+        pendingInserted = 0;
+        return n;
+    }
+
+    /** Rebuilds the visible rows for a new filter mask; the caller should refresh the whole view. */
+    public void setFilter(int mask) {
+        filter = mask;
+        visibleHead = 0;
+        visibleCount = 0;
+        pendingRemoved = 0;
+        pendingInserted = 0;
+        long start = Math.max(0, nextSeq - capacity);
+        for (long seq = start; seq < nextSeq; seq++) {
+            if ((category[(int) (seq % capacity)] & mask) != 0) visible[visibleCount++] = seq;
+        }
+    }
+
+    public int getFilter() {
+        return filter;
+    }
+
+    public int visibleCount() {
+        return visibleCount;
+    }
+
+    public String visibleText(int position) {
+        return text[(int) (visible[(visibleHead + position) % capacity] % capacity)];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
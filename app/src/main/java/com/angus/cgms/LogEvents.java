@@ -0,0 +1,354 @@
+package com.angus.cgms;
+
+import java.util.UUID;
+
+/**
+ * Event codes for {@link EventLog}, each with a level, a tag and a default English format.
+ *
+ * Format placeholders take arguments by type, in order within each type:
+ * {@code %d} next int, {@code %x} next int as hex, {@code %s} next string,
+ * {@code %h} next byte array as hex, {@code %m} next byte array as a decoded CGM
+ * Measurement record, {@code %u} next UUID. Codes are persisted in log files, so
+ * never renumber an existing one.
+ */
+public final class LogEvents {
+    // Levels
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+
+    // Tags (bit mask)
+    public static final int TAG_SCAN = 1;
+    public static final int TAG_CONN = 1 << 1;
+    public static final int TAG_BOND = 1 << 2;
+    public static final int TAG_GATT = 1 << 3;
+    public static final int TAG_CCCD = 1 << 4;
+    public static final int TAG_SOCP = 1 << 5;
+    public static final int TAG_MEAS = 1 << 6;
+    public static final int TAG_NOTIFY = 1 << 7;
+    public static final int TAG_CAPTURE = 1 << 8;
+    public static final int TAG_LOG = 1 << 9;
+    public static final int TAG_STORE = 1 << 10;
+    public static final int TAG_RACP = 1 << 11;
+    public static final int TAG_STATS = 1 << 12;
+    public static final int TAG_ALERT = 1 << 13;
+    public static final int TAG_ALL = 0xFFFF;
+
+    // Scan
+    public static final int BT_NOT_ENABLED = 100;
+    public static final int SCANNER_FAILED = 101;
+    public static final int SCAN_START = 102;
+    public static final int SCAN_COUNTDOWN = 103;
+    public static final int SCAN_TIMEOUT = 104;
+    public static final int SCAN_TIMEOUT_MESSAGE = 105;
+    public static final int STOP_SCAN = 106;
+    public static final int SCAN_FAILED = 107;
+    public static final int DEVICE_FOUND = 108;
+    public static final int SCAN_DIRECT_CONNECT = 109;
+    public static final int SCAN_DIRECT_FAILED = 110;
+    public static final int SCAN_MODE = 111;
+    public static final int SCAN_STATS = 112;
+    // Connection
+    public static final int ACTIVE_DISCONNECT = 200;
+    public static final int USER_SELECTED_CONNECT = 201;
+    public static final int CONNECTION_STATE_ERROR = 202;
+    public static final int CONNECTION_PEER_TERMINATED = 203;
+    public static final int CONNECTED_DISCOVERING = 204;
+    public static final int DISCONNECTED = 205;
+    public static final int TRY_RECONNECT = 206;
+    public static final int CONNECT_READY = 207;
+    public static final int CONNECT_FIRST_MEASUREMENT = 208;
+    public static final int CONNECT_WARM_FALLBACK = 209;
+    public static final int CONNECT_STATS = 210;
+    public static final int RECONNECT_SCHEDULED = 211;
+    public static final int RECONNECT_BACKGROUND = 212;
+    public static final int RECONNECT_RECOVERED = 213;
+    public static final int SESSION_OPENED = 214;
+    public static final int SESSION_CLOSED = 215;
+    public static final int SESSION_LIMIT = 216;
+    // GATT
+    public static final int SERVICE_DISCOVERY_FAILED = 300;
+    public static final int CGM_SERVICE_NOT_FOUND = 301;
+    public static final int CGM_SERVICE_FOUND = 302;
+    public static final int CGM_MEASUREMENT_NOT_FOUND = 303;
+    public static final int FEATURE_READ = 304;
+    public static final int STATUS_READ = 305;
+    public static final int SESSION_START_READ = 306;
+    public static final int SESSION_RUN_READ = 307;
+    public static final int CHAR_PROPERTIES = 308;
+    public static final int GATT_OP_TIMEOUT = 309;
+    public static final int GATT_OP_NOT_STARTED = 310;
+    public static final int GATT_OP_STATS = 311;
+    public static final int GATT_SETUP_DONE = 312;
+    public static final int E2E_CRC_ON = 313;
+    public static final int E2E_CRC_FAILED = 314;
+    public static final int SESSION_START_DECODED = 315;
+    // Bonding
+    public static final int BOND_STATE_AT_DISCOVERY = 400;
+    public static final int REQUEST_BONDING = 401;
+    public static final int BONDED_CONTINUE = 402;
+    public static final int BOND_FAILED = 403;
+    // CCCD
+    public static final int CCCD_TIMEOUT = 500;
+    public static final int CCCD_WRITE_SUCCESS = 501;
+    public static final int CCCD_WRITE_FAILED = 502;
+    public static final int CCCD_QUEUED = 503;
+    public static final int CCCD_WRITE_START = 504;
+    public static final int SUBSCRIBE_RESULT = 505;
+    public static final int NO_CCCD = 506;
+    public static final int CCCD_NOT_FOUND = 507;
+    // SOCP
+    public static final int SOCP_RESPONSE = 600;
+    public static final int SOCP_WRITE_RESULT = 601;
+    public static final int SOCP_SEND = 602;
+    public static final int SOCP_WRITE_FAILED = 603;
+    public static final int SOCP_DONE = 604;
+    public static final int COMM_INTERVAL_CHANGE = 605;
+    public static final int COMM_INTERVAL_STATS = 606;
+    // Measurement and notification pipeline
+    public static final int MEASUREMENT = 700;
+    public static final int MEASUREMENT_MALFORMED = 701;
+    public static final int NOTIFY_RING_FULL = 702;
+    public static final int NOTIFY_RING_STATS = 703;
+    public static final int MEASUREMENT_CRC_FAILED = 704;
+    public static final int SESSION_STARTED = 705;
+    public static final int TIME_OFFSET_WRAPPED = 706;
+    public static final int NOTIFY_INDICATION_DROPPED = 707;
+    public static final int NOTIFY_DISPATCHER_STUCK = 708;
+    // Capture and logging
+    public static final int CAPTURE_START = 800;
+    public static final int CAPTURE_START_FAILED = 801;
+    public static final int CAPTURE_STOPPED = 802;
+    public static final int CAPTURE_CLOSE_FAILED = 803;
+    public static final int CAPTURE_WRITE_FAILED = 804;
+    public static final int LOG_FILE_FAILED = 805;
+    // Reading store
+    public static final int STORE_OPEN = 900;
+    public static final int STORE_FAILED = 901;
+    // RACP backfill
+    public static final int RACP_START = 950;
+    public static final int RACP_DONE = 951;
+    public static final int RACP_RATE = 952;
+    public static final int RACP_WRITE_FAILED = 953;
+    public static final int RACP_RESPONSE = 954;
+    // Statistics
+    public static final int STATS_SUMMARY = 960;
+    // Predictive alerts
+    public static final int PREDICTED_LOW = 970;
+    public static final int PREDICTED_LOW_CLEARED = 971;
+    public static final int PREDICTED_HIGH = 972;
+    public static final int PREDICTED_HIGH_CLEARED = 973;
+
+    private static final int MAX_CODE = 1000;
+    private static final byte[] LEVEL = new byte[MAX_CODE];
+    private static final short[] TAG = new short[MAX_CODE];
+    private static final String[] NAME = new String[MAX_CODE];
+    private static final String[] FORMAT = new String[MAX_CODE];
+
+    static {
+        def(BT_NOT_ENABLED, WARN, TAG_SCAN, "bt_not_enabled", "Bluetooth not enabled");
+        def(SCANNER_FAILED, ERROR, TAG_SCAN, "scanner_failed", "Failed to get BluetoothLeScanner");
+        def(SCAN_START, INFO, TAG_SCAN, "scan_start", "Starting scan (filtering service 0x181F)… %d seconds remaining");
+        def(SCAN_COUNTDOWN, INFO, TAG_SCAN, "scan_countdown", "Scanning… %d seconds remaining");
+        def(SCAN_TIMEOUT, DEBUG, TAG_SCAN, "scan_timeout", "Scan timeout (60 seconds), stopping scan");
+        def(SCAN_TIMEOUT_MESSAGE, INFO, TAG_SCAN, "scan_timeout_message", "Scan timeout: No CGM device found within 60 seconds, please ensure device is powered on and nearby");
+        def(STOP_SCAN, INFO, TAG_SCAN, "stop_scan", "Stop scanning");
+        def(SCAN_FAILED, ERROR, TAG_SCAN, "scan_failed", "Scan failed: %d");
+        def(DEVICE_FOUND, INFO, TAG_SCAN, "device_found", "Device found: %s (%s) RSSI: %d dBm");
+        def(SCAN_DIRECT_CONNECT, INFO, TAG_SCAN, "scan_direct_connect", "[Scan] bonded sensor %s known, connecting directly");
+        def(SCAN_DIRECT_FAILED, INFO, TAG_SCAN, "scan_direct_failed", "[Scan] direct connect to %s failed, scanning instead");
+        def(SCAN_MODE, DEBUG, TAG_SCAN, "scan_mode", "[Scan] mode %s, report delay %d ms (%d results/s)");
+        def(SCAN_STATS, INFO, TAG_SCAN, "scan_stats", "[Scan] %s");
+
+        def(ACTIVE_DISCONNECT, INFO, TAG_CONN, "active_disconnect", "Actively disconnecting…");
+        def(USER_SELECTED_CONNECT, INFO, TAG_CONN, "user_selected_connect", "User selected to connect: %s");
+        def(CONNECTION_STATE_ERROR, WARN, TAG_CONN, "connection_state_error", "Connection state error: %d");
+        def(CONNECTION_PEER_TERMINATED, WARN, TAG_CONN, "connection_peer_terminated", "Connection state error: %d (peer terminated: security/multi-connection/idle policy)");
+        def(CONNECTED_DISCOVERING, INFO, TAG_CONN, "connected_discovering", "Connected, discovering services…");
+        def(DISCONNECTED, INFO, TAG_CONN, "disconnected", "Disconnected");
+        def(TRY_RECONNECT, INFO, TAG_CONN, "try_reconnect", "Try reconnect #%d…");
+        def(CONNECT_READY, INFO, TAG_CONN, "connect_ready", "[Conn] %s connect ready in %d ms");
+        def(CONNECT_FIRST_MEASUREMENT, INFO, TAG_CONN, "connect_first_measurement", "[Conn] %s connect: first measurement after %d ms");
+        def(CONNECT_WARM_FALLBACK, WARN, TAG_CONN, "connect_warm_fallback", "[Conn] cached state not valid (%s), full setup");
+        def(CONNECT_STATS, INFO, TAG_CONN, "connect_stats", "[Conn] %s");
+        def(RECONNECT_SCHEDULED, INFO, TAG_CONN, "reconnect_scheduled", "[Conn] reconnect #%d in %d ms (reason %d)");
+        def(RECONNECT_BACKGROUND, INFO, TAG_CONN, "reconnect_background", "[Conn] %d reconnects failed, waiting in background (autoConnect)");
+        def(RECONNECT_RECOVERED, INFO, TAG_CONN, "reconnect_recovered", "[Conn] link recovered after %d ms, %d attempts");
+        def(SESSION_OPENED, INFO, TAG_CONN, "session_opened", "[Session] %s opened, %d active");
+        def(SESSION_CLOSED, INFO, TAG_CONN, "session_closed", "[Session] %s closed, %d active");
+        def(SESSION_LIMIT, WARN, TAG_CONN, "session_limit", "[Session] %s not connected: %d sessions already open");
+
+        def(SERVICE_DISCOVERY_FAILED, ERROR, TAG_GATT, "service_discovery_failed", "Service discovery failed: %d");
+        def(CGM_SERVICE_NOT_FOUND, ERROR, TAG_GATT, "cgm_service_not_found", "CGM Service (0x181F) not found");
+        def(CGM_SERVICE_FOUND, INFO, TAG_GATT, "cgm_service_found", "CGM Service found");
+        def(CGM_MEASUREMENT_NOT_FOUND, WARN, TAG_GATT, "cgm_measurement_not_found", "CGM Measurement (0x2AA7) not found");
+        def(FEATURE_READ, INFO, TAG_GATT, "feature_read", "[Feature] %h");
+        def(STATUS_READ, INFO, TAG_GATT, "status_read", "[Status] %h");
+        def(SESSION_START_READ, INFO, TAG_GATT, "session_start_read", "[SessionStart] %h");
+        def(SESSION_RUN_READ, INFO, TAG_GATT, "session_run_read", "[SessionRun] %h");
+        def(CHAR_PROPERTIES, INFO, TAG_GATT, "char_properties", "[CGM] Properties notify=%d, indicate=%d");
+        def(GATT_OP_TIMEOUT, WARN, TAG_GATT, "gatt_op_timeout", "[GATT] %s timed out after %d ms");
+        def(GATT_OP_NOT_STARTED, WARN, TAG_GATT, "gatt_op_not_started", "[GATT] %s refused by the stack");
+        def(GATT_OP_STATS, INFO, TAG_GATT, "gatt_op_stats", "[GATT] %s");
+        def(GATT_SETUP_DONE, INFO, TAG_GATT, "gatt_setup_done", "[GATT] setup done in %d ms");
+        def(E2E_CRC_ON, INFO, TAG_GATT, "e2e_crc_on", "[Feature] E2E-CRC supported, verifying every value");
+        def(E2E_CRC_FAILED, WARN, TAG_GATT, "e2e_crc_failed", "[GATT] E2E-CRC mismatch, value dropped: %u");
+        def(SESSION_START_DECODED, INFO, TAG_GATT, "session_start_decoded", "[SessionStart] %s");
+
+        def(BOND_STATE_AT_DISCOVERY, INFO, TAG_BOND, "bond_state_at_discovery", "[BondState] at discovery: %d");
+        def(REQUEST_BONDING, INFO, TAG_BOND, "request_bonding", "Requesting device bonding for secure notifications…");
+        def(BONDED_CONTINUE, INFO, TAG_BOND, "bonded_continue", "Bonding completed, continuing to enable notifications…");
+        def(BOND_FAILED, WARN, TAG_BOND, "bond_failed", "Bonding failed");
+
+        def(CCCD_TIMEOUT, WARN, TAG_CCCD, "cccd_timeout", "[CCCD] timeout, resetting and processing next");
+        def(CCCD_WRITE_SUCCESS, INFO, TAG_CCCD, "cccd_write_success", "CCCD write success [%u]");
+        def(CCCD_WRITE_FAILED, WARN, TAG_CCCD, "cccd_write_failed", "CCCD write failed: %d [%u]");
+        def(CCCD_QUEUED, INFO, TAG_CCCD, "cccd_queued", "[CCCD] queued [%u]");
+        def(CCCD_WRITE_START, INFO, TAG_CCCD, "cccd_write_start", "[CCCD] write start [%u]");
+        def(SUBSCRIBE_RESULT, INFO, TAG_CCCD, "subscribe_result", "Subscribe to CGM Measurement notifications… ok=%d");
+        def(NO_CCCD, WARN, TAG_CCCD, "no_cccd", "[CGM] No CCCD. descriptors=%s");
+        def(CCCD_NOT_FOUND, WARN, TAG_CCCD, "cccd_not_found", "CCCD 0x2902 not found");
+
+        def(SOCP_RESPONSE, INFO, TAG_SOCP, "socp_response", "[SOCP] %h");
+        def(SOCP_WRITE_RESULT, INFO, TAG_SOCP, "socp_write_result", "[SOCP->] write status=%d value=%h");
+        def(SOCP_SEND, INFO, TAG_SOCP, "socp_send", "[SOCP->] %h");
+        def(SOCP_WRITE_FAILED, ERROR, TAG_SOCP, "socp_write_failed", "[SOCP->] write failed: %s");
+        def(SOCP_DONE, INFO, TAG_SOCP, "socp_done", "[SOCP] %s: %s in %d ms");
+        def(COMM_INTERVAL_CHANGE, INFO, TAG_SOCP, "comm_interval_change", "[SOCP] %s mode: communication interval %d min");
+        def(COMM_INTERVAL_STATS, INFO, TAG_SOCP, "comm_interval_stats", "[SOCP] interval policy %s");
+
+        def(MEASUREMENT, INFO, TAG_MEAS, "measurement", "[Measurement] %m");
+        def(MEASUREMENT_MALFORMED, WARN, TAG_MEAS, "measurement_malformed", "[Measurement] malformed tail dropped: %d bytes");
+        def(NOTIFY_RING_FULL, WARN, TAG_NOTIFY, "notify_ring_full", "[Notify] ring full, measurement dropped");
+        def(NOTIFY_RING_STATS, INFO, TAG_NOTIFY, "notify_ring_stats", "[Notify] ring %s");
+        def(MEASUREMENT_CRC_FAILED, WARN, TAG_MEAS, "measurement_crc_failed", "[Measurement] E2E-CRC mismatch, record dropped: %h");
+        def(SESSION_STARTED, INFO, TAG_MEAS, "session_started", "[Session] #%d started %s (from %s)");
+        def(NOTIFY_DISPATCHER_STUCK, WARN, TAG_NOTIFY, "notify_dispatcher_stuck", "[Notify] dispatcher still running %d ms after stop");
+        def(NOTIFY_INDICATION_DROPPED, WARN, TAG_NOTIFY, "notify_indication_dropped", "[Notify] ring full, %u indication dropped");
+        def(TIME_OFFSET_WRAPPED, INFO, TAG_MEAS, "time_offset_wrapped", "[Session] #%d time offset wrapped, cycle %d");
+
+        def(CAPTURE_START, INFO, TAG_CAPTURE, "capture_start", "[Capture] recording to %s");
+        def(CAPTURE_START_FAILED, ERROR, TAG_CAPTURE, "capture_start_failed", "[Capture] start failed: %s");
+        def(CAPTURE_STOPPED, INFO, TAG_CAPTURE, "capture_stopped", "[Capture] stopped, events=%d");
+        def(CAPTURE_CLOSE_FAILED, WARN, TAG_CAPTURE, "capture_close_failed", "[Capture] close failed: %s");
+        def(CAPTURE_WRITE_FAILED, ERROR, TAG_CAPTURE, "capture_write_failed", "[Capture] write failed, stopping: %s");
+        def(LOG_FILE_FAILED, ERROR, TAG_LOG, "log_file_failed", "[EventLog] file sink failed, disabled: %s");
+
+        def(STORE_OPEN, INFO, TAG_STORE, "store_open", "[Store] %d readings (recovered %d)");
+        def(STORE_FAILED, ERROR, TAG_STORE, "store_failed", "[Store] disabled: %s");
+
+        def(RACP_START, INFO, TAG_RACP, "racp_start", "[RACP] backfill from time offset %d");
+        def(RACP_DONE, INFO, TAG_RACP, "racp_done", "[RACP] backfill %s: received %d, new %d, duplicate %d");
+        def(RACP_RATE, INFO, TAG_RACP, "racp_rate", "[RACP] %d ms, %d records/s, %d B/s");
+        def(RACP_WRITE_FAILED, WARN, TAG_RACP, "racp_write_failed", "[RACP->] write status=%d value=%h");
+        def(RACP_RESPONSE, DEBUG, TAG_RACP, "racp_response", "[RACP] %h");
+
+        def(STATS_SUMMARY, INFO, TAG_STATS, "stats_summary", "[Stats] %s");
+
+        def(PREDICTED_LOW, WARN, TAG_ALERT, "predicted_low", "[Alert] predicted low: %d mg/dL in %d min (%s mg/dL/min)");
+        def(PREDICTED_LOW_CLEARED, INFO, TAG_ALERT, "predicted_low_cleared", "[Alert] predicted low cleared: %d mg/dL in %d min (%s mg/dL/min)");
+        def(PREDICTED_HIGH, WARN, TAG_ALERT, "predicted_high", "[Alert] predicted high: %d mg/dL in %d min (%s mg/dL/min)");
+        def(PREDICTED_HIGH_CLEARED, INFO, TAG_ALERT, "predicted_high_cleared", "[Alert] predicted high cleared: %d mg/dL in %d min (%s mg/dL/min)");
+    }
+
+    private LogEvents() {}
+
+    private static void def(int code, int level, int tag, String name, String format) {
+        if (NAME[code] != null) throw new IllegalStateException("duplicate event code " + code);
+        LEVEL[code] = (byte) level;
+        TAG[code] = (short) tag;
+        NAME[code] = name;
+        FORMAT[code] = format;
+    }
+
+    public static boolean isDefined(int code) {
+        return code >= 0 && code < MAX_CODE && NAME[code] != null;
+    }
+
+    public static int level(int code) {
+        return isDefined(code) ? LEVEL[code] : INFO;
+    }
+
+    public static int tag(int code) {
+        return isDefined(code) ? TAG[code] : 0;
+    }
+
+    public static String name(int code) {
+        return isDefined(code) ? NAME[code] : "event_" + code;
+    }
+
+    public static String format(int code) {
+        return isDefined(code) ? FORMAT[code] : null;
+    }
+
+    public static String levelName(int level) {
+        switch (level) {
+            case DEBUG: return "D";
+            case INFO: return "I";
+            case WARN: return "W";
+            default: return "E";
+        }
+    }
+
+    /** Renders {@code e} with the default English format; unknown codes render as name plus raw args. */
+    public static String render(EventLog.Event e) {
+        String fmt = format(e.code);
+        StringBuilder sb = new StringBuilder(64);
+        if (fmt == null) {
+            sb.append(name(e.code));
+            for (int i = 0; i < e.intCount; i++) sb.append(' ').append(e.ints[i]);
+            for (int i = 0; i < e.stringCount; i++) sb.append(' ').append(e.string(i));
+            if (e.hasBytes) Hex.appendHex(sb.append(' '), e.bytes, 0, e.byteCount);
+            if (e.hasUuid) sb.append(' ').append(e.uuid());
+            return sb.toString();
+        }
+        int ni = 0, ns = 0;
+        for (int i = 0; i < fmt.length(); i++) {
+            char c = fmt.charAt(i);
+            if (c != '%' || i + 1 == fmt.length()) { sb.append(c); continue; }
+            char k = fmt.charAt(++i);
+            switch (k) {
+                case 'd': sb.append(ni < e.intCount ? e.ints[ni++] : 0); break;
+                case 'x': sb.append(Integer.toHexString(ni < e.intCount ? e.ints[ni++] : 0)); break;
+                case 's': sb.append(ns < e.stringCount ? e.string(ns++) : ""); break;
+                case 'h': if (e.hasBytes) Hex.appendHex(sb, e.bytes, 0, e.byteCount); break;
+                case 'm': sb.append(renderMeasurement(e)); break;
+                case 'u': sb.append(e.hasUuid ? e.uuid() : (UUID) null); break;
+                default: sb.append('%').append(k);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Builds positional arguments for a {@code String.format}-style resource with the same placeholders. */
+    public static Object[] formatArgs(EventLog.Event e) {
+        String fmt = format(e.code);
+        if (fmt == null) return new Object[0];
+        Object[] out = new Object[8];
+        int n = 0, ni = 0, ns = 0;
+        for (int i = 0; i + 1 < fmt.length() && n < out.length; i++) {
+            if (fmt.charAt(i) != '%') continue;
+            char k = fmt.charAt(++i);
+            switch (k) {
+                case 'd': out[n++] = ni < e.intCount ? e.ints[ni++] : 0; break;
+                case 'x': out[n++] = Integer.toHexString(ni < e.intCount ? e.ints[ni++] : 0); break;
+                case 's': out[n++] = ns < e.stringCount ? e.string(ns++) : ""; break;
+                case 'h': out[n++] = e.hasBytes ? Hex.toHex(e.bytes, 0, e.byteCount) : ""; break;
+                case 'm': out[n++] = renderMeasurement(e); break;
+                case 'u': out[n++] = e.hasUuid ? e.uuid().toString() : "null"; break;
+                default: break;
+            }
+        }
+        Object[] args = new Object[n];
+        System.arraycopy(out, 0, args, 0, n);
+        return args;
+    }
+
+    private static String renderMeasurement(EventLog.Event e) {
+        if (!e.hasBytes) return "";
+        CgmsParser.MeasurementRecord r = new CgmsParser.MeasurementRecord();
+        CgmsParser.decodeMeasurement(e.bytes, 0, e.byteCount, r);
+        return r.toString();
+    }
+}
@@ -4,28 +4,60 @@ import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.LinearLayout;
-import android.widget.TextView;
+import android.widget.Spinner;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
-    private TextView log;
+    // 日誌最多保留筆數，長時間 (14 天) 連線時記憶體維持固定
+    private static final int LOG_CAPACITY = 2000;
+    private static final int[] LOG_FILTERS = {
+            LogBuffer.FILTER_ALL, LogBuffer.CATEGORY_MEASUREMENT, LogBuffer.CATEGORY_CCCD, LogBuffer.CATEGORY_SOCP
+    };
+
+    private final LogBuffer logBuffer = new LogBuffer(LOG_CAPACITY);
+    private RecyclerView logView;
+    private LinearLayoutManager logLayout;
+    private LogAdapter logAdapter;
+    // Lines from any thread wait here until the next frame; guarded by itself
+    private final ArrayDeque<String> pendingLog = new ArrayDeque<>();
+    private boolean logFrameScheduled;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer.FrameCallback logFrameCallback = frameTimeNanos -> flushLog();
+    private final Runnable scheduleLogFrame = () -> Choreographer.getInstance().postFrameCallback(logFrameCallback);
     private Button btnScan, btnDisconnect;
     private LinearLayout deviceListLayout;
     private BleManager ble;
+    // Rotating binary event log; decode with EventLogFile.main
+    private static final long EVENT_LOG_FILE_BYTES = 1024 * 1024;
+    private static final int EVENT_LOG_FILES = 8;
+    // Raw GATT capture, debug builds only: it holds every glucose value the sensor sends
+    private static final long CAPTURE_FILE_BYTES = 4 * 1024 * 1024;
+    private static final int CAPTURE_FILES = 4;
     private boolean isScanning = false;
+    private boolean fullScan;
     
     // 儲存發現的裝置
     private List<BluetoothDevice> foundDevices = new ArrayList<>();
@@ -38,7 +70,7 @@ public class MainActivity extends AppCompatActivity {
     @Override protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        log = findViewById(R.id.txtLog);
+        setupLogView();
         btnScan = findViewById(R.id.btnScan);
         btnDisconnect = findViewById(R.id.btnDisconnect);
         deviceListLayout = findViewById(R.id.deviceListLayout);
@@ -46,6 +78,11 @@ public class MainActivity extends AppCompatActivity {
         BluetoothManager bm = getSystemService(BluetoothManager.class);
         BluetoothAdapter adapter = bm.getAdapter();
         ble = new BleManager(this, adapter, this::appendLog, this::onConnectionStateChanged, this::onScanningStateChanged, this::onDeviceFound);
+        startCapture();
+        File logDir = getExternalFilesDir("logs");
+        if (logDir != null) ble.startEventLogFile(logDir, EVENT_LOG_FILE_BYTES, EVENT_LOG_FILES);
+        ble.openStore(new File(getFilesDir(), "glucose"));
+        ble.openDeviceCache(new File(getFilesDir(), "devices.cache"));
 
         btnScan.setOnClickListener(v -> {
             if (isScanning) {
@@ -54,9 +91,24 @@ public class MainActivity extends AppCompatActivity {
                 ensurePermsAndScan();
             }
         });
+        // Long press: always scan and list devices, even if a bonded sensor is remembered
+        btnScan.setOnLongClickListener(v -> {
+            if (isScanning) return false;
+            fullScan = true;
+            ensurePermsAndScan();
+            return true;
+        });
         btnDisconnect.setOnClickListener(v -> disconnect());
     }
 
+    // 記錄原始 GATT 事件，供離線重播 (ReplayEngine)；僅 debug 版，檔案輪替並限制總量
+    private void startCapture() {
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) return;
+        File dir = getExternalFilesDir("captures");
+        if (dir == null) return;
+        ble.startCapture(dir, CAPTURE_FILE_BYTES, CAPTURE_FILES);
+    }
+
     private void ensurePermsAndScan() {
         if (Build.VERSION.SDK_INT >= 31) {
             permLauncher.launch(new String[]{
@@ -75,7 +127,8 @@ public class MainActivity extends AppCompatActivity {
     private void startScan() { 
         foundDevices.clear();
         runOnUiThread(() -> deviceListLayout.removeAllViews());
-        ble.startScanForCgmsService(); 
+        ble.startScanForCgmsService(!fullScan);
+        fullScan = false;
     }
 
     private void stopScan() {
@@ -163,15 +216,72 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private void appendLog(@NonNull String s) {
-        runOnUiThread(() -> {
-            log.append(s);
-            log.append("\n");
+    private void setupLogView() {
+        logBuffer.addPrefix(getString(R.string.measurement_log, "").trim(), LogBuffer.CATEGORY_MEASUREMENT);
+        logView = findViewById(R.id.rvLog);
+        logLayout = new LinearLayoutManager(this);
+        logLayout.setStackFromEnd(true);
+        logView.setLayoutManager(logLayout);
+        logView.setItemAnimator(null);
+        logAdapter = new LogAdapter(logBuffer);
+        logView.setAdapter(logAdapter);
+
+        Spinner filter = findViewById(R.id.spnLogFilter);
+        ArrayAdapter<String> filterAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, new String[]{
+                getString(R.string.log_filter_all),
+                getString(R.string.log_filter_measurement),
+                getString(R.string.log_filter_cccd),
+                getString(R.string.log_filter_socp)
+        });
+        filterAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        filter.setAdapter(filterAdapter);
+        filter.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (logBuffer.getFilter() == LOG_FILTERS[position]) return;
+                logBuffer.setFilter(LOG_FILTERS[position]);
+                logAdapter.notifyDataSetChanged();
+                scrollLogToEnd();
+            }
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
         });
     }
 
+    // 可由任意執行緒呼叫；同一幀內的多筆日誌合併為一次 UI 更新
+    private void appendLog(@NonNull String s) {
+        synchronized (pendingLog) {
+            pendingLog.add(s);
+            if (pendingLog.size() > LOG_CAPACITY) pendingLog.poll();
+            if (logFrameScheduled) return;
+            logFrameScheduled = true;
+        }
+        mainHandler.post(scheduleLogFrame);
+    }
+
+    private void flushLog() {
+        boolean atEnd = logLayout.findLastVisibleItemPosition() >= logAdapter.getItemCount() - 1;
+        synchronized (pendingLog) {
+            String s;
+            while ((s = pendingLog.poll()) != null) logBuffer.append(s);
+            logFrameScheduled = false;
+        }
+        int removed = logBuffer.takeRemoved();
+        int inserted = logBuffer.takeInserted();
+        if (removed > 0) logAdapter.notifyItemRangeRemoved(0, removed);
+        if (inserted > 0) logAdapter.notifyItemRangeInserted(logBuffer.visibleCount() - inserted, inserted);
+        if (atEnd && inserted > 0) scrollLogToEnd();
+    }
+
+    private void scrollLogToEnd() {
+        int n = logAdapter.getItemCount();
+        if (n > 0) logView.scrollToPosition(n - 1);
+    }
+
     @Override protected void onDestroy() {
         super.onDestroy();
+        File logDir = getExternalFilesDir("logs");
+        if (logDir != null) ble.dumpMetrics(new File(logDir, "metrics.txt"));
         ble.close();
+        Choreographer.getInstance().removeFrameCallback(logFrameCallback);
+        mainHandler.removeCallbacksAndMessages(null);
     }
 }
@@ -0,0 +1,118 @@
+package com.angus.cgms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and latency histograms for the connection and data paths.
+ *
+ * Metrics are registered once by name (dotted, e.g. {@code gatt.cccd}) and callers keep the
+ * returned object, so recording never touches the registry: a counter is one atomic add and
+ * a histogram one bucket increment. {@link #snapshot} copies everything at once for display
+ * in the app or {@link #dump} to a text file. Registration is synchronized.
+ */
+public final class MetricsRegistry {
+
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() { value.incrementAndGet(); }
+        public void add(long n) { value.addAndGet(n); }
+        public long get() { return value.get(); }
+    }
+
+    private final Map<String, Counter> counters = new TreeMap<>();
+    private final Map<String, LatencyHistogram> histograms = new TreeMap<>();
+
+    public synchronized Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            c = new Counter();
+            counters.put(name, c);
+        }
+        return c;
+    }
+
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram h = histograms.get(name);
+        if (h == null) {
+            h = new LatencyHistogram();
+            histograms.put(name, h);
+        }
+        return h;
+    }
+
+    public synchronized void reset() {
+        for (Counter c : counters.values()) c.value.set(0);
+        for (LatencyHistogram h : histograms.values()) h.reset();
+    }
+
+    public synchronized Snapshot snapshot() {
+        Map<String, Long> c = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) c.put(e.getKey(), e.getValue().get());
+        Map<String, LatencyHistogram.Snapshot> h = new LinkedHashMap<>();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) h.put(e.getKey(), e.getValue().snapshot());
+        return new Snapshot(System.currentTimeMillis(), c, h);
+    }
+
+    /** Writes a snapshot to {@code file}, replacing it. */
+    public void dump(File file) throws IOException {
+        Snapshot s = snapshot();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            s.writeTo(w);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+    }
+
+    public static final class Snapshot {
+        public final long timeMillis;
+        public final Map<String, Long> counters;
+        public final Map<String, LatencyHistogram.Snapshot> histograms;
+
+        Snapshot(long timeMillis, Map<String, Long> counters, Map<String, LatencyHistogram.Snapshot> histograms) {
+            this.timeMillis = timeMillis;
+            this.counters = Collections.unmodifiableMap(counters);
+            this.histograms = Collections.unmodifiableMap(histograms);
+        }
+
+        public long counter(String name) {
+            Long v = counters.get(name);
+            return v != null ? v : 0;
+        }
+
+        /** One metric per line: {@code name value} for counters, {@code name n=.. p50=..} for histograms. */
+        public void writeTo(Appendable out) throws IOException {
+            out.append("# metrics ").append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(timeMillis))).append('\n');
+            for (Map.Entry<String, Long> e : counters.entrySet()) {
+                out.append(e.getKey()).append(' ').append(String.valueOf(e.getValue())).append('\n');
+            }
+            for (Map.Entry<String, LatencyHistogram.Snapshot> e : histograms.entrySet()) {
+                if (e.getValue().count == 0) continue;
+                out.append(e.getKey()).append(' ').append(e.getValue().toString()).append('\n');
+            }
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                writeTo(sb);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return sb.toString();
+        }
+    }
+}
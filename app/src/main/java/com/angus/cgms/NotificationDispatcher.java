@@ -0,0 +1,83 @@
+package com.angus.cgms;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumer thread for a {@link NotificationRing}: drains slots in batches and hands them to a
+ * {@link NotificationRing.SlotHandler}, parking while the ring is empty. Handler exceptions are
+ * reported and do not stop the thread.
+ */
+public final class NotificationDispatcher {
+    public interface ErrorHandler { void onError(Throwable t); }
+
+    private static final int BATCH = 32;
+    // Brief spin before parking catches back-to-back notifications without a park/unpark round trip
+    private static final int SPINS_BEFORE_PARK = 64;
+    // Backstop for stop(); the producer normally unparks us as soon as it publishes
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final NotificationRing ring;
+    private final NotificationRing.SlotHandler handler;
+    private final ErrorHandler errorHandler;
+    private final Thread thread;
+    private volatile boolean running;
+    private volatile long batches;
+
+    public NotificationDispatcher(String name, NotificationRing ring, NotificationRing.SlotHandler handler, ErrorHandler errorHandler) {
+        this.ring = ring;
+        this.handler = handler;
+        this.errorHandler = errorHandler;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        ring.setConsumerThread(thread);
+        thread.start();
+    }
+
+    /** Stops after draining what is already queued. */
+    public void stop() {
+        running = false;
+        ring.setConsumerThread(null);
+        LockSupport.unpark(thread);
+    }
+
+    /** Waits up to {@code timeoutMillis} for the thread to finish after {@link #stop}; true if it has. */
+    public boolean join(long timeoutMillis) throws InterruptedException {
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    public long batches() {
+        return batches;
+    }
+
+    private void run() {
+        int idle = 0;
+        while (running) {
+            if (drainOnce() > 0) {
+                idle = 0;
+            } else if (++idle < SPINS_BEFORE_PARK) {
+                Thread.onSpinWait();
+            } else {
+                ring.awaitNotEmpty(IDLE_PARK_NANOS);
+                idle = 0;
+            }
+        }
+        while (drainOnce() > 0) { }
+    }
+
+    private int drainOnce() {
+        try {
+            int n = ring.drain(handler, BATCH);
+            if (n > 0) batches++;
+            return n;
+        } catch (Throwable t) {
+            if (errorHandler != null) errorHandler.onError(t);
+            return 0;
+        }
+    }
+}
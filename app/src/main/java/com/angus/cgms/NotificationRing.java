@@ -0,0 +1,177 @@
+package com.angus.cgms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of raw notification slots.
+ *
+ * The producer (the GATT callback thread) copies a value into a pre-allocated slot and
+ * returns; the consumer drains slots in batches. No locks and no allocation after
+ * construction. Exactly one thread may call {@link #offer} and exactly one may call
+ * {@link #drain}.
+ */
+public final class NotificationRing {
+
+    // Overflow policies
+    /** Reject the incoming value when the ring is full. */
+    public static final int OVERFLOW_DROP_NEWEST = 0;
+    /** Wait up to the configured time for the consumer to free a slot, then drop. */
+    public static final int OVERFLOW_WAIT = 1;
+
+    /** Receives drained slots; {@code data} is only valid for the duration of the call. */
+    public interface SlotHandler {
+        void onSlot(int tag, long timestampNanos, byte[] data, int length);
+    }
+
+    private final int mask;
+    private final int slotSize;
+    private final byte[][] data;
+    private final int[] length;
+    private final int[] tag;
+    private final long[] timestamp;
+    private final int overflowPolicy;
+    private final long overflowWaitNanos;
+
+    private final AtomicLong head = new AtomicLong(); // next slot to write, owned by producer
+    private final AtomicLong tail = new AtomicLong(); // next slot to read, owned by consumer
+    private long cachedTail; // producer's view of tail
+    private long cachedHead; // consumer's view of head
+
+    // Written only by the producer
+    private volatile long offered;
+    private volatile long dropped;
+    private volatile long truncated;
+    private volatile int highWaterMark;
+
+    private volatile Thread consumerThread;
+    private volatile boolean consumerWaiting;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param slotSize bytes per slot; longer values are truncated and counted
+     */
+    public NotificationRing(int capacity, int slotSize, int overflowPolicy, long overflowWaitNanos) {
+        if (capacity <= 0 || slotSize <= 0) throw new IllegalArgumentException("capacity and slotSize must be > 0");
+        int cap = Integer.highestOneBit(capacity);
+        if (cap < capacity) cap <<= 1;
+        this.mask = cap - 1;
+        this.slotSize = slotSize;
+        this.data = new byte[cap][slotSize];
+        this.length = new int[cap];
+        this.tag = new int[cap];
+        this.timestamp = new long[cap];
+        this.overflowPolicy = overflowPolicy;
+        this.overflowWaitNanos = overflowWaitNanos;
+    }
+
+    /** Copies {@code v} into the next slot. Returns false if it was dropped because the ring is full. */
+    public boolean offer(int tag, long timestampNanos, byte[] v) {
+        return offer(tag, timestampNanos, v, overflowPolicy == OVERFLOW_WAIT ? overflowWaitNanos : 0);
+    }
+
+    /**
+     * Like {@link #offer(int, long, byte[])}, but waits up to {@code waitNanos} for a free slot
+     * whatever the overflow policy; for values that must not be lost to a burst of others.
+     */
+    public boolean offer(int tag, long timestampNanos, byte[] v, long waitNanos) {
+        offered++;
+        long h = head.get();
+        if (h - cachedTail > mask) {
+            cachedTail = tail.get();
+            if (h - cachedTail > mask && !waitForSpace(h, waitNanos)) {
+                dropped++;
+                return false;
+            }
+        }
+        int i = (int) (h & mask);
+        int len = v == null ? 0 : v.length;
+        if (len > slotSize) {
+            len = slotSize;
+            truncated++;
+        }
+        if (len > 0) System.arraycopy(v, 0, data[i], 0, len);
+        length[i] = len;
+        this.tag[i] = tag;
+        timestamp[i] = timestampNanos;
+        // Volatile store so the consumerWaiting read below cannot move ahead of the publish
+        head.set(h + 1);
+
+        // Measured against the producer's cached tail, so this is an upper bound
+        int depth = (int) (h + 1 - cachedTail);
+        if (depth > highWaterMark) highWaterMark = depth;
+        if (consumerWaiting) {
+            Thread c = consumerThread;
+            if (c != null) LockSupport.unpark(c);
+        }
+        return true;
+    }
+
+    private boolean waitForSpace(long h, long waitNanos) {
+        if (waitNanos <= 0) return false;
+        long deadline = System.nanoTime() + waitNanos;
+        while (System.nanoTime() < deadline) {
+            Thread c = consumerThread;
+            if (c != null) LockSupport.unpark(c);
+            Thread.yield();
+            cachedTail = tail.get();
+            if (h - cachedTail <= mask) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands up to {@code max} slots to {@code handler} and releases them in one step. If the
+     * handler throws, the failing slot is consumed along with those before it.
+     */
+    public int drain(SlotHandler handler, int max) {
+        long t = tail.get();
+        if (cachedHead <= t) {
+            cachedHead = head.get();
+            if (cachedHead <= t) return 0;
+        }
+        int n = (int) Math.min(max, cachedHead - t);
+        int k = 0;
+        try {
+            while (k < n) {
+                int i = (int) ((t + k) & mask);
+                k++;
+                handler.onSlot(tag[i], timestamp[i], data[i], length[i]);
+            }
+        } finally {
+            tail.lazySet(t + k);
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /** Consumer side: parks for at most {@code maxNanos} unless something is already queued. */
+    public void awaitNotEmpty(long maxNanos) {
+        consumerWaiting = true;
+        if (isEmpty()) LockSupport.parkNanos(this, maxNanos);
+        consumerWaiting = false;
+    }
+
+    /**
+     * Registers the consumer thread so the producer can wake it from {@link #awaitNotEmpty}
+     * after publishing. Pass {@code null} to stop waking.
+     */
+    public void setConsumerThread(Thread t) {
+        consumerThread = t;
+    }
+
+    public int capacity() { return mask + 1; }
+    public int size() { return (int) (head.get() - tail.get()); }
+    public long offered() { return offered; }
+    public long dropped() { return dropped; }
+    public long truncated() { return truncated; }
+    public int highWaterMark() { return highWaterMark; }
+
+    @Override public String toString() {
+        return "offered=" + offered + ", dropped=" + dropped + ", truncated=" + truncated +
+                ", highWater=" + highWaterMark + "/" + capacity();
+    }
+}
@@ -0,0 +1,289 @@
+package com.angus.cgms;
+
+import java.util.BitSet;
+
+/**
+ * Record Access Control Point (0x2A52) backfill: downloads readings the sensor stored while
+ * we were out of range and filters out ones we already hold.
+ *
+ * A run asks for the number of records with a time offset at or after {@code fromOffset},
+ * then for the records themselves. The sensor streams them as ordinary CGM Measurement
+ * notifications and finishes with an RACP response indication. Every record, live or
+ * backfilled, goes through {@link #accept}, which drops time offsets already seen in the
+ * current session (one bit per offset, so the check is O(1) and exact).
+ *
+ * No GATT types: writes go through {@link Transport} and time is passed in, so the state
+ * machine runs unchanged on a plain JVM. Methods are synchronized; indications, records
+ * and timeout checks may come from different threads.
+ */
+public final class RacpBackfill {
+    // RACP op codes
+    public static final int OP_REPORT_RECORDS = 0x01;
+    public static final int OP_DELETE_RECORDS = 0x02;
+    public static final int OP_ABORT = 0x03;
+    public static final int OP_REPORT_NUMBER = 0x04;
+    public static final int OP_NUMBER_RESPONSE = 0x05;
+    public static final int OP_RESPONSE_CODE = 0x06;
+    // Operators
+    public static final int OPERATOR_NULL = 0x00;
+    public static final int OPERATOR_ALL = 0x01;
+    public static final int OPERATOR_GREATER_OR_EQUAL = 0x03;
+    // Filter type for CGMS: u16 time offset in minutes
+    public static final int FILTER_TIME_OFFSET = 0x01;
+    // Response codes
+    public static final int RESPONSE_SUCCESS = 0x01;
+    public static final int RESPONSE_OP_NOT_SUPPORTED = 0x02;
+    public static final int RESPONSE_NO_RECORDS = 0x06;
+    public static final int RESPONSE_ABORT_FAILED = 0x07;
+    public static final int RESPONSE_NOT_COMPLETED = 0x08;
+
+    // States
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_COUNTING = 1;
+    public static final int STATE_DOWNLOADING = 2;
+    public static final int STATE_ABORTING = 3;
+
+    // Results
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_NO_RECORDS = 1;
+    public static final int RESULT_ABORTED = 2;
+    public static final int RESULT_TIMEOUT = 3;
+    public static final int RESULT_FAILED = 4;
+    public static final int RESULT_WRITE_FAILED = 5;
+
+    public interface Transport { boolean writeRacp(byte[] value); }
+
+    public interface Listener {
+        void onBackfillStarted(RacpBackfill b);
+        void onBackfillFinished(RacpBackfill b, int result);
+    }
+
+    private final Transport transport;
+    private final Listener listener;
+    private final long timeoutNanos;
+    private final BitSet seen = new BitSet(0x10000);
+
+    private int state = STATE_IDLE;
+    private int fromOffset;
+    private long lastActivityNanos;
+
+    // Metrics for the current (or last) run
+    private int expected = -1;
+    private int received;
+    private int duplicates;
+    private int accepted;
+    private long payloadBytes;
+    private long startNanos;
+    private long endNanos;
+    private int lastResult = -1;
+    private int lastResponseCode;
+    private long runs;
+
+    /** @param timeoutNanos abort if the sensor goes quiet this long during a run */
+    public RacpBackfill(Transport transport, Listener listener, long timeoutNanos) {
+        this.transport = transport;
+        this.listener = listener;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    // ===== Requests =====
+
+    public static byte[] reportRecords(int fromOffset) {
+        return fromOffset <= 0
+                ? new byte[]{OP_REPORT_RECORDS, OPERATOR_ALL}
+                : new byte[]{OP_REPORT_RECORDS, OPERATOR_GREATER_OR_EQUAL, FILTER_TIME_OFFSET,
+                        (byte) fromOffset, (byte) (fromOffset >> 8)};
+    }
+
+    public static byte[] reportNumber(int fromOffset) {
+        byte[] v = reportRecords(fromOffset);
+        v[0] = OP_REPORT_NUMBER;
+        return v;
+    }
+
+    public static byte[] abortRequest() {
+        return new byte[]{OP_ABORT, OPERATOR_NULL};
+    }
+
+    /**
+     * Starts a run for records at or after {@code fromOffset} (0 = all). Returns false if a
+     * run is already active or the first write fails.
+     */
+    public synchronized boolean start(int fromOffset, long nowNanos) {
+        if (state != STATE_IDLE) return false;
+        this.fromOffset = Math.max(0, fromOffset);
+        expected = -1;
+        received = 0;
+        duplicates = 0;
+        accepted = 0;
+        payloadBytes = 0;
+        startNanos = nowNanos;
+        endNanos = 0;
+        lastResponseCode = 0;
+        lastActivityNanos = nowNanos;
+        runs++;
+        state = STATE_COUNTING;
+        if (listener != null) listener.onBackfillStarted(this);
+        if (!transport.writeRacp(reportNumber(this.fromOffset))) {
+            finish(RESULT_WRITE_FAILED, nowNanos);
+            return false;
+        }
+        return true;
+    }
+
+    /** Asks the sensor to stop the current run; completes when it confirms or on timeout. */
+    public synchronized void abort(long nowNanos) {
+        if (state == STATE_IDLE || state == STATE_ABORTING) return;
+        state = STATE_ABORTING;
+        lastActivityNanos = nowNanos;
+        if (!transport.writeRacp(abortRequest())) finish(RESULT_ABORTED, nowNanos);
+    }
+
+    /** Ends the run without talking to the sensor, e.g. on disconnect. */
+    public synchronized void cancel(long nowNanos) {
+        if (state != STATE_IDLE) finish(RESULT_ABORTED, nowNanos);
+    }
+
+    /** Times out a run that has been quiet too long; returns true if it did. */
+    public synchronized boolean checkTimeout(long nowNanos) {
+        if (state == STATE_IDLE || nowNanos - lastActivityNanos < timeoutNanos) return false;
+        if (state == STATE_ABORTING) {
+            finish(RESULT_TIMEOUT, nowNanos);
+        } else {
+            // Best effort: stop the sensor streaming into a run we have given up on
+            transport.writeRacp(abortRequest());
+            finish(RESULT_TIMEOUT, nowNanos);
+        }
+        return true;
+    }
+
+    // ===== Sensor input =====
+
+    /** Handles an RACP indication. */
+    public synchronized void onIndication(byte[] v, int off, int len, long nowNanos) {
+        if (len < 2) return;
+        lastActivityNanos = nowNanos;
+        int op = v[off] & 0xFF;
+        if (op == OP_NUMBER_RESPONSE && len >= 4) {
+            expected = CgmsParser.u16At(v, off + 2);
+            if (state != STATE_COUNTING) return;
+            if (expected == 0) {
+                finish(RESULT_NO_RECORDS, nowNanos);
+            } else {
+                state = STATE_DOWNLOADING;
+                if (!transport.writeRacp(reportRecords(fromOffset))) finish(RESULT_WRITE_FAILED, nowNanos);
+            }
+        } else if (op == OP_RESPONSE_CODE && len >= 4) {
+            int request = v[off + 2] & 0xFF;
+            lastResponseCode = v[off + 3] & 0xFF;
+            if (state == STATE_IDLE) return;
+            if (request == OP_ABORT) {
+                finish(RESULT_ABORTED, nowNanos);
+            } else if (request == OP_REPORT_NUMBER && state == STATE_COUNTING) {
+                // Count not supported: skip straight to the download
+                state = STATE_DOWNLOADING;
+                if (!transport.writeRacp(reportRecords(fromOffset))) finish(RESULT_WRITE_FAILED, nowNanos);
+            } else if (request == OP_REPORT_RECORDS) {
+                if (state == STATE_ABORTING) {
+                    finish(RESULT_ABORTED, nowNanos);
+                } else if (lastResponseCode == RESPONSE_SUCCESS) {
+                    finish(RESULT_SUCCESS, nowNanos);
+                } else if (lastResponseCode == RESPONSE_NO_RECORDS) {
+                    finish(RESULT_NO_RECORDS, nowNanos);
+                } else {
+                    finish(RESULT_FAILED, nowNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if {@code r} has a time offset not seen in this session and marks it seen.
+     * {@code bytes} is the record's size on the wire, for throughput.
+     */
+    public synchronized boolean accept(CgmsParser.MeasurementRecord r, int bytes, long nowNanos) {
+        boolean active = state == STATE_DOWNLOADING || state == STATE_ABORTING;
+        if (active) {
+            received++;
+            payloadBytes += bytes;
+            lastActivityNanos = nowNanos;
+        }
+        if (!r.has(CgmsParser.HAS_TIME_OFFSET)) return true;
+        if (seen.get(r.timeOffset)) {
+            if (active) duplicates++;
+            return false;
+        }
+        seen.set(r.timeOffset);
+        if (active) accepted++;
+        return true;
+    }
+
+    /** Marks a time offset already held, e.g. from the store at startup. */
+    public synchronized void markSeen(int timeOffset) {
+        seen.set(timeOffset & 0xFFFF);
+    }
+
+    /** Forgets seen offsets; call when a new sensor session starts. */
+    public synchronized void resetSeen() {
+        seen.clear();
+    }
+
+    /** Forgets {@code count} seen offsets from {@code fromOffset}; call when the u16 offset wraps into them. */
+    public synchronized void forgetSeen(int fromOffset, int count) {
+        seen.clear(fromOffset & 0xFFFF, Math.min((fromOffset & 0xFFFF) + count, 0x10000));
+    }
+
+    private void finish(int result, long nowNanos) {
+        state = STATE_IDLE;
+        lastResult = result;
+        endNanos = nowNanos;
+        if (listener != null) listener.onBackfillFinished(this, result);
+    }
+
+    // ===== Metrics =====
+
+    public synchronized int state() { return state; }
+    public synchronized boolean isActive() { return state != STATE_IDLE; }
+    public synchronized int fromOffset() { return fromOffset; }
+    /** Records the sensor said it would send, or -1 if unknown. */
+    public synchronized int expected() { return expected; }
+    public synchronized int received() { return received; }
+    public synchronized int duplicates() { return duplicates; }
+    public synchronized int accepted() { return accepted; }
+    public synchronized long payloadBytes() { return payloadBytes; }
+    public synchronized int lastResult() { return lastResult; }
+    public synchronized int lastResponseCode() { return lastResponseCode; }
+    public synchronized long runs() { return runs; }
+
+    /** 0..1 of the expected records received, or -1 if the count is unknown. */
+    public synchronized float progress() {
+        if (expected <= 0) return expected == 0 ? 1f : -1f;
+        return Math.min(1f, received / (float) expected);
+    }
+
+    public synchronized long elapsedNanos(long nowNanos) {
+        return (state == STATE_IDLE ? endNanos : nowNanos) - startNanos;
+    }
+
+    public synchronized double recordsPerSecond(long nowNanos) {
+        long ns = elapsedNanos(nowNanos);
+        return ns <= 0 ? 0 : received * 1e9 / ns;
+    }
+
+    public synchronized double bytesPerSecond(long nowNanos) {
+        long ns = elapsedNanos(nowNanos);
+        return ns <= 0 ? 0 : payloadBytes * 1e9 / ns;
+    }
+
+    public static String resultName(int result) {
+        switch (result) {
+            case RESULT_SUCCESS: return "success";
+            case RESULT_NO_RECORDS: return "no records";
+            case RESULT_ABORTED: return "aborted";
+            case RESULT_TIMEOUT: return "timeout";
+            case RESULT_FAILED: return "failed";
+            case RESULT_WRITE_FAILED: return "write failed";
+            default: return "none";
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.angus.cgms;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when and how to reconnect after the link drops.
+ *
+ * An outage goes through three stages: a few fast retries (most drops are short and the
+ * sensor is still there), then direct connects with capped exponential backoff and jitter,
+ * then one background {@code connectGatt(autoConnect=true)} request, which the controller
+ * serves with a low-duty scan until the sensor comes back. The stage lengths and delays come
+ * from a {@link Profile} picked by the disconnect reason (HCI / GATT status), so e.g. a
+ * supervision timeout (out of range) reaches background mode sooner than a stack error.
+ *
+ * An outage lasts from the first disconnect until {@link #onConnected}, which records the
+ * time to recover. A failure while in background mode means the pending request itself died
+ * (e.g. Bluetooth restarted), so it is re-issued after the profile's maximum delay.
+ * No Android types and time is passed in; not thread-safe.
+ */
+public final class ReconnectPolicy {
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_CONNECT = 1;       // connectGatt(autoConnect=false) after delayMillis()
+    public static final int ACTION_AUTO_CONNECT = 2;  // connectGatt(autoConnect=true) after delayMillis()
+
+    // Disconnect reasons with their own profile (HCI error / Android GATT status)
+    public static final int REASON_LOCAL = 0;                  // we disconnected
+    public static final int REASON_SUPERVISION_TIMEOUT = 8;    // out of range
+    public static final int REASON_PEER_TERMINATED = 19;       // sensor closed the link on purpose
+    public static final int REASON_LOCAL_HOST_TERMINATED = 22;
+    public static final int REASON_GATT_ERROR = 133;           // generic stack error, usually transient
+
+    public static final class Profile {
+        public final int fastAttempts;
+        public final long fastDelayMillis;
+        public final int backoffAttempts;
+        public final long baseDelayMillis;
+        public final long maxDelayMillis;
+
+        public Profile(int fastAttempts, long fastDelayMillis, int backoffAttempts, long baseDelayMillis, long maxDelayMillis) {
+            this.fastAttempts = fastAttempts;
+            this.fastDelayMillis = fastDelayMillis;
+            this.backoffAttempts = backoffAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+    }
+
+    public static final Profile DEFAULT_PROFILE = new Profile(2, 300, 6, 2_000, 60_000);
+
+    private final Map<Integer, Profile> profiles = new HashMap<>();
+    private final Random random;
+
+    private boolean outage;
+    private long outageStartNanos;
+    private int attempts;       // in this outage
+    private Profile profile;
+    private long delayMillis;
+    private boolean background;
+
+    private final MetricsRegistry.Counter attemptCounter;
+    private final MetricsRegistry.Counter recoveredCounter;
+    private final MetricsRegistry.Counter backgroundCounter;
+    private final LatencyHistogram recoverHist;
+
+    public ReconnectPolicy(MetricsRegistry metrics, Random random) {
+        this.random = random;
+        attemptCounter = metrics.counter("reconnect.attempts");
+        recoveredCounter = metrics.counter("reconnect.recovered");
+        backgroundCounter = metrics.counter("reconnect.background");
+        recoverHist = metrics.histogram("reconnect.time_to_recover");
+        profiles.put(REASON_SUPERVISION_TIMEOUT, new Profile(1, 300, 4, 5_000, 60_000));
+        profiles.put(REASON_PEER_TERMINATED, new Profile(0, 0, 5, 3_000, 60_000));
+        profiles.put(REASON_LOCAL_HOST_TERMINATED, new Profile(0, 0, 5, 3_000, 60_000));
+        profiles.put(REASON_GATT_ERROR, new Profile(3, 500, 6, 2_000, 60_000));
+    }
+
+    public void setProfile(int reason, Profile p) {
+        profiles.put(reason, p);
+    }
+
+    public Profile profileFor(int reason) {
+        Profile p = profiles.get(reason);
+        return p != null ? p : DEFAULT_PROFILE;
+    }
+
+    /**
+     * The link dropped, or a connect attempt failed, with {@code reason}. Returns what to do
+     * next, after waiting {@link #delayMillis()}.
+     */
+    public int onDisconnect(int reason, long nowNanos) {
+        if (background) {
+            delayMillis = profileFor(reason).maxDelayMillis;
+            return ACTION_AUTO_CONNECT;
+        }
+        if (!outage) {
+            outage = true;
+            outageStartNanos = nowNanos;
+            attempts = 0;
+        }
+        // The latest reason decides, so an outage that turns into out-of-range backs off faster
+        profile = profileFor(reason);
+        int n = attempts;
+        if (n < profile.fastAttempts) {
+            delayMillis = profile.fastDelayMillis;
+        } else if (n < profile.fastAttempts + profile.backoffAttempts) {
+            int k = n - profile.fastAttempts;
+            long ceiling = Math.min(profile.maxDelayMillis, profile.baseDelayMillis << Math.min(k, 20));
+            // Equal jitter: half fixed, half random, so retries from many phones spread out
+            delayMillis = ceiling / 2 + (long) (random.nextDouble() * (ceiling - ceiling / 2));
+        } else {
+            background = true;
+            backgroundCounter.increment();
+            delayMillis = 0;
+            return ACTION_AUTO_CONNECT;
+        }
+        attempts++;
+        attemptCounter.increment();
+        return ACTION_CONNECT;
+    }
+
+    /** The link is up; ends the outage and records the time to recover. */
+    public void onConnected(long nowNanos) {
+        if (outage) {
+            recoverHist.record(nowNanos - outageStartNanos);
+            recoveredCounter.increment();
+        }
+        reset();
+    }
+
+    /** Forgets the outage, e.g. on a user disconnect or a newly chosen device. */
+    public void reset() {
+        outage = false;
+        attempts = 0;
+        background = false;
+        delayMillis = 0;
+    }
+
+    public long delayMillis() { return delayMillis; }
+    public int attempts() { return attempts; }
+    public boolean inOutage() { return outage; }
+    public boolean isBackground() { return background; }
+
+    public long outageNanos(long nowNanos) {
+        return outage ? nowNanos - outageStartNanos : 0;
+    }
+}
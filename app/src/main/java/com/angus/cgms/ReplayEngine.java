@@ -0,0 +1,196 @@
+package com.angus.cgms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams {@link GattCapture} files through {@link CgmsParser} and a {@link Listener},
+ * either at recorded speed (optionally scaled) or as fast as possible. Pure JVM, so it
+ * runs on a build machine against field captures:
+ *
+ * <pre>java com.angus.cgms.ReplayEngine [--speed N] [--threads N] capture.cgmc...</pre>
+ */
+public final class ReplayEngine {
+
+    /** Downstream consumer; both callbacks receive reused objects and run on the replay thread. */
+    public interface Listener {
+        default void onEvent(GattCapture.Event e) {}
+        default void onMeasurement(GattCapture.Event source, CgmsParser.MeasurementRecord r) {}
+    }
+
+    public interface ListenerFactory { Listener create(String source); }
+
+    public static final class Stats {
+        public final String source;
+        public long events;
+        public long notifications;
+        public long measurements;
+        public long payloadBytes;
+        public long malformedBytes;
+        public long crcFailures;
+        public long recordedNanos;
+        public long wallNanos;
+        // Time spent decoding and in the listener, per event
+        public long dispatchNanosTotal;
+        public long dispatchNanosMax;
+        // Paced mode only: how late events were dispatched relative to their schedule
+        public long lagNanosMax;
+
+        Stats(String source) { this.source = source; }
+
+        public double eventsPerSecond() {
+            return wallNanos == 0 ? 0 : events * 1e9 / wallNanos;
+        }
+
+        public double measurementsPerSecond() {
+            return wallNanos == 0 ? 0 : measurements * 1e9 / wallNanos;
+        }
+
+        public double meanDispatchNanos() {
+            return events == 0 ? 0 : (double) dispatchNanosTotal / events;
+        }
+
+        @Override public String toString() {
+            return source + ": events=" + events +
+                    ", measurements=" + measurements +
+                    ", malformedBytes=" + malformedBytes +
+                    (crcFailures > 0 ? ", crcFailures=" + crcFailures : "") +
+                    ", recorded=" + (recordedNanos / 1_000_000) + "ms" +
+                    ", wall=" + (wallNanos / 1_000_000) + "ms" +
+                    String.format(", %.0f events/s, %.0f meas/s, dispatch mean=%.0fns max=%dns",
+                            eventsPerSecond(), measurementsPerSecond(), meanDispatchNanos(), dispatchNanosMax) +
+                    (lagNanosMax > 0 ? ", lagMax=" + (lagNanosMax / 1000) + "us" : "");
+        }
+    }
+
+    public static final Listener NO_OP = new Listener() {};
+
+    private final double speed;
+
+    /** @param speed replay speed relative to recording; 0 or less means as fast as possible */
+    public ReplayEngine(double speed) {
+        this.speed = speed;
+    }
+
+    public Stats replay(File file, Listener listener) throws IOException {
+        try (GattCapture.Reader reader = new GattCapture.Reader(file)) {
+            return replay(file.getName(), reader, listener);
+        }
+    }
+
+    public Stats replay(String source, InputStream in, Listener listener) throws IOException {
+        try (GattCapture.Reader reader = new GattCapture.Reader(in)) {
+            return replay(source, reader, listener);
+        }
+    }
+
+    /** Replays each file on its own thread with a fresh listener; results are in input order. */
+    public List<Stats> replayAll(List<File> files, ListenerFactory factory, int threads)
+            throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<Stats>> futures = new ArrayList<>(files.size());
+            for (File f : files) futures.add(pool.submit(() -> replay(f, factory.create(f.getName()))));
+            List<Stats> out = new ArrayList<>(files.size());
+            for (Future<Stats> fu : futures) {
+                try {
+                    out.add(fu.get());
+                } catch (ExecutionException e) {
+                    Throwable c = e.getCause();
+                    if (c instanceof IOException) throw (IOException) c;
+                    throw new IOException(c);
+                }
+            }
+            return out;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Stats replay(String source, GattCapture.Reader reader, Listener listener) throws IOException {
+        Stats st = new Stats(source);
+        GattCapture.Event e = new GattCapture.Event();
+        CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+        CgmsParser.MeasurementSink sink = new CgmsParser.MeasurementSink() {
+            @Override public void onMeasurement(CgmsParser.MeasurementRecord r) {
+                st.measurements++;
+                listener.onMeasurement(e, r);
+            }
+
+            @Override public void onCrcError(byte[] v, int off, int len) {
+                st.crcFailures++;
+            }
+        };
+        // Follows the Feature reads in the capture, as the session did
+        boolean e2eCrc = false;
+        boolean paced = speed > 0;
+        long first = Long.MIN_VALUE;
+        long last = 0;
+        long wallStart = System.nanoTime();
+
+        while (reader.next(e)) {
+            if (first == Long.MIN_VALUE) first = e.timestampNanos;
+            last = e.timestampNanos;
+            if (paced) {
+                long due = wallStart + (long) ((e.timestampNanos - first) / speed);
+                long now = System.nanoTime();
+                if (due > now) LockSupport.parkNanos(due - now);
+                long lag = System.nanoTime() - due;
+                if (lag > st.lagNanosMax) st.lagNanosMax = lag;
+            }
+
+            long t0 = System.nanoTime();
+            st.events++;
+            st.payloadBytes += e.length;
+            listener.onEvent(e);
+            if (e.type == GattCapture.TYPE_READ && e.status == 0 && e.is(CgmsUuids.CGM_FEATURE)) {
+                e2eCrc = CgmsParser.e2eCrcSupported(Arrays.copyOf(e.value, e.length));
+            } else if (e.type == GattCapture.TYPE_NOTIFY && e.is(CgmsUuids.CGM_MEASUREMENT)) {
+                st.notifications++;
+                int used = CgmsParser.decodeMeasurements(e.value, 0, e.length, record, sink, e2eCrc);
+                st.malformedBytes += e.length - used;
+            }
+            long dt = System.nanoTime() - t0;
+            st.dispatchNanosTotal += dt;
+            if (dt > st.dispatchNanosMax) st.dispatchNanosMax = dt;
+        }
+        st.wallNanos = System.nanoTime() - wallStart;
+        st.recordedNanos = first == Long.MIN_VALUE ? 0 : last - first;
+        return st;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double speed = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--speed".equals(args[i]) && i + 1 < args.length) speed = Double.parseDouble(args[++i]);
+            else if ("--threads".equals(args[i]) && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else files.add(new File(args[i]));
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: ReplayEngine [--speed N] [--threads N] capture.cgmc...");
+            System.exit(2);
+        }
+        long t0 = System.nanoTime();
+        List<Stats> all = new ReplayEngine(speed).replayAll(files, src -> NO_OP, threads);
+        long wall = System.nanoTime() - t0;
+        long events = 0, meas = 0;
+        for (Stats s : all) {
+            System.out.println(s);
+            events += s.events;
+            meas += s.measurements;
+        }
+        System.out.printf("total: %d files, %d events, %d measurements in %dms (%.0f events/s)%n",
+                all.size(), events, meas, wall / 1_000_000, events * 1e9 / Math.max(1, wall));
+    }
+}
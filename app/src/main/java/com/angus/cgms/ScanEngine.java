@@ -0,0 +1,193 @@
+package com.angus.cgms;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Scan duty-cycle and batching decisions, plus scan metrics.
+ *
+ * A scan starts in low-latency mode, where most sensors are found within a few seconds, then
+ * steps down to balanced and low-power as time passes without a pick, so a scan left running
+ * does not hold the radio at full duty for its whole timeout. When the results per second stay
+ * above {@link #CROWDED_RESULTS_PER_SEC} (many advertisers nearby) it asks for batched results
+ * ({@code setReportDelay}) so the app is woken once per batch instead of once per packet.
+ *
+ * Every change needs a scanner restart, and Android blocks apps that start more than five scans
+ * in 30 s, so changes are held back while {@link #MAX_STARTS_PER_WINDOW} starts are in the
+ * window. Mode values are the {@code ScanSettings.SCAN_MODE_*} constants. No Android types and
+ * time is passed in; not thread-safe (BleManager calls it on its control thread).
+ */
+public final class ScanEngine {
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    // Mode by time since the scan started
+    public static final long LOW_LATENCY_MILLIS = 10_000;
+    public static final long BALANCED_UNTIL_MILLIS = 30_000;
+
+    public static final int CROWDED_RESULTS_PER_SEC = 25;
+    public static final int CROWDED_TICKS = 2;  // consecutive ticks above the rate before batching
+    public static final long BATCH_REPORT_DELAY_MILLIS = 1_000;
+
+    public static final int MAX_STARTS_PER_WINDOW = 4;
+    public static final long START_WINDOW_MILLIS = 30_000;
+
+    private final boolean batchingSupported;
+    private final Set<String> seen = new HashSet<>();
+    private final long[] starts = new long[MAX_STARTS_PER_WINDOW]; // ring of recent start times, ns
+    private int startCount;
+
+    private boolean scanning;
+    private long scanStartNanos;
+    private int mode;
+    private long reportDelayMillis;
+    private int crowdedTicks;
+
+    // Rate over the current tick, and totals for this scan
+    private long windowStartNanos;
+    private int windowResults;
+    private int lastRate;
+    private int peakRate;
+    private long results;
+    private long batches;
+    private final long[] modeNanos = new long[3];
+    private long modeSinceNanos;
+
+    private final MetricsRegistry.Counter resultCounter;
+    private final MetricsRegistry.Counter batchCounter;
+    private final MetricsRegistry.Counter restartCounter;
+    private final MetricsRegistry.Counter[] discoveredCounter = new MetricsRegistry.Counter[3];
+    private final LatencyHistogram discoveryHist;
+
+    public ScanEngine(MetricsRegistry metrics, boolean batchingSupported) {
+        this.batchingSupported = batchingSupported;
+        resultCounter = metrics.counter("scan.results");
+        batchCounter = metrics.counter("scan.batches");
+        restartCounter = metrics.counter("scan.restarts");
+        for (int m = 0; m < discoveredCounter.length; m++) discoveredCounter[m] = metrics.counter("scan.discovered." + modeName(m));
+        discoveryHist = metrics.histogram("scan.time_to_discovery");
+    }
+
+    public static String modeName(int mode) {
+        switch (mode) {
+            case MODE_LOW_POWER: return "low_power";
+            case MODE_BALANCED: return "balanced";
+            default: return "low_latency";
+        }
+    }
+
+    /** A new scan; the caller starts the scanner with {@link #mode()} and {@link #reportDelayMillis()}. */
+    public void start(long nowNanos) {
+        scanning = true;
+        scanStartNanos = nowNanos;
+        mode = MODE_LOW_LATENCY;
+        reportDelayMillis = 0;
+        crowdedTicks = 0;
+        seen.clear();
+        windowStartNanos = nowNanos;
+        windowResults = 0;
+        lastRate = 0;
+        peakRate = 0;
+        results = 0;
+        batches = 0;
+        Arrays.fill(modeNanos, 0);
+        modeSinceNanos = nowNanos;
+        recordStart(nowNanos);
+    }
+
+    public void stop(long nowNanos) {
+        if (!scanning) return;
+        modeNanos[mode] += nowNanos - modeSinceNanos;
+        scanning = false;
+    }
+
+    /**
+     * One advertising report. Returns true the first time an address is seen in this scan, so
+     * only new devices go on to the name lookup and the UI.
+     */
+    public boolean onResult(String address, long nowNanos) {
+        results++;
+        windowResults++;
+        resultCounter.increment();
+        if (!seen.add(address)) return false;
+        discoveryHist.record(nowNanos - scanStartNanos);
+        discoveredCounter[mode].increment();
+        return true;
+    }
+
+    public void onBatch() {
+        batches++;
+        batchCounter.increment();
+    }
+
+    /**
+     * Call about once a second while scanning. Returns true if the mode or report delay changed
+     * and the scanner must be restarted with the new settings.
+     */
+    public boolean tick(long nowNanos) {
+        if (!scanning) return false;
+        long windowNanos = nowNanos - windowStartNanos;
+        if (windowNanos > 0) {
+            lastRate = (int) (windowResults * 1_000_000_000L / windowNanos);
+            peakRate = Math.max(peakRate, lastRate);
+        }
+        windowStartNanos = nowNanos;
+        windowResults = 0;
+        // Batched results arrive in bursts, so the rate only matters before batching is on
+        crowdedTicks = lastRate >= CROWDED_RESULTS_PER_SEC ? crowdedTicks + 1 : 0;
+
+        long elapsedMillis = (nowNanos - scanStartNanos) / 1_000_000L;
+        int wantMode = elapsedMillis < LOW_LATENCY_MILLIS ? MODE_LOW_LATENCY
+                : elapsedMillis < BALANCED_UNTIL_MILLIS ? MODE_BALANCED : MODE_LOW_POWER;
+        long wantDelay = reportDelayMillis;
+        if (batchingSupported && reportDelayMillis == 0 && crowdedTicks >= CROWDED_TICKS) wantDelay = BATCH_REPORT_DELAY_MILLIS;
+        if (wantMode == mode && wantDelay == reportDelayMillis) return false;
+        if (!canRestart(nowNanos)) return false; // try again next tick
+
+        modeNanos[mode] += nowNanos - modeSinceNanos;
+        modeSinceNanos = nowNanos;
+        mode = wantMode;
+        reportDelayMillis = wantDelay;
+        recordStart(nowNanos);
+        restartCounter.increment();
+        return true;
+    }
+
+    private boolean canRestart(long nowNanos) {
+        if (startCount < MAX_STARTS_PER_WINDOW) return true;
+        long oldest = starts[startCount % MAX_STARTS_PER_WINDOW];
+        return nowNanos - oldest >= START_WINDOW_MILLIS * 1_000_000L;
+    }
+
+    private void recordStart(long nowNanos) {
+        starts[startCount % MAX_STARTS_PER_WINDOW] = nowNanos;
+        startCount++;
+    }
+
+    public boolean isScanning() { return scanning; }
+    public int mode() { return mode; }
+    public long reportDelayMillis() { return reportDelayMillis; }
+    public int resultsPerSecond() { return lastRate; }
+    public int peakResultsPerSecond() { return peakRate; }
+    public long results() { return results; }
+    public int devices() { return seen.size(); }
+
+    public long elapsedNanos(long nowNanos) {
+        return nowNanos - scanStartNanos;
+    }
+
+    /** Summary of the last (or current) scan, e.g. {@code 412 results, 3 devices, peak 31/s, ll 10.0s bal 4.2s}. */
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(results).append(" results, ").append(seen.size()).append(" devices, peak ").append(peakRate).append("/s");
+        if (batches > 0) sb.append(", ").append(batches).append(" batches");
+        String[] names = {"lp", "bal", "ll"};
+        for (int m = MODE_LOW_LATENCY; m >= MODE_LOW_POWER; m--) {
+            if (modeNanos[m] > 0) sb.append(String.format(Locale.US, ", %s %.1fs", names[m], modeNanos[m] / 1e9));
+        }
+        return sb.toString();
+    }
+}
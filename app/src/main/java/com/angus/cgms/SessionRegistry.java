@@ -0,0 +1,69 @@
+package com.angus.cgms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Open sensor sessions by device address, at most {@code maxSessions} at a time.
+ *
+ * Each session owns its own connection state, GATT queue, backfill and notification ring, so
+ * this only tracks membership and which session is primary: the first one opened, or the
+ * oldest remaining once it closes. The primary session feeds the app-wide store, statistics and
+ * chart; every session feeds the per-device measurement stream.
+ *
+ * Changes are synchronized; {@link #all} and {@link #primary} read a published snapshot without
+ * locking, so GATT and dispatcher threads can look sessions up on every callback.
+ */
+public final class SessionRegistry<S> {
+    public static final int DEFAULT_MAX_SESSIONS = 8;
+
+    private final int maxSessions;
+    private final Map<String, S> byAddress = new LinkedHashMap<>();
+    private volatile List<S> all = Collections.emptyList();
+    private volatile S primary;
+
+    public SessionRegistry() {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    public SessionRegistry(int maxSessions) {
+        if (maxSessions < 1) throw new IllegalArgumentException("maxSessions < 1");
+        this.maxSessions = maxSessions;
+    }
+
+    public synchronized S get(String address) {
+        return byAddress.get(address);
+    }
+
+    /** Adds a session; false if one is already open for {@code address} or the registry is full. */
+    public synchronized boolean add(String address, S session) {
+        if (byAddress.containsKey(address) || byAddress.size() >= maxSessions) return false;
+        byAddress.put(address, session);
+        if (primary == null) primary = session;
+        publish();
+        return true;
+    }
+
+    /** Removes and returns the session for {@code address}, or null. */
+    public synchronized S remove(String address) {
+        S s = byAddress.remove(address);
+        if (s == null) return null;
+        if (s == primary) primary = byAddress.isEmpty() ? null : byAddress.values().iterator().next();
+        publish();
+        return s;
+    }
+
+    private void publish() {
+        all = Collections.unmodifiableList(new ArrayList<>(byAddress.values()));
+    }
+
+    /** Sessions in the order they were opened. */
+    public List<S> all() { return all; }
+    public S primary() { return primary; }
+    public int size() { return all.size(); }
+    public boolean isFull() { return all.size() >= maxSessions; }
+    public int maxSessions() { return maxSessions; }
+}
@@ -0,0 +1,487 @@
+package com.angus.cgms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Places CGM time offsets on the wall clock. A record's Time Offset is a u16 count of minutes
+ * since its sensor session started, so it wraps after 45.5 days and says nothing about which
+ * session it belongs to; this keeps one entry per session with the UTC time of offset 0 and the
+ * newest offset seen, with the offset extended past the u16 ({@code wraps * 65536 + offset}).
+ *
+ * A session's start comes from CGM Session Start Time (local time, time zone and DST, see
+ * {@link StartTime}) when the sensor has one, else from the receipt time of its first live
+ * record. Mapping an offset is one add and a multiply: a live record moves the session forward
+ * (a smaller offset is a wrap if it lands within {@link #WRAP_WINDOW} past 0xFFFF, otherwise a new
+ * session); a backfilled one is taken as the nearest to the newest offset, within half the
+ * range. A Start Time that matches the current receipt-anchored session within
+ * {@link #startToleranceMillis} only corrects its start; a different one starts a new session.
+ *
+ * The index is small (one entry per sensor, 14 days each) and sorted by start, so
+ * {@link #sessionAt} finds the session of any instant by binary search.
+ *
+ * <pre>
+ * file:    magic "CGMT" | u8 version | UTF device ("" = unknown) | u16 sessions | session...
+ * session: i32 id | u8 source | i64 start ms | i8 time zone | u8 dst | i64 first offset | i64 last offset | u16 run hours
+ * </pre>
+ * Saved atomically (temp file + rename). No Android types and time is passed in; methods are
+ * synchronized (records arrive on the dispatcher thread, Session Start Time reads on the control thread).
+ */
+public final class SessionTimeline {
+    public static final int MAGIC = 0x43474D54; // "CGMT"
+    public static final int VERSION = 2; // 2 adds the device
+    public static final int MAX_SESSIONS = 1024;
+    public static final long UNKNOWN = Long.MIN_VALUE;
+    public static final int WRAP = 0x10000;
+    private static final int HALF = WRAP / 2;
+    // A live offset this far (minutes) or less past 0xFFFF continues the session rather than starting one
+    public static final int WRAP_WINDOW = 7 * 24 * 60;
+
+    public static final int SOURCE_RECEIPT = 0;
+    public static final int SOURCE_START_TIME = 1;
+
+    public long startToleranceMillis = 15 * 60_000L;
+    // Address of the sensor whose sessions these are; saved with the index, null = any
+    public String device;
+
+    public interface Listener {
+        void onSessionStarted(SessionTimeline t, Session s);
+        /**
+         * The newest offset entered a half of the u16 range it had been through before; raw
+         * offsets from {@code fromOffset} for {@code count} minutes now belong to the new cycle.
+         */
+        void onOffsetsRecycled(SessionTimeline t, Session s, int fromOffset, int count);
+    }
+
+    /** Session Start Time (0x2AAA): local date and time, time zone and DST offset. */
+    public static final class StartTime {
+        public static final int SIZE = 9;
+        public static final int TZ_UNKNOWN = -128;
+        public static final int DST_STANDARD = 0;
+        public static final int DST_HALF_HOUR = 2;
+        public static final int DST_HOUR = 4;
+        public static final int DST_TWO_HOURS = 8;
+        public static final int DST_UNKNOWN = 255;
+
+        public int year;    // 0 = not known
+        public int month;   // 1..12, 0 = not known
+        public int day;
+        public int hours;
+        public int minutes;
+        public int seconds;
+        public int timeZone = TZ_UNKNOWN; // quarter hours from UTC
+        public int dst = DST_UNKNOWN;
+
+        /** Decodes {@code v[off, off + len)}, without a CRC; false if too short. */
+        public boolean decode(byte[] v, int off, int len) {
+            if (v == null || len < SIZE - 1 || off < 0 || off + len > v.length) return false;
+            year = CgmsParser.u16At(v, off);
+            month = v[off + 2] & 0xFF;
+            day = v[off + 3] & 0xFF;
+            hours = v[off + 4] & 0xFF;
+            minutes = v[off + 5] & 0xFF;
+            seconds = v[off + 6] & 0xFF;
+            timeZone = v[off + 7];
+            // Some sensors leave out the DST byte
+            dst = len >= SIZE ? v[off + 8] & 0xFF : DST_UNKNOWN;
+            return true;
+        }
+
+        public byte[] encode() {
+            return new byte[]{(byte) year, (byte) (year >> 8), (byte) month, (byte) day,
+                    (byte) hours, (byte) minutes, (byte) seconds, (byte) timeZone, (byte) dst};
+        }
+
+        /** Minutes the DST code adds to standard time; 0 when unknown. */
+        public int dstMinutes() {
+            switch (dst) {
+                case DST_HALF_HOUR: return 30;
+                case DST_HOUR: return 60;
+                case DST_TWO_HOURS: return 120;
+                default: return 0;
+            }
+        }
+
+        /** UTC of this local time, or {@link #UNKNOWN} without a date or time zone. */
+        public long epochMillis() {
+            if (year == 0 || month < 1 || month > 12 || day < 1 || day > 31
+                    || hours > 23 || minutes > 59 || seconds > 59 || timeZone == TZ_UNKNOWN) {
+                return UNKNOWN;
+            }
+            long local = ((daysFromCivil(year, month, day) * 24 + hours) * 60 + minutes) * 60_000L + seconds * 1000L;
+            return local - (timeZone * 15L + dstMinutes()) * 60_000L;
+        }
+
+        /** The local time of {@code epochMillis} in {@code zone}, as a sensor would report it. */
+        public static StartTime of(long epochMillis, TimeZone zone) {
+            StartTime st = new StartTime();
+            // The offsets in effect then, not today's raw offset
+            int total = zone.getOffset(epochMillis) / 60_000;
+            int saving = zone.inDaylightTime(new Date(epochMillis)) ? zone.getDSTSavings() / 60_000 : 0;
+            st.dst = saving == 30 ? DST_HALF_HOUR : saving == 60 ? DST_HOUR : saving == 120 ? DST_TWO_HOURS : DST_STANDARD;
+            st.timeZone = Math.floorDiv(total - st.dstMinutes(), 15);
+            long local = epochMillis + (st.timeZone * 15L + st.dstMinutes()) * 60_000L;
+            long days = Math.floorDiv(local, 86_400_000L);
+            long ms = local - days * 86_400_000L;
+            civilFromDays(days, st);
+            st.hours = (int) (ms / 3_600_000L);
+            st.minutes = (int) (ms / 60_000L % 60);
+            st.seconds = (int) (ms / 1000L % 60);
+            return st;
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.US, "%04d-%02d-%02d %02d:%02d:%02d",
+                    year, month, day, hours, minutes, seconds));
+            if (timeZone == TZ_UNKNOWN) {
+                sb.append(" tz ?");
+            } else {
+                int q = Math.abs(timeZone);
+                sb.append(String.format(Locale.US, " UTC%c%02d:%02d", timeZone < 0 ? '-' : '+', q / 4, q % 4 * 15));
+            }
+            if (dst == DST_UNKNOWN) sb.append(" dst ?");
+            else if (dst != DST_STANDARD) sb.append(" dst +").append(dstMinutes()).append('m');
+            return sb.toString();
+        }
+    }
+
+    /** One sensor session. Offsets are extended: {@code wraps * 65536 + offset}, -1 before any record. */
+    public static final class Session {
+        public int id;
+        public int source;
+        public long startMillis;  // UTC of offset 0
+        public int timeZone = StartTime.TZ_UNKNOWN;
+        public int dst = StartTime.DST_UNKNOWN;
+        public long firstOffset = -1;
+        public long lastOffset = -1;
+        public int runHours;      // Session Run Time, 0 = not known
+
+        public long millisAt(long extendedOffset) {
+            return startMillis + extendedOffset * 60_000L;
+        }
+
+        /** Time of the newest record, or the start before any. */
+        public long lastMillis() {
+            return millisAt(Math.max(lastOffset, 0));
+        }
+
+        /** Expected end from Session Run Time, or {@link #UNKNOWN}. */
+        public long endMillis() {
+            return runHours > 0 ? startMillis + runHours * 3_600_000L : UNKNOWN;
+        }
+
+        public int wraps() {
+            return lastOffset < 0 ? 0 : (int) (lastOffset / WRAP);
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "#%d %s start %d offsets %d..%d%s", id, sourceName(source),
+                    startMillis, firstOffset, lastOffset, runHours > 0 ? " run " + runHours + " h" : "");
+        }
+    }
+
+    private final Listener listener;
+    // Sorted by start; current is usually the last
+    private final ArrayList<Session> sessions = new ArrayList<>();
+    private Session current;
+    private int lastId;
+
+    public SessionTimeline(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ===== Sensor input =====
+
+    /** A Session Start Time read; returns the current session, which may be new. */
+    public synchronized Session onStartTime(StartTime st) {
+        long start = st.epochMillis();
+        if (start == UNKNOWN) return current;
+        Session s = current;
+        boolean fresh = s == null || s.source == SOURCE_START_TIME && s.startMillis != start
+                || s.source == SOURCE_RECEIPT && Math.abs(s.startMillis - start) > startToleranceMillis;
+        if (fresh) {
+            s = begin(SOURCE_START_TIME, start);
+        } else if (s.startMillis != start) {
+            s.startMillis = start;
+            sort(s);
+        }
+        s.source = SOURCE_START_TIME;
+        s.timeZone = st.timeZone;
+        s.dst = st.dst;
+        if (fresh) notifyStarted(s);
+        return s;
+    }
+
+    /** Session Run Time (0x2AAB), hours. */
+    public synchronized void onRunTime(int hours) {
+        if (current != null) current.runHours = hours;
+    }
+
+    /**
+     * A record with raw time offset {@code offset} received at {@code receivedMillis}; {@code live}
+     * unless a backfill is running (backfilled records are older, so a smaller offset is no new
+     * session). Returns the record's epoch millis.
+     */
+    public synchronized long onRecord(int offset, long receivedMillis, boolean live) {
+        offset &= 0xFFFF;
+        Session s = current;
+        Session fresh = null;
+        long ext;
+        if (s == null) {
+            s = fresh = begin(SOURCE_RECEIPT, receivedMillis - offset * 60_000L);
+            ext = offset;
+        } else if (s.lastOffset < 0) {
+            // First record of a session known from Start Time: the clock says which cycle
+            long expected = (receivedMillis - s.startMillis) / 60_000L;
+            ext = offset + Math.max(0, Math.round((expected - offset) / (double) WRAP)) * WRAP;
+        } else if (live) {
+            int raw = (int) (s.lastOffset & 0xFFFF);
+            int ahead = (offset - raw) & 0xFFFF;
+            if (offset >= raw || ahead <= WRAP_WINDOW) {
+                ext = s.lastOffset + ahead;
+            } else {
+                s = fresh = begin(SOURCE_RECEIPT, receivedMillis - offset * 60_000L);
+                ext = offset;
+            }
+        } else {
+            ext = unwrap(s.lastOffset, offset);
+        }
+        advance(s, ext);
+        if (fresh != null) notifyStarted(fresh);
+        return s.millisAt(ext);
+    }
+
+    private void advance(Session s, long ext) {
+        if (s.firstOffset < 0 || ext < s.firstOffset) s.firstOffset = ext;
+        if (ext <= s.lastOffset) return;
+        long from = s.lastOffset < 0 ? 2 : Math.max(s.lastOffset / HALF + 1, 2);
+        long to = Math.min(ext / HALF, from + 1);
+        s.lastOffset = ext;
+        // Entering a half of the u16 range for the second time: its raw offsets are a cycle old
+        for (long h = from; h <= to && listener != null; h++) {
+            listener.onOffsetsRecycled(this, s, (int) (h % 2) * HALF, HALF);
+        }
+    }
+
+    // ===== Queries =====
+
+    /** Epoch millis of raw {@code offset} in the current session, O(1); {@link #UNKNOWN} before any session. */
+    public synchronized long epochMillis(int offset) {
+        Session s = current;
+        if (s == null) return UNKNOWN;
+        return s.millisAt(s.lastOffset < 0 ? offset & 0xFFFF : unwrap(s.lastOffset, offset & 0xFFFF));
+    }
+
+    /** The session {@code epochMillis} falls in: the newest one started at or before it, or null. */
+    public synchronized Session sessionAt(long epochMillis) {
+        int lo = 0;
+        int hi = sessions.size() - 1;
+        Session found = null;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Session s = sessions.get(mid);
+            if (s.startMillis <= epochMillis) {
+                found = s;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /** Raw offset of {@code epochMillis} in session {@code s}, rounded down to the minute. */
+    public static int offsetAt(Session s, long epochMillis) {
+        return (int) (Math.floorDiv(epochMillis - s.startMillis, 60_000L) & 0xFFFF);
+    }
+
+    /** A copy of the current session, or null. */
+    public synchronized Session current() { return current == null ? null : copy(current); }
+    /** Id of the current session, -1 before any. */
+    public synchronized int currentId() { return current == null ? -1 : current.id; }
+    /** Raw u16 of the current session's newest offset, -1 before any record. */
+    public synchronized int newestOffset() {
+        return current == null || current.lastOffset < 0 ? -1 : (int) (current.lastOffset & 0xFFFF);
+    }
+    public synchronized int size() { return sessions.size(); }
+
+    /** Copies of the sessions, oldest first. */
+    public synchronized List<Session> sessions() {
+        ArrayList<Session> out = new ArrayList<>(sessions.size());
+        for (Session s : sessions) out.add(copy(s));
+        return out;
+    }
+
+    // ===== Numbering and restore =====
+
+    /** Numbers the current session {@code id} (the store's session number); later ones follow it. */
+    public synchronized void renumber(int id) {
+        if (current != null) current.id = id;
+        lastId = Math.max(lastId, id);
+    }
+
+    /**
+     * Continues session {@code id} from the store's newest reading: moves a saved entry for it
+     * forward, or starts one with the offset taken as not wrapped.
+     */
+    public synchronized void restore(int id, long timestampMillis, int offset) {
+        if (current != null && current.id == id) {
+            advance(current, current.lastOffset < 0 ? offset & 0xFFFF : unwrap(current.lastOffset, offset & 0xFFFF));
+            return;
+        }
+        Session s = begin(SOURCE_RECEIPT, timestampMillis - (offset & 0xFFFF) * 60_000L);
+        s.id = id;
+        lastId = Math.max(lastId, id);
+        s.firstOffset = s.lastOffset = offset & 0xFFFF;
+    }
+
+    public synchronized void clear() {
+        sessions.clear();
+        current = null;
+        lastId = 0;
+    }
+
+    // ===== Persistence =====
+
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(device != null ? device : "");
+            out.writeShort(sessions.size());
+            // The current session last, so load() picks it back up
+            for (Session s : sessions) if (s != current) write(out, s);
+            if (current != null) write(out, current);
+        }
+        if (!tmp.renameTo(file)) throw new IOException("rename failed: " + tmp);
+    }
+
+    /** Replaces the index with {@code file}'s; false if there is none or it is another {@link #device}'s. */
+    public synchronized boolean load(File file) throws IOException {
+        if (!file.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a session index: " + file);
+            int version = in.readUnsignedByte();
+            if (version != 1 && version != VERSION) throw new IOException("unsupported session index version " + version);
+            String saved = version >= 2 ? in.readUTF() : "";
+            if (device != null && !saved.isEmpty() && !device.equals(saved)) return false;
+            int n = in.readUnsignedShort();
+            clear();
+            for (int i = 0; i < n; i++) {
+                Session s = new Session();
+                s.id = in.readInt();
+                s.source = in.readUnsignedByte();
+                s.startMillis = in.readLong();
+                s.timeZone = in.readByte();
+                s.dst = in.readUnsignedByte();
+                s.firstOffset = in.readLong();
+                s.lastOffset = in.readLong();
+                s.runHours = in.readUnsignedShort();
+                insert(s);
+                current = s;
+                lastId = Math.max(lastId, s.id);
+            }
+        }
+        return true;
+    }
+
+    private static void write(DataOutputStream out, Session s) throws IOException {
+        out.writeInt(s.id);
+        out.writeByte(s.source);
+        out.writeLong(s.startMillis);
+        out.writeByte(s.timeZone);
+        out.writeByte(s.dst);
+        out.writeLong(s.firstOffset);
+        out.writeLong(s.lastOffset);
+        out.writeShort(s.runHours);
+    }
+
+    // ===== Internals =====
+
+    private Session begin(int source, long startMillis) {
+        Session s = new Session();
+        s.id = ++lastId;
+        s.source = source;
+        s.startMillis = startMillis;
+        insert(s);
+        current = s;
+        if (sessions.size() > MAX_SESSIONS) sessions.remove(0);
+        return s;
+    }
+
+    // Offset nearest to last, within half the range; never before the first cycle
+    private static long unwrap(long last, int offset) {
+        long ext = (last & ~0xFFFFL) + offset;
+        if (ext > last + HALF) ext -= WRAP;
+        else if (ext < last - HALF) ext += WRAP;
+        return ext < 0 ? ext + WRAP : ext;
+    }
+
+    private void insert(Session s) {
+        int i = sessions.size();
+        while (i > 0 && sessions.get(i - 1).startMillis > s.startMillis) i--;
+        sessions.add(i, s);
+    }
+
+    private void sort(Session s) {
+        sessions.remove(s);
+        insert(s);
+    }
+
+    private void notifyStarted(Session s) {
+        if (listener != null) listener.onSessionStarted(this, s);
+    }
+
+    private static Session copy(Session s) {
+        Session c = new Session();
+        c.id = s.id;
+        c.source = s.source;
+        c.startMillis = s.startMillis;
+        c.timeZone = s.timeZone;
+        c.dst = s.dst;
+        c.firstOffset = s.firstOffset;
+        c.lastOffset = s.lastOffset;
+        c.runHours = s.runHours;
+        return c;
+    }
+
+    public static String sourceName(int source) {
+        return source == SOURCE_START_TIME ? "start time" : source == SOURCE_RECEIPT ? "receipt" : "source " + source;
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date (H. Hinnant's days_from_civil)
+    static long daysFromCivil(int y, int m, int d) {
+        y -= m <= 2 ? 1 : 0;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static void civilFromDays(long z, StartTime out) {
+        z += 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int d = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int m = (int) (mp < 10 ? mp + 3 : mp - 9);
+        out.year = (int) (yoe + era * 400 + (m <= 2 ? 1 : 0));
+        out.month = m;
+        out.day = d;
+    }
+}
@@ -0,0 +1,288 @@
+package com.angus.cgms;
+
+/**
+ * IEEE 11073-20601 SFLOAT (16-bit) and FLOAT (32-bit) codec.
+ *
+ * Decoding uses a power-of-ten table instead of {@code Math.pow}, reports the reserved
+ * NaN / NRes / +INF / -INF encodings explicitly, and can produce exact scaled integers
+ * (e.g. tenths of mg/dL) so callers never need to touch floating point. All values are
+ * little-endian on the wire.
+ */
+public final class SfloatCodec {
+
+    // Value kinds returned by sfloatKind / floatKind
+    public static final int KIND_VALUE = 0;
+    public static final int KIND_NAN = 1;
+    public static final int KIND_NRES = 2;
+    public static final int KIND_POSITIVE_INFINITY = 3;
+    public static final int KIND_NEGATIVE_INFINITY = 4;
+    public static final int KIND_RESERVED = 5;
+
+    // SFLOAT special values (exponent 0, reserved mantissas)
+    public static final int SFLOAT_NAN = 0x07FF;
+    public static final int SFLOAT_NRES = 0x0800;
+    public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    public static final int SFLOAT_RESERVED = 0x0801;
+
+    // FLOAT special values
+    public static final int FLOAT_NAN = 0x007FFFFF;
+    public static final int FLOAT_NRES = 0x00800000;
+    public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    public static final int FLOAT_RESERVED = 0x00800001;
+
+    /** Returned by the scaled-integer decoders for special values or results that do not fit in an int. */
+    public static final int SCALED_INVALID = Integer.MIN_VALUE;
+
+    // The reserved mantissas only collide with special values at exponent 0
+    private static final int SFLOAT_MANTISSA_MAX = 2045;
+    private static final int SFLOAT_MANTISSA_MIN = -2045;
+    private static final int FLOAT_MANTISSA_MAX = 8388605;
+    private static final int FLOAT_MANTISSA_MIN = -8388605;
+
+    // 10^0 .. 10^22 are exactly representable as doubles
+    private static final double[] POW10 = new double[23];
+    // SFLOAT exponents -8..7 indexed by the raw 4-bit field; negative powers are stored as divisors
+    private static final double[] SFLOAT_SCALE = new double[16];
+    private static final boolean[] SFLOAT_DIVIDE = new boolean[16];
+    // int powers for scaled-integer conversion
+    private static final int[] POW10_INT = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+
+    static {
+        double p = 1;
+        for (int i = 0; i < POW10.length; i++) { POW10[i] = p; p *= 10; }
+        for (int raw = 0; raw < 16; raw++) {
+            int e = raw >= 8 ? raw - 16 : raw;
+            SFLOAT_SCALE[raw] = POW10[Math.abs(e)];
+            SFLOAT_DIVIDE[raw] = e < 0;
+        }
+    }
+
+    private SfloatCodec() {}
+
+    // ---- SFLOAT ----
+
+    public static int sfloatRawAt(byte[] v, int i) {
+        return (v[i] & 0xFF) | ((v[i + 1] & 0xFF) << 8);
+    }
+
+    public static int sfloatKind(int raw) {
+        switch (raw & 0xFFFF) {
+            case SFLOAT_NAN: return KIND_NAN;
+            case SFLOAT_NRES: return KIND_NRES;
+            case SFLOAT_POSITIVE_INFINITY: return KIND_POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY: return KIND_NEGATIVE_INFINITY;
+            case SFLOAT_RESERVED: return KIND_RESERVED;
+            default: return KIND_VALUE;
+        }
+    }
+
+    public static int sfloatMantissa(int raw) {
+        return (raw << 20) >> 20;
+    }
+
+    public static int sfloatExponent(int raw) {
+        return (raw << 16) >> 28;
+    }
+
+    /** Decodes a raw SFLOAT; NaN, NRes and reserved map to {@link Float#NaN}, infinities to the float infinities. */
+    public static float decodeSfloat(int raw) {
+        raw &= 0xFFFF;
+        switch (raw) {
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+                return Float.NaN;
+            case SFLOAT_POSITIVE_INFINITY: return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY: return Float.NEGATIVE_INFINITY;
+            default:
+                int e = raw >>> 12;
+                int m = (raw << 20) >> 20;
+                return (float) (SFLOAT_DIVIDE[e] ? m / SFLOAT_SCALE[e] : m * SFLOAT_SCALE[e]);
+        }
+    }
+
+    public static float sfloatAt(byte[] v, int i) {
+        return decodeSfloat(sfloatRawAt(v, i));
+    }
+
+    /**
+     * Decodes a raw SFLOAT as an integer in units of 10^{@code scaleExponent}, rounding half away
+     * from zero. For glucose in tenths of mg/dL pass {@code -1}.
+     *
+     * @return the scaled value, or {@link #SCALED_INVALID} for special values or overflow
+     */
+    public static int decodeSfloatScaled(int raw, int scaleExponent) {
+        if (sfloatKind(raw) != KIND_VALUE) return SCALED_INVALID;
+        return scale(sfloatMantissa(raw), sfloatExponent(raw) - scaleExponent);
+    }
+
+    public static int sfloatScaledAt(byte[] v, int i, int scaleExponent) {
+        return decodeSfloatScaled(sfloatRawAt(v, i), scaleExponent);
+    }
+
+    /** Encodes mantissa and exponent directly; throws if either is out of range. */
+    public static int encodeSfloat(int mantissa, int exponent) {
+        if (exponent < -8 || exponent > 7) {
+            throw new IllegalArgumentException("SFLOAT exponent out of range: " + exponent);
+        }
+        if (!sfloatFits(mantissa, exponent)) {
+            throw new IllegalArgumentException("SFLOAT mantissa out of range: " + mantissa);
+        }
+        return ((exponent & 0x0F) << 12) | (mantissa & 0x0FFF);
+    }
+
+    /**
+     * Encodes a float with the smallest exponent (best precision) that keeps the mantissa in range.
+     * NaN and values beyond the representable range encode as the matching special value.
+     */
+    public static int encodeSfloat(float value) {
+        if (Float.isNaN(value)) return SFLOAT_NAN;
+        if (value == Float.POSITIVE_INFINITY) return SFLOAT_POSITIVE_INFINITY;
+        if (value == Float.NEGATIVE_INFINITY) return SFLOAT_NEGATIVE_INFINITY;
+        for (int e = -8; e <= 7; e++) {
+            double scaled = e < 0 ? value * POW10[-e] : value / POW10[e];
+            long m = Math.round(scaled);
+            if (sfloatFits(m, e)) return normalizeSfloat((int) m, e);
+        }
+        return value > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+    }
+
+    /** Encodes an exact scaled integer, e.g. tenths of mg/dL with {@code scaleExponent = -1}. */
+    public static int encodeSfloatScaled(int scaled, int scaleExponent) {
+        long m = scaled;
+        int e = scaleExponent;
+        while ((!sfloatFits(m, e) && e < 7) || e < -8) {
+            m = divRound(m, 10);
+            e++;
+        }
+        if (!sfloatFits(m, e)) return m > 0 ? SFLOAT_POSITIVE_INFINITY : SFLOAT_NEGATIVE_INFINITY;
+        return normalizeSfloat((int) m, e);
+    }
+
+    public static void putSfloat(byte[] v, int i, int raw) {
+        v[i] = (byte) raw;
+        v[i + 1] = (byte) (raw >> 8);
+    }
+
+    private static boolean sfloatFits(long m, int e) {
+        return e == 0 ? (m >= SFLOAT_MANTISSA_MIN && m <= SFLOAT_MANTISSA_MAX) : (m >= -2048 && m <= 2047);
+    }
+
+    // Strip trailing zeros from negative exponents so e.g. 120.0 encodes as 120e0 rather than 1200e-1
+    private static int normalizeSfloat(int m, int e) {
+        while (m != 0 && m % 10 == 0 && e < 0) { m /= 10; e++; }
+        if (m == 0) e = 0;
+        return encodeSfloat(m, e);
+    }
+
+    // ---- FLOAT ----
+
+    public static int floatRawAt(byte[] v, int i) {
+        return (v[i] & 0xFF) | ((v[i + 1] & 0xFF) << 8) | ((v[i + 2] & 0xFF) << 16) | ((v[i + 3] & 0xFF) << 24);
+    }
+
+    public static int floatKind(int raw) {
+        switch (raw) {
+            case FLOAT_NAN: return KIND_NAN;
+            case FLOAT_NRES: return KIND_NRES;
+            case FLOAT_POSITIVE_INFINITY: return KIND_POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY: return KIND_NEGATIVE_INFINITY;
+            case FLOAT_RESERVED: return KIND_RESERVED;
+            default: return KIND_VALUE;
+        }
+    }
+
+    public static int floatMantissa(int raw) {
+        return (raw << 8) >> 8;
+    }
+
+    public static int floatExponent(int raw) {
+        return raw >> 24;
+    }
+
+    public static float decodeFloat(int raw) {
+        switch (floatKind(raw)) {
+            case KIND_VALUE: break;
+            case KIND_POSITIVE_INFINITY: return Float.POSITIVE_INFINITY;
+            case KIND_NEGATIVE_INFINITY: return Float.NEGATIVE_INFINITY;
+            default: return Float.NaN;
+        }
+        int m = floatMantissa(raw);
+        int e = floatExponent(raw);
+        if (e >= 0 && e < POW10.length) return (float) (m * POW10[e]);
+        if (e < 0 && -e < POW10.length) return (float) (m / POW10[-e]);
+        // Outside the exact table; only reachable for magnitudes no sensor reports
+        return (float) (m * Math.pow(10, e));
+    }
+
+    public static float floatAt(byte[] v, int i) {
+        return decodeFloat(floatRawAt(v, i));
+    }
+
+    public static int decodeFloatScaled(int raw, int scaleExponent) {
+        if (floatKind(raw) != KIND_VALUE) return SCALED_INVALID;
+        return scale(floatMantissa(raw), floatExponent(raw) - scaleExponent);
+    }
+
+    public static int encodeFloat(int mantissa, int exponent) {
+        if (exponent < -128 || exponent > 127) {
+            throw new IllegalArgumentException("FLOAT exponent out of range: " + exponent);
+        }
+        if (!floatFits(mantissa, exponent)) {
+            throw new IllegalArgumentException("FLOAT mantissa out of range: " + mantissa);
+        }
+        return (exponent << 24) | (mantissa & 0x00FFFFFF);
+    }
+
+    public static int encodeFloat(float value) {
+        if (Float.isNaN(value)) return FLOAT_NAN;
+        if (value == Float.POSITIVE_INFINITY) return FLOAT_POSITIVE_INFINITY;
+        if (value == Float.NEGATIVE_INFINITY) return FLOAT_NEGATIVE_INFINITY;
+        if (value == 0f) return 0;
+        // Start from the exponent that puts the value just inside the mantissa range
+        int e = Math.max(-128, (int) Math.floor(Math.log10(Math.abs(value))) - 6);
+        for (; e <= 127; e++) {
+            long m = Math.round(value / Math.pow(10, e));
+            if (floatFits(m, e)) {
+                while (m != 0 && m % 10 == 0 && e < 0) { m /= 10; e++; }
+                return encodeFloat((int) m, m == 0 ? 0 : e);
+            }
+        }
+        return value > 0 ? FLOAT_POSITIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+    }
+
+    public static void putFloat(byte[] v, int i, int raw) {
+        v[i] = (byte) raw;
+        v[i + 1] = (byte) (raw >> 8);
+        v[i + 2] = (byte) (raw >> 16);
+        v[i + 3] = (byte) (raw >> 24);
+    }
+
+    private static boolean floatFits(long m, int e) {
+        return e == 0 ? (m >= FLOAT_MANTISSA_MIN && m <= FLOAT_MANTISSA_MAX) : (m >= -8388608 && m <= 8388607);
+    }
+
+    // ---- helpers ----
+
+    private static int scale(int mantissa, int shift) {
+        if (mantissa == 0) return 0;
+        if (shift >= 0) {
+            if (shift >= POW10_INT.length) return SCALED_INVALID;
+            long r = (long) mantissa * POW10_INT[shift];
+            return (r > Integer.MAX_VALUE || r <= Integer.MIN_VALUE) ? SCALED_INVALID : (int) r;
+        }
+        if (-shift >= POW10_INT.length) return 0;
+        return (int) divRound(mantissa, POW10_INT[-shift]);
+    }
+
+    private static long divRound(long n, long d) {
+        long q = n / d;
+        long r = n % d;
+        if (Math.abs(r) * 2 >= d) q += n < 0 ? -1 : 1;
+        return q;
+    }
+}
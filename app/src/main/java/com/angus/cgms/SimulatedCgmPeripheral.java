@@ -0,0 +1,710 @@
+package com.angus.cgms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process CGM sensor behind the {@link GattTransport} interface, for driving the client's
+ * queueing, bonding, reconnect, CCCD and RACP paths at load without a radio.
+ *
+ * The sensor clock runs from construction to {@link #shutdown}: it produces
+ * {@link #setNotificationsPerSecond} notifications (thousands per second are fine), each with
+ * up to {@link #setRecordsPerNotification} records as the MTU allows. Each record advances the
+ * time offset by one, so offsets stand for records rather than minutes and wrap at 0xFFFF. While
+ * the link is down or the measurement CCCD is off, records only go to a bounded history, which
+ * RACP "report records" (all, or time offset at or after) streams back as measurement
+ * notifications followed by the response indication. CCCDs survive a reconnect only when bonded.
+ *
+ * {@link #setE2eCrc} sets the Feature bit and appends an E2E-CRC to every record and CGMS value;
+ * SOCP writes then need a valid CRC too.
+ *
+ * SOCP: the communication interval counts notification periods, so interval N holds N periods
+ * of live records and sends them together, packed to the MTU (0 sends none, only history);
+ * start/stop session (a start after a stop restarts the offsets), alert levels, calibration
+ * records and reset are answered as a sensor would.
+ *
+ * Faults: {@link #injectDisconnect} (e.g. status 19 or 8), {@link #failConnects},
+ * {@link #dropCccdResponses} (the CCCD write never completes, so the client times out),
+ * {@link #corruptRecords} (a bit flipped after the CRC was computed) and {@link #setInRange} (a direct connect fails with 133 after {@link #setConnectTimeoutMillis},
+ * an autoConnect request waits). {@link #after} runs any of these on a schedule, e.g.
+ * {@code sim.after(5000, () -> sim.injectDisconnect(19))}.
+ *
+ * Everything runs on one scheduler thread, which also delivers the callbacks, so like the
+ * Android binder thread a slow callback delays the sensor.
+ */
+public final class SimulatedCgmPeripheral implements GattTransport {
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 247;
+    public static final int RECORD_SIZE = 8; // size, flags, glucose, time offset, trend; plus 2 with E2E-CRC
+    public static final int DEFAULT_HISTORY = 16_384;
+    private static final long TICK_NANOS = 1_000_000;
+    private static final int BACKFILL_CHUNK = 32; // notifications per task, so live ticks and aborts interleave
+
+    private static final Map<UUID, Integer> CHARACTERISTICS = new LinkedHashMap<>();
+    static {
+        CHARACTERISTICS.put(CgmsUuids.CGM_MEASUREMENT, PROPERTY_NOTIFY);
+        CHARACTERISTICS.put(CgmsUuids.CGM_FEATURE, PROPERTY_READ);
+        CHARACTERISTICS.put(CgmsUuids.CGM_STATUS, PROPERTY_READ);
+        CHARACTERISTICS.put(CgmsUuids.CGM_SESSION_START_TIME, PROPERTY_READ | PROPERTY_WRITE);
+        CHARACTERISTICS.put(CgmsUuids.CGM_SESSION_RUN_TIME, PROPERTY_READ);
+        CHARACTERISTICS.put(CgmsUuids.CGM_SPECIFIC_OPS_CP, PROPERTY_WRITE | PROPERTY_INDICATE);
+        CHARACTERISTICS.put(CgmsUuids.RECORD_ACCESS_CP, PROPERTY_WRITE | PROPERTY_INDICATE);
+    }
+
+    private final String address;
+    private final ScheduledExecutorService exec;
+    private volatile long sessionStartMillis;
+    private volatile Callback cb;
+
+    // Configuration
+    private volatile double notificationsPerSecond = 1;
+    private volatile int recordsPerNotification = 1;
+    private volatile long responseDelayMicros;
+    private volatile long connectDelayMillis = 20;
+    private volatile long connectTimeoutMillis = 5_000;
+    private volatile long bondDelayMillis = 200;
+    private volatile int maxMtu = MAX_MTU;
+    private volatile boolean inRange = true;
+    private volatile int bondState = BOND_BONDED;
+    private volatile int failConnects;
+    private volatile int failConnectStatus = 133;
+    private volatile int cccdDrops;
+    private volatile boolean e2eCrc;
+    private volatile int corruptRecords;
+
+    // Link state, scheduler thread only; a callback is only delivered if its link is still current
+    private volatile int link;
+    private boolean connecting;
+    private boolean connected;
+    private int mtu = DEFAULT_MTU;
+    private final Map<UUID, byte[]> cccd = new HashMap<>();
+    private ScheduledFuture<?> connectTimeout;
+
+    // Sensor clock and history
+    private final ScheduledFuture<?> ticker;
+    private long lastTickNanos;
+    private double credit;
+    private int nextOffset;
+    private final int[] historyOffset;
+    private final short[] historyGlucose;
+    private int historyHead;
+    private int historyCount;
+    private int racpRun; // bumps on every new report or abort, so a superseded backfill stops
+    // SOCP state, scheduler thread only except the interval
+    private volatile int commInterval = 1;
+    private int heldRecords; // newest history entries not sent yet
+    private int heldPeriods;
+    private boolean sessionRunning = true;
+    private final Map<Integer, Integer> alertLevels = new HashMap<>(); // Set op code -> SFLOAT
+    private final List<byte[]> calibrations = new ArrayList<>();
+
+    // Stats
+    private final AtomicLong notificationsSent = new AtomicLong();
+    private final AtomicLong recordsGenerated = new AtomicLong();
+    private final AtomicLong recordsSent = new AtomicLong();
+    private final AtomicLong backfillRecordsSent = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+
+    {
+        alertLevels.put(SocpClient.ALERT_PATIENT_HIGH, SfloatCodec.encodeSfloat(180, 0));
+        alertLevels.put(SocpClient.ALERT_PATIENT_LOW, SfloatCodec.encodeSfloat(70, 0));
+        alertLevels.put(SocpClient.ALERT_HYPO, SfloatCodec.encodeSfloat(55, 0));
+        alertLevels.put(SocpClient.ALERT_HYPER, SfloatCodec.encodeSfloat(300, 0));
+        alertLevels.put(SocpClient.ALERT_RATE_OF_DECREASE, SfloatCodec.encodeSfloat(30, -1));
+        alertLevels.put(SocpClient.ALERT_RATE_OF_INCREASE, SfloatCodec.encodeSfloat(30, -1));
+    }
+
+    public SimulatedCgmPeripheral(String address) {
+        this(address, DEFAULT_HISTORY);
+    }
+
+    public SimulatedCgmPeripheral(String address, int historyCapacity) {
+        this.address = address;
+        this.historyOffset = new int[historyCapacity];
+        this.historyGlucose = new short[historyCapacity];
+        this.sessionStartMillis = System.currentTimeMillis();
+        exec = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sim-cgm-" + address);
+            t.setDaemon(true);
+            return t;
+        });
+        lastTickNanos = System.nanoTime();
+        ticker = exec.scheduleAtFixedRate(this::tick, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    // ===== Configuration and faults =====
+
+    public void setNotificationsPerSecond(double rate) { notificationsPerSecond = rate; }
+    public void setRecordsPerNotification(int n) { recordsPerNotification = Math.max(1, n); }
+    /** Delay before every response callback; 0 answers as soon as the scheduler thread is free. */
+    public void setResponseDelayMicros(long us) { responseDelayMicros = us; }
+    public void setConnectDelayMillis(long ms) { connectDelayMillis = ms; }
+    public void setConnectTimeoutMillis(long ms) { connectTimeoutMillis = ms; }
+    public void setBondDelayMillis(long ms) { bondDelayMillis = ms; }
+    public void setMaxMtu(int mtu) { maxMtu = Math.max(DEFAULT_MTU, Math.min(MAX_MTU, mtu)); }
+    public void setBondState(int state) { bondState = state; }
+
+    /** The next {@code n} connects fail with {@code status}. */
+    public void failConnects(int n, int status) {
+        failConnectStatus = status;
+        failConnects = n;
+    }
+
+    /** The next {@code n} CCCD writes get no response. */
+    public void dropCccdResponses(int n) { cccdDrops = n; }
+
+    public void setE2eCrc(boolean on) { e2eCrc = on; }
+
+    /** The next {@code n} records sent, live or backfilled, fail their E2E-CRC. */
+    public void corruptRecords(int n) { corruptRecords = n; }
+
+    /** Communication interval in notification periods, as set over SOCP. */
+    public int commInterval() { return commInterval; }
+    public void setCommInterval(int periods) { commInterval = periods & 0xFF; }
+
+    /** Drops the link as the sensor or controller would, e.g. 19 (peer terminated) or 8 (supervision timeout). */
+    public void injectDisconnect(int status) {
+        exec.execute(() -> {
+            if (!connected) return;
+            dropLink();
+            Callback c = cb;
+            if (c != null) c.onConnectionStateChange(status, STATE_DISCONNECTED);
+        });
+    }
+
+    /** Out of range drops the link with status 8; back in range completes a waiting autoConnect. */
+    public void setInRange(boolean in) {
+        exec.execute(() -> {
+            inRange = in;
+            if (!in && connected) {
+                dropLink();
+                Callback c = cb;
+                if (c != null) c.onConnectionStateChange(8, STATE_DISCONNECTED);
+            } else if (in && connecting) {
+                scheduleConnect(link);
+            }
+        });
+    }
+
+    /** Adds {@code records} to the history at once, as if the sensor had been out of range; waits until done. */
+    public void addHistory(int records) {
+        try {
+            exec.submit(() -> {
+                for (int i = 0; i < records; i++) {
+                    int offset = nextOffset;
+                    nextOffset = (nextOffset + 1) & 0xFFFF;
+                    remember(offset, glucoseAt(offset));
+                }
+                recordsGenerated.addAndGet(records);
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Runs {@code action} on the scheduler thread after {@code delayMillis}. */
+    public ScheduledFuture<?> after(long delayMillis, Runnable action) {
+        return exec.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        ticker.cancel(false);
+        exec.shutdownNow();
+    }
+
+    public long notificationsSent() { return notificationsSent.get(); }
+    public long recordsGenerated() { return recordsGenerated.get(); }
+    public long recordsSent() { return recordsSent.get(); }
+    public long backfillRecordsSent() { return backfillRecordsSent.get(); }
+    public long connects() { return connects.get(); }
+
+    // ===== GattTransport =====
+
+    @Override public String getAddress() { return address; }
+    @Override public String getName() { return "SIM-CGM " + address; }
+    @Override public void setCallback(Callback cb) { this.cb = cb; }
+    @Override public int getBondState() { return bondState; }
+
+    @Override public boolean createBond() {
+        if (bondState != BOND_NONE) return false;
+        bondState = BOND_BONDING;
+        exec.schedule(() -> {
+            bondState = BOND_BONDED;
+            Callback c = cb;
+            if (c != null) c.onBondStateChanged(BOND_BONDED);
+        }, bondDelayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    @Override public boolean connect(boolean autoConnect) {
+        exec.execute(() -> {
+            link++;
+            connecting = true;
+            if (inRange) {
+                scheduleConnect(link);
+            } else if (!autoConnect) {
+                int l = link;
+                connectTimeout = exec.schedule(() -> failConnect(l, 133), connectTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        return true;
+    }
+
+    private void scheduleConnect(int l) {
+        if (connectTimeout != null) connectTimeout.cancel(false);
+        exec.schedule(() -> {
+            if (l != link || !connecting || !inRange) return;
+            if (failConnects > 0) {
+                failConnects--;
+                failConnect(l, failConnectStatus);
+                return;
+            }
+            connecting = false;
+            connected = true;
+            mtu = DEFAULT_MTU;
+            if (bondState != BOND_BONDED) cccd.clear();
+            connects.incrementAndGet();
+            Callback c = cb;
+            if (c != null) c.onConnectionStateChange(GATT_SUCCESS, STATE_CONNECTED);
+        }, connectDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void failConnect(int l, int status) {
+        if (l != link || !connecting) return;
+        connecting = false;
+        Callback c = cb;
+        if (c != null) c.onConnectionStateChange(status, STATE_DISCONNECTED);
+    }
+
+    private void dropLink() {
+        connected = false;
+        connecting = false;
+        racpRun++;
+        heldRecords = 0; // still in the history for a backfill
+        heldPeriods = 0;
+        if (bondState != BOND_BONDED) cccd.clear();
+    }
+
+    @Override public void disconnect() {
+        exec.execute(() -> {
+            if (!connected && !connecting) return;
+            dropLink();
+            Callback c = cb;
+            if (c != null) c.onConnectionStateChange(GATT_SUCCESS, STATE_DISCONNECTED);
+        });
+    }
+
+    @Override public void close() {
+        exec.execute(() -> {
+            link++;
+            if (connected || connecting) dropLink();
+        });
+    }
+
+    @Override public boolean discoverServices() {
+        return respond(() -> cb.onServicesDiscovered(GATT_SUCCESS));
+    }
+
+    @Override public boolean requestMtu(int requested) {
+        return respond(() -> {
+            mtu = Math.max(DEFAULT_MTU, Math.min(requested, maxMtu));
+            cb.onMtuChanged(mtu, GATT_SUCCESS);
+        });
+    }
+
+    @Override public boolean requestConnectionPriority(int priority) {
+        return true;
+    }
+
+    @Override public Map<UUID, Integer> getCharacteristics() {
+        return Collections.unmodifiableMap(CHARACTERISTICS);
+    }
+
+    @Override public List<UUID> getDescriptors(UUID characteristic) {
+        Integer p = CHARACTERISTICS.get(characteristic);
+        if (p == null || (p & (PROPERTY_NOTIFY | PROPERTY_INDICATE)) == 0) return Collections.emptyList();
+        List<UUID> out = new ArrayList<>(1);
+        out.add(CgmsUuids.CCCD);
+        return out;
+    }
+
+    @Override public boolean setNotification(UUID characteristic, boolean enable) {
+        return CHARACTERISTICS.containsKey(characteristic);
+    }
+
+    @Override public boolean read(UUID characteristic) {
+        if (!CHARACTERISTICS.containsKey(characteristic)) return false;
+        return respond(() -> cb.onCharacteristicRead(characteristic, GATT_SUCCESS, readValue(characteristic)));
+    }
+
+    @Override public boolean write(UUID characteristic, byte[] value) {
+        Integer p = CHARACTERISTICS.get(characteristic);
+        if (p == null || (p & PROPERTY_WRITE) == 0) return false;
+        byte[] v = value.clone();
+        return respond(() -> {
+            boolean socp = CgmsUuids.CGM_SPECIFIC_OPS_CP.equals(characteristic);
+            if (socp && e2eCrc && !E2eCrc.check(v)) {
+                cb.onCharacteristicWrite(characteristic, v.length < 1 + E2eCrc.SIZE ? E2eCrc.ATT_MISSING_CRC : E2eCrc.ATT_INVALID_CRC, v);
+                return;
+            }
+            cb.onCharacteristicWrite(characteristic, GATT_SUCCESS, v);
+            if (CgmsUuids.RECORD_ACCESS_CP.equals(characteristic)) onRacp(v);
+            else if (socp) onSocp(v);
+        });
+    }
+
+    @Override public boolean writeCccd(UUID characteristic, byte[] value) {
+        if (getDescriptors(characteristic).isEmpty()) return false;
+        byte[] v = value.clone();
+        return respond(() -> {
+            if (cccdDrops > 0) {
+                cccdDrops--;
+                return;
+            }
+            cccd.put(characteristic, v);
+            cb.onDescriptorWrite(characteristic, GATT_SUCCESS, v);
+        });
+    }
+
+    @Override public boolean readCccd(UUID characteristic) {
+        if (getDescriptors(characteristic).isEmpty()) return false;
+        return respond(() -> {
+            byte[] v = cccd.get(characteristic);
+            cb.onDescriptorRead(characteristic, GATT_SUCCESS, v != null ? v.clone() : new byte[]{0, 0});
+        });
+    }
+
+    // Runs r after the response delay if the link it was requested on is still up
+    private boolean respond(Runnable r) {
+        int l = link;
+        exec.schedule(() -> {
+            if (l != link || !connected || cb == null) return;
+            r.run();
+        }, responseDelayMicros, TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    private boolean enabled(UUID characteristic) {
+        byte[] v = cccd.get(characteristic);
+        return v != null && v.length > 0 && (v[0] & 0x03) != 0;
+    }
+
+    // ===== Sensor =====
+
+    private void tick() {
+        long now = System.nanoTime();
+        credit += notificationsPerSecond * (now - lastTickNanos) / 1e9;
+        lastTickNanos = now;
+        // A stalled scheduler catches up by at most one second
+        credit = Math.min(credit, Math.max(1, notificationsPerSecond));
+        while (credit >= 1) {
+            credit -= 1;
+            if (!sessionRunning) continue;
+            int interval = commInterval;
+            if (interval > 1 && interval != SocpClient.INTERVAL_FASTEST) {
+                tickHeld(interval);
+                continue;
+            }
+            boolean crc = e2eCrc;
+            int size = recordSize(crc);
+            int n = recordsPerPacket(size);
+            byte[] v = new byte[n * size];
+            for (int i = 0; i < n; i++) {
+                int offset = nextOffset;
+                nextOffset = (nextOffset + 1) & 0xFFFF;
+                int glucose = glucoseAt(offset);
+                remember(offset, glucose);
+                putRecord(v, i * size, offset, glucose, crc);
+            }
+            recordsGenerated.addAndGet(n);
+            if (interval != SocpClient.INTERVAL_DISABLED && connected && enabled(CgmsUuids.CGM_MEASUREMENT)) {
+                notify(CgmsUuids.CGM_MEASUREMENT, v);
+                recordsSent.addAndGet(n);
+            }
+        }
+    }
+
+    // One period at a longer interval: records go to the history, and every interval-th period the held ones are sent
+    private void tickHeld(int interval) {
+        int n = recordsPerPacket(recordSize(e2eCrc));
+        for (int i = 0; i < n; i++) {
+            int offset = nextOffset;
+            nextOffset = (nextOffset + 1) & 0xFFFF;
+            remember(offset, glucoseAt(offset));
+        }
+        recordsGenerated.addAndGet(n);
+        if (!connected || !enabled(CgmsUuids.CGM_MEASUREMENT)) return;
+        heldRecords = Math.min(heldRecords + n, historyCount);
+        if (++heldPeriods < interval) return;
+        boolean crc = e2eCrc;
+        int size = recordSize(crc);
+        int perPacket = Math.max(1, (mtu - 3) / size);
+        int cap = historyOffset.length;
+        int first = historyHead + historyCount - heldRecords;
+        for (int sent = 0; sent < heldRecords; ) {
+            int k = Math.min(perPacket, heldRecords - sent);
+            byte[] v = new byte[k * size];
+            for (int j = 0; j < k; j++) {
+                int h = (first + sent + j) % cap;
+                putRecord(v, j * size, historyOffset[h], historyGlucose[h], crc);
+            }
+            notify(CgmsUuids.CGM_MEASUREMENT, v);
+            sent += k;
+        }
+        recordsSent.addAndGet(heldRecords);
+        heldRecords = 0;
+        heldPeriods = 0;
+    }
+
+    private static int recordSize(boolean crc) {
+        return crc ? RECORD_SIZE + E2eCrc.SIZE : RECORD_SIZE;
+    }
+
+    private int recordsPerPacket(int recordSize) {
+        return Math.max(1, Math.min(recordsPerNotification, (mtu - 3) / recordSize));
+    }
+
+    private void notify(UUID characteristic, byte[] v) {
+        Callback c = cb;
+        if (c == null) return;
+        notificationsSent.incrementAndGet();
+        c.onCharacteristicChanged(characteristic, v);
+    }
+
+    private static int glucoseAt(int offset) {
+        return 120 + (int) Math.round(50 * Math.sin(offset * (2 * Math.PI / 180)));
+    }
+
+    private void putRecord(byte[] v, int p, int offset, int glucose, boolean crc) {
+        v[p] = (byte) recordSize(crc);
+        v[p + 1] = (byte) CgmsParser.FLAG_TREND_PRESENT;
+        SfloatCodec.putSfloat(v, p + 2, SfloatCodec.encodeSfloat(glucose, 0));
+        v[p + 4] = (byte) offset;
+        v[p + 5] = (byte) (offset >> 8);
+        int trend = glucoseAt(offset) - glucoseAt((offset - 1) & 0xFFFF);
+        SfloatCodec.putSfloat(v, p + 6, SfloatCodec.encodeSfloat(trend * 10, -1));
+        if (!crc) return;
+        E2eCrc.put(v, p, RECORD_SIZE);
+        if (corruptRecords > 0) {
+            corruptRecords--;
+            v[p + 2] ^= 0x01;
+        }
+    }
+
+    private void remember(int offset, int glucose) {
+        int cap = historyOffset.length;
+        int i = (historyHead + historyCount) % cap;
+        historyOffset[i] = offset;
+        historyGlucose[i] = (short) glucose;
+        if (historyCount < cap) {
+            historyCount++;
+        } else {
+            historyHead = (historyHead + 1) % cap;
+        }
+    }
+
+    private byte[] readValue(UUID c) {
+        boolean crc = e2eCrc;
+        if (CgmsUuids.CGM_FEATURE.equals(c)) {
+            // Type/location 0x11; the E2E-CRC field is always there, 0xFFFF when not supported
+            int bits = crc ? CgmsParser.FEATURE_E2E_CRC : 0;
+            byte[] v = {(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), 0x11, (byte) 0xFF, (byte) 0xFF};
+            if (crc) E2eCrc.put(v, 0, CgmsParser.FEATURE_SIZE - E2eCrc.SIZE);
+            return v;
+        }
+        byte[] v = plainValue(c);
+        return crc && v.length > 0 ? E2eCrc.append(v) : v;
+    }
+
+    private byte[] plainValue(UUID c) {
+        if (CgmsUuids.CGM_STATUS.equals(c)) {
+            return new byte[]{(byte) nextOffset, (byte) (nextOffset >> 8), 0, 0, 0};
+        } else if (CgmsUuids.CGM_SESSION_START_TIME.equals(c)) {
+            // Local time with the zone and DST in effect, as a sensor set from a phone reports it
+            return SessionTimeline.StartTime.of(sessionStartMillis, TimeZone.getDefault()).encode();
+        } else if (CgmsUuids.CGM_SESSION_RUN_TIME.equals(c)) {
+            return new byte[]{(byte) 0x50, 0x01}; // 336 h
+        }
+        return new byte[0];
+    }
+
+    private void onSocp(byte[] v) {
+        if (v.length == 0 || !enabled(CgmsUuids.CGM_SPECIFIC_OPS_CP)) return;
+        int n = e2eCrc ? v.length - E2eCrc.SIZE : v.length;
+        int op = v[0] & 0xFF;
+        byte[] rsp;
+        switch (op) {
+            case SocpClient.OP_SET_COMM_INTERVAL:
+                if (n < 2) {
+                    rsp = socpCode(op, SocpClient.RESPONSE_INVALID_OPERAND);
+                    break;
+                }
+                commInterval = v[1] & 0xFF;
+                heldPeriods = 0;
+                rsp = socpCode(op, SocpClient.RESPONSE_SUCCESS);
+                break;
+            case SocpClient.OP_GET_COMM_INTERVAL:
+                rsp = new byte[]{SocpClient.OP_COMM_INTERVAL_RESPONSE, (byte) commInterval};
+                break;
+            case SocpClient.OP_START_SESSION:
+                if (!sessionRunning) {
+                    sessionRunning = true;
+                    nextOffset = 0;
+                    sessionStartMillis = System.currentTimeMillis();
+                }
+                rsp = socpCode(op, SocpClient.RESPONSE_SUCCESS);
+                break;
+            case SocpClient.OP_STOP_SESSION:
+                sessionRunning = false;
+                rsp = socpCode(op, SocpClient.RESPONSE_SUCCESS);
+                break;
+            case SocpClient.OP_SET_CALIBRATION: {
+                if (n < 1 + SocpClient.Calibration.SIZE) {
+                    rsp = socpCode(op, SocpClient.RESPONSE_INVALID_OPERAND);
+                    break;
+                }
+                byte[] c = Arrays.copyOfRange(v, 1, 1 + SocpClient.Calibration.SIZE);
+                // The sensor numbers the records
+                c[7] = (byte) calibrations.size();
+                c[8] = (byte) (calibrations.size() >> 8);
+                calibrations.add(c);
+                rsp = socpCode(op, SocpClient.RESPONSE_SUCCESS);
+                break;
+            }
+            case SocpClient.OP_GET_CALIBRATION: {
+                if (n < 3) {
+                    rsp = socpCode(op, SocpClient.RESPONSE_INVALID_OPERAND);
+                    break;
+                }
+                int record = CgmsParser.u16At(v, 1);
+                int i = record == SocpClient.CALIBRATION_LAST ? calibrations.size() - 1 : record;
+                if (i < 0 || i >= calibrations.size()) {
+                    rsp = socpCode(op, SocpClient.RESPONSE_OUT_OF_RANGE);
+                    break;
+                }
+                rsp = new byte[1 + SocpClient.Calibration.SIZE];
+                rsp[0] = SocpClient.OP_CALIBRATION_RESPONSE;
+                System.arraycopy(calibrations.get(i), 0, rsp, 1, SocpClient.Calibration.SIZE);
+                break;
+            }
+            case SocpClient.OP_RESET_DEVICE_SPECIFIC_ALERT:
+                rsp = socpCode(op, SocpClient.RESPONSE_SUCCESS);
+                break;
+            default:
+                rsp = alertLevel(op, v, n);
+        }
+        notify(CgmsUuids.CGM_SPECIFIC_OPS_CP, e2eCrc ? E2eCrc.append(rsp) : rsp);
+    }
+
+    // Set / Get of the six alert levels, three op codes apart
+    private byte[] alertLevel(int op, byte[] v, int n) {
+        if (op < SocpClient.ALERT_PATIENT_HIGH || op > SocpClient.ALERT_RATE_OF_INCREASE + 1) {
+            return socpCode(op, SocpClient.RESPONSE_OP_NOT_SUPPORTED);
+        }
+        int k = (op - SocpClient.ALERT_PATIENT_HIGH) % 3;
+        int alert = op - k;
+        if (k == 1) {
+            int raw = alertLevels.get(alert);
+            return new byte[]{(byte) (alert + 2), (byte) raw, (byte) (raw >> 8)};
+        } else if (k == 2) {
+            return socpCode(op, SocpClient.RESPONSE_OP_NOT_SUPPORTED); // a response op code
+        } else if (n < 3) {
+            return socpCode(op, SocpClient.RESPONSE_INVALID_OPERAND);
+        }
+        alertLevels.put(alert, SfloatCodec.sfloatRawAt(v, 1));
+        return socpCode(op, SocpClient.RESPONSE_SUCCESS);
+    }
+
+    private static byte[] socpCode(int request, int code) {
+        return new byte[]{SocpClient.OP_RESPONSE_CODE, (byte) request, (byte) code};
+    }
+
+    private void onRacp(byte[] v) {
+        if (v.length < 2) return;
+        int op = v[0] & 0xFF;
+        int operator = v[1] & 0xFF;
+        if (op == RacpBackfill.OP_ABORT) {
+            racpRun++;
+            racpResponse(op, RacpBackfill.RESPONSE_SUCCESS);
+            return;
+        }
+        int from;
+        if (operator == RacpBackfill.OPERATOR_ALL) {
+            from = 0;
+        } else if (operator == RacpBackfill.OPERATOR_GREATER_OR_EQUAL && v.length >= 5 && v[2] == RacpBackfill.FILTER_TIME_OFFSET) {
+            from = CgmsParser.u16At(v, 3);
+        } else {
+            racpResponse(op, RacpBackfill.RESPONSE_OP_NOT_SUPPORTED);
+            return;
+        }
+        int[] idx = matching(from);
+        if (op == RacpBackfill.OP_REPORT_NUMBER) {
+            if (enabled(CgmsUuids.RECORD_ACCESS_CP)) {
+                notify(CgmsUuids.RECORD_ACCESS_CP, new byte[]{RacpBackfill.OP_NUMBER_RESPONSE, 0, (byte) idx.length, (byte) (idx.length >> 8)});
+            }
+        } else if (op == RacpBackfill.OP_REPORT_RECORDS) {
+            if (idx.length == 0) {
+                racpResponse(op, RacpBackfill.RESPONSE_NO_RECORDS);
+            } else {
+                int run = ++racpRun;
+                sendBackfill(run, idx, 0);
+            }
+        } else {
+            racpResponse(op, RacpBackfill.RESPONSE_OP_NOT_SUPPORTED);
+        }
+    }
+
+    // History positions with a time offset at or after from, oldest first
+    private int[] matching(int from) {
+        int[] out = new int[historyCount];
+        int n = 0;
+        for (int k = 0; k < historyCount; k++) {
+            int i = (historyHead + k) % historyOffset.length;
+            if (historyOffset[i] >= from) out[n++] = i;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private void sendBackfill(int run, int[] idx, int pos) {
+        if (run != racpRun || !connected) return; // aborted, superseded or disconnected
+        boolean crc = e2eCrc;
+        int size = recordSize(crc);
+        int per = recordsPerPacket(size);
+        for (int k = 0; k < BACKFILL_CHUNK && pos < idx.length; k++) {
+            int n = Math.min(per, idx.length - pos);
+            byte[] v = new byte[n * size];
+            for (int r = 0; r < n; r++, pos++) {
+                int i = idx[pos];
+                putRecord(v, r * size, historyOffset[i], historyGlucose[i], crc);
+            }
+            if (enabled(CgmsUuids.CGM_MEASUREMENT)) {
+                notify(CgmsUuids.CGM_MEASUREMENT, v);
+                backfillRecordsSent.addAndGet(n);
+            }
+        }
+        if (pos < idx.length) {
+            int next = pos;
+            exec.execute(() -> sendBackfill(run, idx, next));
+        } else {
+            racpResponse(RacpBackfill.OP_REPORT_RECORDS, RacpBackfill.RESPONSE_SUCCESS);
+        }
+    }
+
+    private void racpResponse(int request, int code) {
+        if (!enabled(CgmsUuids.RECORD_ACCESS_CP)) return;
+        notify(CgmsUuids.RECORD_ACCESS_CP, new byte[]{RacpBackfill.OP_RESPONSE_CODE, 0, (byte) request, (byte) code});
+    }
+}
@@ -0,0 +1,394 @@
+package com.angus.cgms;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * CGM Specific Ops Control Point (0x2AAC) client: typed commands that return futures.
+ *
+ * One procedure is on the air at a time; later commands wait in order. The indication that
+ * answers a command is matched by op code: a Get is answered by its own response op code
+ * (Get + 1), everything else, and a Get the sensor refuses, by a Response Code naming the
+ * request. Indications that match nothing are counted and dropped. Each command completes
+ * (never exceptionally) with a {@link Response} holding the sensor's response code or a
+ * negative client status.
+ *
+ * No GATT types: writes go through {@link Transport} (which appends the E2E-CRC when the sensor
+ * uses it, and indications reach {@link #onIndication} with it already checked and removed),
+ * and time is passed in. Methods are thread-safe; transport writes and futures run without the
+ * lock held.
+ */
+public final class SocpClient {
+    // Op codes
+    public static final int OP_SET_COMM_INTERVAL = 0x01;
+    public static final int OP_GET_COMM_INTERVAL = 0x02;
+    public static final int OP_COMM_INTERVAL_RESPONSE = 0x03;
+    public static final int OP_SET_CALIBRATION = 0x04;
+    public static final int OP_GET_CALIBRATION = 0x05;
+    public static final int OP_CALIBRATION_RESPONSE = 0x06;
+    public static final int OP_RESET_DEVICE_SPECIFIC_ALERT = 0x19;
+    public static final int OP_START_SESSION = 0x1A;
+    public static final int OP_STOP_SESSION = 0x1B;
+    public static final int OP_RESPONSE_CODE = 0x1C;
+
+    // Alert levels: the Set op code; Get is +1 and its response +2. Values are SFLOAT, mg/dL or mg/dL/min
+    public static final int ALERT_PATIENT_HIGH = 0x07;
+    public static final int ALERT_PATIENT_LOW = 0x0A;
+    public static final int ALERT_HYPO = 0x0D;
+    public static final int ALERT_HYPER = 0x10;
+    public static final int ALERT_RATE_OF_DECREASE = 0x13;
+    public static final int ALERT_RATE_OF_INCREASE = 0x16;
+
+    // Response code values from the sensor
+    public static final int RESPONSE_SUCCESS = 0x01;
+    public static final int RESPONSE_OP_NOT_SUPPORTED = 0x02;
+    public static final int RESPONSE_INVALID_OPERAND = 0x03;
+    public static final int RESPONSE_NOT_COMPLETED = 0x04;
+    public static final int RESPONSE_OUT_OF_RANGE = 0x05;
+
+    // Client statuses
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_WRITE_FAILED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    // Communication interval operand: minutes, or these
+    public static final int INTERVAL_DISABLED = 0x00;
+    public static final int INTERVAL_FASTEST = 0xFF;
+
+    // Calibration record number for the most recent record
+    public static final int CALIBRATION_LAST = 0xFFFF;
+
+    public static final long DEFAULT_TIMEOUT_NANOS = 5_000_000_000L;
+
+    public interface Transport { boolean writeSocp(byte[] value); }
+
+    private static final byte[] NO_OPERAND = new byte[0];
+
+    /** Result of one command; {@link #operand} is the response operand without the op code. */
+    public static final class Response {
+        public final int request;
+        public final byte[] command;
+        public final CompletableFuture<Response> future = new CompletableFuture<>();
+        /** RESPONSE_* from the sensor (a Get answered by its response counts as success), or STATUS_*. */
+        public int status;
+        public byte[] operand = NO_OPERAND;
+        public long sentNanos;
+        public long doneNanos;
+        final long queuedNanos;
+
+        Response(int request, byte[] command, long queuedNanos) {
+            this.request = request;
+            this.command = command;
+            this.queuedNanos = queuedNanos;
+        }
+
+        public boolean isSuccess() { return status == RESPONSE_SUCCESS; }
+
+        /** Write to matching indication; 0 if it never went out. */
+        public long latencyNanos() { return sentNanos == 0 ? 0 : doneNanos - sentNanos; }
+
+        /** Communication interval in minutes from a Get response, or -1. */
+        public int commInterval() {
+            return isSuccess() && request == OP_GET_COMM_INTERVAL && operand.length >= 1 ? operand[0] & 0xFF : -1;
+        }
+
+        /** Alert level from a Get response, or NaN. */
+        public float alertLevel() {
+            return isSuccess() && operand.length >= 2 && request != OP_GET_CALIBRATION && request != OP_GET_COMM_INTERVAL
+                    ? SfloatCodec.sfloatAt(operand, 0) : Float.NaN;
+        }
+
+        /** Calibration record from a Get response, or null. */
+        public Calibration calibration() {
+            return isSuccess() && request == OP_GET_CALIBRATION ? Calibration.decode(operand, 0, operand.length) : null;
+        }
+
+        @Override public String toString() {
+            return opName(request) + " -> " + statusName(status) + (operand.length > 0 ? " " + Hex.toHex(operand) : "");
+        }
+    }
+
+    /** Calibration Data Record, 10 bytes on the wire. */
+    public static final class Calibration {
+        public static final int SIZE = 10;
+
+        public float glucose;        // mg/dL
+        public int timeOffset;       // minutes, session time of the calibration
+        public int type;             // low nibble on the wire
+        public int sampleLocation;   // high nibble
+        public int nextTimeOffset;   // minutes, when the next calibration is due
+        public int recordNumber;
+        public int status;
+
+        public static Calibration decode(byte[] v, int off, int len) {
+            if (v == null || len < SIZE) return null;
+            Calibration c = new Calibration();
+            c.glucose = SfloatCodec.sfloatAt(v, off);
+            c.timeOffset = CgmsParser.u16At(v, off + 2);
+            c.type = v[off + 4] & 0x0F;
+            c.sampleLocation = (v[off + 4] >> 4) & 0x0F;
+            c.nextTimeOffset = CgmsParser.u16At(v, off + 5);
+            c.recordNumber = CgmsParser.u16At(v, off + 7);
+            c.status = v[off + 9] & 0xFF;
+            return c;
+        }
+
+        public void encode(byte[] v, int off) {
+            SfloatCodec.putSfloat(v, off, SfloatCodec.encodeSfloat(glucose));
+            putU16(v, off + 2, timeOffset);
+            v[off + 4] = (byte) ((type & 0x0F) | (sampleLocation & 0x0F) << 4);
+            putU16(v, off + 5, nextTimeOffset);
+            putU16(v, off + 7, recordNumber);
+            v[off + 9] = (byte) status;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "glucose=%.1f time=%d type=%d location=%d next=%d record=%d status=0x%x",
+                    glucose, timeOffset, type, sampleLocation, nextTimeOffset, recordNumber, status);
+        }
+    }
+
+    private final Transport transport;
+    private final long timeoutNanos;
+    private final ArrayDeque<Response> queue = new ArrayDeque<>();
+    private Response current;
+    private long sent;
+    private long succeeded;
+    private long failed;
+    private long timeouts;
+    private long unmatched;
+
+    public SocpClient(Transport transport, long timeoutNanos) {
+        this.transport = transport;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    // ===== Commands =====
+
+    public CompletableFuture<Response> getCommInterval(long nowNanos) {
+        return submit(OP_GET_COMM_INTERVAL, NO_OPERAND, nowNanos);
+    }
+
+    /** {@code minutes} 1-254, or {@link #INTERVAL_DISABLED} / {@link #INTERVAL_FASTEST}. */
+    public CompletableFuture<Response> setCommInterval(int minutes, long nowNanos) {
+        return submit(OP_SET_COMM_INTERVAL, new byte[]{(byte) minutes}, nowNanos);
+    }
+
+    public CompletableFuture<Response> startSession(long nowNanos) {
+        return submit(OP_START_SESSION, NO_OPERAND, nowNanos);
+    }
+
+    public CompletableFuture<Response> stopSession(long nowNanos) {
+        return submit(OP_STOP_SESSION, NO_OPERAND, nowNanos);
+    }
+
+    public CompletableFuture<Response> getCalibration(int recordNumber, long nowNanos) {
+        byte[] operand = new byte[2];
+        putU16(operand, 0, recordNumber);
+        return submit(OP_GET_CALIBRATION, operand, nowNanos);
+    }
+
+    public CompletableFuture<Response> setCalibration(Calibration c, long nowNanos) {
+        byte[] operand = new byte[Calibration.SIZE];
+        c.encode(operand, 0);
+        return submit(OP_SET_CALIBRATION, operand, nowNanos);
+    }
+
+    /** {@code alert} is one of the ALERT_* constants. */
+    public CompletableFuture<Response> getAlertLevel(int alert, long nowNanos) {
+        return submit(alert + 1, NO_OPERAND, nowNanos);
+    }
+
+    public CompletableFuture<Response> setAlertLevel(int alert, float level, long nowNanos) {
+        byte[] operand = new byte[2];
+        SfloatCodec.putSfloat(operand, 0, SfloatCodec.encodeSfloat(level));
+        return submit(alert, operand, nowNanos);
+    }
+
+    public CompletableFuture<Response> resetDeviceSpecificAlert(long nowNanos) {
+        return submit(OP_RESET_DEVICE_SPECIFIC_ALERT, NO_OPERAND, nowNanos);
+    }
+
+    private CompletableFuture<Response> submit(int op, byte[] operand, long nowNanos) {
+        byte[] v = new byte[1 + operand.length];
+        v[0] = (byte) op;
+        System.arraycopy(operand, 0, v, 1, operand.length);
+        Response r = new Response(op, v, nowNanos);
+        synchronized (this) {
+            queue.add(r);
+        }
+        pump(nowNanos);
+        return r.future;
+    }
+
+    // Sends the next command if none is on the air; failed writes complete and move on
+    private void pump(long nowNanos) {
+        while (true) {
+            Response r;
+            synchronized (this) {
+                if (current != null || queue.isEmpty()) return;
+                r = current = queue.poll();
+                r.sentNanos = nowNanos;
+                sent++;
+            }
+            if (transport.writeSocp(r.command)) return;
+            finish(r, STATUS_WRITE_FAILED, nowNanos);
+        }
+    }
+
+    // ===== Sensor input =====
+
+    /** Handles an SOCP indication, E2E-CRC already removed. */
+    public void onIndication(byte[] v, int off, int len, long nowNanos) {
+        if (len < 1) return;
+        int op = v[off] & 0xFF;
+        Response r;
+        int status;
+        synchronized (this) {
+            r = current;
+            if (r == null) {
+                unmatched++;
+                return;
+            }
+            if (op == OP_RESPONSE_CODE && len >= 3 && (v[off + 1] & 0xFF) == r.request) {
+                status = v[off + 2] & 0xFF;
+            } else if (op != OP_RESPONSE_CODE && op == responseOpFor(r.request)) {
+                status = RESPONSE_SUCCESS;
+                byte[] operand = new byte[len - 1];
+                System.arraycopy(v, off + 1, operand, 0, operand.length);
+                r.operand = operand;
+            } else {
+                unmatched++;
+                return;
+            }
+        }
+        finish(r, status, nowNanos);
+        pump(nowNanos);
+    }
+
+    /** The write of the current command failed after it was issued, e.g. an ATT error. */
+    public void onWriteFailed(long nowNanos) {
+        Response r;
+        synchronized (this) {
+            r = current;
+            if (r == null) return;
+        }
+        finish(r, STATUS_WRITE_FAILED, nowNanos);
+        pump(nowNanos);
+    }
+
+    /** Times out the current command if the sensor has not answered; returns true if it did. */
+    public boolean checkTimeout(long nowNanos) {
+        Response r;
+        synchronized (this) {
+            r = current;
+            if (r == null || nowNanos - r.sentNanos < timeoutNanos) return false;
+        }
+        finish(r, STATUS_TIMEOUT, nowNanos);
+        pump(nowNanos);
+        return true;
+    }
+
+    /** Completes everything as cancelled, e.g. on disconnect. */
+    public void cancelAll(long nowNanos) {
+        ArrayDeque<Response> drop;
+        Response r;
+        synchronized (this) {
+            r = current;
+            drop = new ArrayDeque<>(queue);
+            queue.clear();
+        }
+        if (r != null) finish(r, STATUS_CANCELLED, nowNanos);
+        for (Response q : drop) finish(q, STATUS_CANCELLED, nowNanos);
+    }
+
+    private void finish(Response r, int status, long nowNanos) {
+        synchronized (this) {
+            if (r.future.isDone()) return;
+            if (current == r) current = null;
+            r.status = status;
+            r.doneNanos = nowNanos;
+            if (status == RESPONSE_SUCCESS) succeeded++;
+            else if (status == STATUS_TIMEOUT) timeouts++;
+            else failed++;
+        }
+        r.future.complete(r);
+    }
+
+    /** The op code that answers {@code request} when it succeeds. */
+    public static int responseOpFor(int request) {
+        switch (request) {
+            case OP_GET_COMM_INTERVAL:
+            case OP_GET_CALIBRATION:
+            case ALERT_PATIENT_HIGH + 1:
+            case ALERT_PATIENT_LOW + 1:
+            case ALERT_HYPO + 1:
+            case ALERT_HYPER + 1:
+            case ALERT_RATE_OF_DECREASE + 1:
+            case ALERT_RATE_OF_INCREASE + 1:
+                return request + 1;
+            default:
+                return OP_RESPONSE_CODE;
+        }
+    }
+
+    // ===== Metrics =====
+
+    public synchronized boolean isBusy() { return current != null || !queue.isEmpty(); }
+    public synchronized int pending() { return queue.size() + (current != null ? 1 : 0); }
+    public synchronized long sent() { return sent; }
+    public synchronized long succeeded() { return succeeded; }
+    public synchronized long failed() { return failed; }
+    public synchronized long timeouts() { return timeouts; }
+    public synchronized long unmatched() { return unmatched; }
+
+    @Override public synchronized String toString() {
+        return "sent=" + sent + ", ok=" + succeeded + ", failed=" + failed + ", timeouts=" + timeouts
+                + ", unmatched=" + unmatched + ", pending=" + (queue.size() + (current != null ? 1 : 0));
+    }
+
+    public static String opName(int op) {
+        switch (op) {
+            case OP_SET_COMM_INTERVAL: return "set interval";
+            case OP_GET_COMM_INTERVAL: return "get interval";
+            case OP_SET_CALIBRATION: return "set calibration";
+            case OP_GET_CALIBRATION: return "get calibration";
+            case ALERT_PATIENT_HIGH: return "set patient high";
+            case ALERT_PATIENT_HIGH + 1: return "get patient high";
+            case ALERT_PATIENT_LOW: return "set patient low";
+            case ALERT_PATIENT_LOW + 1: return "get patient low";
+            case ALERT_HYPO: return "set hypo";
+            case ALERT_HYPO + 1: return "get hypo";
+            case ALERT_HYPER: return "set hyper";
+            case ALERT_HYPER + 1: return "get hyper";
+            case ALERT_RATE_OF_DECREASE: return "set rate of decrease";
+            case ALERT_RATE_OF_DECREASE + 1: return "get rate of decrease";
+            case ALERT_RATE_OF_INCREASE: return "set rate of increase";
+            case ALERT_RATE_OF_INCREASE + 1: return "get rate of increase";
+            case OP_RESET_DEVICE_SPECIFIC_ALERT: return "reset device specific alert";
+            case OP_START_SESSION: return "start session";
+            case OP_STOP_SESSION: return "stop session";
+            default: return "op 0x" + Integer.toHexString(op);
+        }
+    }
+
+    public static String statusName(int status) {
+        switch (status) {
+            case RESPONSE_SUCCESS: return "success";
+            case RESPONSE_OP_NOT_SUPPORTED: return "op not supported";
+            case RESPONSE_INVALID_OPERAND: return "invalid operand";
+            case RESPONSE_NOT_COMPLETED: return "not completed";
+            case RESPONSE_OUT_OF_RANGE: return "out of range";
+            case STATUS_TIMEOUT: return "timeout";
+            case STATUS_WRITE_FAILED: return "write failed";
+            case STATUS_CANCELLED: return "cancelled";
+            default: return "response 0x" + Integer.toHexString(status);
+        }
+    }
+
+    private static void putU16(byte[] v, int i, int x) {
+        v[i] = (byte) x;
+        v[i + 1] = (byte) (x >> 8);
+    }
+}
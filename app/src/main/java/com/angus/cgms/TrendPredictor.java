@@ -0,0 +1,199 @@
+package com.angus.cgms;
+
+/**
+ * Rate of change and short-term projection from the most recent readings, with
+ * predicted-low / predicted-high alerts.
+ *
+ * Keeps the last {@code window} readings (no older than {@code maxAgeMillis}) in primitive
+ * arrays and the least-squares sums over them, updated on add and evict, so each reading
+ * costs O(1) and no allocation. The fitted line is projected {@code horizonMillis} past the
+ * newest reading. An alert turns on when the projection crosses its threshold and off only
+ * after it moves back past the threshold by the hysteresis band, so noise near the edge does
+ * not flap. A gap longer than {@code maxGapMillis} restarts the fit. Readings not newer
+ * than the last one (e.g. backfill) are ignored. Not thread-safe.
+ */
+public final class TrendPredictor {
+    public static final int ALERT_PREDICTED_LOW = 1;
+    public static final int ALERT_PREDICTED_HIGH = 2;
+
+    public static final int DEFAULT_WINDOW = 6;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 30 * 60_000L;
+    public static final long DEFAULT_MAX_GAP_MILLIS = 15 * 60_000L;
+    public static final long DEFAULT_HORIZON_MILLIS = 20 * 60_000L;
+    public static final float DEFAULT_LOW = 70f;
+    public static final float DEFAULT_HIGH = 250f;
+    public static final float DEFAULT_HYSTERESIS = 10f;
+
+    private static final int MIN_POINTS = 3;
+    private static final double MIN_SPAN_MINUTES = 9.0;
+    // Re-base the time axis before the sums lose precision
+    private static final double REBASE_MINUTES = 100_000;
+
+    public interface AlertListener {
+        /** {@code rate} in mg/dL per minute; {@code projected} at the horizon. */
+        void onAlert(int alert, boolean active, long timestampMillis, float projected, float rate);
+    }
+
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final long maxGapMillis;
+    private long horizonMillis;
+    private float low = DEFAULT_LOW;
+    private float high = DEFAULT_HIGH;
+    private float hysteresis = DEFAULT_HYSTERESIS;
+    private AlertListener listener;
+
+    // Ring of recent readings; time in minutes since baseMillis
+    private final double[] t;
+    private final double[] g;
+    private final long[] ts;
+    private int head; // oldest
+    private int n;
+    private long baseMillis;
+    private double sumT, sumG, sumTT, sumTG;
+
+    private boolean valid;
+    private float rate;
+    private float projected;
+    private boolean lowActive;
+    private boolean highActive;
+    private long updates;
+
+    public TrendPredictor() {
+        this(DEFAULT_WINDOW, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_GAP_MILLIS, DEFAULT_HORIZON_MILLIS);
+    }
+
+    public TrendPredictor(int window, long maxAgeMillis, long maxGapMillis, long horizonMillis) {
+        if (window < MIN_POINTS) throw new IllegalArgumentException("window must be >= " + MIN_POINTS);
+        this.capacity = window;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxGapMillis = maxGapMillis;
+        this.horizonMillis = horizonMillis;
+        t = new double[window];
+        g = new double[window];
+        ts = new long[window];
+    }
+
+    public void setListener(AlertListener l) {
+        listener = l;
+    }
+
+    public void setThresholds(float low, float high, float hysteresis) {
+        this.low = low;
+        this.high = high;
+        this.hysteresis = hysteresis;
+    }
+
+    public void setHorizon(long horizonMillis) {
+        this.horizonMillis = horizonMillis;
+    }
+
+    /** Adds a reading; returns true if a fit was possible and the projection was updated. */
+    public boolean add(long timestampMillis, float mgdl) {
+        if (!(mgdl > 0) || Float.isInfinite(mgdl)) return false;
+        if (n > 0) {
+            long newest = ts[(head + n - 1) % capacity];
+            if (timestampMillis <= newest) return false;
+            if (timestampMillis - newest > maxGapMillis) clear();
+        }
+        if (n == 0) baseMillis = timestampMillis;
+        double x = (timestampMillis - baseMillis) / 60_000.0;
+        if (x > REBASE_MINUTES) {
+            rebase(timestampMillis);
+            x = 0;
+        }
+        while (n > 0 && (n == capacity || timestampMillis - ts[head] > maxAgeMillis)) evictOldest();
+        int i = (head + n) % capacity;
+        t[i] = x;
+        g[i] = mgdl;
+        ts[i] = timestampMillis;
+        n++;
+        sumT += x;
+        sumG += mgdl;
+        sumTT += x * x;
+        sumTG += x * mgdl;
+        return fit(timestampMillis, x);
+    }
+
+    private void evictOldest() {
+        double x = t[head];
+        double y = g[head];
+        sumT -= x;
+        sumG -= y;
+        sumTT -= x * x;
+        sumTG -= x * y;
+        head = (head + 1) % capacity;
+        n--;
+    }
+
+    private void rebase(long newBase) {
+        double shift = (newBase - baseMillis) / 60_000.0;
+        baseMillis = newBase;
+        sumT = sumG = sumTT = sumTG = 0;
+        for (int k = 0; k < n; k++) {
+            int i = (head + k) % capacity;
+            t[i] -= shift;
+            sumT += t[i];
+            sumG += g[i];
+            sumTT += t[i] * t[i];
+            sumTG += t[i] * g[i];
+        }
+    }
+
+    private boolean fit(long timestampMillis, double x) {
+        double span = x - t[head];
+        double den = n * sumTT - sumT * sumT;
+        if (n < MIN_POINTS || span < MIN_SPAN_MINUTES || den <= 0) {
+            valid = false;
+            return false;
+        }
+        double slope = (n * sumTG - sumT * sumG) / den;
+        double intercept = (sumG - slope * sumT) / n;
+        rate = (float) slope;
+        projected = (float) (intercept + slope * (x + horizonMillis / 60_000.0));
+        valid = true;
+        updates++;
+        checkAlerts(timestampMillis);
+        return true;
+    }
+
+    private void checkAlerts(long timestampMillis) {
+        if (!lowActive && projected < low) {
+            lowActive = true;
+            emit(ALERT_PREDICTED_LOW, true, timestampMillis);
+        } else if (lowActive && projected >= low + hysteresis) {
+            lowActive = false;
+            emit(ALERT_PREDICTED_LOW, false, timestampMillis);
+        }
+        if (!highActive && projected > high) {
+            highActive = true;
+            emit(ALERT_PREDICTED_HIGH, true, timestampMillis);
+        } else if (highActive && projected <= high - hysteresis) {
+            highActive = false;
+            emit(ALERT_PREDICTED_HIGH, false, timestampMillis);
+        }
+    }
+
+    private void emit(int alert, boolean active, long timestampMillis) {
+        AlertListener l = listener;
+        if (l != null) l.onAlert(alert, active, timestampMillis, projected, rate);
+    }
+
+    /** Drops the fit window; active alerts stay until a new fit clears them. */
+    public void clear() {
+        head = 0;
+        n = 0;
+        sumT = sumG = sumTT = sumTG = 0;
+        valid = false;
+    }
+
+    public boolean isValid() { return valid; }
+    /** mg/dL per minute from the last fit. */
+    public float rate() { return rate; }
+    public float projected() { return projected; }
+    public long horizonMillis() { return horizonMillis; }
+    public boolean isLowActive() { return lowActive; }
+    public boolean isHighActive() { return highActive; }
+    public int size() { return n; }
+    public long updates() { return updates; }
+}
@@ -0,0 +1,68 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.NotificationRing;
+import com.angus.cgms.SfloatCodec;
+import com.angus.cgms.TrendPredictor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification arrival to alert decision, on one thread: copy into the notification ring,
+ * drain, decode, update the trend fit and run the alert check (the listener fires on every
+ * threshold crossing). Excludes the producer-to-dispatcher thread handoff. The glucose
+ * trace is a 1-minute sine between 40 and 300 mg/dL, so alerts turn on and off regularly.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AlertLatencyBenchmark {
+    private static final int TRACE = 1024;
+    private static final long BASE_MILLIS = 1_700_000_000_000L;
+
+    private final byte[][] notifications = new byte[TRACE][];
+    private final NotificationRing ring = new NotificationRing(64, 512, NotificationRing.OVERFLOW_DROP_NEWEST, 0);
+    private final CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+    private final TrendPredictor trend = new TrendPredictor();
+    private final CgmsParser.MeasurementSink sink = this::onMeasurement;
+    private final NotificationRing.SlotHandler handler = this::onSlot;
+    private long lap;
+    private int i;
+    private int alerts;
+
+    @Setup
+    public void setup() {
+        for (int k = 0; k < TRACE; k++) {
+            float mgdl = (float) (170 + 130 * Math.sin(k * 2 * Math.PI / 120));
+            byte[] v = new byte[6];
+            v[0] = 6;
+            SfloatCodec.putSfloat(v, 2, SfloatCodec.encodeSfloat(Math.round(mgdl), 0));
+            v[4] = (byte) k;
+            v[5] = (byte) (k >> 8);
+            notifications[k] = v;
+        }
+        trend.setListener((alert, active, ts, projected, rate) -> alerts++);
+    }
+
+    @Benchmark
+    public int notificationToAlert() {
+        ring.offer(1, System.nanoTime(), notifications[i]);
+        ring.drain(handler, 1);
+        if (++i == TRACE) {
+            i = 0;
+            lap++;
+        }
+        return alerts;
+    }
+
+    private void onSlot(int tag, long timestampNanos, byte[] data, int length) {
+        CgmsParser.decodeMeasurements(data, 0, length, record, sink);
+    }
+
+    private void onMeasurement(CgmsParser.MeasurementRecord r) {
+        // Laps keep time moving forward when the trace repeats
+        trend.add(BASE_MILLIS + (lap * TRACE + r.timeOffset) * 60_000L, r.glucose);
+    }
+}
@@ -0,0 +1,61 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.ChartSeries;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a 1080-pixel chart from {@code days} of 1-minute readings: min/max and
+ * LTTB through the pyramid, against LTTB over every raw point in the viewport.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ChartBenchmark {
+    private static final long MINUTE = 60_000L;
+    private static final int PIXELS = 1080;
+
+    @Param({"1", "14", "90"})
+    public int days;
+
+    private ChartSeries chart;
+    private long from;
+    private long to;
+    private long[] rawTs;
+    private float[] rawV;
+    private final long[] outTs = new long[2 * PIXELS];
+    private final float[] outV = new float[2 * PIXELS];
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        int n = days * 1440;
+        chart = new ChartSeries();
+        from = 1_700_000_000_000L;
+        to = from + n * MINUTE;
+        for (int k = 0; k < n; k++) {
+            chart.add(from + k * MINUTE, (float) (120 + 60 * Math.sin(k / 200.0) + rnd.nextGaussian() * 10));
+        }
+        rawTs = new long[n];
+        rawV = new float[n];
+        chart.raw(from, to, rawTs, rawV, n);
+    }
+
+    @Benchmark
+    public int minMax() {
+        return chart.minMax(from, to, PIXELS, outTs, outV);
+    }
+
+    @Benchmark
+    public int lttb() {
+        return chart.lttb(from, to, PIXELS, outTs, outV);
+    }
+
+    @Benchmark
+    public int lttbRaw() {
+        return ChartSeries.lttb(rawTs, rawV, rawTs.length, PIXELS, outTs, outV);
+    }
+}
@@ -0,0 +1,83 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CGM Measurement decode: the boxed CgmMeasurement adapter against the primitive record and
+ * batch paths, for single records over all flag combinations and for MTU-sized packed notifications.
+ * The E2E-CRC variants decode the same notifications with a CRC on every record, as a sensor
+ * that sets the Feature bit sends them during a RACP backfill. Run with the gc profiler (enabled in build.gradle) to compare allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final int PACKED = 64;
+
+    private byte[][] single;
+    private byte[][] packed;
+    private byte[][] packedCrc;
+    private final CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+    private final CgmsParser.MeasurementBatch batch = new CgmsParser.MeasurementBatch(32);
+
+    @Setup
+    public void setup() {
+        single = MeasurementPayloads.singleRecords(1);
+        packed = MeasurementPayloads.packedNotifications(PACKED, 2);
+        packedCrc = MeasurementPayloads.packedNotifications(PACKED, 2, true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MeasurementPayloads.COMBINATIONS)
+    public void singleRecordBoxed(Blackhole bh) {
+        for (byte[] v : single) bh.consume(CgmsParser.parseMeasurement(v));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MeasurementPayloads.COMBINATIONS)
+    public void singleRecordPrimitive(Blackhole bh) {
+        for (byte[] v : single) {
+            CgmsParser.decodeMeasurement(v, 0, v.length, record);
+            bh.consume(record.glucose);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKED)
+    public void multiRecordBatch(Blackhole bh) {
+        for (byte[] v : packed) {
+            batch.clear();
+            CgmsParser.decodeMeasurements(v, 0, v.length, record, batch);
+            bh.consume(batch.count);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKED)
+    public void multiRecordSink(Blackhole bh) {
+        CgmsParser.MeasurementSink sink = r -> bh.consume(r.glucose);
+        for (byte[] v : packed) CgmsParser.decodeMeasurements(v, 0, v.length, record, sink);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKED)
+    public void multiRecordBatchE2eCrc(Blackhole bh) {
+        for (byte[] v : packedCrc) {
+            batch.clear();
+            CgmsParser.decodeMeasurements(v, 0, v.length, record, batch, true);
+            bh.consume(batch.count);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKED)
+    public void multiRecordSinkE2eCrc(Blackhole bh) {
+        CgmsParser.MeasurementSink sink = r -> bh.consume(r.glucose);
+        for (byte[] v : packedCrc) CgmsParser.decodeMeasurements(v, 0, v.length, record, sink, true);
+    }
+}
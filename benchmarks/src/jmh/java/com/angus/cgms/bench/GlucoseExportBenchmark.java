@@ -0,0 +1,152 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.GlucoseExport;
+import com.angus.cgms.GlucoseStore;
+import com.angus.cgms.SfloatCodec;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GlucoseExport} against naive CSV over {@code days} of one-minute readings: encode and
+ * decode the columnar format, transcode it to CSV, and write / parse the same history as CSV.
+ *
+ * One op is the whole history. The {@code csvBytes} counter is the CSV size of what each op
+ * processed, so its rate (bytes/s) puts every benchmark on the same MB/s scale. The compression
+ * ratio is printed at setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class GlucoseExportBenchmark {
+    @Param({"90"})
+    public int days;
+
+    private GlucoseStore.Reading[] readings;
+    private byte[] binary;
+    private byte[] csv;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long csvBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            csvBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random rnd = new Random(42);
+        int n = days * 24 * 60;
+        readings = new GlucoseStore.Reading[n];
+        long ts = 1_700_000_000_000L;
+        int glucose = 120;
+        int session = 1;
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            GlucoseStore.Reading r = readings[i] = new GlucoseStore.Reading();
+            // Sensors last 14 days; now and then a gap from being out of range
+            if (i > 0 && i % (14 * 24 * 60) == 0) {
+                session++;
+                offset = 0;
+            }
+            int gap = rnd.nextInt(1000) == 0 ? 1 + rnd.nextInt(60) : 1;
+            ts += gap * 60_000L;
+            offset = (offset + gap) & 0xFFFF;
+            int step = rnd.nextInt(5) - 2;
+            glucose = Math.max(40, Math.min(400, glucose + step));
+            r.timestampMillis = ts;
+            r.sessionId = session;
+            r.timeOffset = offset;
+            r.present = CgmsParser.HAS_GLUCOSE | CgmsParser.HAS_TIME_OFFSET | CgmsParser.HAS_TREND;
+            r.glucose = glucose;
+            r.trend = SfloatCodec.decodeSfloat(SfloatCodec.encodeSfloat(step * 10 + rnd.nextInt(3) - 1, -1));
+            if (rnd.nextInt(500) == 0) {
+                r.present |= CgmsParser.HAS_STATUS;
+                r.status = 1 << rnd.nextInt(24);
+            }
+        }
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        try (GlucoseExport.Writer w = new GlucoseExport.Writer(bo)) {
+            for (GlucoseStore.Reading r : readings) w.onReading(r);
+        }
+        binary = bo.toByteArray();
+        StringBuilder sb = new StringBuilder(GlucoseExport.CSV_HEADER);
+        for (GlucoseStore.Reading r : readings) GlucoseExport.appendCsv(sb, r);
+        csv = sb.toString().getBytes(StandardCharsets.UTF_8);
+        System.out.println();
+        System.out.printf("%d readings: export %d bytes (%.2f per reading), CSV %d bytes (%.1f per reading), ratio %.1fx%n",
+                n, binary.length, binary.length / (double) n, csv.length, csv.length / (double) n,
+                csv.length / (double) binary.length);
+    }
+
+    @Benchmark
+    public long encode(Bytes b) throws IOException {
+        GlucoseExport.Writer w = new GlucoseExport.Writer(OutputStream.nullOutputStream());
+        for (GlucoseStore.Reading r : readings) w.onReading(r);
+        w.close();
+        b.csvBytes += csv.length;
+        return w.bytes();
+    }
+
+    @Benchmark
+    public long decode(Bytes b) throws IOException {
+        GlucoseExport.Reader reader = new GlucoseExport.Reader(new ByteArrayInputStream(binary));
+        GlucoseStore.Reading r = new GlucoseStore.Reading();
+        long sum = 0;
+        while (reader.next(r)) sum += r.timestampMillis + (long) r.glucose;
+        b.csvBytes += csv.length;
+        return sum;
+    }
+
+    @Benchmark
+    public long transcodeCsv(Bytes b) throws IOException {
+        long rows = GlucoseExport.toCsv(new ByteArrayInputStream(binary), Writer.nullWriter());
+        b.csvBytes += csv.length;
+        return rows;
+    }
+
+    @Benchmark
+    public int csvWrite(Bytes b) throws IOException {
+        StringBuilder sb = new StringBuilder(GlucoseExport.CSV_HEADER);
+        for (GlucoseStore.Reading r : readings) GlucoseExport.appendCsv(sb, r);
+        byte[] out = sb.toString().getBytes(StandardCharsets.UTF_8);
+        b.csvBytes += out.length;
+        return out.length;
+    }
+
+    @Benchmark
+    public long csvParse(Bytes b) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8));
+        GlucoseStore.Reading r = new GlucoseStore.Reading();
+        long sum = 0;
+        in.readLine();
+        for (String line; (line = in.readLine()) != null; ) {
+            String[] f = line.split(",", -1);
+            r.timestampMillis = Long.parseLong(f[0]);
+            r.sessionId = Integer.parseInt(f[1]);
+            r.timeOffset = Integer.parseInt(f[2]);
+            r.glucose = f[3].isEmpty() ? 0 : Float.parseFloat(f[3]);
+            r.trend = f[4].isEmpty() ? 0 : Float.parseFloat(f[4]);
+            r.quality = f[5].isEmpty() ? 0 : Float.parseFloat(f[5]);
+            r.status = f[6].isEmpty() ? 0 : Integer.parseInt(f[6]);
+            sum += r.timestampMillis + (long) r.glucose;
+        }
+        b.csvBytes += csv.length;
+        return sum;
+    }
+}
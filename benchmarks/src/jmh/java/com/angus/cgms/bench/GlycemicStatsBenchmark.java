@@ -0,0 +1,48 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.GlycemicStats;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-reading cost of the rolling 1h/24h/14d statistics, for in-order readings (each one
+ * advances the windows by a slot) and for late readings landing inside the 14-day window.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class GlycemicStatsBenchmark {
+    private static final long STEP = 5 * GlycemicStats.MINUTE;
+    private static final int VALUES = 1024;
+
+    private final float[] values = new float[VALUES];
+    private GlycemicStats stats;
+    private long ts;
+    private int i;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        for (int k = 0; k < VALUES; k++) values[k] = 40 + rnd.nextInt(300);
+        stats = new GlycemicStats();
+        ts = 1_700_000_000_000L;
+        // Fill 14 days so every add also evicts
+        for (int k = 0; k < 14 * 288; k++) stats.add(ts += STEP, values[k & (VALUES - 1)]);
+    }
+
+    @Benchmark
+    public double addInOrder() {
+        stats.add(ts += STEP, values[i++ & (VALUES - 1)]);
+        return stats.mean(GlycemicStats.WINDOW_24H);
+    }
+
+    @Benchmark
+    public double addLate() {
+        int k = i++;
+        stats.add(ts - (k % (13 * 288)) * STEP, values[k & (VALUES - 1)]);
+        return stats.mean(GlycemicStats.WINDOW_24H);
+    }
+}
@@ -0,0 +1,87 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.EventLog;
+import com.angus.cgms.Hex;
+import com.angus.cgms.LogEvents;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logging hot paths: hex rendering of raw characteristic values and the
+ * measurement-to-log-string step BleManager runs for every notification, against
+ * the producer-side cost of a structured {@link EventLog} call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LogFormatBenchmark {
+    // Same pattern as R.string.measurement_log
+    private static final String MEASUREMENT_LOG = "[Measurement] %1$s";
+
+    private byte[][] single;
+    private byte[] notification;
+    private int i;
+    private final CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+    private EventLog events;
+    private EventLog filtered;
+
+    @Setup
+    public void setup() {
+        single = MeasurementPayloads.singleRecords(3);
+        notification = MeasurementPayloads.packedNotifications(1, 4)[0];
+        // No sinks: measures queueing plus the consumer's copy-out, never rendering
+        events = new EventLog(4096);
+        events.start();
+        filtered = new EventLog(16);
+        filtered.setFilter(LogEvents.WARN, LogEvents.TAG_ALL);
+    }
+
+    @TearDown
+    public void tearDown() {
+        events.stop();
+    }
+
+    @Benchmark
+    public String hexLegacyStringFormat() {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : notification) sb.append(String.format("%02X ", x));
+        return sb.toString().trim();
+    }
+
+    @Benchmark
+    public String hexTable() {
+        return Hex.toHex(notification);
+    }
+
+    @Benchmark
+    public String measurementLogString() {
+        byte[] v = next();
+        CgmsParser.decodeMeasurement(v, 0, v.length, record);
+        return String.format(MEASUREMENT_LOG, record.toString());
+    }
+
+    @Benchmark
+    public String measurementLogStringBoxed() {
+        return String.format(MEASUREMENT_LOG, CgmsParser.parseMeasurement(next()).toString());
+    }
+
+    @Benchmark
+    public void measurementEvent() {
+        byte[] v = next();
+        events.log(LogEvents.MEASUREMENT, v, 0, v.length);
+    }
+
+    @Benchmark
+    public void measurementEventFiltered() {
+        filtered.log(LogEvents.MEASUREMENT, next());
+    }
+
+    private byte[] next() {
+        byte[] v = single[i];
+        i = (i + 1) & (MeasurementPayloads.COMBINATIONS - 1);
+        return v;
+    }
+}
@@ -0,0 +1,99 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.E2eCrc;
+import com.angus.cgms.SfloatCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/** Builds CGM Measurement payloads covering every combination of the optional-field flags. */
+final class MeasurementPayloads {
+    // Flag bits that change the record layout
+    static final int[] OPTIONAL_FLAGS = {
+            CgmsParser.FLAG_TREND_PRESENT,
+            CgmsParser.FLAG_QUALITY_PRESENT,
+            CgmsParser.FLAG_WARNING_OCTET,
+            CgmsParser.FLAG_CAL_TEMP_OCTET,
+            CgmsParser.FLAG_STATUS_OCTET
+    };
+    // 2^5, spelled out so it can be used in @OperationsPerInvocation
+    static final int COMBINATIONS = 32;
+
+    // Largest notification value at the MTU BleManager requests (185 - 3 byte ATT header)
+    static final int MAX_NOTIFICATION = 182;
+
+    private MeasurementPayloads() {}
+
+    static int flagsFor(int combination) {
+        int flags = 0;
+        for (int b = 0; b < OPTIONAL_FLAGS.length; b++) {
+            if ((combination & (1 << b)) != 0) flags |= OPTIONAL_FLAGS[b];
+        }
+        return flags;
+    }
+
+    /** One record per flag combination, with plausible randomized values. */
+    static byte[][] singleRecords(long seed) {
+        Random rnd = new Random(seed);
+        byte[][] out = new byte[COMBINATIONS][];
+        for (int c = 0; c < COMBINATIONS; c++) out[c] = record(flagsFor(c), c, rnd);
+        return out;
+    }
+
+    /** Notifications packed with as many records as fit, cycling through all flag combinations. */
+    static byte[][] packedNotifications(int count, long seed) {
+        return packedNotifications(count, seed, false);
+    }
+
+    /** As above, each record ending in its E2E-CRC when {@code e2eCrc}. */
+    static byte[][] packedNotifications(int count, long seed, boolean e2eCrc) {
+        Random rnd = new Random(seed);
+        byte[][] out = new byte[count][];
+        int c = 0;
+        int offset = 0;
+        for (int n = 0; n < count; n++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(MAX_NOTIFICATION);
+            while (true) {
+                byte[] r = record(flagsFor(c % COMBINATIONS), offset, rnd, e2eCrc);
+                if (bos.size() + r.length > MAX_NOTIFICATION) break;
+                bos.write(r, 0, r.length);
+                c++;
+                offset++;
+            }
+            out[n] = bos.toByteArray();
+        }
+        return out;
+    }
+
+    static byte[] record(int flags, int timeOffset, Random rnd) {
+        return record(flags, timeOffset, rnd, false);
+    }
+
+    static byte[] record(int flags, int timeOffset, Random rnd, boolean e2eCrc) {
+        int fields = CgmsParser.MIN_RECORD_SIZE
+                + Integer.bitCount(flags & (CgmsParser.FLAG_STATUS_OCTET | CgmsParser.FLAG_CAL_TEMP_OCTET | CgmsParser.FLAG_WARNING_OCTET))
+                + ((flags & CgmsParser.FLAG_TREND_PRESENT) != 0 ? 2 : 0)
+                + ((flags & CgmsParser.FLAG_QUALITY_PRESENT) != 0 ? 2 : 0);
+        int size = e2eCrc ? fields + E2eCrc.SIZE : fields;
+        byte[] v = new byte[size];
+        v[0] = (byte) size;
+        v[1] = (byte) flags;
+        SfloatCodec.putSfloat(v, 2, SfloatCodec.encodeSfloat(40 + rnd.nextInt(360), 0));
+        v[4] = (byte) timeOffset;
+        v[5] = (byte) (timeOffset >> 8);
+        int p = 6;
+        if ((flags & CgmsParser.FLAG_STATUS_OCTET) != 0) v[p++] = (byte) rnd.nextInt(256);
+        if ((flags & CgmsParser.FLAG_CAL_TEMP_OCTET) != 0) v[p++] = (byte) rnd.nextInt(256);
+        if ((flags & CgmsParser.FLAG_WARNING_OCTET) != 0) v[p++] = (byte) rnd.nextInt(256);
+        if ((flags & CgmsParser.FLAG_TREND_PRESENT) != 0) {
+            SfloatCodec.putSfloat(v, p, SfloatCodec.encodeSfloat(rnd.nextInt(61) - 30, -1));
+            p += 2;
+        }
+        if ((flags & CgmsParser.FLAG_QUALITY_PRESENT) != 0) {
+            SfloatCodec.putSfloat(v, p, SfloatCodec.encodeSfloat(rnd.nextInt(101), 0));
+        }
+        if (e2eCrc) E2eCrc.put(v, 0, fields);
+        return v;
+    }
+}
@@ -0,0 +1,61 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.LatencyHistogram;
+import com.angus.cgms.MetricsRegistry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot-path cost of recording metrics: one histogram value and one counter increment, as
+ * done per notification, single-threaded and with two threads recording into the same
+ * histogram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private static final int VALUES = 1024;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final LatencyHistogram histogram = registry.histogram("notify.interarrival");
+    private final MetricsRegistry.Counter counter = registry.counter("notify.count");
+    private final long[] values = new long[VALUES];
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+    }
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        // Notification intervals around 60 s with jitter, plus some sub-millisecond GATT latencies
+        for (int k = 0; k < VALUES; k++) {
+            values[k] = k % 4 == 0 ? 200_000L + rnd.nextInt(800_000) : 60_000_000_000L + rnd.nextInt(2_000_000_000);
+        }
+    }
+
+    @Benchmark
+    public void histogramRecord(Cursor c) {
+        histogram.record(values[c.i++ & (VALUES - 1)]);
+    }
+
+    @Benchmark
+    public void counterIncrement() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void histogramRecordShared(Cursor c) {
+        histogram.record(values[c.i++ & (VALUES - 1)]);
+    }
+
+    @Benchmark
+    public long snapshotP99() {
+        return histogram.snapshot().percentile(99);
+    }
+}
@@ -0,0 +1,87 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.NotificationDispatcher;
+import com.angus.cgms.NotificationRing;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Notification throughput with several sensor sessions open, each with its own ring and
+ * dispatcher thread decoding packed notifications, as BleManager.Session does. The producer
+ * stands in for the GATT callback threads and offers round robin; for a healthy session it
+ * waits (yields) while the ring is full, so the score is what the consumers sustain.
+ *
+ * With {@code slow}, one extra session's handler takes ~100 µs per notification and its ring
+ * overflows; the producer never waits on it, so the healthy sessions' score should stay close
+ * to the run without it (minus the CPU the slow thread uses).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SessionThroughputBenchmark {
+    private static final int BATCH = 256;
+    private static final int RING_CAPACITY = 256;
+    private static final long SLOW_HANDLER_NANOS = 100_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int sessions;
+
+    @Param({"false", "true"})
+    public boolean slow;
+
+    private byte[][] packed;
+    private NotificationRing[] rings;
+    private NotificationDispatcher[] dispatchers;
+    private NotificationRing slowRing;
+    private NotificationDispatcher slowDispatcher;
+    private int next;
+
+    @Setup
+    public void setup() {
+        packed = MeasurementPayloads.packedNotifications(64, 3);
+        rings = new NotificationRing[sessions];
+        dispatchers = new NotificationDispatcher[sessions];
+        for (int i = 0; i < sessions; i++) {
+            rings[i] = new NotificationRing(RING_CAPACITY, MeasurementPayloads.MAX_NOTIFICATION, NotificationRing.OVERFLOW_DROP_NEWEST, 0);
+            dispatchers[i] = new NotificationDispatcher("bench-session-" + i, rings[i], decoder(false), t -> {});
+            dispatchers[i].start();
+        }
+        if (slow) {
+            slowRing = new NotificationRing(RING_CAPACITY, MeasurementPayloads.MAX_NOTIFICATION, NotificationRing.OVERFLOW_DROP_NEWEST, 0);
+            slowDispatcher = new NotificationDispatcher("bench-session-slow", slowRing, decoder(true), t -> {});
+            slowDispatcher.start();
+        }
+    }
+
+    // Per session, like the per-session record and sink in BleManager
+    private static NotificationRing.SlotHandler decoder(boolean slow) {
+        CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+        CgmsParser.MeasurementSink sink = r -> {};
+        return (tag, timestampNanos, v, len) -> {
+            CgmsParser.decodeMeasurements(v, 0, len, record, sink);
+            if (slow) LockSupport.parkNanos(SLOW_HANDLER_NANOS);
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (NotificationDispatcher d : dispatchers) d.stop();
+        if (slowDispatcher != null) slowDispatcher.stop();
+    }
+
+    /** Notifications delivered to healthy sessions. */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void offerRoundRobin() {
+        for (int n = 0; n < BATCH; n++) {
+            byte[] v = packed[n & 63];
+            int s = next++ % sessions;
+            while (!rings[s].offer(1, System.nanoTime(), v)) Thread.yield();
+            if (slowRing != null) slowRing.offer(1, System.nanoTime(), v); // dropped when full
+        }
+    }
+}
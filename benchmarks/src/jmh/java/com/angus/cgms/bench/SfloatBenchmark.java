@@ -0,0 +1,72 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.SfloatCodec;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SfloatCodec against the original {@code Math.pow} decode from CgmsParser.readSfloat.
+ * Inputs are realistic CGM values (glucose, trend, quality) across exponents -2..0.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@OperationsPerInvocation(SfloatBenchmark.N)
+public class SfloatBenchmark {
+    static final int N = 1024;
+
+    private byte[] wire;
+    private ByteBuffer buf;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        wire = new byte[N * 2];
+        for (int i = 0; i < N; i++) {
+            int exponent = -rnd.nextInt(3);
+            int mantissa = 40 + rnd.nextInt(1960);
+            if (rnd.nextInt(8) == 0) mantissa = -mantissa;
+            SfloatCodec.putSfloat(wire, i * 2, SfloatCodec.encodeSfloat(mantissa, exponent));
+        }
+        buf = ByteBuffer.wrap(wire).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public float legacyMathPow() {
+        buf.rewind();
+        float acc = 0;
+        for (int i = 0; i < N; i++) acc += legacyReadSfloat(buf);
+        return acc;
+    }
+
+    @Benchmark
+    public float codecDecode() {
+        float acc = 0;
+        for (int i = 0; i < N; i++) acc += SfloatCodec.sfloatAt(wire, i * 2);
+        return acc;
+    }
+
+    @Benchmark
+    public int codecDecodeTenths() {
+        int acc = 0;
+        for (int i = 0; i < N; i++) acc += SfloatCodec.sfloatScaledAt(wire, i * 2, -1);
+        return acc;
+    }
+
+    // Verbatim copy of the pre-codec implementation, kept as the baseline
+    private static Float legacyReadSfloat(ByteBuffer buf) {
+        if (buf.remaining() < 2) return null;
+        int raw = buf.getShort() & 0xFFFF;
+        int mantissa = raw & 0x0FFF;
+        int exponent = (raw >> 12) & 0x000F;
+        if ((mantissa & 0x0800) != 0) mantissa = mantissa | 0xFFFFF000;
+        if ((exponent & 0x0008) != 0) exponent = exponent | 0xFFFFFFF0;
+        double value = mantissa * Math.pow(10, exponent);
+        return (float) value;
+    }
+}
@@ -0,0 +1,221 @@
+package com.angus.cgms.bench;
+
+import com.angus.cgms.CgmsParser;
+import com.angus.cgms.CgmsUuids;
+import com.angus.cgms.GattScheduler;
+import com.angus.cgms.GattTransport;
+import com.angus.cgms.LatencyHistogram;
+import com.angus.cgms.NotificationDispatcher;
+import com.angus.cgms.NotificationRing;
+import com.angus.cgms.RacpBackfill;
+import com.angus.cgms.SessionTimeline;
+import com.angus.cgms.SimulatedCgmPeripheral;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The client data path against {@link SimulatedCgmPeripheral}: GattScheduler for every request,
+ * notifications through a NotificationRing and dispatcher thread, records decoded and filtered
+ * by RacpBackfill, as in BleManager.Session (which needs Android for its timers and logging).
+ *
+ * <ul>
+ *   <li>{@code backfill}: RACP download of {@code history} records, request to final response.</li>
+ *   <li>{@code stream}: one second of live notifications at {@code rate}/s; about 1 s while the
+ *       client keeps up. Dispatch latency and drops are printed at the end of the trial.</li>
+ *   <li>{@code reconnect}: status 19 from the sensor to measurement notifications enabled again.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class SimulatedLinkBenchmark {
+    @Param({"1", "8"})
+    public int recordsPerNotification;
+
+    @Param({"1000", "5000"})
+    public int rate;
+
+    @Param({"10000"})
+    public int history;
+
+    private SimulatedCgmPeripheral sim;
+    private Client client;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sim = new SimulatedCgmPeripheral("00:00:00:00:00:01", history);
+        sim.setNotificationsPerSecond(0);
+        sim.setRecordsPerNotification(recordsPerNotification);
+        sim.addHistory(history);
+        client = new Client(sim);
+        client.connect().get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("dispatch " + client.dispatchHist.snapshot() + ", dropped " + client.ring.dropped()
+                + ", records " + client.records.get());
+        client.close();
+        sim.shutdown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int backfill() throws Exception {
+        sim.setNotificationsPerSecond(0);
+        client.backfill.resetSeen();
+        CompletableFuture<Integer> done = client.backfillDone = new CompletableFuture<>();
+        client.backfill.start(0, System.nanoTime());
+        return done.get(30, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long stream() throws Exception {
+        long target = client.records.get() + (long) rate * recordsPerNotification;
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        sim.setNotificationsPerSecond(rate);
+        while (client.records.get() < target) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("stream stalled at " + client.records.get());
+            Thread.sleep(1);
+        }
+        sim.setNotificationsPerSecond(0);
+        return client.records.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void reconnect() throws Exception {
+        sim.setNotificationsPerSecond(0);
+        CompletableFuture<Void> ready = client.ready = new CompletableFuture<>();
+        sim.injectDisconnect(19);
+        ready.get(10, TimeUnit.SECONDS);
+    }
+
+    /** Minimal client: connect, MTU, discovery, CCCDs, decode; reconnects at once after a drop. */
+    static final class Client implements GattTransport.Callback {
+        final GattTransport transport;
+        final GattScheduler ops = new GattScheduler(this::execute, null);
+        // Waits rather than drops, so a backfill faster than the client slows the sensor down as a real link would
+        final NotificationRing ring = new NotificationRing(256, 512, NotificationRing.OVERFLOW_WAIT, 1_000_000_000L);
+        final NotificationDispatcher dispatcher;
+        final RacpBackfill backfill;
+        final LatencyHistogram dispatchHist = new LatencyHistogram();
+        final AtomicLong records = new AtomicLong();
+        final CgmsParser.MeasurementRecord record = new CgmsParser.MeasurementRecord();
+        final SessionTimeline timeline;
+        volatile CompletableFuture<Void> ready = new CompletableFuture<>();
+        volatile CompletableFuture<Integer> backfillDone = new CompletableFuture<>();
+        volatile boolean closed;
+
+        Client(GattTransport transport) {
+            this.transport = transport;
+            transport.setCallback(this);
+            backfill = new RacpBackfill(v -> {
+                ops.write(CgmsUuids.RECORD_ACCESS_CP, v, GattScheduler.PRIORITY_CONTROL, System.nanoTime());
+                return true;
+            }, new RacpBackfill.Listener() {
+                @Override public void onBackfillStarted(RacpBackfill b) {}
+                @Override public void onBackfillFinished(RacpBackfill b, int result) { backfillDone.complete(b.accepted()); }
+            }, 10_000_000_000L);
+            timeline = new SessionTimeline(new SessionTimeline.Listener() {
+                @Override public void onSessionStarted(SessionTimeline t, SessionTimeline.Session s) { backfill.resetSeen(); }
+                @Override public void onOffsetsRecycled(SessionTimeline t, SessionTimeline.Session s, int from, int count) {
+                    backfill.forgetSeen(from, count);
+                }
+            });
+            dispatcher = new NotificationDispatcher("bench-sim-client", ring, this::onSlot, Throwable::printStackTrace);
+            dispatcher.start();
+        }
+
+        CompletableFuture<Void> connect() {
+            transport.connect(false);
+            return ready;
+        }
+
+        void close() {
+            closed = true;
+            transport.disconnect();
+            transport.close();
+            dispatcher.stop();
+        }
+
+        private boolean execute(GattScheduler.Operation op) {
+            switch (op.type) {
+                case GattScheduler.OP_DISCOVER_SERVICES: return transport.discoverServices();
+                case GattScheduler.OP_REQUEST_MTU: return transport.requestMtu(op.arg);
+                case GattScheduler.OP_READ: return transport.read(op.uuid);
+                case GattScheduler.OP_WRITE: return transport.write(op.uuid, op.value);
+                case GattScheduler.OP_WRITE_DESCRIPTOR: return transport.writeCccd(op.uuid, op.value);
+                default: return false;
+            }
+        }
+
+        private void onSlot(int tag, long timestampNanos, byte[] v, int len) {
+            dispatchHist.record(System.nanoTime() - timestampNanos);
+            if (tag == 3) {
+                backfill.onIndication(v, 0, len, System.nanoTime());
+                return;
+            }
+            CgmsParser.decodeMeasurements(v, 0, len, record, r -> {
+                // Offsets wrap at 0xFFFF at these rates; the timeline tells a wrap from a new session as BleManager's does
+                timeline.onRecord(r.timeOffset, System.currentTimeMillis(), !backfill.isActive());
+                if (backfill.accept(r, r.size, System.nanoTime())) records.incrementAndGet();
+            });
+        }
+
+        @Override public void onConnectionStateChange(int status, int newState) {
+            long now = System.nanoTime();
+            if (newState == GattTransport.STATE_CONNECTED) {
+                ops.requestMtu(SimulatedCgmPeripheral.MAX_MTU, now);
+                ops.discoverServices(now);
+            } else {
+                ops.cancelAll(now);
+                backfill.cancel(now);
+                transport.close();
+                if (!closed) transport.connect(false);
+            }
+        }
+
+        @Override public void onMtuChanged(int mtu, int status) {
+            ops.complete(GattScheduler.OP_REQUEST_MTU, null, status, null, System.nanoTime());
+        }
+
+        @Override public void onServicesDiscovered(int status) {
+            long now = System.nanoTime();
+            ops.complete(GattScheduler.OP_DISCOVER_SERVICES, null, status, null, now);
+            ops.writeDescriptor(CgmsUuids.RECORD_ACCESS_CP, GattTransport.ENABLE_INDICATION_VALUE, now);
+            ops.writeDescriptor(CgmsUuids.CGM_MEASUREMENT, GattTransport.ENABLE_NOTIFICATION_VALUE, now);
+        }
+
+        @Override public void onCharacteristicRead(UUID uuid, int status, byte[] value) {
+            ops.complete(GattScheduler.OP_READ, uuid, status, value, System.nanoTime());
+        }
+
+        @Override public void onCharacteristicWrite(UUID uuid, int status, byte[] value) {
+            ops.complete(GattScheduler.OP_WRITE, uuid, status, value, System.nanoTime());
+        }
+
+        @Override public void onCharacteristicChanged(UUID uuid, byte[] value) {
+            ring.offer(CgmsUuids.RECORD_ACCESS_CP.equals(uuid) ? 3 : 1, System.nanoTime(), value);
+        }
+
+        @Override public void onDescriptorWrite(UUID uuid, int status, byte[] value) {
+            ops.complete(GattScheduler.OP_WRITE_DESCRIPTOR, uuid, status, value, System.nanoTime());
+            if (CgmsUuids.CGM_MEASUREMENT.equals(uuid)) ready.complete(null);
+        }
+
+        @Override public void onDescriptorRead(UUID uuid, int status, byte[] value) {
+            ops.complete(GattScheduler.OP_READ_DESCRIPTOR, uuid, status, value, System.nanoTime());
+        }
+
+        @Override public void onBondStateChanged(int bondState) {}
+    }
+}